@@ -206,7 +206,7 @@ public abstract class AbstractUsageCounter implements ResourceUsageCounter {
 
             current += counter.consume(signal.timestamp, signal.sample);
 
-            save();
+            saveSample();
 
             dataBroadcaster.broadcast(new DataSample<Double>(name, signature, Double.valueOf(current), null));
 
@@ -280,6 +280,17 @@ public abstract class AbstractUsageCounter implements ResourceUsageCounter {
      */
     protected abstract void save() throws IOException;
     
+    /**
+     * Store the current state after a sample has been consumed.
+     *
+     * This is called on every sample, implementations with expensive storage may choose to defer {@link #save()}.
+     *
+     * @throws IOException if things go sour.
+     */
+    protected void saveSample() throws IOException {
+        save();
+    }
+
     /**
      * Alert the user about usage.
      * 
@@ -1,29 +1,111 @@
 package net.sf.dz3.util.counter;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.LineNumberReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.StringTokenizer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
 
 import org.apache.logging.log4j.ThreadContext;
 
 import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSource;
+import com.homeclimatecontrol.jukebox.jmx.JmxAttribute;
 
 /**
  * Usage counter storing the state into a file.
  *
- * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2020
+ * By default, the state is saved on every sample. This wears out SD cards, so there's also a write-behind mode
+ * where the state is accumulated in memory, and appended to a journal file next to the counter file when either
+ * the flush interval expires, or the usage changes by more than the flush threshold, and at shutdown.
+ * Every {@link #COMPACT_AFTER_ENTRIES} journal entries, the journal is compacted into the counter file.
+ *
+ * Every write, journal or counter file, carries a serial number, and journal entries are checksummed, so
+ * a torn journal entry, or a stale journal left behind by an interrupted compaction, are detected and ignored on load.
+ *
+ * A write-behind instance must be {@link #close() closed} when it is no longer needed, otherwise it will stay
+ * referenced by the flush scheduler and the shutdown hook until the JVM exits.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
  */
-public class FileUsageCounter extends TransientUsageCounter {
+public class FileUsageCounter extends TransientUsageCounter implements AutoCloseable {
 
     private static final String CF_THRESHOLD = "threshold";
     private static final String CF_CURRENT = "current";
+    private static final String CF_SERIAL = "serial";
+
+    /**
+     * Compact the journal after this many entries.
+     */
+    public static final int COMPACT_AFTER_ENTRIES = 500;
 
     /**
-     * Create an instance.
+     * Write-behind flush scheduler shared by all the counters, there's very little work for it.
+     */
+    private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+
+        Thread t = new Thread(r, "FileUsageCounter flusher");
+        t.setDaemon(true);
+
+        return t;
+    });
+
+    /**
+     * Flush interval, milliseconds. Zero means write-through.
+     */
+    private final long flushIntervalMillis;
+
+    /**
+     * Flush the journal as soon as the usage changes by this much since the last flush.
+     */
+    private final long flushThreshold;
+
+    /**
+     * Last serial number written.
+     *
+     * Set by {@link #load()}, which is called from the superclass constructor, hence no initializer -
+     * it would overwrite the loaded value.
+     */
+    private long serial;
+
+    /**
+     * Periodic flush, {@code null} in write-through mode or after {@link #close()}.
+     */
+    private ScheduledFuture<?> flushTask;
+
+    /**
+     * Flush at JVM shutdown, {@code null} in write-through mode or after {@link #close()}.
+     */
+    private Thread shutdownHook;
+
+    private boolean dirty = false;
+    private long lastFlush = System.currentTimeMillis();
+    private long flushedValue;
+
+    /**
+     * Number of entries in the journal, including those written before the restart.
+     *
+     * Set by {@link #load()}, same as {@link #serial}, hence no initializer.
+     */
+    private int journalEntries;
+
+    private final long created = System.currentTimeMillis();
+    private final AtomicLong journalWrites = new AtomicLong();
+    private final AtomicLong snapshotWrites = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    /**
+     * Create a write-through instance.
      *
      * @param name Human readable name for the user interface.
      * @param counter Counter to use.
@@ -33,7 +115,47 @@ public class FileUsageCounter extends TransientUsageCounter {
      * @throws IOException if things go sour.
      */
     public FileUsageCounter(String name, CounterStrategy counter, DataSource<Double> target, File persistentStorage) throws IOException {
+
+        super(name, counter, target, new Object [] { persistentStorage });
+
+        this.flushIntervalMillis = 0;
+        this.flushThreshold = 0;
+    }
+
+    /**
+     * Create a write-behind instance.
+     *
+     * @param name Human readable name for the user interface.
+     * @param counter Counter to use.
+     * @param target What to count.
+     * @param persistentStorage File to store the counter data into.
+     * @param flushIntervalMillis Maximum time the state may stay unsaved, milliseconds.
+     * @param flushThreshold Maximum usage change that may stay unsaved, in counter units
+     * (milliseconds for the {@link TimeBasedUsage time based counter}).
+     *
+     * @throws IOException if things go sour.
+     */
+    public FileUsageCounter(String name, CounterStrategy counter, DataSource<Double> target, File persistentStorage,
+            long flushIntervalMillis, long flushThreshold) throws IOException {
+
         super(name, counter, target, new Object [] { persistentStorage });
+
+        if (flushIntervalMillis <= 0) {
+            throw new IllegalArgumentException("flushIntervalMillis must be positive (" + flushIntervalMillis + " given)");
+        }
+
+        if (flushThreshold <= 0) {
+            throw new IllegalArgumentException("flushThreshold must be positive (" + flushThreshold + " given)");
+        }
+
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.flushThreshold = flushThreshold;
+        this.flushedValue = getUsageAbsolute();
+
+        this.flushTask = flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        this.shutdownHook = new Thread(this::flushQuietly, "FileUsageCounter shutdown: " + name);
+
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
     }
 
     @Override
@@ -53,72 +175,196 @@ public class FileUsageCounter extends TransientUsageCounter {
 
             logger.info("Loading " + persistentStorage);
 
+            Snapshot snapshot;
+
             if (!persistentStorage.exists()) {
 
                 logger.warn(persistentStorage + " doesn't exist, will initialize");
-                return new CounterState(0, 0);
+                snapshot = new Snapshot(0, 0, 0);
+
+            } else {
+
+                checkSanity(persistentStorage);
+                snapshot = readSnapshot(persistentStorage);
             }
 
-            checkSanity(persistentStorage);
+            Replay replay = replay(getJournal(persistentStorage), snapshot);
 
-            try (LineNumberReader lnr = new LineNumberReader(new FileReader(persistentStorage))) {
+            snapshot = replay.snapshot;
+            serial = snapshot.serial;
+            journalEntries = replay.entries;
 
-                Long threshold = null;
-                Long current = null;
+            CounterState state = new CounterState(snapshot.threshold, snapshot.current);
 
-                while (true) {
+            logger.info("Loaded: " + state);
 
-                    String line = lnr.readLine();
+            return state;
 
-                    if (line == null) {
+        } finally {
+            ThreadContext.pop();
+        }
+    }
 
-                        // End of file
-                        break;
-                    }
+    private Snapshot readSnapshot(File persistentStorage) throws IOException {
 
-                    if (line.startsWith("#")) {
-                        // That's a comment
-                        continue;
-                    }
+        try (LineNumberReader lnr = new LineNumberReader(new FileReader(persistentStorage))) {
+
+            Long threshold = null;
+            Long current = null;
+            long serial = 0;
+
+            while (true) {
+
+                String line = lnr.readLine();
+
+                if (line == null) {
+
+                    // End of file
+                    break;
+                }
+
+                if (line.startsWith("#")) {
+                    // That's a comment
+                    continue;
+                }
 
-                    StringTokenizer st = new StringTokenizer(line, "=");
+                StringTokenizer st = new StringTokenizer(line, "=");
 
-                    try {
+                try {
 
-                        String key = st.nextToken();
-                        Long value = Long.parseLong(st.nextToken());
+                    String key = st.nextToken();
+                    Long value = Long.parseLong(st.nextToken());
 
-                        if (CF_THRESHOLD.equals(key)) {
-                            threshold = value;
-                        }
+                    if (CF_THRESHOLD.equals(key)) {
+                        threshold = value;
+                    }
 
-                        if (CF_CURRENT.equals(key)) {
-                            current = value;
-                        }
+                    if (CF_CURRENT.equals(key)) {
+                        current = value;
+                    }
 
-                    } catch (Throwable t) {
-                        throw new IllegalArgumentException("Failed to parse line '" + line + "' out of " + persistentStorage.getCanonicalPath() + " (line " + lnr.getLineNumber() + ")");
+                    if (CF_SERIAL.equals(key)) {
+                        serial = value;
                     }
+
+                } catch (Throwable t) {
+                    throw new IllegalArgumentException("Failed to parse line '" + line + "' out of " + persistentStorage.getCanonicalPath() + " (line " + lnr.getLineNumber() + ")");
                 }
+            }
+
+            if (threshold == null) {
+                throw new IllegalArgumentException("No '" + CF_THRESHOLD + "=NN' found in " + persistentStorage.getCanonicalPath());
+            }
+
+            if (current == null) {
+                throw new IllegalArgumentException("No '" + CF_CURRENT +"=NN' found in " + persistentStorage.getCanonicalPath());
+            }
+
+            return new Snapshot(threshold, current, serial);
+        }
+    }
+
+    /**
+     * Apply the journal entries newer than the snapshot.
+     *
+     * @param journal Journal file.
+     * @param snapshot State loaded from the counter file.
+     *
+     * @return State with the journal applied, and the journal size.
+     */
+    private Replay replay(File journal, Snapshot snapshot) throws IOException {
+
+        if (!journal.exists()) {
+            return new Replay(snapshot, 0);
+        }
+
+        Snapshot result = snapshot;
+        int applied = 0;
+        int entries = 0;
+
+        try (LineNumberReader lnr = new LineNumberReader(new FileReader(journal))) {
 
-                if (threshold == null) {
-                    throw new IllegalArgumentException("No '" + CF_THRESHOLD + "=NN' found in " + persistentStorage.getCanonicalPath());
+            while (true) {
+
+                String line = lnr.readLine();
+
+                if (line == null) {
+                    break;
                 }
 
-                if (current == null) {
-                    throw new IllegalArgumentException("No '" + CF_CURRENT +"=NN' found in " + persistentStorage.getCanonicalPath());
+                Snapshot entry = parseEntry(line);
+
+                if (entry == null) {
+
+                    // Torn write, nothing past this point can be trusted - including the entries
+                    // appended after it, so have the next flush compact the journal away
+                    logger.warn("{}: bad entry at line {}, ignoring the rest: '{}'", journal, lnr.getLineNumber(), line);
+                    entries = COMPACT_AFTER_ENTRIES;
+                    break;
                 }
 
-                CounterState state = new CounterState(threshold.longValue(), current.longValue());
+                entries++;
 
-                logger.info("Loaded: " + state);
+                if (entry.serial <= result.serial) {
 
-                return state;
+                    // Left over from an interrupted compaction
+                    continue;
+                }
+
+                result = entry;
+                applied++;
             }
+        }
 
-        } finally {
-            ThreadContext.pop();
+        logger.info("{}: {} entries applied", journal, applied);
+
+        return new Replay(result, entries);
+    }
+
+    /**
+     * @return Parsed journal entry, or {@code null} if the entry is malformed.
+     */
+    private Snapshot parseEntry(String line) {
+
+        int checksumAt = line.lastIndexOf(' ');
+
+        if (checksumAt < 0) {
+            return null;
         }
+
+        String payload = line.substring(0, checksumAt);
+
+        if (!Long.toHexString(checksum(payload)).equals(line.substring(checksumAt + 1))) {
+            return null;
+        }
+
+        String[] values = payload.split(" ");
+
+        if (values.length != 3) {
+            return null;
+        }
+
+        try {
+
+            return new Snapshot(Long.parseLong(values[1]), Long.parseLong(values[2]), Long.parseLong(values[0]));
+
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    private static long checksum(String payload) {
+
+        CRC32 crc = new CRC32();
+
+        crc.update(payload.getBytes(StandardCharsets.US_ASCII));
+
+        return crc.getValue();
+    }
+
+    private File getJournal(File persistentStorage) {
+        // A bare file name has no parent
+        return new File(persistentStorage.getAbsoluteFile().getParentFile(), persistentStorage.getName() + ".journal");
     }
 
     private void checkSanity(File persistentStorage) throws IOException {
@@ -136,6 +382,121 @@ public class FileUsageCounter extends TransientUsageCounter {
         }
     }
 
+    private long nextSerial() {
+        return ++serial;
+    }
+
+    @Override
+    protected synchronized void saveSample() throws IOException {
+
+        if (flushIntervalMillis == 0) {
+            save();
+            return;
+        }
+
+        dirty = true;
+
+        if (System.currentTimeMillis() - lastFlush >= flushIntervalMillis
+                || Math.abs(getUsageAbsolute() - flushedValue) >= flushThreshold) {
+
+            flush();
+        }
+    }
+
+    /**
+     * Write the unsaved state, if any, into the journal, compacting it if it's getting long.
+     *
+     * @throws IOException if things go sour.
+     */
+    public synchronized void flush() throws IOException {
+
+        if (!dirty) {
+            return;
+        }
+
+        if (journalEntries >= COMPACT_AFTER_ENTRIES) {
+
+            save();
+            return;
+        }
+
+        ThreadContext.push("flush@" + Integer.toHexString(hashCode()));
+
+        try {
+
+            File persistentStorage = (File) getStorageKeys()[0];
+            File canonical = new File(persistentStorage.getCanonicalPath());
+
+            if (canonical.getParentFile().mkdirs()) {
+                logger.info("Created " + canonical.getParentFile());
+            }
+
+            String payload = nextSerial() + " " + getThreshold() + " " + getUsageAbsolute();
+            byte[] entry = (payload + " " + Long.toHexString(checksum(payload)) + "\n").getBytes(StandardCharsets.US_ASCII);
+
+            try (OutputStream out = new FileOutputStream(getJournal(persistentStorage), true)) {
+                out.write(entry);
+            }
+
+            journalWrites.incrementAndGet();
+            bytesWritten.addAndGet(entry.length);
+            journalEntries++;
+
+            markClean();
+
+        } finally {
+            ThreadContext.pop();
+        }
+    }
+
+    /**
+     * Stop the periodic flush, remove the shutdown hook, and flush the unsaved state, if any.
+     *
+     * @throws IOException if the final flush fails.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+
+        if (flushTask != null) {
+
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+
+        if (shutdownHook != null) {
+
+            try {
+
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+
+            } catch (IllegalStateException ex) {
+
+                // The JVM is shutting down already, the hook will flush anyway
+                logger.debug("Too late to remove the shutdown hook for '{}'", getName());
+            }
+
+            shutdownHook = null;
+        }
+
+        flush();
+    }
+
+    private void flushQuietly() {
+
+        try {
+            flush();
+        } catch (IOException ex) {
+            logger.error("Failed to save state for '" + getName() + "'", ex);
+        }
+    }
+
+    private void markClean() {
+
+        dirty = false;
+        lastFlush = System.currentTimeMillis();
+        flushedValue = getUsageAbsolute();
+    }
+
     @Override
     protected synchronized void save() throws IOException {
 
@@ -164,11 +525,15 @@ public class FileUsageCounter extends TransientUsageCounter {
             File temp = new File(canonical.getParent(), canonical.getName() + "+");
             File backup = new File(canonical.getParent(), canonical.getName() + "-");
 
-            try (PrintWriter pw = new PrintWriter(new FileWriter(temp))) {
+            StringBuilder sb = new StringBuilder();
 
-                pw.println("# Resource Usage Counter: " + getName());
-                pw.println(CF_THRESHOLD + "=" + getThreshold());
-                pw.println(CF_CURRENT + "=" + getUsageAbsolute());
+            sb.append("# Resource Usage Counter: ").append(getName()).append(System.lineSeparator());
+            sb.append(CF_THRESHOLD).append("=").append(getThreshold()).append(System.lineSeparator());
+            sb.append(CF_CURRENT).append("=").append(getUsageAbsolute()).append(System.lineSeparator());
+            sb.append(CF_SERIAL).append("=").append(nextSerial()).append(System.lineSeparator());
+
+            try (Writer w = new FileWriter(temp)) {
+                w.write(sb.toString());
             }
 
             if (canonical.exists() && !canonical.renameTo(backup)) {
@@ -179,8 +544,82 @@ public class FileUsageCounter extends TransientUsageCounter {
                 throw new IOException("failed to rename " + temp + " to " + canonical);
             }
 
+            snapshotWrites.incrementAndGet();
+            bytesWritten.addAndGet(sb.length());
+
+            // The journal is now older than the counter file. If this fails, it'll be ignored on load anyway.
+            File journal = getJournal(persistentStorage);
+
+            if (journal.exists() && !journal.delete()) {
+                logger.warn("failed to delete {}", journal);
+            }
+
+            journalEntries = 0;
+            markClean();
+
         } finally {
             ThreadContext.pop();
         }
     }
+
+    @JmxAttribute(description = "Flush interval in write-behind mode, milliseconds, 0 for write-through")
+    public long getFlushIntervalMillis() {
+        return flushIntervalMillis;
+    }
+
+    @JmxAttribute(description = "Journal entries written")
+    public long getJournalWrites() {
+        return journalWrites.get();
+    }
+
+    @JmxAttribute(description = "Counter file writes")
+    public long getSnapshotWrites() {
+        return snapshotWrites.get();
+    }
+
+    @JmxAttribute(description = "Bytes written since startup")
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    @JmxAttribute(description = "Average bytes written per hour since startup")
+    public long getBytesPerHour() {
+        return bytesWritten.get() * 60 * 60 * 1000 / Math.max(1, System.currentTimeMillis() - created);
+    }
+
+    /**
+     * Counter state with the serial number of the write that produced it.
+     */
+    private static class Snapshot {
+
+        final long threshold;
+        final long current;
+        final long serial;
+
+        Snapshot(long threshold, long current, long serial) {
+
+            this.threshold = threshold;
+            this.current = current;
+            this.serial = serial;
+        }
+    }
+
+    /**
+     * Result of {@link #replay(File, Snapshot)}.
+     */
+    private static class Replay {
+
+        final Snapshot snapshot;
+
+        /**
+         * Journal entries found, applied or not.
+         */
+        final int entries;
+
+        Replay(Snapshot snapshot, int entries) {
+
+            this.snapshot = snapshot;
+            this.entries = entries;
+        }
+    }
 }
@@ -0,0 +1,121 @@
+package net.sf.dz3.util.snapshot;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSample;
+
+/**
+ * Helpers for writing and reading {@link Snapshotable} state.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+public final class SnapshotIO {
+
+    @FunctionalInterface
+    public interface ValueWriter<T> {
+        void write(DataOutput out, T value) throws IOException;
+    }
+
+    @FunctionalInterface
+    public interface ValueReader<T> {
+        T read(DataInput in) throws IOException;
+    }
+
+    private SnapshotIO() {
+        // Static helpers only
+    }
+
+    /**
+     * Write a string that may be {@code null}.
+     */
+    public static void writeString(DataOutput out, String value) throws IOException {
+
+        out.writeBoolean(value != null);
+
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Write a timestamp that may be {@code null}.
+     */
+    public static void writeLong(DataOutput out, Long value) throws IOException {
+
+        out.writeBoolean(value != null);
+
+        if (value != null) {
+            out.writeLong(value);
+        }
+    }
+
+    public static Long readLong(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readLong() : null;
+    }
+
+    /**
+     * Write a sample that may be {@code null}.
+     *
+     * Only the error message survives for error samples.
+     */
+    public static void writeSample(DataOutput out, DataSample<Double> sample) throws IOException {
+        writeSample(out, sample, DataOutput::writeDouble);
+    }
+
+    public static DataSample<Double> readSample(DataInput in) throws IOException {
+        return readSample(in, DataInput::readDouble);
+    }
+
+    /**
+     * Write a sample that may be {@code null}.
+     *
+     * Only the error message survives for error samples.
+     *
+     * @param writer Writer for the sample value.
+     */
+    public static <T> void writeSample(DataOutput out, DataSample<T> sample, ValueWriter<T> writer) throws IOException {
+
+        out.writeBoolean(sample != null);
+
+        if (sample == null) {
+            return;
+        }
+
+        out.writeLong(sample.timestamp);
+        writeString(out, sample.sourceName);
+        writeString(out, sample.signature);
+        out.writeBoolean(sample.isError());
+
+        if (sample.isError()) {
+            writeString(out, sample.error.getMessage());
+        } else {
+            writer.write(out, sample.sample);
+        }
+    }
+
+    /**
+     * @param reader Reader for the sample value.
+     */
+    public static <T> DataSample<T> readSample(DataInput in, ValueReader<T> reader) throws IOException {
+
+        if (!in.readBoolean()) {
+            return null;
+        }
+
+        long timestamp = in.readLong();
+        String sourceName = readString(in);
+        String signature = readString(in);
+
+        if (in.readBoolean()) {
+            return new DataSample<>(timestamp, sourceName, signature, null, new IllegalStateException(readString(in)));
+        }
+
+        return new DataSample<>(timestamp, sourceName, signature, reader.read(in), null);
+    }
+}
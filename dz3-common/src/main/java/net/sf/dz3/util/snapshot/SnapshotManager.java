@@ -0,0 +1,381 @@
+package net.sf.dz3.util.snapshot;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.ThreadContext;
+
+import com.homeclimatecontrol.jukebox.jmx.JmxAttribute;
+import com.homeclimatecontrol.jukebox.jmx.JmxAware;
+import com.homeclimatecontrol.jukebox.jmx.JmxDescriptor;
+
+/**
+ * Periodically saves the state of {@link Snapshotable} objects into a file, and restores it at startup,
+ * so that the control logic doesn't have to start from scratch after a restart.
+ *
+ * The state is restored by {@link #start()}, in the order of the participant map, provided the snapshot
+ * is not older than {@code maxAgeMillis}. Snapshots from the future (clock not yet set after a reboot)
+ * are ignored as well, the restored sample timestamps would prevent the controllers from accepting new samples.
+ *
+ * Restored state reaches the rest of the system through the participants' signals, so {@link #start()} must only be
+ * called once the consumers are subscribed - {@code net.sf.dz3.runtime.Container} does that for all instances
+ * found in the configuration after the context is refreshed, there's no need to declare an {@code init-method}.
+ *
+ * A restored snapshot overrides the configuration: thermostats come back with the setpoint, enabled, hold,
+ * voting and dump priority settings they had when the snapshot was taken, not the ones from the configuration.
+ * To make configuration changes take effect, remove the snapshot file, or wait for it to age out, before restarting.
+ *
+ * File format: {@code int magic, int version, long timestamp, int count}, followed by {@code count} of
+ * {@code UTF key, int length, byte[length] state}, and a CRC32 of everything before it. The file is written
+ * into a temporary file first and atomically moved into place, so it is either the old or the new snapshot, never a mix.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+public class SnapshotManager implements JmxAware, AutoCloseable {
+
+    private static final int MAGIC = 0x445a534e; // "DZSN"
+    private static final int VERSION = 1;
+
+    private final Logger logger = LogManager.getLogger(getClass());
+
+    private final File file;
+    private final Map<String, Snapshotable> participants;
+    private final long maxAgeMillis;
+
+    private final long intervalMillis;
+
+    private ScheduledExecutorService scheduler;
+    private Thread shutdownHook;
+    private boolean started = false;
+
+    private int restored = 0;
+    private long restoredAgeMillis = -1;
+    private long saves = 0;
+    private long failures = 0;
+    private long lastSaveMillis = 0;
+    private int lastSaveBytes = 0;
+
+    /**
+     * Create an instance. Nothing is restored or saved until {@link #start()} is called.
+     *
+     * @param file File to keep the snapshot in.
+     * @param participants Objects to save and restore the state of. Key identifies the object in the snapshot,
+     * and must be stable across restarts.
+     * @param intervalMillis How often to save the state, milliseconds. Zero disables periodic saves, the state will then
+     * only be saved on {@link #close()} and at JVM shutdown.
+     * @param maxAgeMillis Maximum snapshot age to restore the state from, milliseconds.
+     */
+    public SnapshotManager(File file, Map<String, Snapshotable> participants, long intervalMillis, long maxAgeMillis) {
+
+        if (file == null) {
+            throw new IllegalArgumentException("file can't be null");
+        }
+
+        if (participants == null || participants.isEmpty()) {
+            throw new IllegalArgumentException("participants can't be null or empty");
+        }
+
+        if (intervalMillis < 0) {
+            throw new IllegalArgumentException("intervalMillis can't be negative (" + intervalMillis + " given)");
+        }
+
+        this.file = file;
+        this.participants = new LinkedHashMap<>(participants);
+        this.maxAgeMillis = maxAgeMillis;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Restore the state, if the snapshot is fresh enough, and start saving it.
+     *
+     * Subsequent calls are ignored.
+     */
+    public synchronized void start() {
+
+        if (started) {
+            logger.warn("{}: already started", file);
+            return;
+        }
+
+        started = true;
+
+        restore();
+
+        if (intervalMillis > 0) {
+
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+
+                Thread t = new Thread(r, "SnapshotManager: " + file.getName());
+                t.setDaemon(true);
+
+                return t;
+            });
+
+            scheduler.scheduleWithFixedDelay(this::saveQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+
+        shutdownHook = new Thread(this::saveQuietly, "SnapshotManager shutdown: " + file.getName());
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    private synchronized void restore() {
+
+        ThreadContext.push("restore");
+
+        try {
+
+            if (!file.exists()) {
+                logger.info("{}: no snapshot, cold start", file);
+                return;
+            }
+
+            byte[] content = Files.readAllBytes(file.toPath());
+
+            if (content.length < 8) {
+                logger.warn("{}: truncated, ignored", file);
+                return;
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(content, 0, content.length - 8);
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+
+            in.skipBytes(content.length - 8);
+
+            if (in.readLong() != crc.getValue()) {
+                logger.warn("{}: checksum mismatch, ignored", file);
+                return;
+            }
+
+            in = new DataInputStream(new ByteArrayInputStream(content, 0, content.length - 8));
+
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                logger.warn("{}: not a snapshot or unsupported version, ignored", file);
+                return;
+            }
+
+            long timestamp = in.readLong();
+            long age = System.currentTimeMillis() - timestamp;
+
+            if (age < 0) {
+                logger.warn("{}: snapshot is {}ms in the future, clock not set yet? Ignored", file, -age);
+                return;
+            }
+
+            if (age > maxAgeMillis) {
+                logger.info("{}: snapshot is {}ms old, more than {}ms allowed, cold start", file, age, maxAgeMillis);
+                return;
+            }
+
+            int count = in.readInt();
+
+            for (int offset = 0; offset < count; offset++) {
+
+                String key = in.readUTF();
+                byte[] state = new byte[in.readInt()];
+
+                in.readFully(state);
+
+                Snapshotable target = participants.get(key);
+
+                if (target == null) {
+                    logger.warn("{}: no longer present, state ignored", key);
+                    continue;
+                }
+
+                try {
+
+                    target.readSnapshot(new DataInputStream(new ByteArrayInputStream(state)));
+                    restored++;
+
+                } catch (Throwable t) {
+
+                    // Can't let it stop the rest
+                    logger.error("{}: failed to restore, may be partially restored", key, t);
+                }
+            }
+
+            restoredAgeMillis = age;
+
+            logger.info("{}: restored {} of {} objects, snapshot age {}ms", file, restored, participants.size(), age);
+
+        } catch (IOException ex) {
+
+            // Cold start is not fatal
+            logger.error("{}: failed to read, cold start", file, ex);
+
+        } finally {
+            ThreadContext.pop();
+        }
+    }
+
+    /**
+     * Write the snapshot.
+     *
+     * @throws IOException if things go sour.
+     */
+    public synchronized void save() throws IOException {
+
+        ThreadContext.push("save");
+
+        try {
+
+            long start = System.currentTimeMillis();
+
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(buffer);
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(start);
+            out.writeInt(participants.size());
+
+            for (Map.Entry<String, Snapshotable> entry : participants.entrySet()) {
+
+                ByteArrayOutputStream state = new ByteArrayOutputStream();
+
+                entry.getValue().writeSnapshot(new DataOutputStream(state));
+
+                out.writeUTF(entry.getKey());
+                out.writeInt(state.size());
+                state.writeTo(out);
+            }
+
+            out.flush();
+
+            CRC32 crc = new CRC32();
+            byte[] content = buffer.toByteArray();
+
+            crc.update(content);
+            out.writeLong(crc.getValue());
+            out.flush();
+
+            content = buffer.toByteArray();
+
+            File canonical = file.getAbsoluteFile();
+            File temp = new File(canonical.getParentFile(), canonical.getName() + "+");
+
+            if (canonical.getParentFile().mkdirs()) {
+                logger.info("Created {}", canonical.getParentFile());
+            }
+
+            try (FileOutputStream fos = new FileOutputStream(temp)) {
+
+                fos.write(content);
+                fos.getFD().sync();
+            }
+
+            Files.move(temp.toPath(), canonical.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            saves++;
+            lastSaveBytes = content.length;
+            lastSaveMillis = System.currentTimeMillis() - start;
+
+            logger.debug("{}: {} bytes in {}ms", file, lastSaveBytes, lastSaveMillis);
+
+        } catch (IOException ex) {
+
+            failures++;
+            throw ex;
+
+        } finally {
+            ThreadContext.pop();
+        }
+    }
+
+    private void saveQuietly() {
+
+        try {
+            save();
+        } catch (Throwable t) {
+
+            // Must not let it propagate, or the periodic save will stop silently
+            logger.error("{}: failed to save", file, t);
+        }
+    }
+
+    /**
+     * Stop the periodic saves and save the final snapshot.
+     *
+     * If the instance was never {@link #start() started}, nothing is saved, so that the existing snapshot
+     * is not replaced with the state that wasn't restored from it.
+     */
+    @Override
+    public void close() throws IOException {
+
+        synchronized (this) {
+            if (!started) {
+                return;
+            }
+        }
+
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException ex) {
+            // Shutdown is already in progress, the hook will take care of it
+            return;
+        }
+
+        save();
+    }
+
+    @JmxAttribute(description = "Objects restored at startup")
+    public synchronized int getRestored() {
+        return restored;
+    }
+
+    @JmxAttribute(description = "Age of the snapshot restored at startup, milliseconds, -1 if cold start")
+    public synchronized long getRestoredAgeMillis() {
+        return restoredAgeMillis;
+    }
+
+    @JmxAttribute(description = "Snapshots saved")
+    public synchronized long getSaves() {
+        return saves;
+    }
+
+    @JmxAttribute(description = "Snapshots failed to save")
+    public synchronized long getFailures() {
+        return failures;
+    }
+
+    @JmxAttribute(description = "Last snapshot save time, milliseconds")
+    public synchronized long getLastSaveMillis() {
+        return lastSaveMillis;
+    }
+
+    @JmxAttribute(description = "Last snapshot size, bytes")
+    public synchronized int getLastSaveBytes() {
+        return lastSaveBytes;
+    }
+
+    @Override
+    public JmxDescriptor getJmxDescriptor() {
+
+        return new JmxDescriptor(
+                "dz",
+                "Snapshot Manager",
+                file.getName(),
+                "Saves and restores the controller state across restarts");
+    }
+}
@@ -0,0 +1,36 @@
+package net.sf.dz3.util.snapshot;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * An object whose runtime state can be saved and restored across restarts.
+ *
+ * @see SnapshotManager
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+public interface Snapshotable {
+
+    /**
+     * Write the current state.
+     *
+     * @param out Stream to write to.
+     *
+     * @throws IOException if things go sour.
+     */
+    void writeSnapshot(DataOutput out) throws IOException;
+
+    /**
+     * Restore the state previously written by {@link #writeSnapshot(DataOutput)}.
+     *
+     * This is called at startup, once all the objects in the configuration are created and subscribed to each other,
+     * so a restored signal will reach its consumers.
+     *
+     * @param in Stream to read from.
+     *
+     * @throws IOException if things go sour.
+     */
+    void readSnapshot(DataInput in) throws IOException;
+}
@@ -365,4 +365,205 @@ class FileUsageCounterTest {
             ThreadContext.pop();
         }
     }
+    /**
+     * Make sure write-behind mode doesn't touch the disk on every sample, and nothing is lost on restart.
+     */
+    @Test
+    void writeBehind() throws IOException {
+
+        File counterFile = createNonexistentDirect();
+        File journal = new File(counterFile.getParentFile(), counterFile.getName() + ".journal");
+
+        try (FileUsageCounter counter = new FileUsageCounter("test", new TimeBasedUsage(0), createTarget(), counterFile, 60000, 1000)) {
+
+            for (long offset = 0; offset < 100; offset++) {
+                counter.consume(new DataSample<>(offset * 10, "source", "signature", 1d, null));
+            }
+
+            // 990ms consumed, below the threshold
+            assertThat(counter.getUsageAbsolute()).isEqualTo(990);
+            assertThat(counter.getJournalWrites()).isZero();
+            assertThat(counterFile).doesNotExist();
+            assertThat(journal).doesNotExist();
+
+            counter.consume(new DataSample<>(1000, "source", "signature", 1d, null));
+
+            assertThat(counter.getJournalWrites()).isEqualTo(1);
+            assertThat(counter.getSnapshotWrites()).isZero();
+            assertThat(journal).exists();
+
+            counter.consume(new DataSample<>(1500, "source", "signature", 1d, null));
+            counter.flush();
+
+            assertThat(counter.getJournalWrites()).isEqualTo(2);
+
+            // Simulate a crash: nothing but the journal has been written
+            try (FileUsageCounter restarted = new FileUsageCounter("test", new TimeBasedUsage(), createTarget(), counterFile, 60000, 1000)) {
+                assertThat(restarted.getUsageAbsolute()).isEqualTo(1500);
+            }
+
+        } finally {
+            counterFile.delete();
+            journal.delete();
+        }
+    }
+
+    /**
+     * Make sure {@link FileUsageCounter#close()} flushes the state and stops the periodic flush.
+     */
+    @Test
+    void close() throws IOException, InterruptedException {
+
+        File counterFile = createNonexistentDirect();
+        File journal = new File(counterFile.getParentFile(), counterFile.getName() + ".journal");
+
+        try {
+
+            FileUsageCounter counter = new FileUsageCounter("test", new TimeBasedUsage(0), createTarget(), counterFile, 50, 1_000_000);
+
+            counter.consume(new DataSample<>(0, "source", "signature", 1d, null));
+            counter.consume(new DataSample<>(100, "source", "signature", 1d, null));
+            counter.close();
+
+            assertThat(counter.getJournalWrites()).isEqualTo(1);
+
+            // Still counted, but not flushed in the background anymore
+            counter.consume(new DataSample<>(200, "source", "signature", 1d, null));
+            Thread.sleep(200);
+
+            assertThat(counter.getJournalWrites()).isEqualTo(1);
+
+            // Serial numbers continue where the journal left off
+            FileUsageCounter restarted = new FileUsageCounter("test", new TimeBasedUsage(0), createTarget(), counterFile, 60000, 1_000_000);
+
+            assertThat(restarted.getUsageAbsolute()).isEqualTo(100);
+
+            restarted.consume(new DataSample<>(1000, "source", "signature", 1d, null));
+            restarted.consume(new DataSample<>(1300, "source", "signature", 1d, null));
+            restarted.close();
+
+            assertThat(new FileUsageCounter("test", new TimeBasedUsage(), createTarget(), counterFile).getUsageAbsolute()).isEqualTo(400);
+
+        } finally {
+            counterFile.delete();
+            journal.delete();
+        }
+    }
+
+    /**
+     * Make sure a torn journal entry is ignored.
+     */
+    @Test
+    void tornJournal() throws IOException {
+
+        File counterFile = createNonexistentDirect();
+        File journal = new File(counterFile.getParentFile(), counterFile.getName() + ".journal");
+
+        try (FileUsageCounter counter = new FileUsageCounter("test", new TimeBasedUsage(0), createTarget(), counterFile, 60000, 1000)) {
+
+            counter.consume(new DataSample<>(0, "source", "signature", 1d, null));
+            counter.consume(new DataSample<>(2000, "source", "signature", 1d, null));
+
+            assertThat(counter.getJournalWrites()).isEqualTo(1);
+
+            try (PrintWriter pw = new PrintWriter(new FileWriter(journal, true))) {
+                pw.print("2 0 99999");
+            }
+
+            // Entries appended after the torn one would be ignored, the journal must go away on the next flush
+            try (FileUsageCounter restarted = new FileUsageCounter("test", new TimeBasedUsage(0), createTarget(), counterFile, 60000, 1000)) {
+
+                assertThat(restarted.getUsageAbsolute()).isEqualTo(2000);
+
+                restarted.consume(new DataSample<>(3000, "source", "signature", 1d, null));
+                restarted.consume(new DataSample<>(5000, "source", "signature", 1d, null));
+
+                assertThat(restarted.getJournalWrites()).isZero();
+                assertThat(restarted.getSnapshotWrites()).isEqualTo(1);
+                assertThat(journal).doesNotExist();
+            }
+
+            assertThat(new FileUsageCounter("test", new TimeBasedUsage(), createTarget(), counterFile).getUsageAbsolute()).isEqualTo(4000);
+
+        } finally {
+            counterFile.delete();
+            journal.delete();
+        }
+    }
+
+    /**
+     * Make sure the journal is folded into the counter file and removed on compaction.
+     */
+    @Test
+    void compaction() throws IOException {
+
+        File counterFile = createNonexistentDirect();
+        File journal = new File(counterFile.getParentFile(), counterFile.getName() + ".journal");
+        File backupFile = new File(counterFile.getParentFile(), counterFile.getName() + "-");
+
+        try (FileUsageCounter counter = new FileUsageCounter("test", new TimeBasedUsage(0), createTarget(), counterFile, 60000, 1)) {
+
+            for (long offset = 0; offset <= FileUsageCounter.COMPACT_AFTER_ENTRIES + 1; offset++) {
+                counter.consume(new DataSample<>(offset * 10, "source", "signature", 1d, null));
+            }
+
+            assertThat(counter.getSnapshotWrites()).isEqualTo(1);
+            assertThat(counter.getJournalWrites()).isEqualTo(FileUsageCounter.COMPACT_AFTER_ENTRIES);
+            assertThat(counterFile).exists();
+            assertThat(journal).doesNotExist();
+
+            FileUsageCounter restarted = new FileUsageCounter("test", new TimeBasedUsage(), createTarget(), counterFile);
+
+            assertThat(restarted.getUsageAbsolute()).isEqualTo(counter.getUsageAbsolute());
+
+        } finally {
+            counterFile.delete();
+            journal.delete();
+            backupFile.delete();
+        }
+    }
+
+    /**
+     * Make sure the entries written before a restart count towards the compaction, or a counter that writes
+     * less than {@link FileUsageCounter#COMPACT_AFTER_ENTRIES} entries per run will never compact.
+     */
+    @Test
+    void compactionAcrossRestarts() throws IOException {
+
+        File counterFile = createNonexistentDirect();
+        File journal = new File(counterFile.getParentFile(), counterFile.getName() + ".journal");
+        File backupFile = new File(counterFile.getParentFile(), counterFile.getName() + "-");
+
+        try {
+
+            try (FileUsageCounter counter = new FileUsageCounter("test", new TimeBasedUsage(0), createTarget(), counterFile, 60000, 1)) {
+
+                for (long offset = 0; offset <= 10; offset++) {
+                    counter.consume(new DataSample<>(offset * 10, "source", "signature", 1d, null));
+                }
+
+                assertThat(counter.getJournalWrites()).isEqualTo(10);
+            }
+
+            try (FileUsageCounter restarted = new FileUsageCounter("test", new TimeBasedUsage(0), createTarget(), counterFile, 60000, 1)) {
+
+                // The first sample is the baseline, the rest take the journal to the limit, and the last one compacts it
+                int left = FileUsageCounter.COMPACT_AFTER_ENTRIES - 10;
+
+                for (long offset = 0; offset <= left + 1; offset++) {
+                    restarted.consume(new DataSample<>(1000 + offset * 10, "source", "signature", 1d, null));
+                }
+
+                assertThat(restarted.getJournalWrites()).isEqualTo(left);
+                assertThat(restarted.getSnapshotWrites()).isEqualTo(1);
+                assertThat(journal).doesNotExist();
+                assertThat(restarted.getUsageAbsolute()).isEqualTo(100 + (left + 1) * 10L);
+            }
+
+        } finally {
+            counterFile.delete();
+            journal.delete();
+            backupFile.delete();
+        }
+    }
 }
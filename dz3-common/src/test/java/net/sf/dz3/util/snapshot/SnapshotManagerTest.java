@@ -0,0 +1,238 @@
+package net.sf.dz3.util.snapshot;
+
+import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSample;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+class SnapshotManagerTest {
+
+    private static final long MAX_AGE = TimeUnit.MINUTES.toMillis(10);
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    void nullFile() {
+
+        assertThatIllegalArgumentException()
+                .isThrownBy(() -> new SnapshotManager(null, Map.of("a", new Counter()), 0, MAX_AGE))
+                .withMessage("file can't be null");
+    }
+
+    @Test
+    void roundTrip() throws IOException {
+
+        File file = new File(tempDir, "snapshot");
+        Counter source = new Counter();
+
+        source.value = 42;
+        source.sample = new DataSample<>(1000, "source", "signature", 20.5, null);
+
+        try (SnapshotManager sm = start(file, Map.of("counter", source))) {
+            assertThat(sm.getRestored()).isZero();
+        }
+
+        Counter target = new Counter();
+        Counter missing = new Counter();
+
+        Map<String, Snapshotable> participants = new LinkedHashMap<>();
+
+        participants.put("counter", target);
+        participants.put("missing", missing);
+
+        try (SnapshotManager sm = start(file, participants)) {
+
+            assertThat(sm.getRestored()).isEqualTo(1);
+            assertThat(sm.getRestoredAgeMillis()).isNotNegative();
+        }
+
+        assertThat(target.value).isEqualTo(42);
+        assertThat(target.sample.timestamp).isEqualTo(1000);
+        assertThat(target.sample.sourceName).isEqualTo("source");
+        assertThat(target.sample.sample).isEqualTo(20.5);
+        assertThat(missing.value).isZero();
+    }
+
+    @Test
+    void errorSample() throws IOException {
+
+        File file = new File(tempDir, "snapshot");
+        Counter source = new Counter();
+
+        source.sample = new DataSample<>(1000, "source", "signature", null, new Error("oops"));
+
+        start(file, Map.of("counter", source)).close();
+
+        Counter target = new Counter();
+
+        start(file, Map.of("counter", target)).close();
+
+        assertThat(target.sample.isError()).isTrue();
+        assertThat(target.sample.error.getMessage()).isEqualTo("oops");
+    }
+
+    @Test
+    void stale() throws IOException {
+
+        File file = new File(tempDir, "snapshot");
+        Counter source = new Counter();
+
+        source.value = 42;
+
+        start(file, Map.of("counter", source)).close();
+
+        rewriteTimestamp(file, System.currentTimeMillis() - MAX_AGE * 2);
+
+        Counter target = new Counter();
+
+        try (SnapshotManager sm = start(file, Map.of("counter", target))) {
+
+            assertThat(sm.getRestored()).isZero();
+            assertThat(sm.getRestoredAgeMillis()).isEqualTo(-1);
+        }
+
+        assertThat(target.value).isZero();
+    }
+
+    @Test
+    void future() throws IOException {
+
+        File file = new File(tempDir, "snapshot");
+        Counter source = new Counter();
+
+        source.value = 42;
+
+        start(file, Map.of("counter", source)).close();
+
+        rewriteTimestamp(file, System.currentTimeMillis() + MAX_AGE);
+
+        Counter target = new Counter();
+
+        try (SnapshotManager sm = start(file, Map.of("counter", target))) {
+            assertThat(sm.getRestored()).isZero();
+        }
+
+        assertThat(target.value).isZero();
+    }
+
+    @Test
+    void corrupt() throws IOException {
+
+        File file = new File(tempDir, "snapshot");
+        Counter source = new Counter();
+
+        source.value = 42;
+
+        start(file, Map.of("counter", source)).close();
+
+        byte[] content = Files.readAllBytes(file.toPath());
+
+        content[content.length / 2] ^= 0xFF;
+        Files.write(file.toPath(), content);
+
+        Counter target = new Counter();
+
+        try (SnapshotManager sm = start(file, Map.of("counter", target))) {
+            assertThat(sm.getRestored()).isZero();
+        }
+
+        assertThat(target.value).isZero();
+
+        // ...and the next save replaces the corrupt file
+        assertThat(Files.readAllBytes(file.toPath())).isNotEqualTo(content);
+    }
+
+    @Test
+    void notStarted() throws IOException {
+
+        File file = new File(tempDir, "snapshot");
+        Counter source = new Counter();
+
+        source.value = 42;
+
+        start(file, Map.of("counter", source)).close();
+
+        byte[] content = Files.readAllBytes(file.toPath());
+        Counter target = new Counter();
+
+        // Consumers may not be there yet, nothing must be restored, and nothing saved either
+        new SnapshotManager(file, Map.of("counter", target), 0, MAX_AGE).close();
+
+        assertThat(target.value).isZero();
+        assertThat(Files.readAllBytes(file.toPath())).isEqualTo(content);
+
+        try (SnapshotManager sm = start(file, Map.of("counter", target))) {
+
+            assertThat(target.value).isEqualTo(42);
+
+            // Second start is ignored
+            target.value = 0;
+            sm.start();
+
+            assertThat(target.value).isZero();
+            assertThat(sm.getRestored()).isEqualTo(1);
+        }
+    }
+
+    private SnapshotManager start(File file, Map<String, Snapshotable> participants) {
+
+        SnapshotManager sm = new SnapshotManager(file, participants, 0, MAX_AGE);
+
+        sm.start();
+
+        return sm;
+    }
+
+    /**
+     * Replace the snapshot timestamp and fix the checksum, to simulate a snapshot taken at a different time.
+     */
+    private void rewriteTimestamp(File file, long timestamp) throws IOException {
+
+        ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        int payload = content.capacity() - 8;
+
+        // magic, version
+        content.putLong(8, timestamp);
+
+        CRC32 crc = new CRC32();
+
+        crc.update(content.array(), 0, payload);
+        content.putLong(payload, crc.getValue());
+
+        Files.write(file.toPath(), content.array());
+    }
+
+    private static class Counter implements Snapshotable {
+
+        int value;
+        DataSample<Double> sample;
+
+        @Override
+        public void writeSnapshot(DataOutput out) throws IOException {
+
+            out.writeInt(value);
+            SnapshotIO.writeSample(out, sample);
+        }
+
+        @Override
+        public void readSnapshot(DataInput in) throws IOException {
+
+            value = in.readInt();
+            sample = SnapshotIO.readSample(in);
+        }
+    }
+}
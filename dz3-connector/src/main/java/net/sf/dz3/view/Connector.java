@@ -5,11 +5,22 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.ThreadContext;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Base class for implementing the V in MVC.
@@ -26,7 +37,14 @@ public abstract class Connector<T> implements JmxAware {
      * The key is the class of the object to be taken from the {@link #initSet},
      * the value is the component factory instance to take care of its creation.
      */
-    private final Map<Class<?>, ConnectorFactory<T>> factoryMap = new HashMap<>();
+    private final Map<Class<?>, ConnectorFactory<T>> factoryMap = new ConcurrentHashMap<>();
+
+    /**
+     * Resolved factories, by the concrete class of the object to be taken from the {@link #initSet}.
+     *
+     * Empty value means there is no factory for this class. Cleared on every {@link #register(Class, ConnectorFactory)}.
+     */
+    private final Map<Class<?>, Optional<ConnectorFactory<T>>> resolvedMap = new ConcurrentHashMap<>();
 
     /**
      * Copy of the initial set of objects passed via constructor.
@@ -38,6 +56,14 @@ public abstract class Connector<T> implements JmxAware {
      */
     private final Map<Object, T> componentMap = new HashMap<>();
 
+    /**
+     * Mapping from the keys provided by {@link #getLookupKeys(Object)} to objects from {@link #initSet}.
+     *
+     * Built on {@link #activate()}, dropped on {@link #deactivate()}. Never modified, only replaced, so {@link #lookup(String)}
+     * doesn't need to lock.
+     */
+    private volatile Map<String, Object> lookupIndex = Map.of();
+
     protected Connector(Set<Object> initSet) {
 
         this(initSet, null);
@@ -75,52 +101,101 @@ public abstract class Connector<T> implements JmxAware {
 
     public final void register(Class<?> componentClass, ConnectorFactory<T> connector) {
         factoryMap.put(componentClass, connector);
+        resolvedMap.clear();
     }
 
     /**
-     * Keep invoking factories from {@link #factoryMap} on objects from {@link #initSet}
-     * until they're all accounted for, and put them into {@link #componentMap}.
+     * Find the factory for the given class.
+     *
+     * The result is computed once per class and cached.
+     *
+     * @param initClass Concrete class of the object to find the factory for.
+     *
+     * @return The factory registered for the class itself, or for its closest superclass or interface,
+     * or {@code null} if there is none.
      */
-    private void createComponentMap(Map<String, Object> context) {
+    protected final ConnectorFactory<T> resolve(Class<?> initClass) {
+        return resolvedMap.computeIfAbsent(initClass, this::resolve2).orElse(null);
+    }
 
-        ThreadContext.push("createComponentMap");
+    /**
+     * Walk the class hierarchy breadth first, so that the closest match wins.
+     */
+    private Optional<ConnectorFactory<T>> resolve2(Class<?> initClass) {
 
-        try {
+        Deque<Class<?>> queue = new ArrayDeque<>();
+        Set<Class<?>> seen = new HashSet<>();
 
-            for (Object initObject : initSet) {
+        queue.add(initClass);
 
-                Class<?> initClass = initObject.getClass();
-                ConnectorFactory<T> factory = factoryMap.get(initClass);
+        while (!queue.isEmpty()) {
 
-                if (factory == null) {
+            Class<?> c = queue.remove();
 
-                    logger.info("No direct mapping for {}, searching parents", initClass.getName());
+            if (!seen.add(c)) {
+                continue;
+            }
 
-                    for (Map.Entry<Class<?>, ConnectorFactory<T>> class2factory : factoryMap.entrySet()) {
+            ConnectorFactory<T> factory = factoryMap.get(c);
 
-                        if (class2factory.getKey().isAssignableFrom(initClass)) {
-                            factory = class2factory.getValue();
-                            logger.info("Substitute: {} isA {}", initClass.getName(), class2factory.getKey().getName());
-                        }
-                    }
+            if (factory != null) {
+
+                if (c != initClass) {
+                    logger.info("Substitute: {} isA {}", initClass.getName(), c.getName());
                 }
 
+                return Optional.of(factory);
+            }
+
+            if (c.getSuperclass() != null) {
+                queue.add(c.getSuperclass());
+            }
+
+            queue.addAll(List.of(c.getInterfaces()));
+        }
+
+        return Optional.empty();
+    }
+
+    /**
+     * Invoke factories from {@link #factoryMap} on objects from {@link #initSet}
+     * and put the results into {@link #componentMap}.
+     *
+     * Components are created in parallel, up to {@link #getActivationConcurrency()} at a time.
+     */
+    private void createComponentMap(Map<String, Object> context) {
+
+        ThreadContext.push("createComponentMap");
+
+        try {
+
+            List<Object> sources = new ArrayList<>(initSet.size());
+            List<ConnectorFactory<T>> factories = new ArrayList<>(initSet.size());
+
+            for (Object initObject : initSet) {
+
+                ConnectorFactory<T> factory = resolve(initObject.getClass());
+
                 if (factory == null) {
-                    logger.error("Don't know how to handle {}: {}", initClass.getName(), initObject);
+                    logger.error("Don't know how to handle {}: {}", initObject.getClass().getName(), initObject);
                     continue;
                 }
 
-                try {
+                sources.add(initObject);
+                factories.add(factory);
+            }
 
-                    var component = factory.createComponent(initObject, context);
+            int concurrency = Math.min(getActivationConcurrency(), sources.size());
 
-                    logger.info("Created {}  for {}", component, initObject);
-                    componentMap.put(initObject, component);
+            if (concurrency <= 1) {
 
-                } catch (Throwable t) { // NOSONAR Consequences have been considered
-                    // Not a fatal condition, there are other components
-                    logger.error("Failed to create a component for {}, moving on", initObject, t);
+                for (int offset = 0; offset < sources.size(); offset++) {
+                    put(sources.get(offset), createComponent(sources.get(offset), factories.get(offset), context));
                 }
+
+            } else {
+
+                createComponentMap(sources, factories, context, concurrency);
             }
 
             if (componentMap.isEmpty()) {
@@ -133,6 +208,140 @@ public abstract class Connector<T> implements JmxAware {
         }
     }
 
+    private void createComponentMap(List<Object> sources, List<ConnectorFactory<T>> factories, Map<String, Object> context, int concurrency) {
+
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency, r -> {
+
+            Thread t = new Thread(r, "activate: " + getClass().getSimpleName());
+            t.setDaemon(true);
+
+            return t;
+        });
+
+        try {
+
+            List<Future<T>> futures = new ArrayList<>(sources.size());
+
+            for (int offset = 0; offset < sources.size(); offset++) {
+
+                Object initObject = sources.get(offset);
+                ConnectorFactory<T> factory = factories.get(offset);
+
+                futures.add(executor.submit(() -> createComponent(initObject, factory, context)));
+            }
+
+            for (int offset = 0; offset < sources.size(); offset++) {
+                put(sources.get(offset), futures.get(offset).get());
+            }
+
+        } catch (InterruptedException ex) {
+
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while creating components", ex);
+
+        } catch (ExecutionException ex) {
+
+            // createComponent() doesn't throw, so this must be something really bad
+            throw new IllegalStateException("Failed to create components", ex.getCause());
+
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return The component, or {@code null} if the factory failed.
+     */
+    private T createComponent(Object initObject, ConnectorFactory<T> factory, Map<String, Object> context) {
+
+        try {
+
+            var component = factory.createComponent(initObject, context);
+
+            logger.debug("Created {}  for {}", component, initObject);
+
+            return component;
+
+        } catch (Throwable t) { // NOSONAR Consequences have been considered
+            // Not a fatal condition, there are other components
+            logger.error("Failed to create a component for {}, moving on", initObject, t);
+            return null;
+        }
+    }
+
+    private void put(Object initObject, T component) {
+
+        if (component != null) {
+            componentMap.put(initObject, component);
+        }
+    }
+
+    /**
+     * Build the {@link #lookupIndex}.
+     */
+    private void createLookupIndex() {
+
+        ThreadContext.push("createLookupIndex");
+
+        try {
+
+            Map<String, Object> index = new HashMap<>();
+
+            for (Object initObject : initSet) {
+                for (String key : getLookupKeys(initObject)) {
+
+                    Object existing = index.putIfAbsent(key, initObject);
+
+                    if (existing != null && existing != initObject) {
+                        logger.warn("Duplicate key '{}': {} and {}, only the former will be controllable by this key", key, existing, initObject);
+                    }
+                }
+            }
+
+            lookupIndex = Collections.unmodifiableMap(index);
+
+            logger.debug("{} keys indexed", index.size());
+
+        } finally {
+            ThreadContext.pop();
+        }
+    }
+
+    /**
+     * Get the keys the given object can be looked up by with {@link #lookup(String)}.
+     *
+     * Override this if the connector accepts commands that refer to entities by name.
+     *
+     * @param source Object from the {@link #getInitSet() initial set}.
+     *
+     * @return Lookup keys for the object. Empty collection by default.
+     */
+    protected Collection<String> getLookupKeys(Object source) {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Find the object from the {@link #getInitSet() initial set} by one of its {@link #getLookupKeys(Object) keys}.
+     *
+     * @param key Key to look up.
+     *
+     * @return The object, or {@code null} if there is none, or if the connector is not active.
+     */
+    protected final Object lookup(String key) {
+        return key == null ? null : lookupIndex.get(key);
+    }
+
+    /**
+     * Get the maximum number of components to create at the same time.
+     *
+     * Override this to return 1 if the components must be created on the same thread (Swing).
+     *
+     * @return Number of available processors, by default.
+     */
+    protected int getActivationConcurrency() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
     /**
      * Create the context.
      *
@@ -148,7 +357,25 @@ public abstract class Connector<T> implements JmxAware {
     }
 
     /**
-     * @deprecated Need to replace by a lookup method.
+     * Get the component representing the given object.
+     *
+     * @param source Object from the {@link #getInitSet() initial set}.
+     *
+     * @return The component, or {@code null} if there is none.
+     */
+    protected final synchronized T getComponent(Object source) {
+        return componentMap.get(source);
+    }
+
+    /**
+     * @return Number of components created by the last {@link #activate()}, 0 if not active.
+     */
+    protected final synchronized int getComponentCount() {
+        return componentMap.size();
+    }
+
+    /**
+     * @deprecated Use {@link #getComponent(Object)} instead.
      */
     @Deprecated(forRemoval = true)
     protected final Map<Object, T> getComponentMap() {
@@ -170,6 +397,7 @@ public abstract class Connector<T> implements JmxAware {
             }
 
             createComponentMap(createContext());
+            createLookupIndex();
             activate2();
 
         } finally {
@@ -188,6 +416,7 @@ public abstract class Connector<T> implements JmxAware {
 
             deactivate2();
             componentMap.clear();
+            lookupIndex = Map.of();
 
         } finally {
             ThreadContext.pop();
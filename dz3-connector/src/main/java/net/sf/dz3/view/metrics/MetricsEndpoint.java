@@ -0,0 +1,158 @@
+package net.sf.dz3.view.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.ThreadContext;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embedded HTTP endpoint serving {@link MetricsRegistry} content at {@code /metrics}.
+ *
+ * This is an optional alternative to scraping JMX remotely. It is supposed to be instantiated via Spring
+ * configuration file, with the same set of objects that is given to {@code JmxWrapper}:
+ *
+ * <pre>
+ * &lt;bean id="metrics-endpoint" class="net.sf.dz3.view.metrics.MetricsEndpoint" init-method="start" destroy-method="stop"&gt;
+ *     &lt;constructor-arg index="0" type="java.util.Set"&gt;
+ *         &lt;set&gt;
+ *             &lt;ref bean="thermostat-kitchen" /&gt;
+ *         &lt;/set&gt;
+ *     &lt;/constructor-arg&gt;
+ *     &lt;constructor-arg index="1" value="9180" /&gt;
+ * &lt;/bean&gt;
+ * </pre>
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+public class MetricsEndpoint {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final Logger logger = LogManager.getLogger(getClass());
+
+    private final MetricsRegistry registry = new MetricsRegistry();
+    private final int port;
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * Create an instance.
+     *
+     * @param targets Objects to expose. They must be {@code JmxAware}; those that are not are skipped.
+     * @param port Port to listen on. Use 0 to pick any available port.
+     */
+    public MetricsEndpoint(Set<Object> targets, int port) {
+
+        this.port = port;
+
+        for (Object target : targets) {
+
+            try {
+
+                registry.register(target);
+
+            } catch (IllegalArgumentException ex) {
+
+                logger.warn("not exposed: {}", ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Start listening.
+     *
+     * @throws IOException if the port can't be bound.
+     */
+    public synchronized void start() throws IOException {
+
+        ThreadContext.push("start");
+
+        try {
+
+            server = HttpServer.create(new InetSocketAddress(port), 0);
+
+            // Scrapes are infrequent, one thread is plenty
+            executor = Executors.newSingleThreadExecutor(r -> {
+
+                Thread t = new Thread(r, "metrics-endpoint");
+
+                t.setDaemon(true);
+                return t;
+            });
+
+            server.setExecutor(executor);
+
+            server.createContext("/metrics", this::handle);
+            server.start();
+
+            logger.info("serving {} series at http://localhost:{}/metrics", registry.size(), getPort());
+
+        } finally {
+            ThreadContext.pop();
+        }
+    }
+
+    /**
+     * Stop listening.
+     */
+    public synchronized void stop() {
+
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+
+        // The server doesn't shut down the executor it was given
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * @return The port actually listened on, useful if 0 was given to the constructor.
+     */
+    public synchronized int getPort() {
+        return server == null ? port : server.getAddress().getPort();
+    }
+
+    /**
+     * @return The registry backing this endpoint.
+     */
+    public MetricsRegistry getRegistry() {
+        return registry;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+
+        try {
+
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            byte[] body = registry.scrape();
+
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,462 @@
+package net.sf.dz3.view.metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.homeclimatecontrol.jukebox.jmx.JmxAttribute;
+import com.homeclimatecontrol.jukebox.jmx.JmxAware;
+import com.homeclimatecontrol.jukebox.jmx.JmxDescriptor;
+
+/**
+ * Samples the same {@link JmxAttribute} getters JMX exposes, and renders them in
+ * <a href="https://prometheus.io/docs/instrumenting/exposition_formats/">Prometheus text exposition format</a>.
+ *
+ * Getters are looked up once, at {@link #register(Object) registration}, and bound to their targets as
+ * method handles. A scrape is a straight pass over precompiled series with the name and labels already
+ * encoded, no reflection and no string building involved.
+ *
+ * Numeric and boolean attributes become gauges named {@code dz_<attribute>}, labelled with the
+ * {@link JmxDescriptor} domain, name and instance. Other attributes are not exported.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+public class MetricsRegistry {
+
+    private final Logger logger = LogManager.getLogger(getClass());
+
+    private static final MethodType DOUBLE = MethodType.methodType(double.class);
+    private static final MethodHandle BOOLEAN_TO_DOUBLE;
+    private static final MethodHandle BOXED_TO_DOUBLE;
+
+    static {
+        try {
+
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+            BOOLEAN_TO_DOUBLE = lookup.findStatic(MetricsRegistry.class, "toDouble", MethodType.methodType(double.class, boolean.class));
+            BOXED_TO_DOUBLE = lookup.findStatic(MetricsRegistry.class, "toDouble", MethodType.methodType(double.class, Object.class));
+
+        } catch (ReflectiveOperationException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    private static final byte[] NAN = "NaN".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] POSITIVE_INFINITY = "+Inf".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NEGATIVE_INFINITY = "-Inf".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Registered objects, to prevent double registration. Guarded by {@code this}.
+     */
+    private final Map<Object, Boolean> registered = new IdentityHashMap<>();
+
+    /**
+     * Metric name to family mapping, in registration order. Guarded by {@code this}.
+     */
+    private final Map<String, Family> name2family = new LinkedHashMap<>();
+
+    /**
+     * Flattened {@link #name2family}, rebuilt on every change, read by scrapes without locking.
+     */
+    private volatile Family[] snapshot = new Family[0];
+
+    private final AtomicLong scrapes = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    private static class Family {
+
+        /**
+         * {@code # HELP} and {@code # TYPE} lines, encoded.
+         */
+        final byte[] header;
+
+        /**
+         * Replaced, not modified, so the scrapes can read it without locking.
+         */
+        volatile Series[] series = new Series[0];
+
+        Family(String name, String help) {
+            header = ("# HELP " + name + " " + escapeHelp(help) + "\n# TYPE " + name + " gauge\n").getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private static class Series {
+
+        /**
+         * Metric name and labels followed by a space, encoded.
+         */
+        final byte[] prefix;
+
+        /**
+         * Bound getter, {@code ()double}.
+         */
+        final MethodHandle getter;
+
+        Series(byte[] prefix, MethodHandle getter) {
+            this.prefix = prefix;
+            this.getter = getter;
+        }
+    }
+
+    /**
+     * Register all the numeric and boolean {@link JmxAttribute} getters of the object.
+     *
+     * @param target Object to register. Must be {@link JmxAware}.
+     *
+     * @return Number of series added.
+     */
+    public synchronized int register(Object target) {
+
+        if (!(target instanceof JmxAware)) {
+            throw new IllegalArgumentException(target.getClass().getName() + " is not JmxAware");
+        }
+
+        if (registered.put(target, Boolean.TRUE) != null) {
+            logger.warn("already registered: {}", target);
+            return 0;
+        }
+
+        JmxDescriptor descriptor = ((JmxAware) target).getJmxDescriptor();
+        String labels = "{domain=\"" + escapeLabel(descriptor.domainName)
+                + "\",name=\"" + escapeLabel(descriptor.name)
+                + "\",instance=\"" + escapeLabel(descriptor.instance) + "\"} ";
+
+        int added = 0;
+
+        // getMethods() order is unspecified, but the output better be stable
+        Method[] methods = target.getClass().getMethods();
+        Arrays.sort(methods, Comparator.comparing(Method::getName));
+
+        for (Method m : methods) {
+
+            JmxAttribute attribute = findAnnotation(target.getClass(), m);
+
+            if (attribute == null || m.getParameterCount() != 0 || Modifier.isStatic(m.getModifiers())) {
+                continue;
+            }
+
+            MethodHandle getter = bind(target, m);
+
+            if (getter == null) {
+                // Not a number
+                continue;
+            }
+
+            String name = getMetricName(m.getName());
+            Family family = name2family.computeIfAbsent(name, k -> new Family(k, attribute.description()));
+
+            Series[] series = Arrays.copyOf(family.series, family.series.length + 1);
+
+            series[series.length - 1] = new Series((name + labels).getBytes(StandardCharsets.UTF_8), getter);
+            family.series = series;
+            added++;
+        }
+
+        rebuild();
+
+        logger.debug("{}: {} series", descriptor.name, added);
+
+        return added;
+    }
+
+    private void rebuild() {
+        snapshot = name2family.values().toArray(new Family[0]);
+    }
+
+    /**
+     * Find the annotation on the method itself, or on any method it overrides or implements.
+     */
+    private static JmxAttribute findAnnotation(Class<?> c, Method m) {
+
+        if (c == null) {
+            return null;
+        }
+
+        try {
+
+            JmxAttribute result = c.getDeclaredMethod(m.getName(), m.getParameterTypes()).getAnnotation(JmxAttribute.class);
+
+            if (result != null) {
+                return result;
+            }
+
+        } catch (NoSuchMethodException ex) {
+            // Not declared here, keep looking
+        }
+
+        for (Class<?> i : c.getInterfaces()) {
+
+            JmxAttribute result = findAnnotation(i, m);
+
+            if (result != null) {
+                return result;
+            }
+        }
+
+        return findAnnotation(c.getSuperclass(), m);
+    }
+
+    /**
+     * Bind the getter to the target and adapt it to {@code ()double}.
+     *
+     * @return Bound method handle, or {@code null} if the getter doesn't return a number or a boolean.
+     */
+    private MethodHandle bind(Object target, Method m) {
+
+        Class<?> type = m.getReturnType();
+
+        if (!(type.isPrimitive() && type != void.class) && !Number.class.isAssignableFrom(type) && type != Boolean.class) {
+            return null;
+        }
+
+        try {
+
+            // Public methods of non-public classes (like private inner classes) still need this
+            m.setAccessible(true);
+
+            MethodHandle h = MethodHandles.lookup().unreflect(m).bindTo(target);
+
+            if (type == boolean.class) {
+                h = MethodHandles.filterReturnValue(h, BOOLEAN_TO_DOUBLE);
+            } else if (type == char.class) {
+                return null;
+            } else if (type.isPrimitive()) {
+                h = h.asType(DOUBLE);
+            } else {
+                h = MethodHandles.filterReturnValue(h.asType(MethodType.methodType(Object.class)), BOXED_TO_DOUBLE);
+            }
+
+            return h;
+
+        } catch (IllegalAccessException | RuntimeException ex) {
+
+            logger.warn("can't access {}, skipped", m, ex);
+            return null;
+        }
+    }
+
+    private static double toDouble(boolean value) {
+        return value ? 1 : 0;
+    }
+
+    private static double toDouble(Object value) {
+
+        if (value instanceof Boolean) {
+            return (Boolean) value ? 1 : 0;
+        }
+
+        return value == null ? Double.NaN : ((Number) value).doubleValue();
+    }
+
+    /**
+     * Convert a getter name into a metric name: {@code getCurrentTemperature} becomes {@code dz_current_temperature}.
+     */
+    static String getMetricName(String getter) {
+
+        String name = getter;
+
+        if (name.startsWith("get") && name.length() > 3) {
+            name = name.substring(3);
+        } else if (name.startsWith("is") && name.length() > 2) {
+            name = name.substring(2);
+        }
+
+        StringBuilder sb = new StringBuilder("dz_");
+
+        for (int offset = 0; offset < name.length(); offset++) {
+
+            char c = name.charAt(offset);
+
+            if (Character.isUpperCase(c)) {
+
+                // Acronyms stay together: getPID becomes dz_pid, not dz_p_i_d
+                if (offset > 0 && (Character.isLowerCase(name.charAt(offset - 1))
+                        || (offset + 1 < name.length() && Character.isLowerCase(name.charAt(offset + 1)) && Character.isUpperCase(name.charAt(offset - 1))))) {
+                    sb.append('_');
+                }
+
+                sb.append(Character.toLowerCase(c));
+
+            } else if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_') {
+
+                sb.append(c);
+
+            } else {
+
+                sb.append('_');
+            }
+        }
+
+        return sb.toString();
+    }
+
+    private static String escapeLabel(String value) {
+
+        if (value == null) {
+            return "";
+        }
+
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String escapeHelp(String value) {
+        return value.replace("\\", "\\\\").replace("\n", "\\n");
+    }
+
+    /**
+     * Sample all the series and write them out.
+     *
+     * Series whose getters throw are left out of this scrape, and counted as {@link #getErrors() errors}.
+     *
+     * @param out Stream to write to.
+     *
+     * @throws IOException if the stream throws it.
+     */
+    public void scrape(OutputStream out) throws IOException {
+
+        scrapes.incrementAndGet();
+
+        byte[] number = new byte[32];
+
+        for (Family family : snapshot) {
+
+            out.write(family.header);
+
+            for (Series s : family.series) {
+
+                double value;
+
+                try {
+
+                    value = (double) s.getter.invokeExact();
+
+                } catch (Throwable t) {
+
+                    errors.incrementAndGet();
+                    logger.debug("{} failed", new String(s.prefix, StandardCharsets.UTF_8), t);
+                    continue;
+                }
+
+                out.write(s.prefix);
+
+                if (Double.isNaN(value)) {
+                    out.write(NAN);
+                } else if (Double.isInfinite(value)) {
+                    out.write(value > 0 ? POSITIVE_INFINITY : NEGATIVE_INFINITY);
+                } else {
+                    out.write(number, 0, format(value, number));
+                }
+
+                out.write('\n');
+            }
+        }
+    }
+
+    /**
+     * Sample all the series.
+     *
+     * @return The exposition, encoded.
+     */
+    public byte[] scrape() {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+
+        try {
+            scrape(out);
+        } catch (IOException ex) {
+            // Can't happen with ByteArrayOutputStream
+            throw new IllegalStateException(ex);
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Format a finite number.
+     *
+     * @return Number of bytes written.
+     */
+    private static int format(double value, byte[] target) {
+
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+
+            // Counters and flags, the most common case
+
+            long v = (long) value;
+            int length = 0;
+
+            if (v < 0) {
+                target[length++] = '-';
+                v = -v;
+            }
+
+            int start = length;
+
+            do {
+                target[length++] = (byte) ('0' + v % 10);
+                v /= 10;
+            } while (v > 0);
+
+            // Digits came out backwards
+            for (int left = start, right = length - 1; left < right; left++, right--) {
+                byte b = target[left];
+                target[left] = target[right];
+                target[right] = b;
+            }
+
+            return length;
+        }
+
+        String s = Double.toString(value);
+
+        for (int offset = 0; offset < s.length(); offset++) {
+            target[offset] = (byte) s.charAt(offset);
+        }
+
+        return s.length();
+    }
+
+    /**
+     * @return Number of series registered.
+     */
+    public int size() {
+
+        int result = 0;
+
+        for (Family family : snapshot) {
+            result += family.series.length;
+        }
+
+        return result;
+    }
+
+    /**
+     * @return Number of scrapes so far.
+     */
+    public long getScrapes() {
+        return scrapes.get();
+    }
+
+    /**
+     * @return Number of getters that threw an exception during scrapes.
+     */
+    public long getErrors() {
+        return errors.get();
+    }
+}
@@ -1,15 +1,24 @@
 package net.sf.dz3.view;
 
 import com.homeclimatecontrol.jukebox.jmx.JmxDescriptor;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.junit.jupiter.api.Test;
 
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
 class ConnectorTest {
 
+    private final Logger logger = LogManager.getLogger(getClass());
+
     @Test
     public void testNullInitSet() {
 
@@ -22,8 +31,218 @@ class ConnectorTest {
         assertThat(new TestConnector(null, null)).isNotNull();
     }
 
+    @Test
+    void resolve() {
+
+        TestConnector connector = new TestConnector(null, Set.of(
+                new TestFactory(Source.class, "source", 0),
+                new TestFactory(Base.class, "base", 0)));
+
+        assertThat(prefix(connector, Base.class)).isEqualTo("base");
+        assertThat(prefix(connector, Derived.class)).isEqualTo("base");
+        assertThat(prefix(connector, Other.class)).isEqualTo("source");
+        assertThat(connector.resolve(String.class)).isNull();
+
+        // Cache must be invalidated
+        connector.register(Derived.class, new TestFactory(Derived.class, "derived", 0));
+
+        assertThat(prefix(connector, Derived.class)).isEqualTo("derived");
+    }
+
+    @Test
+    void activate() {
+
+        Base base = new Base();
+        Set<Object> initSet = Set.of(base, new Derived(), new Other(), "unknown");
+        TestConnector connector = new TestConnector(initSet, Set.of(new TestFactory(Source.class, "source", 0)));
+
+        connector.concurrency = 2;
+        connector.activate();
+
+        assertThat(connector.getComponentCount()).isEqualTo(3);
+        assertThat(connector.getComponent(base)).isEqualTo("source:" + base);
+        assertThat(connector.getComponent("unknown")).isNull();
+
+        connector.deactivate();
+
+        assertThat(connector.getComponentCount()).isZero();
+        assertThat(connector.getComponent(base)).isNull();
+    }
+
+    /**
+     * Activate a connector over 5,000 components, one at a time and in parallel.
+     *
+     * Each component takes 100us to create, about the cost of setting up a small Swing panel or a subscription.
+     */
+    @Test
+    void benchmark() {
+
+        Set<Object> initSet = new HashSet<>();
+
+        for (int count = 0; count < 5000; count++) {
+            initSet.add(count % 3 == 0 ? new Base() : (count % 3 == 1 ? new Derived() : new Other()));
+        }
+
+        long delayNanos = TimeUnit.MICROSECONDS.toNanos(100);
+
+        for (int concurrency : new int[] { 1, 2, 4, 8 }) {
+
+            TestConnector connector = new TestConnector(initSet, Set.of(new TestFactory(Source.class, "source", delayNanos)));
+
+            connector.concurrency = concurrency;
+
+            long start = System.nanoTime();
+
+            connector.activate();
+
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            logger.info("concurrency {}: activated {} components in {}ms", concurrency, connector.getComponentCount(), elapsedMillis);
+
+            assertThat(connector.getComponentCount()).isEqualTo(initSet.size());
+
+            connector.deactivate();
+        }
+    }
+
+    @Test
+    void lookup() {
+
+        Set<Object> initSet = Set.of(new Named("kitchen"), new Named("bedroom"), new Base());
+        TestConnector connector = new TestConnector(initSet, Set.of(new TestFactory(Source.class, "source", 0)));
+
+        // Not active yet
+        assertThat(connector.lookup("kitchen")).isNull();
+
+        connector.activate();
+
+        assertThat(((Named) connector.lookup("kitchen")).name).isEqualTo("kitchen");
+        assertThat(((Named) connector.lookup("bedroom")).name).isEqualTo("bedroom");
+        assertThat(connector.lookup("garage")).isNull();
+        assertThat(connector.lookup(null)).isNull();
+
+        connector.deactivate();
+
+        assertThat(connector.lookup("kitchen")).isNull();
+    }
+
+    /**
+     * Resolve commands against 10,000 entities, with a linear scan over the initial set and with the index.
+     */
+    @Test
+    void lookupBenchmark() {
+
+        int entities = 10_000;
+        int commands = 10_000;
+        Set<Object> initSet = new HashSet<>();
+
+        for (int count = 0; count < entities; count++) {
+            initSet.add(new Named("zone" + count));
+        }
+
+        TestConnector connector = new TestConnector(initSet, Set.of(new TestFactory(Source.class, "source", 0)));
+
+        connector.activate();
+
+        String[] names = new String[commands];
+
+        for (int count = 0; count < commands; count++) {
+            names[count] = "zone" + ((count * 7919) % entities);
+        }
+
+        long start = System.nanoTime();
+        int scanned = 0;
+
+        for (String name : names) {
+            for (Object target : connector.getInitSet()) {
+                if (target instanceof Named && ((Named) target).name.equals(name)) {
+                    scanned++;
+                    break;
+                }
+            }
+        }
+
+        long scanNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        int indexed = 0;
+
+        for (String name : names) {
+            if (connector.lookup(name) != null) {
+                indexed++;
+            }
+        }
+
+        long indexNanos = System.nanoTime() - start;
+
+        logger.info("{} commands over {} entities: scan {}us/command, index {}ns/command",
+                commands, entities,
+                TimeUnit.NANOSECONDS.toMicros(scanNanos) / commands,
+                indexNanos / commands);
+
+        assertThat(scanned).isEqualTo(commands);
+        assertThat(indexed).isEqualTo(commands);
+
+        connector.deactivate();
+    }
+
+    private String prefix(TestConnector connector, Class<?> c) {
+        return ((TestFactory) connector.resolve(c)).prefix;
+    }
+
+    private interface Source {
+    }
+
+    private static class Base implements Source {
+    }
+
+    private static class Derived extends Base {
+    }
+
+    private static class Other implements Source {
+    }
+
+    private static class Named implements Source {
+
+        final String name;
+
+        Named(String name) {
+            this.name = name;
+        }
+    }
+
+    private static class TestFactory extends ConnectorFactory<String> {
+
+        final Class<?> sourceClass;
+        final String prefix;
+        final long delayNanos;
+
+        TestFactory(Class<?> sourceClass, String prefix, long delayNanos) {
+            this.sourceClass = sourceClass;
+            this.prefix = prefix;
+            this.delayNanos = delayNanos;
+        }
+
+        @Override
+        public Class<?> getSourceClass() {
+            return sourceClass;
+        }
+
+        @Override
+        public String createComponent(Object source, Map<String, Object> context) {
+
+            if (delayNanos > 0) {
+                LockSupport.parkNanos(delayNanos);
+            }
+
+            return prefix + ":" + source;
+        }
+    }
+
     private class TestConnector extends Connector<String> {
 
+        int concurrency = 1;
+
         public TestConnector(Set<Object> initSet) {
             super(initSet);
         }
@@ -39,7 +258,17 @@ class ConnectorTest {
 
         @Override
         protected Map<String, Object> createContext() {
-            throw new IllegalStateException("Not Implemented");
+            return Map.of();
+        }
+
+        @Override
+        protected Collection<String> getLookupKeys(Object source) {
+            return source instanceof Named ? List.of(((Named) source).name) : List.of();
+        }
+
+        @Override
+        protected int getActivationConcurrency() {
+            return concurrency;
         }
 
         @Override
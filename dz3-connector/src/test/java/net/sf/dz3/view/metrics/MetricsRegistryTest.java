@@ -0,0 +1,286 @@
+package net.sf.dz3.view.metrics;
+
+import com.homeclimatecontrol.jukebox.jmx.JmxAttribute;
+import com.homeclimatecontrol.jukebox.jmx.JmxAware;
+import com.homeclimatecontrol.jukebox.jmx.JmxDescriptor;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+class MetricsRegistryTest {
+
+    private final Logger logger = LogManager.getLogger(getClass());
+
+    @Test
+    void names() {
+
+        assertThat(MetricsRegistry.getMetricName("getCurrentTemperature")).isEqualTo("dz_current_temperature");
+        assertThat(MetricsRegistry.getMetricName("isOnHold")).isEqualTo("dz_on_hold");
+        assertThat(MetricsRegistry.getMetricName("getPID")).isEqualTo("dz_pid");
+        assertThat(MetricsRegistry.getMetricName("getHTTPStatus")).isEqualTo("dz_http_status");
+        assertThat(MetricsRegistry.getMetricName("uptime")).isEqualTo("dz_uptime");
+    }
+
+    @Test
+    void scrape() {
+
+        var registry = new MetricsRegistry();
+
+        assertThat(registry.register(new Zone("kitchen \"main\"", 21.5))).isEqualTo(5);
+        assertThat(registry.register(new Zone("bedroom", 19))).isEqualTo(5);
+
+        // Families in getter name order, series in registration order, failed getters left out
+        assertThat(new String(registry.scrape(), StandardCharsets.UTF_8)).isEqualTo(
+                "# HELP dz_broken Always fails\n"
+                + "# TYPE dz_broken gauge\n"
+                + "# HELP dz_calls Times called\n"
+                + "# TYPE dz_calls gauge\n"
+                + "dz_calls{domain=\"dz\",name=\"zone\",instance=\"kitchen \\\"main\\\"\"} 42\n"
+                + "dz_calls{domain=\"dz\",name=\"zone\",instance=\"bedroom\"} 42\n"
+                + "# HELP dz_setpoint Setpoint\n"
+                + "# TYPE dz_setpoint gauge\n"
+                + "dz_setpoint{domain=\"dz\",name=\"zone\",instance=\"kitchen \\\"main\\\"\"} 21.5\n"
+                + "dz_setpoint{domain=\"dz\",name=\"zone\",instance=\"bedroom\"} 19\n"
+                + "# HELP dz_signal Last signal\n"
+                + "# TYPE dz_signal gauge\n"
+                + "dz_signal{domain=\"dz\",name=\"zone\",instance=\"kitchen \\\"main\\\"\"} NaN\n"
+                + "dz_signal{domain=\"dz\",name=\"zone\",instance=\"bedroom\"} NaN\n"
+                + "# HELP dz_on_hold On hold\n"
+                + "# TYPE dz_on_hold gauge\n"
+                + "dz_on_hold{domain=\"dz\",name=\"zone\",instance=\"kitchen \\\"main\\\"\"} 1\n"
+                + "dz_on_hold{domain=\"dz\",name=\"zone\",instance=\"bedroom\"} 1\n");
+
+        assertThat(registry.size()).isEqualTo(10);
+        assertThat(registry.getErrors()).isEqualTo(2);
+    }
+
+    @Test
+    void rejected() {
+
+        var registry = new MetricsRegistry();
+        var zone = new Zone("kitchen", 20);
+
+        assertThatIllegalArgumentException().isThrownBy(() -> registry.register("not JmxAware"));
+
+        assertThat(registry.register(zone)).isEqualTo(5);
+        assertThat(registry.register(zone)).isZero();
+    }
+
+    @Test
+    void endpoint() throws Exception {
+
+        var endpoint = new MetricsEndpoint(Set.of(new Zone("kitchen", 20), "not JmxAware"), 0);
+
+        endpoint.start();
+
+        try {
+
+            var client = HttpClient.newHttpClient();
+            var rsp = client.send(
+                    HttpRequest.newBuilder(URI.create("http://localhost:" + endpoint.getPort() + "/metrics")).build(),
+                    HttpResponse.BodyHandlers.ofString());
+
+            assertThat(rsp.statusCode()).isEqualTo(200);
+            assertThat(rsp.headers().firstValue("Content-Type")).contains(MetricsEndpoint.CONTENT_TYPE);
+            assertThat(rsp.body()).contains("dz_setpoint{domain=\"dz\",name=\"zone\",instance=\"kitchen\"} 20\n");
+
+        } finally {
+            endpoint.stop();
+        }
+    }
+
+    /**
+     * Compare the scrape latency at 5,000 series with per-scrape reflection, and measure it over HTTP as well.
+     */
+    @Test
+    void benchmark() throws Exception {
+
+        Set<Object> zones = new LinkedHashSet<>();
+
+        for (int count = 0; count < 1000; count++) {
+            zones.add(new Zone("zone-" + count, 20 + count % 10 / 10d));
+        }
+
+        var endpoint = new MetricsEndpoint(zones, 0);
+        var registry = endpoint.getRegistry();
+
+        // 4 getters that work, 1 that throws
+        assertThat(registry.size()).isEqualTo(5000);
+
+        int rounds = 200;
+        long sink = 0;
+
+        // Warm up
+        for (int round = 0; round < rounds; round++) {
+            sink += registry.scrape().length + reflect(zones).length;
+        }
+
+        long[] handles = new long[rounds];
+        long[] reflection = new long[rounds];
+
+        for (int round = 0; round < rounds; round++) {
+
+            long start = System.nanoTime();
+            sink += registry.scrape().length;
+            handles[round] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            sink += reflect(zones).length;
+            reflection[round] = System.nanoTime() - start;
+        }
+
+        endpoint.start();
+
+        long[] http = new long[rounds];
+
+        try {
+
+            var client = HttpClient.newHttpClient();
+            var request = HttpRequest.newBuilder(URI.create("http://localhost:" + endpoint.getPort() + "/metrics")).build();
+
+            for (int round = 0; round < rounds; round++) {
+
+                long start = System.nanoTime();
+                sink += client.send(request, HttpResponse.BodyHandlers.ofByteArray()).body().length;
+                http[round] = System.nanoTime() - start;
+            }
+
+        } finally {
+            endpoint.stop();
+        }
+
+        logger.info("5,000 series scrape, p50/p99 microseconds: method handles {}/{}, reflection {}/{}, HTTP {}/{}, checksum {}",
+                percentile(handles, 50), percentile(handles, 99),
+                percentile(reflection, 50), percentile(reflection, 99),
+                percentile(http, 50), percentile(http, 99),
+                sink);
+
+        // Timing depends on the machine and its load, just report
+        logger.info("method handles are {} than reflection at p50",
+                percentile(handles, 50) < percentile(reflection, 50) ? "faster" : "NOT faster");
+    }
+
+    /**
+     * What a scrape costs when the getters are looked up and called reflectively every time.
+     */
+    private byte[] reflect(Set<Object> targets) {
+
+        var sb = new StringBuilder();
+
+        for (Object target : targets) {
+
+            var descriptor = ((JmxAware) target).getJmxDescriptor();
+
+            for (Method m : target.getClass().getMethods()) {
+
+                JmxAttribute attribute = m.getAnnotation(JmxAttribute.class);
+
+                if (attribute == null) {
+                    try {
+                        attribute = Instrumented.class.getMethod(m.getName()).getAnnotation(JmxAttribute.class);
+                    } catch (NoSuchMethodException ex) {
+                        continue;
+                    }
+                }
+
+                if (attribute == null) {
+                    continue;
+                }
+
+                try {
+
+                    m.setAccessible(true);
+                    Object value = m.invoke(target);
+
+                    sb.append(MetricsRegistry.getMetricName(m.getName()))
+                            .append("{domain=\"").append(descriptor.domainName)
+                            .append("\",name=\"").append(descriptor.name)
+                            .append("\",instance=\"").append(descriptor.instance)
+                            .append("\"} ").append(value).append('\n');
+
+                } catch (ReflectiveOperationException ex) {
+                    // Same as the registry, skip
+                }
+            }
+        }
+
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long percentile(long[] nanos, int percentile) {
+
+        long[] sorted = nanos.clone();
+
+        Arrays.sort(sorted);
+
+        return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)] / 1000;
+    }
+
+    private interface Instrumented extends JmxAware {
+
+        @JmxAttribute(description = "Setpoint")
+        double getSetpoint();
+    }
+
+    /**
+     * Mimics the model objects: some attributes are declared on the interface, some on the class.
+     */
+    private static class Zone implements Instrumented {
+
+        private final String name;
+        private final double setpoint;
+
+        Zone(String name, double setpoint) {
+            this.name = name;
+            this.setpoint = setpoint;
+        }
+
+        @Override
+        public double getSetpoint() {
+            return setpoint;
+        }
+
+        @JmxAttribute(description = "Times called")
+        public long getCalls() {
+            return 42;
+        }
+
+        @JmxAttribute(description = "On hold")
+        public boolean isOnHold() {
+            return true;
+        }
+
+        @JmxAttribute(description = "Last signal")
+        public Double getSignal() {
+            return null;
+        }
+
+        @JmxAttribute(description = "Always fails")
+        public int getBroken() {
+            throw new IllegalStateException("oops");
+        }
+
+        @JmxAttribute(description = "Zone name")
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public JmxDescriptor getJmxDescriptor() {
+            return new JmxDescriptor("dz", "zone", name, "test zone");
+        }
+    }
+}
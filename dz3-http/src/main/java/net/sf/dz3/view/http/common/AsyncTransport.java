@@ -0,0 +1,176 @@
+package net.sf.dz3.view.http.common;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Non-blocking HTTP transport for upstream exchanges.
+ *
+ * Unlike the blocking client from {@link HttpClientFactory}, a slow or hung upstream doesn't stall the caller:
+ * requests are sent asynchronously, HTTP/2 is negotiated where the server supports it (many exchanges multiplexed
+ * over one connection), and HTTP/1.1 connections are kept alive and reused.
+ *
+ * Requests beyond the in-flight limit, and requests made while the {@link CircuitBreaker} is open,
+ * are rejected right away with {@link RejectedExecutionException}; the caller is expected to hold on
+ * to the data and try again later.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+public class AsyncTransport {
+
+    private final Logger logger = LogManager.getLogger(getClass());
+
+    private final HttpClient client;
+    private final Duration requestTimeout;
+    private final String authorization;
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+    private final CircuitBreaker circuitBreaker;
+    private final LatencyRecorder latency = new LatencyRecorder(1024);
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Create an instance.
+     *
+     * @param username Username for basic authentication, {@code null} if none.
+     * @param password Password for basic authentication, {@code null} if none.
+     * @param maxInFlight Maximum number of requests in flight.
+     * @param requestTimeout How long to wait for a response before giving up on the request.
+     * @param circuitBreaker Circuit breaker to use.
+     */
+    public AsyncTransport(String username, String password, int maxInFlight, Duration requestTimeout, CircuitBreaker circuitBreaker) {
+
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be positive (" + maxInFlight + " given)");
+        }
+
+        if (requestTimeout == null || circuitBreaker == null) {
+            throw new IllegalArgumentException("requestTimeout and circuitBreaker can't be null");
+        }
+
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(requestTimeout)
+                .build();
+
+        this.requestTimeout = requestTimeout;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.circuitBreaker = circuitBreaker;
+
+        // Preemptive, same as the blocking client does
+        this.authorization = username == null || password == null
+                ? null
+                : "Basic " + Base64.getEncoder().encodeToString((username + ":" + password).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Create a request builder with the timeout and the credentials already set.
+     *
+     * @param uri Target URI.
+     *
+     * @return Request builder.
+     */
+    public HttpRequest.Builder newRequest(URI uri) {
+
+        var builder = HttpRequest.newBuilder(uri).timeout(requestTimeout);
+
+        if (authorization != null) {
+            builder.header("Authorization", authorization);
+        }
+
+        return builder;
+    }
+
+    /**
+     * @return {@code true} if a request sent right now is likely to be accepted.
+     */
+    public boolean isAvailable() {
+        // Must not stay false while the breaker is open, or the trial call is never made and the breaker never closes
+        return inFlight.availablePermits() > 0 && circuitBreaker.isCallPermitted();
+    }
+
+    /**
+     * Send the request.
+     *
+     * Responses with HTTP status 500 and above count as failures for the circuit breaker, but are still passed to the caller.
+     *
+     * @param request Request to send.
+     *
+     * @return The response future.
+     */
+    public CompletableFuture<HttpResponse<String>> send(HttpRequest request) {
+
+        if (!inFlight.tryAcquire()) {
+
+            rejected.incrementAndGet();
+            return CompletableFuture.failedFuture(new RejectedExecutionException(maxInFlight + " requests already in flight"));
+        }
+
+        if (!circuitBreaker.tryAcquire()) {
+
+            inFlight.release();
+            rejected.incrementAndGet();
+
+            return CompletableFuture.failedFuture(new RejectedExecutionException("circuit breaker is open"));
+        }
+
+        requests.incrementAndGet();
+
+        long start = System.nanoTime();
+
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofString()).whenComplete((rsp, ex) -> {
+
+            long elapsed = System.nanoTime() - start;
+            boolean failed = ex != null || rsp.statusCode() >= 500;
+
+            inFlight.release();
+            latency.record(elapsed);
+            circuitBreaker.record(failed, elapsed);
+
+            if (failed) {
+                failures.incrementAndGet();
+                logger.debug("{} failed in {}ms: {}", request.uri(), elapsed / 1_000_000, ex == null ? rsp.statusCode() : ex.toString());
+            }
+        });
+    }
+
+    public int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public LatencyRecorder getLatency() {
+        return latency;
+    }
+}
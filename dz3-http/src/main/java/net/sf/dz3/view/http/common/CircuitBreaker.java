@@ -0,0 +1,209 @@
+package net.sf.dz3.view.http.common;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Stops sending requests to an upstream that keeps failing or is too slow, and lets it recover.
+ *
+ * A call is bad if it fails, or takes longer than {@code slowCallMillis}. The breaker opens when at least half
+ * of the last {@code windowSize} calls are bad (but not before {@code windowSize / 2} calls are made), and rejects all calls
+ * for {@code openMillis}. After that, it lets a single trial call through: if it is good, the breaker closes,
+ * otherwise it opens again.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final Logger logger = LogManager.getLogger(getClass());
+
+    private final String name;
+    private final long slowCallNanos;
+    private final long openNanos;
+    private final LongSupplier clock;
+
+    /**
+     * Recent call outcomes, {@code true} for bad ones.
+     */
+    private final boolean[] window;
+    private int windowCount = 0;
+    private int windowPosition = 0;
+    private int badCount = 0;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private boolean trialInFlight = false;
+    private long opened = 0;
+
+    /**
+     * Create an instance.
+     *
+     * @param name Name to log the state changes with.
+     * @param slowCallMillis Calls taking longer than this are considered bad.
+     * @param windowSize Number of recent calls to make the decision on.
+     * @param openMillis How long to reject calls for after opening.
+     */
+    public CircuitBreaker(String name, long slowCallMillis, int windowSize, long openMillis) {
+        this(name, slowCallMillis, windowSize, openMillis, System::nanoTime);
+    }
+
+    CircuitBreaker(String name, long slowCallMillis, int windowSize, long openMillis, LongSupplier clock) {
+
+        if (windowSize < 2) {
+            throw new IllegalArgumentException("windowSize must be at least 2 (" + windowSize + " given)");
+        }
+
+        this.name = name;
+        this.slowCallNanos = slowCallMillis * 1_000_000L;
+        this.openNanos = openMillis * 1_000_000L;
+        this.window = new boolean[windowSize];
+        this.clock = clock;
+    }
+
+    /**
+     * Check whether a call can be made, and account for it if it can.
+     *
+     * Every call this method returned {@code true} for must be followed by {@link #record(boolean, long)}.
+     *
+     * @return {@code true} if the call can be made.
+     */
+    public synchronized boolean tryAcquire() {
+
+        switch (state) {
+
+            case CLOSED:
+                return true;
+
+            case OPEN:
+
+                if (clock.getAsLong() - openedAt < openNanos) {
+                    return false;
+                }
+
+                logger.info("{}: half open, letting a trial call through", name);
+
+                state = State.HALF_OPEN;
+                trialInFlight = true;
+
+                return true;
+
+            case HALF_OPEN:
+
+                if (trialInFlight) {
+                    return false;
+                }
+
+                trialInFlight = true;
+                return true;
+
+            default:
+                throw new IllegalStateException("state=" + state);
+        }
+    }
+
+    /**
+     * Check whether {@link #tryAcquire()} would let a call through right now, without accounting for it.
+     *
+     * @return {@code true} if the breaker is closed, or the open period is over and the trial call can be made.
+     */
+    public synchronized boolean isCallPermitted() {
+
+        switch (state) {
+
+            case CLOSED:
+                return true;
+
+            case OPEN:
+                return clock.getAsLong() - openedAt >= openNanos;
+
+            case HALF_OPEN:
+                return !trialInFlight;
+
+            default:
+                throw new IllegalStateException("state=" + state);
+        }
+    }
+
+    /**
+     * Record the call outcome.
+     *
+     * @param failed {@code true} if the call failed.
+     * @param latencyNanos How long the call took.
+     */
+    public synchronized void record(boolean failed, long latencyNanos) {
+
+        boolean bad = failed || latencyNanos > slowCallNanos;
+
+        if (state == State.HALF_OPEN) {
+
+            trialInFlight = false;
+
+            if (bad) {
+                open();
+            } else {
+                close();
+            }
+
+            return;
+        }
+
+        if (state == State.OPEN) {
+            // Late arrival from before the breaker opened
+            return;
+        }
+
+        if (window[windowPosition] && windowCount == window.length) {
+            badCount--;
+        }
+
+        window[windowPosition] = bad;
+        windowPosition = (windowPosition + 1) % window.length;
+        windowCount = Math.min(windowCount + 1, window.length);
+
+        if (bad) {
+            badCount++;
+        }
+
+        if (windowCount >= window.length / 2 && badCount * 2 >= windowCount) {
+            open();
+        }
+    }
+
+    private void open() {
+
+        logger.warn("{}: open, {} of last {} calls were bad", name, badCount, windowCount);
+
+        state = State.OPEN;
+        openedAt = clock.getAsLong();
+        opened++;
+    }
+
+    private void close() {
+
+        logger.info("{}: closed", name);
+
+        state = State.CLOSED;
+        windowCount = 0;
+        windowPosition = 0;
+        badCount = 0;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return How many times the breaker has opened.
+     */
+    public synchronized long getOpened() {
+        return opened;
+    }
+}
@@ -0,0 +1,70 @@
+package net.sf.dz3.view.http.common;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent latency samples and computes percentiles over them.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+public class LatencyRecorder {
+
+    private final long[] samples;
+    private int count = 0;
+    private int position = 0;
+
+    /**
+     * @param capacity How many recent samples to keep.
+     */
+    public LatencyRecorder(int capacity) {
+
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive (" + capacity + " given)");
+        }
+
+        samples = new long[capacity];
+    }
+
+    public synchronized void record(long latencyNanos) {
+
+        samples[position] = latencyNanos;
+        position = (position + 1) % samples.length;
+        count = Math.min(count + 1, samples.length);
+    }
+
+    /**
+     * Get the percentile over the recent samples.
+     *
+     * @param percentile Percentile, 0 to 100.
+     *
+     * @return The latency, milliseconds, or 0 if there are no samples yet.
+     */
+    public double getPercentileMillis(double percentile) {
+
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be within 0..100 (" + percentile + " given)");
+        }
+
+        long[] sorted;
+
+        synchronized (this) {
+
+            if (count == 0) {
+                return 0;
+            }
+
+            sorted = Arrays.copyOf(samples, count);
+        }
+
+        Arrays.sort(sorted);
+
+        // Nearest rank
+        int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+
+        return sorted[Math.max(0, rank - 1)] / 1_000_000d;
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+}
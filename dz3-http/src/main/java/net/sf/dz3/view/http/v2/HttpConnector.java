@@ -9,20 +9,32 @@ import net.sf.dz3.instrumentation.Marker;
 import net.sf.dz3.scheduler.Scheduler;
 import net.sf.dz3.view.Connector;
 import net.sf.dz3.view.ConnectorFactory;
+import net.sf.dz3.view.http.common.AsyncTransport;
 import net.sf.dz3.view.http.common.BufferedExchanger;
+import net.sf.dz3.view.http.common.CircuitBreaker;
 import net.sf.dz3.view.http.common.QueueFeeder;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.util.EntityUtils;
 import org.apache.logging.log4j.ThreadContext;
 
 import java.io.IOException;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * HTTP client side interface.
@@ -39,15 +51,63 @@ import java.util.concurrent.LinkedBlockingQueue;
  * too much request data transfer and processing overhead, this connector caches data from all sources
  * and then submits them in bigger packets more rarely.
  *
+ * By default, the packet is sent as a {@code snapshot} URL query parameter. With {@link #setPostBody(boolean) postBody}
+ * set, it is sent as a gzipped JSON request body instead, and with {@link #setDelta(boolean) delta} also set, only the fields
+ * that changed since the last acknowledged exchange are sent (see {@link SnapshotEncoder}). The server must support these.
+ *
+ * With {@link #setAsync(boolean) async} set, exchanges are sent via {@link AsyncTransport} and don't block the exchanger.
+ * Snapshots that couldn't be sent (too many requests in flight, circuit breaker open, server error) are held
+ * and sent with the next exchange, up to {@link #MAX_BACKLOG}.
+ *
  * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
  */
 public class HttpConnector extends Connector<JsonRenderer>{
 
+    /**
+     * Request header telling the server that the body contains {@link SnapshotEncoder deltas}.
+     */
+    public static final String DELTA_HEADER = "X-DZ-Delta";
+
+    /**
+     * How often to send full snapshots in delta mode, in exchanges.
+     */
+    private static final int FULL_EVERY = 60;
+
+    /**
+     * Maximum number of snapshots to hold while the upstream is unavailable, in async mode. Oldest are dropped first.
+     */
+    public static final int MAX_BACKLOG = 10000;
+
     private final BlockingQueue<ZoneSnapshot> upstreamQueue = new LinkedBlockingQueue<>();
     private final URL serverContextRoot;
     private final BufferedExchanger<ZoneSnapshot> exchanger;
     private final Gson gson = new Gson();
 
+    private boolean postBody = false;
+    private boolean delta = false;
+    private SnapshotEncoder encoder = new SnapshotEncoder(gson, false, FULL_EVERY);
+
+    private final String username;
+    private final String password;
+
+    private boolean async = false;
+    private int maxInFlight = 4;
+    private long requestTimeoutMillis = 10000;
+    private long slowCallMillis = 5000;
+    private long circuitOpenMillis = 60000;
+
+    /**
+     * Created on {@link #activate2()}, if {@link #async} is set.
+     */
+    private AsyncTransport transport;
+
+    private long exchanges = 0;
+    private long rawBytes = 0;
+    private long compressedBytes = 0;
+    private long lastRawBytes = 0;
+    private long lastCompressedBytes = 0;
+    private long lastSerializationMicros = 0;
+
     /**
      * Create an instance and fill it up with objects to render.
      *
@@ -58,6 +118,8 @@ public class HttpConnector extends Connector<JsonRenderer>{
         super(initSet);
 
         this.serverContextRoot = serverContextRoot;
+        this.username = username;
+        this.password = password;
 
         exchanger = new ZoneSnapshotExchanger(serverContextRoot, username, password, upstreamQueue);
 
@@ -92,12 +154,32 @@ public class HttpConnector extends Connector<JsonRenderer>{
         super(initSet, factorySet);
 
         this.serverContextRoot = serverBase;
+        this.username = username;
+        this.password = password;
 
         exchanger = new ZoneSnapshotExchanger(serverContextRoot, username, password, upstreamQueue);
     }
 
     @Override
     protected void activate2() {
+
+        synchronized (this) {
+
+            if (async) {
+
+                // Deltas are computed against the last acknowledged exchange, they can't be in flight concurrently
+                int limit = postBody && delta ? 1 : maxInFlight;
+
+                transport = new AsyncTransport(
+                        username, password,
+                        limit,
+                        Duration.ofMillis(requestTimeoutMillis),
+                        new CircuitBreaker(serverContextRoot.getHost(), slowCallMillis, 10, circuitOpenMillis));
+
+                logger.info("Async mode, {} requests in flight max", limit);
+            }
+        }
+
         exchanger.start();
     }
 
@@ -106,6 +188,14 @@ public class HttpConnector extends Connector<JsonRenderer>{
         return Map.of(QueueFeeder.QUEUE_KEY, upstreamQueue);
     }
 
+    /**
+     * Thermostats are the only entities controllable via {@link ZoneCommand}, by name.
+     */
+    @Override
+    protected Collection<String> getLookupKeys(Object source) {
+        return source instanceof ThermostatModel ? List.of(((ThermostatModel) source).getName()) : List.of();
+    }
+
     @Override
     protected void deactivate2() {
         exchanger.stop();
@@ -145,6 +235,152 @@ public class HttpConnector extends Connector<JsonRenderer>{
         exchanger.setMaxBufferAgeMillis(maxBufferAgeMillis);
     }
 
+    @JmxAttribute(description = "Send the snapshots in a gzipped request body instead of the URL")
+    public synchronized boolean isPostBody() {
+        return postBody;
+    }
+
+    public synchronized void setPostBody(boolean postBody) {
+        this.postBody = postBody;
+    }
+
+    @JmxAttribute(description = "Send only the fields changed since the last acknowledged exchange, requires postBody")
+    public synchronized boolean isDelta() {
+        return delta;
+    }
+
+    public synchronized void setDelta(boolean delta) {
+
+        if (this.delta != delta) {
+            encoder = new SnapshotEncoder(gson, delta, FULL_EVERY);
+        }
+
+        this.delta = delta;
+    }
+
+    @JmxAttribute(description = "Send exchanges asynchronously, takes effect on next activation")
+    public synchronized boolean isAsync() {
+        return async;
+    }
+
+    public synchronized void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    @JmxAttribute(description = "Maximum number of exchanges in flight in async mode, takes effect on next activation")
+    public synchronized int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public synchronized void setMaxInFlight(int maxInFlight) {
+
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be positive (" + maxInFlight + " given)");
+        }
+
+        this.maxInFlight = maxInFlight;
+    }
+
+    @JmxAttribute(description = "Async mode request timeout, milliseconds, takes effect on next activation")
+    public synchronized long getRequestTimeoutMillis() {
+        return requestTimeoutMillis;
+    }
+
+    public synchronized void setRequestTimeoutMillis(long requestTimeoutMillis) {
+        this.requestTimeoutMillis = requestTimeoutMillis;
+    }
+
+    /**
+     * Set the latency above which exchanges count as bad for the circuit breaker.
+     *
+     * @param slowCallMillis Latency, milliseconds.
+     */
+    public synchronized void setSlowCallMillis(long slowCallMillis) {
+        this.slowCallMillis = slowCallMillis;
+    }
+
+    /**
+     * Set how long the circuit breaker stays open before letting a trial exchange through.
+     *
+     * @param circuitOpenMillis Time, milliseconds.
+     */
+    public synchronized void setCircuitOpenMillis(long circuitOpenMillis) {
+        this.circuitOpenMillis = circuitOpenMillis;
+    }
+
+    @JmxAttribute(description = "Exchange latency, 50th percentile, milliseconds, async mode only")
+    public double getLatencyP50Millis() {
+        return getLatencyPercentile(50);
+    }
+
+    @JmxAttribute(description = "Exchange latency, 90th percentile, milliseconds, async mode only")
+    public double getLatencyP90Millis() {
+        return getLatencyPercentile(90);
+    }
+
+    @JmxAttribute(description = "Exchange latency, 99th percentile, milliseconds, async mode only")
+    public double getLatencyP99Millis() {
+        return getLatencyPercentile(99);
+    }
+
+    private synchronized double getLatencyPercentile(double percentile) {
+        return transport == null ? 0 : transport.getLatency().getPercentileMillis(percentile);
+    }
+
+    @JmxAttribute(description = "Circuit breaker state, async mode only")
+    public synchronized String getCircuitState() {
+        return transport == null ? "n/a" : transport.getCircuitBreaker().getState().toString();
+    }
+
+    @JmxAttribute(description = "Exchanges rejected because of in-flight limit or open circuit, async mode only")
+    public synchronized long getRejected() {
+        return transport == null ? 0 : transport.getRejected();
+    }
+
+    @JmxAttribute(description = "Snapshots held until the upstream is available, async mode only")
+    public int getBacklogSize() {
+        return ((ZoneSnapshotExchanger) exchanger).getBacklogSize();
+    }
+
+    private synchronized AsyncTransport getTransport() {
+        return transport;
+    }
+
+    @JmxAttribute(description = "Payload size of the last exchange before compression, bytes")
+    public synchronized long getLastRawBytes() {
+        return lastRawBytes;
+    }
+
+    @JmxAttribute(description = "Payload size of the last exchange after compression, bytes")
+    public synchronized long getLastCompressedBytes() {
+        return lastCompressedBytes;
+    }
+
+    @JmxAttribute(description = "Serialization time of the last exchange, microseconds")
+    public synchronized long getLastSerializationMicros() {
+        return lastSerializationMicros;
+    }
+
+    @JmxAttribute(description = "Compression ratio over all exchanges so far")
+    public synchronized double getCompressionRatio() {
+        return compressedBytes == 0 ? 0 : (double) rawBytes / compressedBytes;
+    }
+
+    @JmxAttribute(description = "Average payload size per exchange after compression, bytes")
+    public synchronized long getAverageCompressedBytes() {
+        return exchanges == 0 ? 0 : compressedBytes / exchanges;
+    }
+
+    private synchronized void record(long raw, long compressed, long serializationNanos) {
+
+        exchanges++;
+        rawBytes += raw;
+        compressedBytes += compressed;
+        lastRawBytes = raw;
+        lastCompressedBytes = compressed;
+        lastSerializationMicros = TimeUnit.NANOSECONDS.toMicros(serializationNanos);
+    }
+
     private class ZoneSnapshotExchanger extends BufferedExchanger<ZoneSnapshot> { // NOSONAR Inheritance tree has been considered
 
         public ZoneSnapshotExchanger(URL serverContextRoot,
@@ -154,6 +390,11 @@ public class HttpConnector extends Connector<JsonRenderer>{
             super(serverContextRoot, username, password, upstreamQueue);
         }
 
+        /**
+         * Snapshots that couldn't be sent in async mode, oldest first.
+         */
+        private final LinkedList<ZoneSnapshot> backlog = new LinkedList<>();
+
         @Override
         protected final void exchange(List<ZoneSnapshot> buffer) {
 
@@ -162,17 +403,36 @@ public class HttpConnector extends Connector<JsonRenderer>{
 
             try {
 
-                logger.debug("sending {} items: {}", buffer.size(), buffer);
+                var currentTransport = getTransport();
 
-                var encoded = gson.toJson(buffer);
+                if (currentTransport != null) {
+                    exchangeAsync(buffer, currentTransport);
+                    return;
+                }
 
-                logger.debug("JSON ({} bytes): {}", encoded.length(), encoded);
+                logger.debug("sending {} items: {}", buffer.size(), buffer);
 
                 var targetUrl = serverContextRoot; // NOSONAR Readability
-                var builder = new URIBuilder(targetUrl.toString());
+                var encoded = encode(buffer);
+                HttpPost post;
+
+                if (encoded.payload == null) {
 
-                builder.addParameter("snapshot", encoded);
-                var post = new HttpPost(builder.toString());
+                    var builder = new URIBuilder(targetUrl.toString());
+
+                    builder.addParameter("snapshot", encoded.query);
+                    post = new HttpPost(builder.toString());
+
+                } else {
+
+                    var entity = new ByteArrayEntity(encoded.payload.content, ContentType.APPLICATION_JSON);
+
+                    entity.setContentEncoding("gzip");
+
+                    post = new HttpPost(targetUrl.toString());
+                    post.setEntity(entity);
+                    post.setHeader(DELTA_HEADER, Boolean.toString(!encoded.payload.full));
+                }
 
                 try {
 
@@ -187,6 +447,8 @@ public class HttpConnector extends Connector<JsonRenderer>{
                         throw new IOException("Request to " + targetUrl + " failed with HTTP code " + rc);
                     }
 
+                    encoded.acknowledge();
+
                     processResponse(EntityUtils.toString(rsp.getEntity()));
 
                 } finally {
@@ -206,6 +468,161 @@ public class HttpConnector extends Connector<JsonRenderer>{
             }
         }
 
+        /**
+         * Send the buffer, together with whatever is in the {@link #backlog}, without waiting for the response.
+         */
+        private void exchangeAsync(List<ZoneSnapshot> buffer, AsyncTransport currentTransport) throws IOException, URISyntaxException {
+
+            List<ZoneSnapshot> sent;
+
+            synchronized (backlog) {
+
+                backlog.addAll(buffer);
+
+                if (!currentTransport.isAvailable()) {
+
+                    logger.debug("upstream unavailable, holding {} items", backlog.size());
+                    trim();
+                    return;
+                }
+
+                sent = new ArrayList<>(backlog);
+                backlog.clear();
+            }
+
+            logger.debug("sending {} items: {}", sent.size(), sent);
+
+            var encoded = encode(sent);
+            HttpRequest request;
+
+            if (encoded.payload == null) {
+
+                var builder = new URIBuilder(serverContextRoot.toString());
+
+                builder.addParameter("snapshot", encoded.query);
+
+                request = currentTransport.newRequest(builder.build())
+                        .POST(HttpRequest.BodyPublishers.noBody())
+                        .build();
+
+            } else {
+
+                request = currentTransport.newRequest(serverContextRoot.toURI())
+                        .header("Content-Type", "application/json")
+                        .header("Content-Encoding", "gzip")
+                        .header(DELTA_HEADER, Boolean.toString(!encoded.payload.full))
+                        .POST(HttpRequest.BodyPublishers.ofByteArray(encoded.payload.content))
+                        .build();
+            }
+
+            currentTransport.send(request).whenComplete((rsp, ex) -> complete(sent, encoded, rsp, ex));
+        }
+
+        private void complete(List<ZoneSnapshot> sent, Encoded encoded, HttpResponse<String> rsp, Throwable ex) {
+
+            ThreadContext.push("complete");
+
+            try {
+
+                if (ex != null) {
+
+                    logger.warn("Exchange failed, holding {} items: {}", sent.size(), ex.toString());
+                    hold(sent);
+                    return;
+                }
+
+                var rc = rsp.statusCode();
+
+                if (rc != 200) {
+
+                    logger.error("HTTP rc={}, text follows:", rc);
+                    logger.error(rsp.body()); // NOSONAR Not worth the effort
+
+                    if (rc >= 500) {
+
+                        // Server side trouble, may go away
+                        hold(sent);
+                    }
+
+                    return;
+                }
+
+                encoded.acknowledge();
+                processResponse(rsp.body());
+
+            } catch (Throwable t) { // NOSONAR Consequences have been considered
+
+                logger.error("Failed to process the response", t);
+
+            } finally {
+                ThreadContext.pop();
+            }
+        }
+
+        /**
+         * Put the items back in front of the {@link #backlog}, they're older than anything that may be there.
+         */
+        private void hold(List<ZoneSnapshot> items) {
+
+            synchronized (backlog) {
+                backlog.addAll(0, items);
+                trim();
+            }
+        }
+
+        private void trim() {
+
+            int dropped = 0;
+
+            while (backlog.size() > MAX_BACKLOG) {
+                backlog.removeFirst();
+                dropped++;
+            }
+
+            if (dropped > 0) {
+                logger.warn("Backlog full, dropped {} oldest items", dropped);
+            }
+        }
+
+        int getBacklogSize() {
+
+            synchronized (backlog) {
+                return backlog.size();
+            }
+        }
+
+        private Encoded encode(List<ZoneSnapshot> buffer) throws IOException {
+
+            SnapshotEncoder currentEncoder;
+
+            synchronized (HttpConnector.this) {
+                currentEncoder = postBody ? encoder : null;
+            }
+
+            if (currentEncoder == null) {
+
+                long start = System.nanoTime();
+                var encoded = gson.toJson(buffer);
+                long serializationNanos = System.nanoTime() - start;
+
+                logger.debug("JSON ({} bytes): {}", encoded.length(), encoded);
+
+                record(encoded.length(), encoded.length(), serializationNanos);
+
+                return new Encoded(encoded, null, null);
+            }
+
+            var payload = currentEncoder.encode(buffer);
+
+            logger.debug("JSON: {} bytes, {} gzipped, {}us, full={}",
+                    payload.rawBytes, payload.compressedBytes,
+                    TimeUnit.NANOSECONDS.toMicros(payload.serializationNanos), payload.full);
+
+            record(payload.rawBytes, payload.compressedBytes, payload.serializationNanos);
+
+            return new Encoded(null, payload, currentEncoder);
+        }
+
         private void processResponse(String rsp) {
 
             ThreadContext.push("processResponse");
@@ -240,28 +657,51 @@ public class HttpConnector extends Connector<JsonRenderer>{
 
                 logger.debug("Command: {}", command);
 
-                for (Object target : getInitSet()) {
+                var target = lookup(command.name);
 
-                    if (!(target instanceof ThermostatModel)) {
-                        continue;
-                    }
+                if (!(target instanceof ThermostatModel)) {
+                    logger.debug("Not ours: {}", command.name);
+                    return;
+                }
 
-                    var ts = (ThermostatModel) target;
+                var ts = (ThermostatModel) target;
 
-                    if (ts.getName().equals(command.name)) {
+                logger.debug("Matched: {}", command.name);
 
-                        logger.debug("Matched: {}", command.name);
-
-                        ts.setSetpoint(command.setpointTemperature);
-                        ts.setOn(command.enabled);
-                        ts.setOnHold(command.onHold);
-                        ts.setVoting(command.voting);
-                    }
-                }
+                ts.setSetpoint(command.setpointTemperature);
+                ts.setOn(command.enabled);
+                ts.setOnHold(command.onHold);
+                ts.setVoting(command.voting);
 
             } finally {
                 ThreadContext.pop();
             }
         }
     }
+
+    /**
+     * Buffer encoded either as a query parameter, or as a request body.
+     */
+    private static class Encoded {
+
+        final String query;
+        final SnapshotEncoder.Payload payload;
+        final SnapshotEncoder encoder;
+
+        Encoded(String query, SnapshotEncoder.Payload payload, SnapshotEncoder encoder) {
+            this.query = query;
+            this.payload = payload;
+            this.encoder = encoder;
+        }
+
+        /**
+         * Let the encoder know the server got the payload.
+         */
+        void acknowledge() {
+
+            if (encoder != null) {
+                encoder.acknowledge();
+            }
+        }
+    }
 }
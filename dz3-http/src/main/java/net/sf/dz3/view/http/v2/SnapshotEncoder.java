@@ -0,0 +1,192 @@
+package net.sf.dz3.view.http.v2;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encodes the {@link ZoneSnapshot} buffer into a gzipped JSON request body, without an intermediate {@code String}.
+ *
+ * In delta mode, only the {@link #NAME name}, the {@link #TIMESTAMP timestamp}, and the fields that changed since
+ * the previous snapshot of the same zone are written. The baseline is the last snapshot the server has
+ * {@link #acknowledge() acknowledged} receiving, or the previous snapshot of the same zone in the same buffer.
+ * Fields that became {@code null} are written as explicit {@code null}. Snapshots are written in full
+ * if there's no baseline, and every {@code fullEvery} exchanges, so that a server that lost its state recovers.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+class SnapshotEncoder {
+
+    static final String NAME = "name";
+    static final String TIMESTAMP = "timestamp";
+
+    private final Gson gson;
+    private final boolean delta;
+    private final int fullEvery;
+
+    /**
+     * Last snapshot the server has acknowledged, by zone name.
+     */
+    private Map<String, JsonObject> acknowledged = new HashMap<>();
+
+    /**
+     * Last snapshot sent, by zone name. Becomes {@link #acknowledged} on {@link #acknowledge()}.
+     */
+    private Map<String, JsonObject> pending = new HashMap<>();
+
+    private long exchanges = 0;
+
+    /**
+     * @param gson Gson instance to use.
+     * @param delta {@code true} if only changed fields are to be sent.
+     * @param fullEvery Send full snapshots every this many exchanges.
+     */
+    SnapshotEncoder(Gson gson, boolean delta, int fullEvery) {
+
+        if (fullEvery < 1) {
+            throw new IllegalArgumentException("fullEvery must be positive (" + fullEvery + " given)");
+        }
+
+        this.gson = gson;
+        this.delta = delta;
+        this.fullEvery = fullEvery;
+    }
+
+    /**
+     * Encode the buffer.
+     *
+     * @param buffer Snapshots to encode.
+     *
+     * @return Encoded payload.
+     */
+    synchronized Payload encode(List<ZoneSnapshot> buffer) throws IOException {
+
+        long start = System.nanoTime();
+        boolean full = !delta || exchanges++ % fullEvery == 0;
+
+        pending = new HashMap<>(full ? Map.of() : acknowledged);
+
+        var content = new ByteArrayOutputStream();
+        var compressed = new CountingOutputStream(content);
+        var gzip = new GZIPOutputStream(compressed);
+        var raw = new CountingOutputStream(gzip);
+
+        try (var writer = new JsonWriter(new OutputStreamWriter(raw, StandardCharsets.UTF_8))) {
+
+            writer.setSerializeNulls(true);
+            writer.beginArray();
+
+            for (ZoneSnapshot snapshot : buffer) {
+
+                var current = gson.toJsonTree(snapshot).getAsJsonObject();
+                var baseline = pending.put(snapshot.name, current);
+
+                gson.toJson(baseline == null ? current : diff(baseline, current), writer);
+            }
+
+            writer.endArray();
+        }
+
+        return new Payload(content.toByteArray(), raw.count, compressed.count, full, System.nanoTime() - start);
+    }
+
+    /**
+     * Make the snapshots sent by the last {@link #encode(List)} the baseline for the next one.
+     */
+    synchronized void acknowledge() {
+        acknowledged = pending;
+    }
+
+    private JsonObject diff(JsonObject baseline, JsonObject current) {
+
+        var result = new JsonObject();
+
+        result.add(NAME, current.get(NAME));
+        result.add(TIMESTAMP, current.get(TIMESTAMP));
+
+        for (Entry<String, JsonElement> entry : current.entrySet()) {
+
+            if (!entry.getValue().equals(baseline.get(entry.getKey()))) {
+                result.add(entry.getKey(), entry.getValue());
+            }
+        }
+
+        // Gson skips nulls, so a field that disappeared has become null
+        for (String key : baseline.keySet()) {
+
+            if (!current.has(key)) {
+                result.add(key, JsonNull.INSTANCE);
+            }
+        }
+
+        return result;
+    }
+
+    static class Payload {
+
+        /**
+         * Gzipped JSON.
+         */
+        final byte[] content;
+
+        /**
+         * JSON size before compression.
+         */
+        final long rawBytes;
+
+        /**
+         * JSON size after compression, same as {@code content.length}.
+         */
+        final long compressedBytes;
+
+        /**
+         * {@code true} if all the snapshots were written in full.
+         */
+        final boolean full;
+
+        final long serializationNanos;
+
+        Payload(byte[] content, long rawBytes, long compressedBytes, boolean full, long serializationNanos) {
+            this.content = content;
+            this.rawBytes = rawBytes;
+            this.compressedBytes = compressedBytes;
+            this.full = full;
+            this.serializationNanos = serializationNanos;
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -24,6 +24,7 @@ import org.apache.logging.log4j.ThreadContext;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -116,6 +117,14 @@ public class HttpConnector extends Connector<JsonRenderer>{
         return Map.of(QueueFeeder.QUEUE_KEY, upstreamQueue);
     }
 
+    /**
+     * Thermostats are the only entities controllable via {@link ZoneCommand}, by name.
+     */
+    @Override
+    protected Collection<String> getLookupKeys(Object source) {
+        return source instanceof ThermostatModel ? List.of(((ThermostatModel) source).getName()) : List.of();
+    }
+
     @Override
     protected void deactivate2() {
         exchanger.stop();
@@ -290,24 +299,21 @@ public class HttpConnector extends Connector<JsonRenderer>{
 
                 logger.debug("Command: {}", command);
 
-                for (Object target : getInitSet()) {
+                var target = lookup(command.name);
 
-                    if (!(target instanceof ThermostatModel)) {
-                        continue;
-                    }
-
-                    var ts = (ThermostatModel) target;
+                if (!(target instanceof ThermostatModel)) {
+                    logger.debug("Not ours: {}", command.name);
+                    return;
+                }
 
-                    if (ts.getName().equals(command.name)) {
+                var ts = (ThermostatModel) target;
 
-                        logger.debug("Matched: {}", command.name);
+                logger.debug("Matched: {}", command.name);
 
-                        ts.setSetpoint(command.setpointTemperature);
-                        ts.setOn(command.enabled);
-                        ts.setOnHold(command.onHold);
-                        ts.setVoting(command.voting);
-                    }
-                }
+                ts.setSetpoint(command.setpointTemperature);
+                ts.setOn(command.enabled);
+                ts.setOnHold(command.onHold);
+                ts.setVoting(command.voting);
 
             } finally {
                 ThreadContext.pop();
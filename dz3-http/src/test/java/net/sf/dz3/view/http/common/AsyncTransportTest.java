@@ -0,0 +1,245 @@
+package net.sf.dz3.view.http.common;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.util.EntityUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Exercise the transport against a local stub server with configurable response delay.
+ */
+class AsyncTransportTest {
+
+    private final Logger logger = LogManager.getLogger(getClass());
+
+    private final AtomicLong delayMillis = new AtomicLong();
+    private HttpServer server;
+    private URI uri;
+
+    @BeforeEach
+    void start() throws IOException {
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", exchange -> {
+
+            try {
+                Thread.sleep(delayMillis.get());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+
+            byte[] body = "[]".getBytes(StandardCharsets.UTF_8);
+
+            exchange.getRequestBody().readAllBytes();
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+
+        server.start();
+
+        uri = URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+    }
+
+    @AfterEach
+    void stop() {
+        server.stop(0);
+    }
+
+    @Test
+    void inFlightLimit() {
+
+        delayMillis.set(500);
+
+        var transport = new AsyncTransport(null, null, 2, Duration.ofSeconds(5), new CircuitBreaker("test", 5000, 10, 1000));
+
+        var first = transport.send(request(transport));
+        var second = transport.send(request(transport));
+
+        assertThat(transport.isAvailable()).isFalse();
+        assertThat(transport.getInFlight()).isEqualTo(2);
+
+        assertThatThrownBy(() -> transport.send(request(transport)).join())
+                .isInstanceOf(CompletionException.class)
+                .hasCauseInstanceOf(RejectedExecutionException.class);
+
+        assertThat(first.join().statusCode()).isEqualTo(200);
+        assertThat(second.join().statusCode()).isEqualTo(200);
+        assertThat(transport.getRejected()).isEqualTo(1);
+        assertThat(transport.getLatency().getPercentileMillis(50)).isGreaterThanOrEqualTo(500);
+    }
+
+    @Test
+    void circuitBreaker() throws InterruptedException {
+
+        // Slow, but not timing out
+        delayMillis.set(300);
+
+        var transport = new AsyncTransport(null, null, 10, Duration.ofSeconds(5), new CircuitBreaker("test", 100, 4, 500));
+
+        for (int count = 0; count < 2; count++) {
+            transport.send(request(transport)).join();
+        }
+
+        assertThat(transport.getCircuitBreaker().getState()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(transport.isAvailable()).isFalse();
+
+        // Must fail fast, not wait for the upstream
+        assertThatThrownBy(() -> transport.send(request(transport)).join())
+                .hasCauseInstanceOf(RejectedExecutionException.class);
+        assertThat(transport.getRequests()).isEqualTo(2);
+
+        // Upstream recovers
+        delayMillis.set(0);
+        Thread.sleep(600);
+
+        assertThat(transport.send(request(transport)).join().statusCode()).isEqualTo(200);
+        assertThat(transport.getCircuitBreaker().getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    /**
+     * Make sure a caller that checks {@link AsyncTransport#isAvailable()} before sending, like the exchanger does,
+     * gets to make the trial call once the breaker has been open long enough.
+     */
+    @Test
+    void circuitBreakerRecovery() {
+
+        var now = new AtomicLong();
+        var transport = new AsyncTransport(null, null, 10, Duration.ofSeconds(5), new CircuitBreaker("test", 5000, 4, 500, now::get));
+
+        // Server errors, fast
+        server.removeContext("/");
+        server.createContext("/", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            exchange.sendResponseHeaders(now.get() == 0 ? 503 : 200, -1);
+            exchange.close();
+        });
+
+        for (int count = 0; count < 2; count++) {
+            exchangeIfAvailable(transport);
+        }
+
+        assertThat(transport.getCircuitBreaker().getState()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(transport.isAvailable()).isFalse();
+        assertThat(exchangeIfAvailable(transport)).isFalse();
+
+        // Not yet
+        now.set(499_000_000L);
+        assertThat(transport.isAvailable()).isFalse();
+
+        now.set(500_000_000L);
+        assertThat(transport.isAvailable()).isTrue();
+        assertThat(exchangeIfAvailable(transport)).isTrue();
+
+        assertThat(transport.getCircuitBreaker().getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+        assertThat(transport.isAvailable()).isTrue();
+        assertThat(transport.getRejected()).isZero();
+    }
+
+    /**
+     * Exchange the way {@code HttpConnector} does, checking the availability first.
+     *
+     * @return {@code true} if the request was sent.
+     */
+    private boolean exchangeIfAvailable(AsyncTransport transport) {
+
+        if (!transport.isAvailable()) {
+            return false;
+        }
+
+        transport.send(request(transport)).join();
+
+        return true;
+    }
+
+    @Test
+    void timeout() {
+
+        delayMillis.set(1000);
+
+        var transport = new AsyncTransport(null, null, 10, Duration.ofMillis(200), new CircuitBreaker("test", 5000, 10, 1000));
+
+        assertThatThrownBy(() -> transport.send(request(transport)).join())
+                .isInstanceOf(CompletionException.class);
+
+        assertThat(transport.getFailures()).isEqualTo(1);
+    }
+
+    /**
+     * Compare the time the exchanger thread is blocked with the blocking and async clients, upstream taking 200ms per exchange.
+     */
+    @Test
+    void blockedTime() throws IOException {
+
+        delayMillis.set(200);
+
+        int exchanges = 10;
+        var blocking = HttpClientFactory.createClient();
+
+        long start = System.nanoTime();
+
+        for (int count = 0; count < exchanges; count++) {
+
+            var post = new HttpPost(uri);
+
+            try {
+                EntityUtils.consume(blocking.execute(post).getEntity());
+            } finally {
+                post.releaseConnection();
+            }
+        }
+
+        long blockingMillis = (System.nanoTime() - start) / 1_000_000;
+
+        var transport = new AsyncTransport(null, null, exchanges, Duration.ofSeconds(5), new CircuitBreaker("test", 5000, 10, 1000));
+        List<CompletableFuture<HttpResponse<String>>> futures = new ArrayList<>();
+
+        start = System.nanoTime();
+
+        for (int count = 0; count < exchanges; count++) {
+            futures.add(transport.send(request(transport)));
+        }
+
+        long asyncBlockedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+
+        long asyncMillis = (System.nanoTime() - start) / 1_000_000;
+
+        logger.info("{} exchanges: blocking {}ms; async: exchanger blocked for {}ms, all done in {}ms, latency p50={}ms p90={}ms p99={}ms",
+                exchanges, blockingMillis, asyncBlockedMillis, asyncMillis,
+                transport.getLatency().getPercentileMillis(50),
+                transport.getLatency().getPercentileMillis(90),
+                transport.getLatency().getPercentileMillis(99));
+
+        assertThat(blockingMillis).isGreaterThanOrEqualTo(exchanges * 200L);
+        assertThat(futures).allSatisfy(f -> assertThat(f.join().statusCode()).isEqualTo(200));
+    }
+
+    private HttpRequest request(AsyncTransport transport) {
+        return transport.newRequest(uri).POST(HttpRequest.BodyPublishers.ofString("[]")).build();
+    }
+}
@@ -0,0 +1,138 @@
+package net.sf.dz3.view.http.v2;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import net.sf.dz3.device.model.HvacMode;
+import net.sf.dz3.device.model.ZoneState;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SnapshotEncoderTest {
+
+    private final Logger logger = LogManager.getLogger(getClass());
+    private final Gson gson = new Gson();
+
+    @Test
+    void full() throws IOException {
+
+        var encoder = new SnapshotEncoder(gson, false, 1);
+        var buffer = List.of(snapshot(1000, "zone", 20, null), snapshot(2000, "zone", 20, null));
+
+        var payload = encoder.encode(buffer);
+        var decoded = decode(payload);
+
+        assertThat(payload.full).isTrue();
+        assertThat(payload.compressedBytes).isEqualTo(payload.content.length);
+        assertThat(decoded.toString()).isEqualTo(gson.toJson(buffer));
+    }
+
+    @Test
+    void delta() throws IOException {
+
+        var encoder = new SnapshotEncoder(gson, true, 100);
+
+        // First exchange has no baseline, must be sent in full
+        var first = decode(encoder.encode(List.of(snapshot(1000, "zone", 20, "oops"))));
+
+        assertThat(first.get(0).getAsJsonObject().has("setpointTemperature")).isTrue();
+
+        encoder.acknowledge();
+
+        var second = decode(encoder.encode(List.of(
+                snapshot(2000, "zone", 20, "oops"),
+                snapshot(3000, "zone", 21, null),
+                snapshot(3000, "other", 22, null))));
+
+        JsonObject unchanged = second.get(0).getAsJsonObject();
+
+        assertThat(unchanged.keySet()).containsExactlyInAnyOrder("name", "timestamp");
+
+        JsonObject changed = second.get(1).getAsJsonObject();
+
+        assertThat(changed.keySet()).containsExactlyInAnyOrder("name", "timestamp", "currentTemperature", "setpointTemperature", "error");
+        assertThat(changed.get("setpointTemperature").getAsDouble()).isEqualTo(21);
+        assertThat(changed.get("error").isJsonNull()).isTrue();
+
+        // No baseline for this one
+        assertThat(second.get(2).getAsJsonObject().has("mode")).isTrue();
+
+        // Not acknowledged, the baseline must still be the first exchange
+        var third = decode(encoder.encode(List.of(snapshot(4000, "zone", 20, "oops"))));
+
+        assertThat(third.get(0).getAsJsonObject().keySet()).containsExactlyInAnyOrder("name", "timestamp");
+    }
+
+    @Test
+    void periodicFull() throws IOException {
+
+        var encoder = new SnapshotEncoder(gson, true, 2);
+
+        assertThat(encoder.encode(List.of(snapshot(1000, "zone", 20, null))).full).isTrue();
+        encoder.acknowledge();
+
+        assertThat(encoder.encode(List.of(snapshot(2000, "zone", 20, null))).full).isFalse();
+        encoder.acknowledge();
+
+        var payload = encoder.encode(List.of(snapshot(3000, "zone", 20, null)));
+
+        assertThat(payload.full).isTrue();
+        assertThat(decode(payload).get(0).getAsJsonObject().has("mode")).isTrue();
+    }
+
+    /**
+     * Compare payload sizes for a typical buffer: 10 zones, 10 seconds, a sample every second.
+     */
+    @Test
+    void size() throws IOException {
+
+        List<ZoneSnapshot> buffer = new ArrayList<>();
+
+        for (int second = 0; second < 10; second++) {
+            for (int zone = 0; zone < 10; zone++) {
+                buffer.add(snapshot(second * 1000L, "zone" + zone, 20 + zone, null));
+            }
+        }
+
+        String query = gson.toJson(buffer);
+
+        var full = new SnapshotEncoder(gson, false, 1).encode(buffer);
+        var deltaEncoder = new SnapshotEncoder(gson, true, 100);
+
+        deltaEncoder.encode(buffer);
+        deltaEncoder.acknowledge();
+
+        var delta = deltaEncoder.encode(buffer);
+
+        logger.info("query parameter: {} bytes; body: {} bytes, {} gzipped in {}us; delta: {} bytes, {} gzipped in {}us",
+                query.length(),
+                full.rawBytes, full.compressedBytes, full.serializationNanos / 1000,
+                delta.rawBytes, delta.compressedBytes, delta.serializationNanos / 1000);
+
+        assertThat(full.compressedBytes).isLessThan(full.rawBytes);
+        assertThat(delta.compressedBytes).isLessThan(full.compressedBytes);
+    }
+
+    private ZoneSnapshot snapshot(long timestamp, String name, double setpoint, String error) {
+        return new ZoneSnapshot(timestamp, name, HvacMode.COOLING, ZoneState.HAPPY,
+                -0.5, setpoint - 0.25, setpoint, true, false, true, "period", 0, false, false, error);
+    }
+
+    private JsonArray decode(SnapshotEncoder.Payload payload) throws IOException {
+
+        try (var reader = new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(payload.content)), StandardCharsets.UTF_8)) {
+            return gson.fromJson(reader, JsonArray.class);
+        }
+    }
+}
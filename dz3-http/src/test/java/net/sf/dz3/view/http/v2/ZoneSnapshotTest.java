@@ -0,0 +1,229 @@
+package net.sf.dz3.view.http.v2;
+
+import net.sf.dz3.device.model.HvacMode;
+import net.sf.dz3.device.model.ZoneState;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ZoneSnapshotTest {
+
+    private final Logger logger = LogManager.getLogger(getClass());
+
+    private static final long[] TIMESTAMPS = { 999, 1000, 1001, 10000, -5, -50, 1623000000000L, 1623000000001L, 16230000000000L };
+    private static final String[] NAMES = { "zone", "zone1", "zone:", "zone: ", "zone: x", "a", "", null };
+    private static final double[] VALUES = { 0d, -0d, 0.5, -0.5, 20, 20.25, 100, Double.NaN };
+    private static final String[] PERIODS = { null, "day", "night", "day, x" };
+    private static final String[] ERRORS = { null, "", "oops" };
+
+    private static final int BENCHMARK_SNAPSHOTS = 10_000;
+
+    /**
+     * Make sure the field based implementation agrees with the original string based one on random pairs,
+     * with values picked to make collisions and prefix cases likely.
+     */
+    @Test
+    void sameAsLegacy() {
+
+        Random rg = new Random(42);
+
+        for (int count = 0; count < 200_000; count++) {
+
+            Object[] args1 = randomArgs(rg);
+            Object[] args2 = rg.nextBoolean() ? mutate(rg, args1) : randomArgs(rg);
+
+            ZoneSnapshot a = create(args1, false);
+            ZoneSnapshot b = create(args2, false);
+            ZoneSnapshot legacyA = create(args1, true);
+            ZoneSnapshot legacyB = create(args2, true);
+
+            assertThat(Integer.signum(a.compareTo(b))).as("%s vs %s", legacyA, legacyB).isEqualTo(Integer.signum(legacyA.compareTo(legacyB)));
+            assertThat(a.equals(b)).as("%s vs %s", legacyA, legacyB).isEqualTo(legacyA.equals(legacyB));
+
+            if (a.equals(b)) {
+                assertThat(a.hashCode()).isEqualTo(b.hashCode());
+            }
+        }
+    }
+
+    /**
+     * Compare the original string based implementation with the field based one,
+     * on sorted set, hashed set, and priority queue operations.
+     *
+     * The sample is kept small, the legacy implementation is slow enough to dominate the suite otherwise.
+     * Timing depends on the machine and its load, so the result is reported, not asserted.
+     */
+    @Test
+    void benchmark() {
+
+        Random rg = new Random(42);
+        List<Object[]> args = new ArrayList<>();
+
+        for (int count = 0; count < BENCHMARK_SNAPSHOTS; count++) {
+
+            // Realistic load: a handful of zones reporting every second
+            args.add(new Object[] {
+                    1623000000000L + count / 10 * 1000L, "zone" + (count % 10),
+                    HvacMode.COOLING, ZoneState.HAPPY,
+                    rg.nextDouble(), 20 + rg.nextDouble(), 22.5, true, false, true, "day", 0d, false, false, null });
+        }
+
+        List<ZoneSnapshot> legacy = new ArrayList<>();
+        List<ZoneSnapshot> current = new ArrayList<>();
+
+        for (Object[] a : args) {
+            legacy.add(create(a, true));
+            current.add(create(a, false));
+        }
+
+        // Warm up
+        run(legacy);
+        run(current);
+
+        long[] legacyNanos = run(legacy);
+        long[] currentNanos = run(current);
+
+        logger.info("{} snapshots, legacy/current: TreeSet {}/{}ms, HashSet {}/{}ms, PriorityQueue {}/{}ms",
+                BENCHMARK_SNAPSHOTS,
+                legacyNanos[0] / 1_000_000, currentNanos[0] / 1_000_000,
+                legacyNanos[1] / 1_000_000, currentNanos[1] / 1_000_000,
+                legacyNanos[2] / 1_000_000, currentNanos[2] / 1_000_000);
+    }
+
+    private long[] run(List<ZoneSnapshot> source) {
+
+        return new long[] {
+                time(source, TreeSet::new),
+                time(source, HashSet::new),
+                time(source, PriorityQueue::new)
+        };
+    }
+
+    private long time(List<ZoneSnapshot> source, Supplier<Collection<ZoneSnapshot>> factory) {
+
+        long start = System.nanoTime();
+        Collection<ZoneSnapshot> target = factory.get();
+
+        target.addAll(source);
+
+        if (target instanceof PriorityQueue) {
+
+            while (!target.isEmpty()) {
+                ((PriorityQueue<ZoneSnapshot>) target).poll();
+            }
+
+        } else {
+
+            for (ZoneSnapshot s : source) {
+                target.contains(s);
+            }
+        }
+
+        return System.nanoTime() - start;
+    }
+
+    private Object[] randomArgs(Random rg) {
+
+        return new Object[] {
+                TIMESTAMPS[rg.nextInt(TIMESTAMPS.length)],
+                NAMES[rg.nextInt(NAMES.length)],
+                HvacMode.values()[rg.nextInt(HvacMode.values().length)],
+                ZoneState.values()[rg.nextInt(ZoneState.values().length)],
+                VALUES[rg.nextInt(VALUES.length)],
+                VALUES[rg.nextInt(VALUES.length)],
+                VALUES[rg.nextInt(VALUES.length)],
+                rg.nextBoolean(),
+                rg.nextBoolean(),
+                rg.nextBoolean(),
+                PERIODS[rg.nextInt(PERIODS.length)],
+                VALUES[rg.nextInt(VALUES.length)],
+                rg.nextBoolean(),
+                rg.nextBoolean(),
+                ERRORS[rg.nextInt(ERRORS.length)]
+        };
+    }
+
+    /**
+     * @return Copy of the source with one field (or none) replaced with a random value.
+     */
+    private Object[] mutate(Random rg, Object[] source) {
+
+        Object[] result = source.clone();
+        Object[] random = randomArgs(rg);
+        int offset = rg.nextInt(source.length + 1);
+
+        if (offset < source.length) {
+            result[offset] = random[offset];
+        }
+
+        return result;
+    }
+
+    private ZoneSnapshot create(Object[] a, boolean legacy) {
+
+        if (legacy) {
+            return new LegacySnapshot(
+                    (long) a[0], (String) a[1], (HvacMode) a[2], (ZoneState) a[3],
+                    (double) a[4], (double) a[5], (double) a[6],
+                    (boolean) a[7], (boolean) a[8], (boolean) a[9],
+                    (String) a[10], (double) a[11], (boolean) a[12], (boolean) a[13], (String) a[14]);
+        }
+
+        return new ZoneSnapshot(
+                (long) a[0], (String) a[1], (HvacMode) a[2], (ZoneState) a[3],
+                (double) a[4], (double) a[5], (double) a[6],
+                (boolean) a[7], (boolean) a[8], (boolean) a[9],
+                (String) a[10], (double) a[11], (boolean) a[12], (boolean) a[13], (String) a[14]);
+    }
+
+    /**
+     * The original string based implementation.
+     */
+    private static class LegacySnapshot extends ZoneSnapshot {
+
+        LegacySnapshot(long timestamp, String name, HvacMode mode, ZoneState state,
+                double signal, double currentTemperature, double setpointTemperature,
+                boolean enabled, boolean onHold, boolean voting,
+                String periodName, double deviationSetpoint, boolean deviationEnabled, boolean deviationVoting,
+                String error) {
+
+            super(timestamp, name, mode, state, signal, currentTemperature, setpointTemperature,
+                    enabled, onHold, voting, periodName, deviationSetpoint, deviationEnabled, deviationVoting, error);
+        }
+
+        @Override
+        public int compareTo(ZoneSnapshot o) {
+
+            String us = Long.toString(timestamp) + "." + this;
+            String them = Long.toString(o.timestamp) + "." + o;
+
+            return us.compareTo(them);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+
+            if (o == null) {
+                return false;
+            }
+
+            return toString().equals(o.toString());
+        }
+
+        @Override
+        public int hashCode() {
+            return toString().hashCode();
+        }
+    }
+}
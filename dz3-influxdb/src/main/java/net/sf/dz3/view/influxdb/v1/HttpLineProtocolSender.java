@@ -0,0 +1,140 @@
+package net.sf.dz3.view.influxdb.v1;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Line protocol sender posting batched bodies to the InfluxDB 1.x HTTP API.
+ *
+ * Timestamps are sent with millisecond precision, that's all the samples have anyway.
+ * Batches that failed to go through are kept and retried on the next flush; samples arriving
+ * while there's too much of them are dropped.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+class HttpLineProtocolSender extends LineProtocolSender {
+
+    /**
+     * Default batch size limit, bytes.
+     */
+    public static final int BATCH_BYTES = 64 * 1024;
+
+    /**
+     * Samples arriving when this much is buffered after failures are dropped, bytes.
+     */
+    public static final int RETAIN_BYTES = 4 * 1024 * 1024;
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    private final HttpClient client = HttpClient.newBuilder().connectTimeout(TIMEOUT).build();
+    private final URI baseURI;
+    private final URI writeURI;
+    private final String authorization;
+
+    /**
+     * Thrown when the server refused the request for a reason that retrying won't fix.
+     */
+    private static class RejectedException extends IOException {
+
+        RejectedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Create an instance.
+     *
+     * @param instance Value for the {@code instance} tag.
+     * @param dbURL InfluxDB URL, like {@code http://localhost:8086}.
+     * @param dbName Database name.
+     * @param username InfluxDB username. Use {@code null} for unauthenticated access.
+     * @param password InfluxDB password. Use {@code null} for unauthenticated access.
+     */
+    HttpLineProtocolSender(String instance, String dbURL, String dbName, String username, String password) {
+        this(instance, dbURL, dbName, username, password, BATCH_BYTES);
+    }
+
+    HttpLineProtocolSender(String instance, String dbURL, String dbName, String username, String password, int batchBytes) {
+
+        super(instance, TimeUnit.MILLISECONDS, batchBytes, Math.max(batchBytes, RETAIN_BYTES));
+
+        baseURI = URI.create(dbURL.endsWith("/") ? dbURL : dbURL + "/");
+        writeURI = baseURI.resolve("write?db=" + URLEncoder.encode(dbName, StandardCharsets.UTF_8) + "&precision=ms");
+
+        authorization = username == null || "".equals(username) || password == null || "".equals(password)
+                ? null
+                : "Basic " + Base64.getEncoder().encodeToString((username + ":" + password).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Create the database, if it doesn't exist yet.
+     *
+     * @param dbName Database name.
+     *
+     * @throws IOException if things go sour.
+     */
+    void createDatabase(String dbName) throws IOException {
+
+        URI uri = baseURI.resolve("query?q=" + URLEncoder.encode("CREATE DATABASE \"" + dbName + "\"", StandardCharsets.UTF_8));
+
+        execute(newRequest(uri).POST(HttpRequest.BodyPublishers.noBody()).build());
+    }
+
+    @Override
+    protected void send(byte[] buffer, int length) throws IOException {
+        execute(newRequest(writeURI).POST(HttpRequest.BodyPublishers.ofByteArray(buffer, 0, length)).build());
+    }
+
+    private HttpRequest.Builder newRequest(URI uri) {
+
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri).timeout(TIMEOUT);
+
+        if (authorization != null) {
+            builder.header("Authorization", authorization);
+        }
+
+        return builder;
+    }
+
+    private void execute(HttpRequest request) throws IOException {
+
+        try {
+
+            HttpResponse<String> rsp = client.send(request, HttpResponse.BodyHandlers.ofString());
+
+            int status = rsp.statusCode();
+
+            if (status / 100 == 4) {
+                // Malformed data, missing database, bad credentials - all need human attention
+                throw new RejectedException(request.uri().getPath() + ": HTTP " + status + ": " + rsp.body());
+            }
+
+            if (status / 100 != 2) {
+                throw new IOException(request.uri().getPath() + ": HTTP " + status + ": " + rsp.body());
+            }
+
+        } catch (InterruptedException ex) {
+
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted", ex);
+        }
+    }
+
+    @Override
+    protected boolean retain(IOException cause) {
+        return !(cause instanceof RejectedException);
+    }
+
+    @Override
+    public void close() {
+        flush();
+    }
+}
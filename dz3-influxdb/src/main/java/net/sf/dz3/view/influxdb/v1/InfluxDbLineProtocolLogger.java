@@ -0,0 +1,218 @@
+package net.sf.dz3.view.influxdb.v1;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.ThreadContext;
+
+import com.homeclimatecontrol.jukebox.datastream.logger.impl.AbstractLogger;
+import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSample;
+import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSource;
+import com.homeclimatecontrol.jukebox.jmx.JmxAttribute;
+import com.homeclimatecontrol.jukebox.jmx.JmxAware;
+import com.homeclimatecontrol.jukebox.jmx.JmxDescriptor;
+
+/**
+ * InfluxDB logger writing line protocol directly, without {@code influxdb-java}.
+ *
+ * Drop-in replacement for {@link InfluxDbLogger}, producing the same points. The transport is selected
+ * by the URL scheme: {@code udp://host:8089} sends fire-and-forget datagrams (the database is configured
+ * on the InfluxDB UDP listener), {@code http://host:8086} posts batched bodies to the HTTP API.
+ * Batches are sent once a second from a dedicated thread, the threads producing the samples never wait on the network.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+public class InfluxDbLineProtocolLogger<E extends Number> extends AbstractLogger<E> implements JmxAware {
+
+    /**
+     * How long to wait for the last scheduled flush to complete on shutdown, seconds.
+     */
+    private static final long TIMEOUT_SECONDS = 15;
+
+    private final String dbName = "dz";
+    private final String instance;
+    private final String dbURL;
+    private final String username;
+    private final String password;
+
+    private LineProtocolSender sender;
+    private ScheduledExecutorService flusher;
+
+    /**
+     * Create an unauthenticated instance.
+     *
+     * @param producers Data producers.
+     * @param instance Unique identifier for an instance this logger represents. This value would usually correspond
+     * to a host a DZ instance runs on.
+     * @param dbURL InfluxDB URL to send data to, {@code udp://} or {@code http://}.
+     */
+    public InfluxDbLineProtocolLogger(
+            Set<DataSource<E>> producers,
+            String instance,
+            String dbURL) {
+        this(producers, instance, dbURL, null, null);
+    }
+
+    /**
+     * Create an instance.
+     *
+     * @param producers Data producers.
+     * @param instance Unique identifier for an instance this logger represents. This value would usually correspond
+     * to a host a DZ instance runs on.
+     * @param dbURL InfluxDB URL to send data to, {@code udp://} or {@code http://}.
+     * @param username InfluxDB username. Use {@code null} for unauthenticated access. Ignored for UDP.
+     * @param password InfluxDB password. Use {@code null} for unauthenticated access. Ignored for UDP.
+     */
+    public InfluxDbLineProtocolLogger(
+            Set<DataSource<E>> producers,
+            String instance,
+            String dbURL,
+            String username,
+            String password) {
+        super(producers);
+
+        this.instance = instance;
+        this.dbURL = dbURL;
+        this.username = username;
+        this.password = password;
+    }
+
+    @Override
+    protected void consume(String signature, DataSample<E> value) {
+
+        LineProtocolSender sender;
+
+        synchronized (this) {
+            sender = this.sender;
+        }
+
+        if (sender == null) {
+            logger.warn("not started yet, sample dropped: {}", value);
+            return;
+        }
+
+        sender.write(value);
+    }
+
+    @Override
+    protected void createChannel(String name, String signature, long timestamp) throws IOException {
+        // This means nothing for this implementation, other than no more incessant complaining
+        signature2name.put(signature, name);
+    }
+
+    @Override
+    protected void startup() throws Throwable {
+
+        ThreadContext.push("startup");
+
+        try {
+
+            URI uri = URI.create(dbURL);
+            LineProtocolSender sender;
+
+            if ("udp".equals(uri.getScheme())) {
+
+                sender = new UdpLineProtocolSender(instance, uri.getHost(), uri.getPort());
+
+            } else {
+
+                if (username == null || "".equals(username) || password == null || "".equals(password)) {
+                    logger.warn("one of (username, password) is null or missing, connecting unauthenticated - THIS IS A BAD IDEA");
+                    logger.warn("see https://docs.influxdata.com/influxdb/v1.7/administration/authentication_and_authorization/");
+                }
+
+                HttpLineProtocolSender http = new HttpLineProtocolSender(instance, dbURL, dbName, username, password);
+
+                http.createDatabase(dbName);
+                sender = http;
+            }
+
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+
+                Thread t = new Thread(r, "influxdb-flush");
+
+                t.setDaemon(true);
+                return t;
+            });
+
+            flusher.scheduleWithFixedDelay(sender::flush, 1, 1, TimeUnit.SECONDS);
+
+            synchronized (this) {
+                this.sender = sender;
+            }
+
+            logger.info("sending line protocol to {}", dbURL);
+
+        } finally {
+            ThreadContext.pop();
+        }
+    }
+
+    @Override
+    protected void shutdown() throws Throwable {
+
+        ThreadContext.push("shutdown");
+
+        try {
+
+            flusher.shutdown();
+
+            // A flush may be stuck in an HTTP request, let it finish before the final one
+            if (!flusher.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.warn("flusher still busy after {}s, closing anyway", TIMEOUT_SECONDS);
+            }
+
+            sender.close();
+
+        } finally {
+            ThreadContext.pop();
+        }
+    }
+
+    @Override
+    public JmxDescriptor getJmxDescriptor() {
+
+        return new JmxDescriptor(
+                "dz",
+                getClass().getSimpleName(),
+                Integer.toHexString(hashCode()),
+                "InfluxDB line protocol logger, " + dbURL);
+    }
+
+    @JmxAttribute(description = "Points sent")
+    public long getPoints() {
+        return sender == null ? 0 : sender.getPoints();
+    }
+
+    @JmxAttribute(description = "Bytes sent")
+    public long getBytes() {
+        return sender == null ? 0 : sender.getBytes();
+    }
+
+    @JmxAttribute(description = "Average point size, bytes")
+    public double getBytesPerPoint() {
+
+        long points = getPoints();
+
+        return points == 0 ? 0 : (double) getBytes() / points;
+    }
+
+    @JmxAttribute(description = "Batches sent")
+    public long getBatches() {
+        return sender == null ? 0 : sender.getBatches();
+    }
+
+    @JmxAttribute(description = "Failed attempts to send a batch")
+    public long getFailures() {
+        return sender == null ? 0 : sender.getFailures();
+    }
+
+    @JmxAttribute(description = "Points dropped")
+    public long getDropped() {
+        return sender == null ? 0 : sender.getDropped();
+    }
+}
@@ -0,0 +1,318 @@
+package net.sf.dz3.view.influxdb.v1;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSample;
+
+/**
+ * Writes samples as <a href="https://docs.influxdata.com/influxdb/v1.8/write_protocols/line_protocol_reference/">InfluxDB line protocol</a>
+ * straight into a reusable byte buffer.
+ *
+ * The measurement and tag part of the line ({@code sensor,instance=...,signature=...,source=...}) is escaped and encoded
+ * once per signature and cached. Field formatting and types follow what {@code influxdb-java} {@code Point} produces
+ * ({@code Double}, {@code Float} and {@code BigDecimal} are floats, all other numbers are integers, tags are sorted by key),
+ * so points written by either path land in the same series with the same field types.
+ *
+ * Not thread safe, the caller is expected to guard it.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+final class LineProtocolEncoder {
+
+    private static final byte[] SAMPLE = " sample=".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ERROR = " error=\"".getBytes(StandardCharsets.US_ASCII);
+
+    private final String measurement;
+    private final String instance;
+    private final TimeUnit precision;
+
+    /**
+     * Signature to encoded measurement and tags mapping.
+     */
+    private final Map<String, Prefix> signature2prefix = new HashMap<>();
+
+    private byte[] buffer = new byte[4096];
+    private int size = 0;
+
+    private static class Prefix {
+
+        final String sourceName;
+        final byte[] bytes;
+
+        Prefix(String sourceName, byte[] bytes) {
+            this.sourceName = sourceName;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Create an instance.
+     *
+     * @param measurement Measurement name.
+     * @param instance Value for the {@code instance} tag.
+     * @param precision Timestamp precision the receiving end expects.
+     */
+    LineProtocolEncoder(String measurement, String instance, TimeUnit precision) {
+
+        this.measurement = measurement;
+        this.instance = instance;
+        this.precision = precision;
+    }
+
+    /**
+     * Append a line representing the sample.
+     *
+     * @param sample Sample to append.
+     *
+     * @return {@code false} if the sample can't be represented in line protocol (not a number, or infinity)
+     * and nothing was appended.
+     */
+    boolean append(DataSample<? extends Number> sample) {
+
+        if (!sample.isError() && !isFinite(sample.sample)) {
+            return false;
+        }
+
+        if (size > 0) {
+            put((byte) '\n');
+        }
+
+        put(getPrefix(sample));
+
+        if (sample.isError()) {
+
+            put(ERROR);
+            fieldString(sample.error.toString());
+            put((byte) '"');
+
+        } else {
+
+            put(SAMPLE);
+            number(sample.sample);
+        }
+
+        put((byte) ' ');
+        digits(precision.convert(sample.timestamp, TimeUnit.MILLISECONDS));
+
+        return true;
+    }
+
+    private byte[] getPrefix(DataSample<? extends Number> sample) {
+
+        Prefix prefix = signature2prefix.get(sample.signature);
+
+        if (prefix == null || !prefix.sourceName.equals(sample.sourceName)) {
+
+            StringBuilder sb = new StringBuilder();
+
+            escape(sb, measurement, false);
+            tag(sb, "instance", instance);
+            tag(sb, "signature", sample.signature);
+            tag(sb, "source", sample.sourceName);
+
+            prefix = new Prefix(sample.sourceName, sb.toString().getBytes(StandardCharsets.UTF_8));
+            signature2prefix.put(sample.signature, prefix);
+        }
+
+        return prefix.bytes;
+    }
+
+    private static void tag(StringBuilder sb, String key, String value) {
+
+        // Empty tag values are not allowed by the protocol
+        if (value == null || value.isEmpty()) {
+            return;
+        }
+
+        sb.append(',');
+        escape(sb, key, true);
+        sb.append('=');
+        escape(sb, value, true);
+    }
+
+    /**
+     * Escape a measurement name (commas and spaces), or a tag key or value (commas, spaces, and equal signs).
+     */
+    private static void escape(StringBuilder sb, String value, boolean tag) {
+
+        for (int offset = 0; offset < value.length(); offset++) {
+
+            char c = value.charAt(offset);
+
+            if (c == ',' || c == ' ' || (tag && c == '=')) {
+                sb.append('\\');
+            }
+
+            sb.append(c);
+        }
+    }
+
+    private static boolean isFinite(Number value) {
+
+        if (value instanceof Double || value instanceof Float) {
+            return Double.isFinite(value.doubleValue());
+        }
+
+        return value != null;
+    }
+
+    private void number(Number value) {
+
+        if (value instanceof Double || value instanceof Float) {
+
+            double d = value.doubleValue();
+
+            if (d == Math.rint(d) && Math.abs(d) < 1e15) {
+
+                // The most common case, and there's no fractional part to worry about
+                digits((long) d);
+
+            } else {
+
+                String s = Double.toString(d);
+
+                if (s.indexOf('E') >= 0) {
+                    s = new BigDecimal(s).stripTrailingZeros().toPlainString();
+                }
+
+                ascii(s);
+            }
+
+        } else if (value instanceof BigDecimal) {
+
+            ascii(((BigDecimal) value).stripTrailingZeros().toPlainString());
+
+        } else {
+
+            if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                digits(value.longValue());
+            } else {
+                ascii(value.toString());
+            }
+
+            put((byte) 'i');
+        }
+    }
+
+    /**
+     * Write a string field value, escaping backslashes and double quotes.
+     */
+    private void fieldString(String value) {
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+        ensure(bytes.length * 2);
+
+        for (byte b : bytes) {
+
+            if (b == '"' || b == '\\') {
+                buffer[size++] = '\\';
+            }
+
+            buffer[size++] = b;
+        }
+    }
+
+    private void digits(long value) {
+
+        if (value == Long.MIN_VALUE) {
+            ascii(Long.toString(value));
+            return;
+        }
+
+        if (value < 0) {
+            put((byte) '-');
+            value = -value;
+        }
+
+        int length = 1;
+
+        for (long limit = 10; length < 19 && value >= limit; limit *= 10) {
+            length++;
+        }
+
+        ensure(length);
+
+        for (int offset = size + length - 1; offset >= size; offset--) {
+            buffer[offset] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+
+        size += length;
+    }
+
+    private void ascii(String value) {
+
+        ensure(value.length());
+
+        for (int offset = 0; offset < value.length(); offset++) {
+            buffer[size++] = (byte) value.charAt(offset);
+        }
+    }
+
+    private void put(byte[] value) {
+
+        ensure(value.length);
+        System.arraycopy(value, 0, buffer, size, value.length);
+        size += value.length;
+    }
+
+    private void put(byte value) {
+
+        ensure(1);
+        buffer[size++] = value;
+    }
+
+    private void ensure(int extra) {
+
+        if (size + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+        }
+    }
+
+    /**
+     * @return The buffer. Valid content is between 0 and {@link #size()}.
+     */
+    byte[] buffer() {
+        return buffer;
+    }
+
+    /**
+     * @return Number of bytes written.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Discard the first {@code length} bytes, and the line separator that follows them, if any,
+     * and move the rest to the start of the buffer.
+     *
+     * @param length Number of bytes to discard, must be at a line boundary.
+     */
+    void discard(int length) {
+
+        if (length >= size) {
+            size = 0;
+            return;
+        }
+
+        // Skip the separator
+        int from = buffer[length] == '\n' ? length + 1 : length;
+
+        System.arraycopy(buffer, from, buffer, 0, size - from);
+        size -= from;
+    }
+
+    /**
+     * @return Number of signatures with cached prefixes.
+     */
+    int getPrefixCount() {
+        return signature2prefix.size();
+    }
+}
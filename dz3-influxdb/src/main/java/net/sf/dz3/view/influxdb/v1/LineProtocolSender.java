@@ -0,0 +1,262 @@
+package net.sf.dz3.view.influxdb.v1;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSample;
+
+/**
+ * Batches samples as InfluxDB line protocol and ships the batches over the wire.
+ *
+ * Samples are {@link #write(DataSample) written} into the {@link LineProtocolEncoder encoder} buffer
+ * and cut into batches no bigger than the size limit. Nothing is sent until {@link #flush()} is called,
+ * so the threads writing samples never wait on the network; the network I/O is done outside of the lock,
+ * and samples keep being buffered while a batch is on the wire.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+abstract class LineProtocolSender implements Closeable {
+
+    protected final Logger logger = LogManager.getLogger(getClass());
+
+    private final LineProtocolEncoder encoder;
+
+    /**
+     * Batch size limit, bytes.
+     */
+    private final int batchBytes;
+
+    /**
+     * Buffer size limit, bytes. Samples arriving when the buffer is this full are dropped.
+     */
+    private final int bufferBytes;
+
+    /**
+     * Batches in the buffer, oldest first, as {@code {length, count}}. The length doesn't include the line separator
+     * between the batches. The last batch keeps growing until it reaches {@link #batchBytes}.
+     */
+    private final Deque<int[]> queue = new ArrayDeque<>();
+
+    /**
+     * Whether the first batch in the {@link #queue} is being sent, and must not grow.
+     */
+    private boolean sending = false;
+
+    /**
+     * Whether samples are being dropped because the buffer is full. Only used to avoid logging every one of them.
+     */
+    private boolean overflow = false;
+
+    /**
+     * Makes sure there's just one {@link #flush()} at a time.
+     */
+    private final Object flushLock = new Object();
+
+    private long points = 0;
+    private long bytes = 0;
+    private long batches = 0;
+    private long failures = 0;
+    private long dropped = 0;
+
+    /**
+     * Create an instance.
+     *
+     * @param instance Value for the {@code instance} tag.
+     * @param precision Timestamp precision the receiving end expects.
+     * @param batchBytes Batch size limit, bytes.
+     * @param bufferBytes Buffer size limit, bytes.
+     */
+    protected LineProtocolSender(String instance, TimeUnit precision, int batchBytes, int bufferBytes) {
+
+        if (batchBytes < 1) {
+            throw new IllegalArgumentException("batchBytes must be positive (" + batchBytes + " given)");
+        }
+
+        if (bufferBytes < batchBytes) {
+            throw new IllegalArgumentException("bufferBytes must be at least batchBytes (" + bufferBytes + " < " + batchBytes + " given)");
+        }
+
+        this.encoder = new LineProtocolEncoder("sensor", instance, precision);
+        this.batchBytes = batchBytes;
+        this.bufferBytes = bufferBytes;
+    }
+
+    /**
+     * Add the sample to the buffer. Never blocks on the network.
+     *
+     * @param sample Sample to write.
+     */
+    public synchronized void write(DataSample<? extends Number> sample) {
+
+        if (encoder.size() >= bufferBytes) {
+
+            dropped++;
+
+            if (!overflow) {
+                overflow = true;
+                logger.error("buffer full ({} bytes), dropping samples until it drains", encoder.size());
+            }
+
+            return;
+        }
+
+        int mark = encoder.size();
+
+        if (!encoder.append(sample)) {
+
+            dropped++;
+            logger.warn("can't be represented in line protocol, dropped: {}", sample);
+
+            return;
+        }
+
+        int length = encoder.size() - (mark > 0 ? mark + 1 : mark);
+        int[] last = queue.peekLast();
+
+        if (last != null && !(sending && queue.size() == 1) && last[0] + 1 + length <= batchBytes) {
+
+            last[0] += 1 + length;
+            last[1]++;
+
+        } else {
+
+            // A single line longer than the limit still makes a batch of its own
+            queue.add(new int[] { length, 1 });
+        }
+    }
+
+    /**
+     * Send everything in the buffer, batch by batch.
+     *
+     * Stops at the first batch that failed and is worth {@link #retain(IOException) retaining}, the next call will retry it.
+     */
+    public void flush() {
+
+        synchronized (flushLock) {
+
+            while (true) {
+
+                byte[] buffer;
+                int length;
+                int count;
+
+                synchronized (this) {
+
+                    int[] first = queue.peekFirst();
+
+                    if (first == null) {
+                        return;
+                    }
+
+                    // The content up to the end of this batch will not change until it is discarded below,
+                    // and if the buffer is reallocated by write(), this copy stays intact
+                    buffer = encoder.buffer();
+                    length = first[0];
+                    count = first[1];
+                    sending = true;
+                }
+
+                IOException failure = null;
+
+                try {
+                    send(buffer, length);
+                } catch (IOException ex) {
+                    failure = ex;
+                }
+
+                synchronized (this) {
+
+                    sending = false;
+
+                    if (failure == null) {
+
+                        points += count;
+                        bytes += length;
+                        batches++;
+
+                    } else {
+
+                        failures++;
+
+                        if (retain(failure)) {
+
+                            logger.warn("can't send {} points ({} bytes), will retry", count, length, failure);
+                            return;
+                        }
+
+                        dropped += count;
+                        logger.error("can't send {} points ({} bytes), dropped", count, length, failure);
+                    }
+
+                    queue.removeFirst();
+                    encoder.discard(length);
+
+                    if (overflow && encoder.size() < bufferBytes) {
+                        overflow = false;
+                        logger.info("buffer drained to {} bytes, accepting samples again", encoder.size());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Send the batch.
+     *
+     * @param buffer Buffer containing the batch.
+     * @param length Batch length.
+     *
+     * @throws IOException if things go sour.
+     */
+    protected abstract void send(byte[] buffer, int length) throws IOException;
+
+    /**
+     * Decide whether to keep a failed batch to send it later.
+     *
+     * @param cause What went wrong.
+     *
+     * @return {@code true} if the data is worth retrying.
+     */
+    protected abstract boolean retain(IOException cause);
+
+    /**
+     * @return Number of points sent.
+     */
+    public synchronized long getPoints() {
+        return points;
+    }
+
+    /**
+     * @return Number of bytes sent.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return Number of batches (datagrams or requests) sent.
+     */
+    public synchronized long getBatches() {
+        return batches;
+    }
+
+    /**
+     * @return Number of failed attempts to send a batch.
+     */
+    public synchronized long getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return Number of points that were never sent.
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+}
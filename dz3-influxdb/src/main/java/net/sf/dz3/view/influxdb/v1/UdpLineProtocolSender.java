@@ -0,0 +1,71 @@
+package net.sf.dz3.view.influxdb.v1;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fire-and-forget line protocol sender, one datagram per batch.
+ *
+ * Meant for high rate channels where losing an occasional point is acceptable. InfluxDB UDP listener
+ * must be enabled on the receiving end, and the database is selected there, not here. The listener
+ * expects nanosecond timestamps unless configured otherwise.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+class UdpLineProtocolSender extends LineProtocolSender {
+
+    /**
+     * Default datagram payload limit, bytes. Keeps datagrams within a typical Ethernet MTU, no fragmentation.
+     */
+    public static final int DATAGRAM_BYTES = 1400;
+
+    /**
+     * Samples arriving when this much is waiting for the next flush are dropped, bytes.
+     */
+    public static final int BUFFER_BYTES = 4 * 1024 * 1024;
+
+    private final DatagramChannel channel;
+
+    /**
+     * Create an instance.
+     *
+     * @param instance Value for the {@code instance} tag.
+     * @param host Host to send datagrams to.
+     * @param port Port to send datagrams to.
+     *
+     * @throws IOException if the channel can't be opened.
+     */
+    UdpLineProtocolSender(String instance, String host, int port) throws IOException {
+        this(instance, host, port, TimeUnit.NANOSECONDS, DATAGRAM_BYTES);
+    }
+
+    UdpLineProtocolSender(String instance, String host, int port, TimeUnit precision, int datagramBytes) throws IOException {
+
+        super(instance, precision, datagramBytes, Math.max(datagramBytes, BUFFER_BYTES));
+
+        channel = DatagramChannel.open();
+        channel.connect(new InetSocketAddress(host, port));
+    }
+
+    @Override
+    protected void send(byte[] buffer, int length) throws IOException {
+        channel.write(ByteBuffer.wrap(buffer, 0, length));
+    }
+
+    @Override
+    protected boolean retain(IOException cause) {
+
+        // Failure here is local (no route, no buffer space) and unlikely to go away by the next flush
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        flush();
+        channel.close();
+    }
+}
@@ -0,0 +1,365 @@
+package net.sf.dz3.view.influxdb.v1;
+
+import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSample;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.influxdb.dto.Point;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LineProtocolSenderTest {
+
+    private final Logger logger = LogManager.getLogger(getClass());
+
+    private static final String[] NAMES = { "sensor", "with space", "with,comma", "with=equals", "back\\slash", "quo\"te", "" };
+
+    /**
+     * Make sure the encoder produces the same lines as {@code influxdb-java} does.
+     */
+    @Test
+    void sameAsPoint() {
+
+        var rg = new Random(42);
+        var encoder = new LineProtocolEncoder("sensor", "dz3 test", TimeUnit.NANOSECONDS);
+
+        for (int count = 0; count < 10_000; count++) {
+
+            var source = NAMES[rg.nextInt(NAMES.length)];
+            var signature = "signature" + NAMES[rg.nextInt(NAMES.length)];
+            var timestamp = 1623000000000L + rg.nextInt(1_000_000);
+            DataSample<? extends Number> sample;
+
+            switch (rg.nextInt(4)) {
+            case 0:
+                sample = new DataSample<>(timestamp, source, signature, (rg.nextDouble() - 0.5) * Math.pow(10, rg.nextInt(30) - 15), null);
+                break;
+            case 1:
+                sample = new DataSample<>(timestamp, source, signature, (double) rg.nextInt(100), null);
+                break;
+            case 2:
+                sample = new DataSample<>(timestamp, source, signature, rg.nextInt(), null);
+                break;
+            default:
+                sample = new DataSample<Double>(timestamp, source, signature, null, new IllegalStateException("oops, \"quoted\" \\ " + NAMES[rg.nextInt(NAMES.length)]));
+            }
+
+            var b = Point.measurement("sensor")
+                    .time(sample.timestamp, TimeUnit.MILLISECONDS)
+                    .tag("instance", "dz3 test")
+                    .tag("source", sample.sourceName)
+                    .tag("signature", sample.signature);
+
+            if (sample.isError()) {
+                b.addField("error", sample.error.toString());
+            } else {
+                b.addField("sample", sample.sample);
+            }
+
+            encoder.discard(encoder.size());
+            assertThat(encoder.append(sample)).isTrue();
+
+            assertThat(new String(encoder.buffer(), 0, encoder.size(), StandardCharsets.UTF_8)).isEqualTo(b.build().lineProtocol());
+        }
+
+        // One per signature, not one per sample
+        assertThat(encoder.getPrefixCount()).isEqualTo(NAMES.length);
+    }
+
+    @Test
+    void notFinite() {
+
+        var encoder = new LineProtocolEncoder("sensor", "dz3", TimeUnit.NANOSECONDS);
+
+        assertThat(encoder.append(new DataSample<>("source", "signature", Double.NaN, null))).isFalse();
+        assertThat(encoder.append(new DataSample<>("source", "signature", Double.NEGATIVE_INFINITY, null))).isFalse();
+        assertThat(encoder.size()).isZero();
+    }
+
+    @Test
+    void udp() throws IOException {
+
+        try (var socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+             var sender = new UdpLineProtocolSender("dz3", "127.0.0.1", socket.getLocalPort(), TimeUnit.NANOSECONDS, 200)) {
+
+            socket.setSoTimeout(1000);
+
+            for (int count = 0; count < 10; count++) {
+                sender.write(new DataSample<>(1623000000000L + count, "source", "signature", 20.5 + count, null));
+            }
+
+            sender.flush();
+
+            List<String> lines = new ArrayList<>();
+            var buffer = new byte[65536];
+
+            for (int datagrams = 0; datagrams < sender.getBatches(); datagrams++) {
+
+                var packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+
+                assertThat(packet.getLength()).isLessThanOrEqualTo(200);
+                Collections.addAll(lines, new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8).split("\n"));
+            }
+
+            assertThat(sender.getBatches()).isGreaterThan(1);
+            assertThat(sender.getPoints()).isEqualTo(10);
+            assertThat(lines).hasSize(10);
+            assertThat(lines.get(0)).isEqualTo("sensor,instance=dz3,signature=signature,source=source sample=20.5 1623000000000000000");
+            assertThat(lines.get(9)).isEqualTo("sensor,instance=dz3,signature=signature,source=source sample=29.5 1623000000009000000");
+        }
+    }
+
+    @Test
+    void http() throws IOException {
+
+        var server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        var status = new AtomicInteger(204);
+        List<String> queries = Collections.synchronizedList(new ArrayList<>());
+        List<String> bodies = Collections.synchronizedList(new ArrayList<>());
+
+        server.createContext("/", exchange -> {
+
+            queries.add(exchange.getRequestURI().getPath() + "?" + exchange.getRequestURI().getQuery());
+            bodies.add(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+
+            exchange.sendResponseHeaders(status.get(), -1);
+            exchange.close();
+        });
+
+        server.start();
+
+        try (var sender = new HttpLineProtocolSender("dz3", "http://127.0.0.1:" + server.getAddress().getPort(), "dz", null, null, 1024)) {
+
+            sender.createDatabase("dz");
+            assertThat(queries.get(0)).isEqualTo("/query?q=CREATE DATABASE \"dz\"");
+
+            sender.write(new DataSample<>(1623000000000L, "source", "signature", 20.5, null));
+            sender.write(new DataSample<>(1623000000001L, "source", "signature", 21, null));
+
+            // Server is down, the batch must be retained
+            status.set(503);
+            sender.flush();
+
+            assertThat(sender.getFailures()).isEqualTo(1);
+            assertThat(sender.getPoints()).isZero();
+
+            status.set(204);
+            sender.write(new DataSample<>(1623000000002L, "source", "signature", 22.5, null));
+            sender.flush();
+
+            assertThat(queries.get(2)).isEqualTo("/write?db=dz&precision=ms");
+            assertThat(bodies.get(2)).isEqualTo(
+                    "sensor,instance=dz3,signature=signature,source=source sample=20.5 1623000000000\n"
+                    + "sensor,instance=dz3,signature=signature,source=source sample=21i 1623000000001\n"
+                    + "sensor,instance=dz3,signature=signature,source=source sample=22.5 1623000000002");
+            assertThat(sender.getPoints()).isEqualTo(3);
+
+            // Bad data, retrying won't help
+            status.set(400);
+            sender.write(new DataSample<>(1623000000003L, "source", "signature", 23.5, null));
+            sender.flush();
+
+            assertThat(sender.getDropped()).isEqualTo(1);
+
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Make sure the writing thread never touches the network, and the flush splits the buffer into batches.
+     */
+    @Test
+    void writeDoesNotSend() throws IOException {
+
+        var server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        List<String> bodies = Collections.synchronizedList(new ArrayList<>());
+
+        server.createContext("/", exchange -> {
+
+            bodies.add(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+
+        server.start();
+
+        try (var sender = new HttpLineProtocolSender("dz3", "http://127.0.0.1:" + server.getAddress().getPort(), "dz", null, null, 1024)) {
+
+            for (int count = 0; count < 100; count++) {
+                sender.write(new DataSample<>(1623000000000L + count, "source", "signature", 20.5 + count, null));
+            }
+
+            // Way more than a batch, still nothing sent
+            assertThat(bodies).isEmpty();
+            assertThat(sender.getBatches()).isZero();
+
+            sender.flush();
+
+            assertThat(bodies).hasSizeGreaterThan(1);
+            assertThat(bodies).allSatisfy(body -> assertThat(body.length()).isLessThanOrEqualTo(1024));
+            assertThat(String.join("\n", bodies).split("\n")).hasSize(100);
+            assertThat(sender.getBatches()).isEqualTo(bodies.size());
+            assertThat(sender.getPoints()).isEqualTo(100);
+
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Push points through the UDP sender to a local listener, and compare the encoding cost with {@code influxdb-java}.
+     */
+    @Test
+    void throughput() throws Exception {
+
+        int count = 500_000;
+        var rg = new Random(42);
+
+        @SuppressWarnings("unchecked")
+        DataSample<Double>[] samples = new DataSample[100];
+
+        for (int offset = 0; offset < samples.length; offset++) {
+            samples[offset] = new DataSample<>(1623000000000L + offset, "source-" + (offset % 10), "signature-" + (offset % 10), Math.round(rg.nextDouble() * 3000) / 100d, null);
+        }
+
+        // Encoding only, both ways
+
+        var encoder = new LineProtocolEncoder("sensor", "dz3", TimeUnit.NANOSECONDS);
+        long sink = point(samples, count) + encode(encoder, samples, count);
+
+        long start = System.nanoTime();
+        long pointBytes = point(samples, count);
+        long pointNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        long encoderBytes = encode(encoder, samples, count);
+        long encoderNanos = System.nanoTime() - start;
+
+        logger.info("{} points encoded: Point {}ms ({} points/s), encoder {}ms ({} points/s), checksum {}",
+                count,
+                pointNanos / 1_000_000, count * 1_000_000_000L / pointNanos,
+                encoderNanos / 1_000_000, count * 1_000_000_000L / encoderNanos,
+                sink);
+
+        assertThat(encoderBytes).isEqualTo(pointBytes);
+
+        // Now over the wire
+
+        try (var socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+             var sender = new UdpLineProtocolSender("dz3", "127.0.0.1", socket.getLocalPort())) {
+
+            socket.setReceiveBufferSize(4 * 1024 * 1024);
+            socket.setSoTimeout(500);
+
+            var received = new AtomicLong();
+            var receiver = new Thread(() -> {
+
+                var buffer = new byte[65536];
+
+                try {
+                    while (true) {
+
+                        var packet = new DatagramPacket(buffer, buffer.length);
+                        socket.receive(packet);
+
+                        for (int offset = 0; offset < packet.getLength(); offset++) {
+                            if (buffer[offset] == '\n') {
+                                received.incrementAndGet();
+                            }
+                        }
+
+                        received.incrementAndGet();
+                    }
+                } catch (SocketTimeoutException ex) {
+                    // Done
+                } catch (IOException ex) {
+                    logger.error("receive failed", ex);
+                }
+            });
+
+            receiver.start();
+
+            start = System.nanoTime();
+
+            for (int offset = 0; offset < count; offset++) {
+
+                sender.write(samples[offset % samples.length]);
+
+                // Stand-in for the flusher, otherwise the buffer overflows
+                if (offset % 10_000 == 9_999) {
+                    sender.flush();
+                }
+            }
+
+            sender.flush();
+
+            long wireNanos = System.nanoTime() - start;
+
+            receiver.join();
+
+            logger.info("{} points over UDP: {}ms ({} points/s), {} datagrams, {} bytes/point, {} points received",
+                    sender.getPoints(),
+                    wireNanos / 1_000_000, sender.getPoints() * 1_000_000_000L / wireNanos,
+                    sender.getBatches(),
+                    String.format("%.1f", (double) sender.getBytes() / sender.getPoints()),
+                    received.get());
+
+            assertThat(sender.getPoints()).isEqualTo(count);
+            assertThat(received.get()).isPositive();
+        }
+    }
+
+    private long point(DataSample<Double>[] samples, int count) {
+
+        long bytes = 0;
+
+        for (int offset = 0; offset < count; offset++) {
+
+            var sample = samples[offset % samples.length];
+            var point = Point.measurement("sensor")
+                    .time(sample.timestamp, TimeUnit.MILLISECONDS)
+                    .tag("instance", "dz3")
+                    .tag("source", sample.sourceName)
+                    .tag("signature", sample.signature)
+                    .addField("sample", sample.sample)
+                    .build();
+
+            bytes += point.lineProtocol().getBytes(StandardCharsets.UTF_8).length;
+        }
+
+        return bytes;
+    }
+
+    private long encode(LineProtocolEncoder encoder, DataSample<Double>[] samples, int count) {
+
+        long bytes = 0;
+
+        for (int offset = 0; offset < count; offset++) {
+
+            encoder.append(samples[offset % samples.length]);
+            bytes += encoder.size();
+            encoder.discard(encoder.size());
+        }
+
+        return bytes;
+    }
+}
@@ -4,10 +4,16 @@ import com.homeclimatecontrol.jukebox.datastream.logger.impl.DataBroadcaster;
 import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSample;
 import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSink;
 import net.sf.dz3.util.digest.MessageDigestCache;
+import net.sf.dz3.util.snapshot.SnapshotIO;
+import net.sf.dz3.util.snapshot.Snapshotable;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.ThreadContext;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
  * An abstract process controller.
  *
@@ -15,7 +21,7 @@ import org.apache.logging.log4j.ThreadContext;
  *
  * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2009
  */
-public abstract class AbstractProcessController implements ProcessController {
+public abstract class AbstractProcessController implements ProcessController, Snapshotable {
 
     protected final Logger logger = LogManager.getLogger(getClass());
 
@@ -222,6 +228,32 @@ public abstract class AbstractProcessController implements ProcessController {
         	lastKnownSignal);
     }
 
+    /**
+     * Write the setpoint and the last known input and output.
+     *
+     * Subclasses with state of their own must call this method first, then write their state.
+     */
+    @Override
+    public synchronized void writeSnapshot(DataOutput out) throws IOException {
+
+        out.writeDouble(setpoint);
+        SnapshotIO.writeSample(out, pv);
+        SnapshotIO.writeSample(out, lastKnownSignal);
+    }
+
+    /**
+     * Restore the state written by {@link #writeSnapshot(DataOutput)}, without recomputing the output.
+     *
+     * Subclasses with state of their own must call this method first, then read their state.
+     */
+    @Override
+    public synchronized void readSnapshot(DataInput in) throws IOException {
+
+        setpoint = in.readDouble();
+        pv = SnapshotIO.readSample(in);
+        lastKnownSignal = SnapshotIO.readSample(in);
+    }
+
     @Override
     public String toString() {
 
@@ -166,6 +166,16 @@ public class DataSet<T> {
         }
     }
 
+    /**
+     * Remove all the data elements.
+     */
+    public final synchronized void clear() {
+
+        samples.clear();
+        lastTimestamp = null;
+        lastValue = null;
+    }
+
     /**
      * @return Iterator on the time values for the data entries.
      */
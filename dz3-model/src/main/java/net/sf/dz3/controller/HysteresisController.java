@@ -5,6 +5,10 @@ import com.homeclimatecontrol.jukebox.conf.ConfigurableProperty;
 import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSample;
 import com.homeclimatecontrol.jukebox.jmx.JmxAttribute;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
  * A hysteresis controller.
  * <p>
@@ -182,6 +186,20 @@ public class HysteresisController extends AbstractProcessController {
         return new HysteresisControllerStatus(superStatus, state);
     }
 
+    @Override
+    public synchronized void writeSnapshot(DataOutput out) throws IOException {
+
+        super.writeSnapshot(out);
+        out.writeBoolean(state);
+    }
+
+    @Override
+    public synchronized void readSnapshot(DataInput in) throws IOException {
+
+        super.readSnapshot(in);
+        state = in.readBoolean();
+    }
+
     @Override
     protected void setpointChanged() {
         
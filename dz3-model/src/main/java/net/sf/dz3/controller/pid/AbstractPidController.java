@@ -9,6 +9,10 @@ import net.sf.dz3.controller.ProcessControllerStatus;
 import net.sf.dz3.util.digest.MessageDigestCache;
 import org.apache.logging.log4j.ThreadContext;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
  * Abstract base for a PID controller implementation.
  *
@@ -236,6 +240,26 @@ public abstract class AbstractPidController extends AbstractProcessController im
         }
     }
 
+    @Override
+    public synchronized void writeSnapshot(DataOutput out) throws IOException {
+
+        super.writeSnapshot(out);
+
+        out.writeDouble(lastP);
+        out.writeDouble(lastI);
+        out.writeDouble(lastD);
+    }
+
+    @Override
+    public synchronized void readSnapshot(DataInput in) throws IOException {
+
+        super.readSnapshot(in);
+
+        lastP = in.readDouble();
+        lastI = in.readDouble();
+        lastD = in.readDouble();
+    }
+
     @Override
     protected final String getShortName() {
         return "pid";
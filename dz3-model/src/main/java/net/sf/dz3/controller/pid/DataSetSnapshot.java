@@ -0,0 +1,51 @@
+package net.sf.dz3.controller.pid;
+
+import net.sf.dz3.controller.DataSet;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Snapshot support for the {@link DataSet} based integral and differential sets.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+final class DataSetSnapshot {
+
+    private DataSetSnapshot() {
+        // Static helpers only
+    }
+
+    static void write(DataSet<Double> dataSet, DataOutput out) throws IOException {
+
+        synchronized (dataSet) {
+
+            out.writeInt((int) dataSet.size());
+
+            for (Iterator<Map.Entry<Long, Double>> i = dataSet.entryIterator(); i.hasNext(); ) {
+
+                Map.Entry<Long, Double> entry = i.next();
+
+                out.writeLong(entry.getKey());
+                out.writeDouble(entry.getValue());
+            }
+        }
+    }
+
+    static void read(DataSet<Double> dataSet, DataInput in) throws IOException {
+
+        synchronized (dataSet) {
+
+            dataSet.clear();
+
+            int size = in.readInt();
+
+            for (int offset = 0; offset < size; offset++) {
+                dataSet.append(in.readLong(), in.readDouble());
+            }
+        }
+    }
+}
@@ -1,13 +1,14 @@
 package net.sf.dz3.controller.pid;
 
 import net.sf.dz3.controller.DataSet;
+import net.sf.dz3.util.snapshot.Snapshotable;
 
 /**
  * Data set supporting the differential calculation.
  *
  * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2015
  */
-public interface DifferentialSet {
+public interface DifferentialSet extends Snapshotable {
 
     /**
      * @see DataSet#append(long, Object)
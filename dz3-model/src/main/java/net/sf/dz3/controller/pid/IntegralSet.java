@@ -1,6 +1,7 @@
 package net.sf.dz3.controller.pid;
 
 import net.sf.dz3.controller.DataSet;
+import net.sf.dz3.util.snapshot.Snapshotable;
 
 /**
  * Data set supporting the integration calculation.
@@ -12,7 +13,7 @@ import net.sf.dz3.controller.DataSet;
  *
  * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2015
  */
-public interface IntegralSet {
+public interface IntegralSet extends Snapshotable {
 
     /**
      * @see DataSet#append(long, Object)
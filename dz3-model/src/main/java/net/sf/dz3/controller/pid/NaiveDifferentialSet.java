@@ -2,6 +2,9 @@ package net.sf.dz3.controller.pid;
 
 import net.sf.dz3.controller.DataSet;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -113,4 +116,14 @@ public class NaiveDifferentialSet extends DataSet<Double> implements Differentia
           // startTime));
       }
   }
+
+    @Override
+    public void writeSnapshot(DataOutput out) throws IOException {
+        DataSetSnapshot.write(this, out);
+    }
+
+    @Override
+    public void readSnapshot(DataInput in) throws IOException {
+        DataSetSnapshot.read(this, in);
+    }
 }
@@ -3,6 +3,10 @@ package net.sf.dz3.controller.pid;
 import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSample;
 import com.homeclimatecontrol.jukebox.jmx.JmxAttribute;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
  * Classical PID - Proportional, Integral, Derivative controller.
  *
@@ -77,6 +81,24 @@ public class PID_Controller extends AbstractPidController implements PidControll
         return differentialSet.getDifferential();
     }
 
+    @Override
+    public synchronized void writeSnapshot(DataOutput out) throws IOException {
+
+        super.writeSnapshot(out);
+
+        integralSet.writeSnapshot(out);
+        differentialSet.writeSnapshot(out);
+    }
+
+    @Override
+    public synchronized void readSnapshot(DataInput in) throws IOException {
+
+        super.readSnapshot(in);
+
+        integralSet.readSnapshot(in);
+        differentialSet.readSnapshot(in);
+    }
+
     @Override
     protected void setpointChanged() {
         // Do absolutely nothing
@@ -2,6 +2,10 @@ package net.sf.dz3.controller.pid;
 
 import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSample;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
  * Simple stateless PID controller implementation.
  *
@@ -56,6 +60,24 @@ public class SimplePidController extends AbstractPidController {
         return derivative;
     }
 
+    @Override
+    public synchronized void writeSnapshot(DataOutput out) throws IOException {
+
+        super.writeSnapshot(out);
+
+        out.writeDouble(integral);
+        out.writeDouble(lastError);
+    }
+
+    @Override
+    public synchronized void readSnapshot(DataInput in) throws IOException {
+
+        super.readSnapshot(in);
+
+        integral = in.readDouble();
+        lastError = in.readDouble();
+    }
+
     @Override
     protected void setpointChanged() {
 
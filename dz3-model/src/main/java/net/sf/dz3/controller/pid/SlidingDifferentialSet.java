@@ -1,6 +1,11 @@
 package net.sf.dz3.controller.pid;
 
 import net.sf.dz3.controller.DataSet;
+import net.sf.dz3.util.snapshot.SnapshotIO;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 
 /**
  * Data set supporting the differential calculation.
@@ -76,4 +81,20 @@ public class SlidingDifferentialSet implements DifferentialSet {
 
         return dataSet.getIntegral();
     }
+
+    @Override
+    public synchronized void writeSnapshot(DataOutput out) throws IOException {
+
+        SnapshotIO.writeLong(out, lastTimestamp);
+        out.writeDouble(lastValue);
+        dataSet.writeSnapshot(out);
+    }
+
+    @Override
+    public synchronized void readSnapshot(DataInput in) throws IOException {
+
+        lastTimestamp = SnapshotIO.readLong(in);
+        lastValue = in.readDouble();
+        dataSet.readSnapshot(in);
+    }
 }
@@ -1,7 +1,11 @@
 package net.sf.dz3.controller.pid;
 
 import net.sf.dz3.controller.DataSet;
+import net.sf.dz3.util.snapshot.SnapshotIO;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map.Entry;
@@ -130,4 +134,34 @@ public class SlidingIntegralSet implements IntegralSet {
     public final synchronized double getIntegral() {
         return lastIntegral;
     }
+
+    @Override
+    public synchronized void writeSnapshot(DataOutput out) throws IOException {
+
+        SnapshotIO.writeLong(out, lastTimestamp);
+        out.writeDouble(lastValue);
+        out.writeDouble(lastIntegral);
+        out.writeInt(samples.size());
+
+        for (Entry<Long, Double> entry : samples.entrySet()) {
+            out.writeLong(entry.getKey());
+            out.writeDouble(entry.getValue());
+        }
+    }
+
+    @Override
+    public synchronized void readSnapshot(DataInput in) throws IOException {
+
+        lastTimestamp = SnapshotIO.readLong(in);
+        lastValue = in.readDouble();
+        lastIntegral = in.readDouble();
+
+        samples.clear();
+
+        int size = in.readInt();
+
+        for (int offset = 0; offset < size; offset++) {
+            samples.put(in.readLong(), in.readDouble());
+        }
+    }
 }
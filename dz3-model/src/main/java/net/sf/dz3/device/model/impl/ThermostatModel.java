@@ -17,16 +17,22 @@ import net.sf.dz3.device.model.ZoneController;
 import net.sf.dz3.device.model.ZoneStatus;
 import net.sf.dz3.device.sensor.AnalogSensor;
 import net.sf.dz3.util.digest.MessageDigestCache;
+import net.sf.dz3.util.snapshot.SnapshotIO;
+import net.sf.dz3.util.snapshot.Snapshotable;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.ThreadContext;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
  * The virtual thermostat implementation.
  *
  * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2012
  */
-public class ThermostatModel implements Thermostat, ThermostatController {
+public class ThermostatModel implements Thermostat, ThermostatController, Snapshotable {
 
     private final Logger logger = LogManager.getLogger(getClass());
 
@@ -501,6 +507,61 @@ public class ThermostatModel implements Thermostat, ThermostatController {
                 "Tell the zone controller what to do based on current sensor data, setpoint, and fine tuning parameters");
     }
 
+    /**
+     * Write the thermostat settings, the last known signals, and the state of both controllers.
+     */
+    @Override
+    public synchronized void writeSnapshot(DataOutput out) throws IOException {
+
+        out.writeBoolean(tsEnabled);
+        out.writeBoolean(hold);
+        out.writeBoolean(voting);
+        out.writeInt(dumpPriority);
+
+        SnapshotIO.writeSample(out, lastKnownSignal);
+        SnapshotIO.writeSample(out, controlSignal);
+
+        controller.writeSnapshot(out);
+        signalRenderer.writeSnapshot(out);
+    }
+
+    /**
+     * Restore the state written by {@link #writeSnapshot(DataOutput)} and let the consumers know.
+     *
+     * The restored signal propagates to the zone controller and further down the chain the same way
+     * a live signal would, so the rest of the system doesn't need snapshots of its own to pick up where it left off.
+     */
+    @Override
+    public synchronized void readSnapshot(DataInput in) throws IOException {
+
+        ThreadContext.push("readSnapshot");
+
+        try {
+
+            tsEnabled = in.readBoolean();
+            hold = in.readBoolean();
+            voting = in.readBoolean();
+            dumpPriority = in.readInt();
+
+            lastKnownSignal = SnapshotIO.readSample(in);
+            controlSignal = SnapshotIO.readSample(in);
+
+            controller.readSnapshot(in);
+            signalRenderer.readSnapshot(in);
+
+            logger.info("restored: {}", this);
+
+            if (controlSignal != null) {
+
+                // Otherwise, getSignal() has nothing to report yet
+                stateChanged();
+            }
+
+        } finally {
+            ThreadContext.pop();
+        }
+    }
+
     @Override
     public void set(ZoneStatus status) {
 
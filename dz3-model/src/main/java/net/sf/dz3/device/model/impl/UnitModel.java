@@ -10,15 +10,21 @@ import net.sf.dz3.device.model.Unit;
 import net.sf.dz3.device.model.UnitSignal;
 import net.sf.dz3.device.model.ZoneController;
 import net.sf.dz3.util.digest.MessageDigestCache;
+import net.sf.dz3.util.snapshot.SnapshotIO;
+import net.sf.dz3.util.snapshot.Snapshotable;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.ThreadContext;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
  *
  * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
  */
-public class UnitModel implements Unit {
+public class UnitModel implements Unit, Snapshotable {
 
     private final Logger logger = LogManager.getLogger();
 
@@ -298,6 +304,32 @@ public class UnitModel implements Unit {
         return timestamp - lastStarted;
     }
 
+    /**
+     * Write the last known state and the start time.
+     *
+     * The start time is the only thing that can't be recomputed from the restored zone controller signal.
+     */
+    @Override
+    public synchronized void writeSnapshot(DataOutput out) throws IOException {
+
+        SnapshotIO.writeSample(out, state, (o, s) -> {
+            o.writeDouble(s.demand);
+            o.writeBoolean(s.running);
+            o.writeLong(s.uptime);
+        });
+
+        SnapshotIO.writeLong(out, lastStarted);
+    }
+
+    @Override
+    public synchronized void readSnapshot(DataInput in) throws IOException {
+
+        state = SnapshotIO.readSample(in, i -> new UnitSignal(i.readDouble(), i.readBoolean(), i.readLong()));
+        lastStarted = SnapshotIO.readLong(in);
+
+        stateChanged();
+    }
+
     @Override
     public JmxDescriptor getJmxDescriptor() {
 
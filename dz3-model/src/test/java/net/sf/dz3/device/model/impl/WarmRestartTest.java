@@ -0,0 +1,109 @@
+package net.sf.dz3.device.model.impl;
+
+import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSample;
+import net.sf.dz3.controller.pid.PID_Controller;
+import net.sf.dz3.device.sensor.impl.NullSensor;
+import net.sf.dz3.util.snapshot.SnapshotManager;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Measure how long it takes for a thermostat to get back to where it would have been
+ * had it not been restarted, with and without the snapshot.
+ */
+class WarmRestartTest {
+
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+    private static final double TOLERANCE = 0.01;
+
+    private final Logger logger = LogManager.getLogger(getClass());
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    void recovery() throws IOException {
+
+        File file = new File(tempDir, "snapshot");
+
+        ThermostatModel reference = create();
+
+        int restartAt = 120;
+        int total = 360;
+
+        for (int offset = 0; offset < restartAt; offset++) {
+            reference.consume(sample(offset));
+        }
+
+        try (SnapshotManager sm = new SnapshotManager(file, Map.of("ts", reference), 0, TimeUnit.HOURS.toMillis(1))) {
+            sm.start();
+        }
+
+        ThermostatModel restored = create();
+        ThermostatModel fresh = create();
+
+        try (SnapshotManager sm = new SnapshotManager(file, Map.of("ts", restored), 0, TimeUnit.HOURS.toMillis(1))) {
+
+            sm.start();
+
+            assertThat(sm.getRestored()).isEqualTo(1);
+        }
+
+        int restoredLag = 0;
+        int freshLag = 0;
+
+        for (int offset = restartAt; offset < total; offset++) {
+
+            DataSample<Double> sample = sample(offset);
+
+            reference.consume(sample);
+            restored.consume(sample);
+            fresh.consume(sample);
+
+            // Last sample where the output was off
+            int elapsed = offset - restartAt + 1;
+
+            if (Math.abs(restored.getControlSignal() - reference.getControlSignal()) > TOLERANCE) {
+                restoredLag = elapsed;
+            }
+
+            if (Math.abs(fresh.getControlSignal() - reference.getControlSignal()) > TOLERANCE) {
+                freshLag = elapsed;
+            }
+        }
+
+        logger.info("samples (minutes) to match the uninterrupted thermostat within {}: restored {}, cold start {}",
+                TOLERANCE, restoredLag, freshLag);
+
+        assertThat(restoredLag).isZero();
+        assertThat(freshLag).isPositive();
+        assertThat(restored.getSignal().calling).isEqualTo(reference.getSignal().calling);
+    }
+
+    private ThermostatModel create() {
+
+        return new ThermostatModel(
+                "ts",
+                new NullSensor("address", 0),
+                new PID_Controller(20, 1, 0.0000001, TimeUnit.HOURS.toMillis(1), 1000, 5 * MINUTE, 0));
+    }
+
+    /**
+     * @return A slow temperature swing around the setpoint, one sample per minute.
+     */
+    private DataSample<Double> sample(int offset) {
+
+        double value = 20 + 2 * Math.sin(offset * Math.PI / 90);
+
+        return new DataSample<>(offset * MINUTE, "address", "signature", value, null);
+    }
+}
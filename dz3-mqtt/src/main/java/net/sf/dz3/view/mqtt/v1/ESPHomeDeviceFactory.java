@@ -1,13 +1,8 @@
 package net.sf.dz3.view.mqtt.v1;
 
-import java.math.BigDecimal;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.CountDownLatch;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -37,7 +32,7 @@ import com.homeclimatecontrol.jukebox.jmx.JmxDescriptor;
  *
  * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
  */
-public class ESPHomeDeviceFactory implements DeviceFactory2020, AutoCloseable, JmxAware {
+public class ESPHomeDeviceFactory implements DeviceFactory2020, AutoCloseable, JmxAware, MqttSessionMetrics {
 
     protected final Logger logger = LogManager.getLogger(getClass());
 
@@ -45,7 +40,7 @@ public class ESPHomeDeviceFactory implements DeviceFactory2020, AutoCloseable, J
     private final Watchdog watchdog;
     private final Thread watchdogThread;
     private final CountDownLatch stopGate = new CountDownLatch(1);
-    private Set<String> seenAlienTopic = new HashSet<>();
+    private final ESPHomeTopicRouter router = new ESPHomeTopicRouter();
 
     static final long POLL_INTERVAL = 10000L;
     static final long STALE_AGE = POLL_INTERVAL * 5;
@@ -184,6 +179,11 @@ public class ESPHomeDeviceFactory implements DeviceFactory2020, AutoCloseable, J
         }
     }
 
+    @Override
+    public MqttContext getMqttContext() {
+        return mqtt;
+    }
+
     @Override
     public JmxDescriptor getJmxDescriptor() {
         return new JmxDescriptor(
@@ -229,14 +229,14 @@ public class ESPHomeDeviceFactory implements DeviceFactory2020, AutoCloseable, J
         ThreadContext.push("process");
         try {
 
-            String args[] = parseTopic(topic);
+            ESPHomeTopicRouter.Binding binding = router.resolve(topic);
 
-            if (args == null) {
+            if (binding == null) {
                 return;
             }
 
             // VT: FIXME: use java.time.Clock
-            processSensorInput(args[1], new BigDecimal(new String(source)), System.currentTimeMillis(), args[1], args[0]);
+            processSensorInput(binding.sensorName, NumberDecoder.parseDouble(source), System.currentTimeMillis(), binding.signature);
 
         } finally {
             ThreadContext.pop();
@@ -244,60 +244,18 @@ public class ESPHomeDeviceFactory implements DeviceFactory2020, AutoCloseable, J
     }
 
     /**
-     * ESPHome MQTT topic matching pattern.
+     * Process the sensor input.
      *
-     * It is possible to optimize it to use numbered groups, but is it worth it?
+     * @param name Sensor name.
+     * @param signal Sensor signal.
+     * @param timestamp Sample timestamp.
+     * @param signature Sample signature, device ID and sensor name combined.
      */
-    private final Pattern p = Pattern.compile("(?<deviceId>.*)/sensor/(?<sensorName>.*)/state");
-
-    /**
-     * Parse the device ID and the sensor name out of the topic.
-     *
-     * @param source Topic as a string.
-     *
-     * @return An array where the first element is the topic prefix (interpreted as device ID)
-     * and the second is the sensor name.
-     */
-    @java.lang.SuppressWarnings({"squid:S1168"})
-    private String[] parseTopic(String source) {
-
-        // That "not a sensor" debug statement below will drive the disk into the ground, better avoid it if possible
-        if (seenAlienTopic.contains(source)) {
-
-            // Trace is rarely enabled, no big deal
-            logger.trace("seen '{}' already, not matching", source);
-
-            // VT: NOTE: squid:S1168 I'm not going to waste memory to indicate a "skip" condition
-            return null;
-        }
-
-        // The typical ESPHome topic will look like this:
-        //
-        // ${ESPHome-topic-prefix}/sensor/${ESPHome-sensor-name}/state
-
-        Matcher m = p.matcher(source);
-        m.find();
-
-        if (!m.matches()) {
-
-            logger.debug("{}: not a sensor (this message will repeat once per run)", source);
-
-            // We don't want to see this message again
-            seenAlienTopic.add(source);
-
-            // VT: NOTE: squid:S1168 I'm not going to waste memory to indicate a "skip" condition
-            return null;
-        }
-
-        return new String[] { m.group("deviceId"), m.group("sensorName")};
-    }
-
     void processSensorInput(
             String name,
-            BigDecimal signal,
+            double signal,
             long timestamp,
-            String signature,
-            String deviceId) {
+            String signature) {
 
         ThreadContext.push("processSensorInput");
         try {
@@ -310,8 +268,7 @@ public class ESPHomeDeviceFactory implements DeviceFactory2020, AutoCloseable, J
             }
 
             Sensor s = (Sensor) d;
-            double v = signal.doubleValue();
-            s.inject(new DataSample<Double>(timestamp, s.getAddress(), deviceId + "/" + signature, v, null));
+            s.inject(new DataSample<Double>(timestamp, s.getAddress(), signature, signal, null));
 
         } finally {
             ThreadContext.pop();
@@ -0,0 +1,131 @@
+package net.sf.dz3.view.mqtt.v1;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Resolves ESPHome MQTT topics to sensor bindings.
+ *
+ * The typical ESPHome sensor topic will look like this:
+ *
+ * <pre>
+ * ${ESPHome-topic-prefix}/sensor/${ESPHome-sensor-name}/state
+ * </pre>
+ *
+ * The topic is split into segments only the first time it is seen, the outcome (including "not a sensor")
+ * is cached, so every subsequent message on the same topic costs one hash lookup - no regex, no substrings.
+ *
+ * Not thread safe - the MQTT client delivers messages on a single thread.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+class ESPHomeTopicRouter {
+
+    private static final String SENSOR = "/sensor/";
+    private static final String STATE = "/state";
+
+    private final Logger logger = LogManager.getLogger(getClass());
+
+    /**
+     * Sensor binding - everything {@link ESPHomeDeviceFactory} needs to know about the topic.
+     */
+    static class Binding {
+
+        /**
+         * Topic prefix, interpreted as device ID.
+         */
+        public final String deviceId;
+
+        /**
+         * Sensor name.
+         */
+        public final String sensorName;
+
+        /**
+         * Sample signature, computed once.
+         */
+        public final String signature;
+
+        Binding(String deviceId, String sensorName) {
+
+            this.deviceId = deviceId;
+            this.sensorName = sensorName;
+            this.signature = deviceId + "/" + sensorName;
+        }
+    }
+
+    /**
+     * Marker for topics that are not sensors.
+     */
+    private static final Binding ALIEN = new Binding("", "");
+
+    private final Map<String, Binding> topic2binding = new HashMap<>();
+
+    /**
+     * Resolve the topic.
+     *
+     * @param topic Topic as received.
+     *
+     * @return Sensor binding, or {@code null} if the topic is not a sensor topic.
+     */
+    Binding resolve(String topic) {
+
+        Binding binding = topic2binding.get(topic);
+
+        if (binding == null) {
+
+            binding = parse(topic);
+
+            if (binding == null) {
+
+                // That "not a sensor" debug statement will drive the disk into the ground, better not repeat it
+                logger.debug("{}: not a sensor (this message will repeat once per run)", topic);
+                binding = ALIEN;
+            }
+
+            topic2binding.put(topic, binding);
+
+        } else if (binding == ALIEN) {
+
+            // Trace is rarely enabled, no big deal
+            logger.trace("seen '{}' already, not matching", topic);
+        }
+
+        return binding == ALIEN ? null : binding;
+    }
+
+    /**
+     * Split the topic into the device ID and the sensor name.
+     *
+     * Semantics are the same as of {@code (.*)/sensor/(.*)/state} - the last {@code /sensor/} segment wins.
+     *
+     * @param topic Topic to parse.
+     *
+     * @return Sensor binding, or {@code null} if the topic doesn't match.
+     */
+    static Binding parse(String topic) {
+
+        if (!topic.endsWith(STATE)) {
+            return null;
+        }
+
+        int nameEnd = topic.length() - STATE.length();
+        int sensorOffset = topic.lastIndexOf(SENSOR, nameEnd - SENSOR.length());
+
+        if (sensorOffset < 0) {
+            return null;
+        }
+
+        return new Binding(topic.substring(0, sensorOffset), topic.substring(sensorOffset + SENSOR.length(), nameEnd));
+    }
+
+    /**
+     * @return Number of distinct topics seen so far.
+     */
+    int size() {
+        return topic2binding.size();
+    }
+}
@@ -0,0 +1,360 @@
+package net.sf.dz3.view.mqtt.v1;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Flat JSON object layout with the field names encoded once, rendered straight into bytes.
+ *
+ * The output is byte for byte identical to what {@code javax.json} produces for the same object
+ * (compact form, same escaping, same number formatting), encoded as UTF-8, but without the
+ * intermediate object tree, writer, and string. Rendering happens in a per-thread buffer
+ * that is reused across messages; the only allocation per message is the resulting byte array.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+final class JsonTemplate {
+
+    /**
+     * Buffers larger than this are not kept between messages.
+     */
+    private static final int MAX_RETAINED = 64 * 1024;
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+
+    private static final ThreadLocal<Writer> writers = ThreadLocal.withInitial(Writer::new);
+
+    /**
+     * Field names, encoded, prefixed with <code>{</code>, for the first field written.
+     */
+    private final byte[][] first;
+
+    /**
+     * Field names, encoded, prefixed with a comma, for all other fields.
+     */
+    private final byte[][] next;
+
+    /**
+     * Create an instance.
+     *
+     * @param fields Field names. Fields are later referred to by their offset in this list.
+     */
+    JsonTemplate(String... fields) {
+
+        first = new byte[fields.length][];
+        next = new byte[fields.length][];
+
+        Writer w = new Writer();
+
+        for (int offset = 0; offset < fields.length; offset++) {
+
+            w.size = 0;
+            w.string(fields[offset]);
+            w.put((byte) ':');
+
+            byte[] name = Arrays.copyOf(w.buffer, w.size);
+
+            first[offset] = prefix((byte) '{', name);
+            next[offset] = prefix((byte) ',', name);
+        }
+    }
+
+    private static byte[] prefix(byte prefix, byte[] name) {
+
+        byte[] result = new byte[name.length + 1];
+
+        result[0] = prefix;
+        System.arraycopy(name, 0, result, 1, name.length);
+
+        return result;
+    }
+
+    /**
+     * Start rendering an object.
+     *
+     * The writer belongs to the current thread and is reused, so it must be finished with
+     * {@link Writer#toByteArray()} before this method is called again on the same thread.
+     *
+     * @return Writer positioned at the start of the object.
+     */
+    Writer begin() {
+
+        Writer w = writers.get();
+
+        if (w.buffer.length > MAX_RETAINED) {
+            w = new Writer();
+            writers.set(w);
+        }
+
+        w.template = this;
+        w.size = 0;
+        w.empty = true;
+
+        return w;
+    }
+
+    static final class Writer {
+
+        private byte[] buffer = new byte[512];
+        private int size;
+        private boolean empty;
+        private JsonTemplate template;
+
+        private Writer() {
+        }
+
+        Writer add(int field, String value) {
+
+            if (value == null) {
+                // Same as JsonObjectBuilder#add(String, String)
+                throw new NullPointerException("null value for field #" + field);
+            }
+
+            name(field);
+            string(value);
+
+            return this;
+        }
+
+        Writer add(int field, long value) {
+
+            name(field);
+            number(value);
+
+            return this;
+        }
+
+        Writer add(int field, double value) {
+
+            name(field);
+
+            if (value == 0) {
+
+                // Negative zero included, BigDecimal doesn't have it
+
+                put((byte) '0');
+                put((byte) '.');
+                put((byte) '0');
+
+            } else if (value == Math.rint(value) && Math.abs(value) < 1e7) {
+
+                // Whole numbers are the most common case (setpoints, relay signals), and
+                // Double.toString() would produce plain notation with ".0" for them
+
+                number((long) value);
+                put((byte) '.');
+                put((byte) '0');
+
+            } else {
+
+                // Plain notation in Double.toString() is what BigDecimal.toString() produces as well;
+                // scientific notation differs, and NaN and infinities must be rejected the same way.
+                // BigDecimal.valueOf() takes care of both.
+
+                String s = Double.toString(value);
+
+                if (s.indexOf('E') >= 0 || !Double.isFinite(value)) {
+                    s = BigDecimal.valueOf(value).toString();
+                }
+
+                ascii(s);
+            }
+
+            return this;
+        }
+
+        Writer add(int field, boolean value) {
+
+            name(field);
+            put(value ? TRUE : FALSE);
+
+            return this;
+        }
+
+        /**
+         * Close the object.
+         *
+         * @return Rendered object.
+         */
+        byte[] toByteArray() {
+
+            if (empty) {
+                put((byte) '{');
+            }
+
+            put((byte) '}');
+
+            return Arrays.copyOf(buffer, size);
+        }
+
+        private void name(int field) {
+
+            put(empty ? template.first[field] : template.next[field]);
+            empty = false;
+        }
+
+        private void number(long value) {
+
+            if (value == Long.MIN_VALUE) {
+                ascii(Long.toString(value));
+                return;
+            }
+
+            if (value < 0) {
+                put((byte) '-');
+                value = -value;
+            }
+
+            int digits = 1;
+
+            for (long limit = 10; digits < 19 && value >= limit; limit *= 10) {
+                digits++;
+            }
+
+            ensure(digits);
+
+            for (int offset = size + digits - 1; offset >= size; offset--) {
+                buffer[offset] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+
+            size += digits;
+        }
+
+        /**
+         * Write a quoted string, escaping it the same way {@code javax.json} does: quote, backslash,
+         * and control characters only, everything else goes verbatim as UTF-8.
+         */
+        private void string(String value) {
+
+            int length = value.length();
+
+            // Worst case is 6 bytes per character (\\u00XX); most strings are short ASCII, so this is cheap
+            ensure(length * 6 + 2);
+
+            byte[] b = buffer;
+            int pos = size;
+
+            b[pos++] = '"';
+
+            for (int offset = 0; offset < length; offset++) {
+
+                char c = value.charAt(offset);
+
+                if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+                    b[pos++] = (byte) c;
+                    continue;
+                }
+
+                if (c < 0x20 || c == '"' || c == '\\') {
+                    pos = escape(b, pos, c);
+                    continue;
+                }
+
+                if (c < 0x800) {
+
+                    b[pos++] = (byte) (0xC0 | (c >> 6));
+                    b[pos++] = (byte) (0x80 | (c & 0x3F));
+
+                } else if (Character.isSurrogate(c)) {
+
+                    // Surrogate pair makes 4 bytes out of 2 characters, an unpaired surrogate
+                    // is replaced with '?', just like String#getBytes() does
+
+                    if (Character.isHighSurrogate(c) && offset + 1 < length && Character.isLowSurrogate(value.charAt(offset + 1))) {
+
+                        int cp = Character.toCodePoint(c, value.charAt(++offset));
+
+                        b[pos++] = (byte) (0xF0 | (cp >> 18));
+                        b[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                        b[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                        b[pos++] = (byte) (0x80 | (cp & 0x3F));
+
+                    } else {
+
+                        b[pos++] = '?';
+                    }
+
+                } else {
+
+                    b[pos++] = (byte) (0xE0 | (c >> 12));
+                    b[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    b[pos++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+
+            b[pos++] = '"';
+            size = pos;
+        }
+
+        private static int escape(byte[] b, int pos, char c) {
+
+            b[pos++] = '\\';
+
+            switch (c) {
+
+            case '"':
+            case '\\':
+                b[pos++] = (byte) c;
+                break;
+            case '\b':
+                b[pos++] = 'b';
+                break;
+            case '\f':
+                b[pos++] = 'f';
+                break;
+            case '\n':
+                b[pos++] = 'n';
+                break;
+            case '\r':
+                b[pos++] = 'r';
+                break;
+            case '\t':
+                b[pos++] = 't';
+                break;
+            default:
+                b[pos++] = 'u';
+                b[pos++] = '0';
+                b[pos++] = '0';
+                b[pos++] = HEX[c >> 4];
+                b[pos++] = HEX[c & 0xF];
+            }
+
+            return pos;
+        }
+
+        private void ascii(String value) {
+
+            int length = value.length();
+
+            ensure(length);
+
+            for (int offset = 0; offset < length; offset++) {
+                buffer[size++] = (byte) value.charAt(offset);
+            }
+        }
+
+        private void put(byte[] value) {
+
+            ensure(value.length);
+            System.arraycopy(value, 0, buffer, size, value.length);
+            size += value.length;
+        }
+
+        private void put(byte value) {
+
+            ensure(1);
+            buffer[size++] = value;
+        }
+
+        private void ensure(int extra) {
+
+            if (size + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+            }
+        }
+    }
+}
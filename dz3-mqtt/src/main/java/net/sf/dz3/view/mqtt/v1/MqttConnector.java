@@ -21,7 +21,10 @@ import javax.json.JsonReader;
 import javax.json.JsonString;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
@@ -43,7 +46,7 @@ import java.util.concurrent.LinkedBlockingQueue;
  *
  * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2020
  */
-public class MqttConnector extends Connector<JsonRenderer> {
+public class MqttConnector extends Connector<JsonRenderer> implements MqttSessionMetrics {
 
     /**
      * @see SensorRenderer#render(com.homeclimatecontrol.jukebox.datastream.signal.model.DataSample)
@@ -236,6 +239,11 @@ public class MqttConnector extends Connector<JsonRenderer> {
         return null;
     }
 
+    @Override
+    public MqttContext getMqttContext() {
+        return mqtt;
+    }
+
     @Override
     public JmxDescriptor getJmxDescriptor() {
 
@@ -249,6 +257,29 @@ public class MqttConnector extends Connector<JsonRenderer> {
                 "MQTT Connector v1");
     }
 
+    /**
+     * Make our entities resolvable by the name Home Assistant knows them by.
+     *
+     * VT: NOTE: This is where things get complicated. Our entities were never supposed to be
+     * resolved from outside. See https://github.com/home-climate-control/dz/issues/87 for details.
+     *
+     * For now, let's do it piecemeal, and then unify when the issue above is addressed.
+     */
+    @Override
+    protected Collection<String> getLookupKeys(Object source) {
+
+        if (source instanceof Addressable) {
+            return List.of(((Addressable) source).getAddress());
+        }
+
+        if (source instanceof Thermostat) {
+            return List.of(((Thermostat) source).getName());
+        }
+
+        // VT: FIXME: We won't control anything other than thermostats at this point.
+        return List.of();
+    }
+
     @Override
     protected Map<String, Object> createContext() {
 
@@ -377,14 +408,16 @@ public class MqttConnector extends Connector<JsonRenderer> {
 
             try {
 
-                MqttMessage message = new MqttMessage(dataBlock.payload.getBytes());
+                MqttMessage message = new MqttMessage(dataBlock.payload);
 
                 message.setQos(mqtt.QOS);
                 message.setRetained(true);
 
                 mqtt.publish(mqttRootTopicPub + "/" + dataBlock.topic, message);
 
-                logger.debug(mqttRootTopicPub + "/" + dataBlock.topic + ": " + dataBlock.payload);
+                if (logger.isDebugEnabled()) {
+                    logger.debug("{}/{}: {}", mqttRootTopicPub, dataBlock.topic, new String(dataBlock.payload, StandardCharsets.UTF_8));
+                }
 
             } catch (MqttException ex) {
 
@@ -641,42 +674,14 @@ public class MqttConnector extends Connector<JsonRenderer> {
                     return null;
                 }
 
-                for (Object entity : getInitSet()) {
-
-                    // VT: NOTE: This is where things get complicated. Our entities were never supposed to be
-                    // resolved from outside. See https://github.com/home-climate-control/dz/issues/87 for details.
-
-                    // For now, let's do it piecemeal, and then unify when the issue above is addressed.
-
-                    if (entity instanceof Addressable) {
-
-                        String name = ((Addressable) entity).getAddress();
-
-                        if (name.equals(entityName)) {
+                Object entity = lookup(entityName);
 
-                            logger.info("resolved '" + entityId + "' into " + entity);
-                            name2entity.put(entityName, entity);
+                if (entity != null) {
 
-                            return entity;
-                        }
+                    logger.info("resolved '" + entityId + "' into " + entity);
+                    name2entity.put(entityName, entity);
 
-                    } else if (entity instanceof Thermostat) {
-
-                        String name = ((Thermostat) entity).getName();
-
-                        if (name.equals(entityName)) {
-
-                            logger.info("resolved '" + entityId + "' into " + entity);
-                            name2entity.put(entityName, entity);
-
-                            return entity;
-                        }
-
-                    } else {
-
-                        // VT: FIXME: We won't control anything other than thermostats at this point.
-                        logger.warn("don't know how to handle: " + entity.getClass().getName());
-                    }
+                    return entity;
                 }
 
                 // VT: NOTE: No need to be throwing exceptions here, it may be the entity that is not present
@@ -1,20 +1,21 @@
 package net.sf.dz3.view.mqtt.v1;
 
-import java.util.UUID;
-
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.ThreadContext;
-import org.eclipse.paho.client.mqttv3.IMqttClient;
 import org.eclipse.paho.client.mqttv3.MqttCallback;
-import org.eclipse.paho.client.mqttv3.MqttClient;
-import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
 
 import net.sf.dz3.instrumentation.Marker;
 
+/**
+ * MQTT connection as seen by a single component.
+ *
+ * Components talking to the same broker with the same credentials share one session (and one network
+ * connection, see {@code MqttSessionRegistry}); the session is acquired on {@link #start()} and released on {@link #disconnect()} or {@link #close()}.
+ */
 public class MqttContext {
 
     public static final int DEFAULT_PORT = 1883;
@@ -42,11 +43,6 @@ public class MqttContext {
 
     protected final Logger logger = LogManager.getLogger(getClass());
 
-    /**
-     * VT: FIXME: Provide an ability to generate and keep a persistent UUID
-     */
-    public final String clientId = UUID.randomUUID().toString();
-
     public final String host;
     public final int port;
     public final String username;
@@ -78,15 +74,15 @@ public class MqttContext {
      * QOS 1 is "at least once"
      * QOS 2 is "exactly once"
      */
-    public final int QOS = 0;
+    public final int QOS = MqttSession.QOS;
 
-    private final IMqttClient client;
+    private MqttSession session;
 
     public MqttContext(
             String host, int port,
             String username, String password,
             String rootTopicPub, String rootTopicSub,
-            MqttCallback callback) throws MqttException {
+            MqttCallback callback) {
 
         this.host = host;
         this.port = port;
@@ -95,43 +91,35 @@ public class MqttContext {
         this.rootTopicPub = rootTopicPub;
         this.rootTopicSub = rootTopicSub;
         this.callback = callback;
-
-        /* only authenticate if both credentials are present */
-        if (username != null && password != null) {
-            client = new MqttClient("tcp://" + username + ":" + password + "@" + host + ":" + port, clientId);
-        } else {
-            if (username != null) {
-                // Bad idea to have no password
-                logger.warn("Missing MQTT password, connecting unauthenticated. This behavior will not be allowed in future releases.");
-            }
-            client = new MqttClient("tcp://" + host + ":" + port, clientId);
-        }
     }
 
-    public void start() throws MqttException {
+    public synchronized void start() throws MqttException {
 
         ThreadContext.push("start");
         Marker m = new Marker("start");
 
         try {
 
-            MqttConnectOptions options = new MqttConnectOptions();
-            options.setAutomaticReconnect(true);
-            options.setCleanSession(true);
-            options.setConnectionTimeout(10);
-            options.setUserName(username);
+            if (session != null) {
+                // Already started
+                return;
+            }
 
-            // https://github.com/eclipse/paho.mqtt.java/issues/804
-            // https://github.com/home-climate-control/dz/issues/148
+            session = MqttSessionRegistry.acquire(host, port, username, password);
 
-            if (password != null) {
-                options.setPassword(password.toCharArray());
-            }
+            try {
+
+                session.connect();
 
-            client.setCallback(callback);
-            client.connect(options);
+                if (rootTopicSub != null) {
+                    session.subscribe(rootTopicSub, callback);
+                }
 
-            client.subscribe(rootTopicSub, QOS);
+            } catch (MqttException ex) {
+
+                release();
+                throw ex;
+            }
 
         } finally {
 
@@ -141,16 +129,47 @@ public class MqttContext {
     }
 
     public void publish(String topic, MqttMessage message) throws MqttException, MqttPersistenceException {
-        client.publish(topic, message);
+
+        MqttSession current = getSession();
+
+        if (current == null) {
+            throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+        }
+
+        current.publish(topic, message);
     }
 
-    public void disconnect() throws MqttException {
-        client.disconnect();
+    /**
+     * Stop receiving messages and release the session. The connection is closed when the last component
+     * sharing it is gone. {@link #start()} can be called again afterwards.
+     *
+     * @throws MqttException if things go sour.
+     */
+    public synchronized void disconnect() throws MqttException {
+        release();
     }
 
     public void close() throws MqttException {
-        client.disconnect();
-        client.close();
+        disconnect();
+    }
+
+    private void release() throws MqttException {
+
+        if (session == null) {
+            return;
+        }
+
+        try {
+
+            if (rootTopicSub != null) {
+                session.unsubscribe(rootTopicSub, callback);
+            }
+
+        } finally {
+
+            MqttSessionRegistry.release(session);
+            session = null;
+        }
     }
 
     /**
@@ -158,29 +177,49 @@ public class MqttContext {
      */
     public void reconnect() {
 
-        ThreadContext.push("reconnect");
-        try {
+        MqttSession current = getSession();
 
-            if (client.isConnected()) {
-                // nothing to do
-                return;
-            }
+        if (current == null) {
+            logger.warn("reconnect() called before start(), ignored");
+            return;
+        }
+
+        current.reconnect();
+    }
 
-            logger.warn("hmm, lost connection... Did we sleep? Is the broker still up?");
-            client.connect();
-            client.subscribe(rootTopicSub);
+    private synchronized MqttSession getSession() {
+        return session;
+    }
 
-        } catch (MqttException ex) {
+    /**
+     * @return Total number of messages received by the shared session, {@code 0} if not started.
+     */
+    public long getSessionMessages() {
+        MqttSession current = getSession();
+        return current == null ? 0 : current.getMessages();
+    }
 
-            // We don't have any option other than keep trying in a bit; this method will be
-            // called again shortly. Devices will be marked as stale anyway, no big loss
-            // unless they're mission critical - but those better be connected in a more
-            // direct way.
+    /**
+     * @return Messages per second received by the shared session, averaged over the last minute, {@code 0} if not started.
+     */
+    public double getSessionMessageRate() {
+        MqttSession current = getSession();
+        return current == null ? 0 : current.getMessageRate();
+    }
 
-            logger.error("failed to reconnect(), nothing we can do now", ex);
+    /**
+     * @return Average time to dispatch a message to all the session's subscribers, microseconds, {@code 0} if not started.
+     */
+    public double getSessionDispatchMicros() {
+        MqttSession current = getSession();
+        return current == null ? 0 : current.getDispatchMicros();
+    }
 
-        } finally {
-            ThreadContext.pop();
-        }
+    /**
+     * @return Maximum time to dispatch a message to all the session's subscribers, microseconds, {@code 0} if not started.
+     */
+    public double getSessionDispatchMicrosMax() {
+        MqttSession current = getSession();
+        return current == null ? 0 : current.getDispatchMicrosMax();
     }
 }
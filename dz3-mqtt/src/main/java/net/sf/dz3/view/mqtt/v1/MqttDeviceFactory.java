@@ -25,7 +25,6 @@ import javax.json.JsonObject;
 import javax.json.JsonReader;
 import javax.json.JsonString;
 import java.io.ByteArrayInputStream;
-import java.math.BigDecimal;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
@@ -51,7 +50,7 @@ import java.util.concurrent.CountDownLatch;
  *
  * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2020
  */
-public class MqttDeviceFactory implements DeviceFactory2020, AutoCloseable, JmxAware {
+public class MqttDeviceFactory implements DeviceFactory2020, AutoCloseable, JmxAware, MqttSessionMetrics {
 
     protected final Logger logger = LogManager.getLogger(getClass());
 
@@ -197,6 +196,11 @@ public class MqttDeviceFactory implements DeviceFactory2020, AutoCloseable, JmxA
         }
     }
 
+    @Override
+    public MqttContext getMqttContext() {
+        return mqtt;
+    }
+
     @Override
     public JmxDescriptor getJmxDescriptor() {
         return new JmxDescriptor(
@@ -246,7 +250,24 @@ public class MqttDeviceFactory implements DeviceFactory2020, AutoCloseable, JmxA
             MqttContext.JsonTag.SIGNATURE.name,
             MqttContext.JsonTag.DEVICE_ID.name);
 
+    private final SensorPayloadParser parser = new SensorPayloadParser();
+
     void process(byte[] source) {
+
+        SensorPayloadParser.Payload fast = parser.parse(source);
+
+        if (fast != null) {
+            process(fast.entityType, fast.name, fast.signal, fast.timestamp, fast.signature, fast.deviceId);
+            return;
+        }
+
+        // Malformed, incomplete, or carrying something the streaming parser doesn't understand -
+        // let the full parser sort it out, and complain as appropriate
+
+        processTree(source);
+    }
+
+    private void processTree(byte[] source) {
         try (JsonReader reader = Json.createReader(new ByteArrayInputStream(source))) {
 
             JsonObject payload = reader.readObject();
@@ -280,16 +301,27 @@ public class MqttDeviceFactory implements DeviceFactory2020, AutoCloseable, JmxA
                 return;
             }
 
-            switch (entityType.getString()) {
+            process(
+                    entityType.getString(),
+                    name.getString(),
+                    signal.doubleValue(),
+                    timestamp == null ? 0 : timestamp.longValue(),
+                    signature == null ? null : signature.getString(),
+                    deviceId == null ? null : deviceId.getString());
+        }
+    }
 
-            case "sensor":
+    private void process(String entityType, String name, double signal, long timestamp, String signature, String deviceId) {
 
-                processSensorInput(name.getString(), signal.bigDecimalValue(), timestamp, signature, deviceId);
-                return;
+        switch (entityType) {
 
-            default:
-                logger.warn("can't process {} yet", entityType.getString());
-            }
+        case "sensor":
+
+            processSensorInput(name, signal, timestamp, signature, deviceId);
+            return;
+
+        default:
+            logger.warn("can't process {} yet", entityType);
         }
     }
 
@@ -318,12 +350,21 @@ public class MqttDeviceFactory implements DeviceFactory2020, AutoCloseable, JmxA
         return missing.isEmpty();
     }
 
+    /**
+     * Process the sensor input.
+     *
+     * @param name Sensor name.
+     * @param signal Sensor signal.
+     * @param timestamp Timestamp as reported by the device, {@code 0} if absent. Not used yet, device clocks can't be trusted.
+     * @param signature Signature as reported by the device, {@code null} if absent. Not used yet.
+     * @param deviceId Device ID as reported by the device, {@code null} if absent. Not used yet.
+     */
     void processSensorInput(
             String name,
-            BigDecimal signal,
-            JsonNumber timestamp,
-            JsonString signature,
-            JsonString deviceId) {
+            double signal,
+            long timestamp,
+            String signature,
+            String deviceId) {
         ThreadContext.push("processSensorInput");
         try {
 
@@ -335,8 +376,7 @@ public class MqttDeviceFactory implements DeviceFactory2020, AutoCloseable, JmxA
             }
 
             Sensor s = (Sensor) d;
-            double v = signal.doubleValue();
-            s.inject(new DataSample<Double>(s.getAddress(), s.getAddress(), v, null));
+            s.inject(new DataSample<Double>(s.getAddress(), s.getAddress(), signal, null));
 
         } finally {
             ThreadContext.pop();
@@ -0,0 +1,522 @@
+package net.sf.dz3.view.mqtt.v1;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.ThreadContext;
+import org.eclipse.paho.client.mqttv3.IMqttClient;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * A single broker session shared by all the components talking to the same broker with the same credentials.
+ *
+ * There is one {@link IMqttClient}, hence one network thread, one keepalive, and one broker side subscription
+ * per distinct topic filter. Components subscribe through the local dispatch table; broker side subscriptions
+ * are reference counted, the first local subscriber to a filter creates it, and the last one to leave removes it.
+ *
+ * Instances are obtained from, and returned to, {@link MqttSessionRegistry}.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+class MqttSession implements MqttCallbackExtended {
+
+    /**
+     * Quality of Service.
+     *
+     * @see MqttContext#QOS
+     */
+    static final int QOS = 0;
+
+    /**
+     * How long to wait before trying again if the subscriptions couldn't be restored after a reconnect.
+     */
+    static final long RESUBSCRIBE_RETRY_MILLIS = 10_000;
+
+    private final Logger logger = LogManager.getLogger(getClass());
+
+    /**
+     * Human readable session name, without the password.
+     */
+    final String name;
+
+    private final IMqttClient client;
+    private final String username;
+    private final String password;
+    private final LongSupplier clock;
+
+    /**
+     * Number of {@link MqttContext} instances using this session. Guarded by {@link MqttSessionRegistry}.
+     */
+    int users = 0;
+
+    /**
+     * Topic filter to local subscribers mapping. Guarded by {@code this}.
+     */
+    private final Map<String, Set<MqttCallback>> filter2callbacks = new LinkedHashMap<>();
+
+    /**
+     * Flattened {@link #filter2callbacks}, rebuilt on every change, read by the network thread without locking.
+     */
+    private volatile Subscription[] dispatchTable = new Subscription[0];
+
+    /**
+     * Set when the client reconnected on its own, and the broker side subscriptions (clean session) are gone.
+     */
+    private volatile boolean resubscribe = false;
+
+    /**
+     * Restores the subscriptions after the client reconnected on its own. Blocking calls are not welcome
+     * on the callback thread, and nobody else may be calling {@link #reconnect()}.
+     */
+    private final ScheduledExecutorService resubscriber;
+
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong dispatchErrors = new AtomicLong();
+    private final RateMeter rate = new RateMeter();
+
+    /**
+     * Exponentially weighted moving average of the dispatch time, nanoseconds. Guarded by {@link #rate}.
+     */
+    private double dispatchNanosAverage = 0;
+
+    /**
+     * Maximum dispatch time, nanoseconds. Guarded by {@link #rate}.
+     */
+    private long dispatchNanosMax = 0;
+
+    private static class Subscription {
+
+        final String filter;
+        final MqttCallback callback;
+
+        Subscription(String filter, MqttCallback callback) {
+            this.filter = filter;
+            this.callback = callback;
+        }
+    }
+
+    MqttSession(String name, IMqttClient client, String username, String password) {
+        this(name, client, username, password, System::currentTimeMillis);
+    }
+
+    MqttSession(String name, IMqttClient client, String username, String password, LongSupplier clock) {
+
+        this.name = name;
+        this.client = client;
+        this.username = username;
+        this.password = password;
+        this.clock = clock;
+
+        resubscriber = Executors.newSingleThreadScheduledExecutor(r -> {
+
+            Thread t = new Thread(r, "MqttSession resubscribe: " + name);
+            t.setDaemon(true);
+
+            return t;
+        });
+
+        client.setCallback(this);
+    }
+
+    /**
+     * Connect to the broker, unless already connected.
+     *
+     * @throws MqttException if things go sour.
+     */
+    synchronized void connect() throws MqttException {
+
+        if (client.isConnected()) {
+            return;
+        }
+
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setAutomaticReconnect(true);
+        options.setCleanSession(true);
+        options.setConnectionTimeout(10);
+        options.setUserName(username);
+
+        // https://github.com/eclipse/paho.mqtt.java/issues/804
+        // https://github.com/home-climate-control/dz/issues/148
+
+        if (password != null) {
+            options.setPassword(password.toCharArray());
+        }
+
+        logger.info("{}: connecting as {}", name, client.getClientId());
+
+        client.connect(options);
+        subscribeAll();
+    }
+
+    /**
+     * Check if connected. If not, reconnect. Restore the subscriptions if they were lost.
+     */
+    synchronized void reconnect() {
+
+        ThreadContext.push("reconnect");
+        try {
+
+            if (client.isConnected()) {
+
+                if (resubscribe) {
+                    subscribeAll();
+                }
+
+                return;
+            }
+
+            logger.warn("{}: hmm, lost connection... Did we sleep? Is the broker still up?", name);
+            client.connect();
+            subscribeAll();
+
+        } catch (MqttException ex) {
+
+            // We don't have any option other than keep trying in a bit; this method will be
+            // called again shortly. Devices will be marked as stale anyway, no big loss
+            // unless they're mission critical - but those better be connected in a more
+            // direct way.
+
+            logger.error("{}: failed to reconnect(), nothing we can do now", name, ex);
+
+        } finally {
+            ThreadContext.pop();
+        }
+    }
+
+    private void subscribeAll() throws MqttException {
+
+        resubscribe = false;
+
+        try {
+
+            for (String filter : filter2callbacks.keySet()) {
+                client.subscribe(filter, QOS);
+            }
+
+        } catch (MqttException ex) {
+
+            // Not done yet
+            resubscribe = true;
+            throw ex;
+        }
+    }
+
+    /**
+     * Restore the subscriptions if the client reconnected on its own. Runs on {@link #resubscriber}.
+     */
+    private synchronized void resubscribe() {
+
+        ThreadContext.push("resubscribe");
+        try {
+
+            if (!resubscribe || !client.isConnected()) {
+
+                // Either done already, or connectComplete() will be called again
+                return;
+            }
+
+            subscribeAll();
+            logger.info("{}: {} subscriptions restored", name, filter2callbacks.size());
+
+        } catch (MqttException ex) {
+
+            logger.error("{}: failed to restore subscriptions, will try again in {}ms", name, RESUBSCRIBE_RETRY_MILLIS, ex);
+            schedule(RESUBSCRIBE_RETRY_MILLIS);
+
+        } finally {
+            ThreadContext.pop();
+        }
+    }
+
+    private void schedule(long delayMillis) {
+
+        try {
+            resubscriber.schedule(this::resubscribe, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            // Closed, nothing to restore anymore
+        }
+    }
+
+    /**
+     * Add a local subscriber. Subscribe with the broker if this is the first subscriber to this filter.
+     *
+     * @param filter Topic filter.
+     * @param callback Subscriber.
+     *
+     * @throws MqttException if things go sour.
+     */
+    synchronized void subscribe(String filter, MqttCallback callback) throws MqttException {
+
+        Set<MqttCallback> callbacks = filter2callbacks.computeIfAbsent(filter, k -> new LinkedHashSet<>());
+
+        if (!callbacks.add(callback)) {
+            return;
+        }
+
+        if (callbacks.size() == 1 && client.isConnected()) {
+            client.subscribe(filter, QOS);
+        }
+
+        rebuild();
+    }
+
+    /**
+     * Remove a local subscriber. Unsubscribe from the broker if this was the last subscriber to this filter.
+     *
+     * @param filter Topic filter.
+     * @param callback Subscriber.
+     *
+     * @throws MqttException if things go sour.
+     */
+    synchronized void unsubscribe(String filter, MqttCallback callback) throws MqttException {
+
+        Set<MqttCallback> callbacks = filter2callbacks.get(filter);
+
+        if (callbacks == null || !callbacks.remove(callback)) {
+            return;
+        }
+
+        if (callbacks.isEmpty()) {
+
+            filter2callbacks.remove(filter);
+
+            if (client.isConnected()) {
+                client.unsubscribe(filter);
+            }
+        }
+
+        rebuild();
+    }
+
+    private void rebuild() {
+
+        List<Subscription> result = new ArrayList<>();
+
+        for (Map.Entry<String, Set<MqttCallback>> entry : filter2callbacks.entrySet()) {
+            for (MqttCallback callback : entry.getValue()) {
+                result.add(new Subscription(entry.getKey(), callback));
+            }
+        }
+
+        dispatchTable = result.toArray(new Subscription[0]);
+    }
+
+    /**
+     * @return Number of distinct topic filters subscribed to with the broker.
+     */
+    synchronized int getFilterCount() {
+        return filter2callbacks.size();
+    }
+
+    void publish(String topic, MqttMessage message) throws MqttException {
+        client.publish(topic, message);
+    }
+
+    /**
+     * Disconnect and release the client. Called by {@link MqttSessionRegistry} when the last user leaves.
+     */
+    synchronized void close() {
+
+        resubscriber.shutdownNow();
+
+        try {
+
+            if (client.isConnected()) {
+                client.disconnect();
+            }
+
+            client.close();
+
+        } catch (MqttException ex) {
+            logger.error("{}: can't close cleanly, nothing we can do about it", name, ex);
+        }
+    }
+
+    @Override
+    public void connectionLost(Throwable cause) {
+
+        logger.warn("{}: connection lost", name, cause);
+
+        Set<MqttCallback> seen = new LinkedHashSet<>();
+
+        for (Subscription s : dispatchTable) {
+
+            if (!seen.add(s.callback)) {
+                continue;
+            }
+
+            try {
+                s.callback.connectionLost(cause);
+            } catch (Throwable t) {
+                logger.error("{}: {} failed to handle lost connection", name, s.callback, t);
+            }
+        }
+    }
+
+    @Override
+    public void connectComplete(boolean reconnect, String serverURI) {
+
+        if (reconnect) {
+
+            // Clean session, the broker has forgotten our subscriptions. Not resubscribing right here,
+            // blocking calls are not welcome on the callback thread.
+
+            logger.info("{}: reconnected, subscriptions will be restored", name);
+            resubscribe = true;
+            schedule(0);
+        }
+    }
+
+    @Override
+    public void messageArrived(String topic, MqttMessage message) {
+
+        long start = System.nanoTime();
+
+        for (Subscription s : dispatchTable) {
+
+            if (!MqttTopic.isMatched(s.filter, topic)) {
+                continue;
+            }
+
+            try {
+
+                s.callback.messageArrived(topic, message);
+
+            } catch (Throwable t) {
+
+                // VT: NOTE: According to the docs, throwing an exception here will shut down the client,
+                // and every component sharing it will go down with it - can't afford that
+
+                dispatchErrors.incrementAndGet();
+                logger.error("{}: {} failed to handle message on {}", name, s.callback, topic, t);
+            }
+        }
+
+        long elapsed = System.nanoTime() - start;
+
+        messages.incrementAndGet();
+
+        synchronized (rate) {
+
+            rate.count(clock.getAsLong());
+
+            dispatchNanosAverage = dispatchNanosAverage == 0 ? elapsed : dispatchNanosAverage * 0.9 + elapsed * 0.1;
+            dispatchNanosMax = Math.max(dispatchNanosMax, elapsed);
+        }
+    }
+
+    @Override
+    public void deliveryComplete(IMqttDeliveryToken token) {
+        // VT: NOTE: Nothing to do here
+    }
+
+    /**
+     * @return Total number of messages received.
+     */
+    long getMessages() {
+        return messages.get();
+    }
+
+    /**
+     * @return Number of exceptions thrown by local subscribers.
+     */
+    long getDispatchErrors() {
+        return dispatchErrors.get();
+    }
+
+    /**
+     * @return Messages per second, averaged over the last minute.
+     */
+    double getMessageRate() {
+        synchronized (rate) {
+            return rate.getRate(clock.getAsLong());
+        }
+    }
+
+    /**
+     * @return Average time to dispatch a message to all the local subscribers, microseconds.
+     */
+    double getDispatchMicros() {
+        synchronized (rate) {
+            return dispatchNanosAverage / 1000;
+        }
+    }
+
+    /**
+     * @return Maximum time to dispatch a message to all the local subscribers, microseconds.
+     */
+    double getDispatchMicrosMax() {
+        synchronized (rate) {
+            return dispatchNanosMax / 1000d;
+        }
+    }
+
+    /**
+     * Per second message counts for the last minute. Not thread safe.
+     */
+    static class RateMeter {
+
+        private final long[] buckets = new long[60];
+        private long lastSecond = -1;
+
+        void count(long now) {
+
+            long second = advance(now);
+
+            buckets[(int) (second % buckets.length)]++;
+        }
+
+        double getRate(long now) {
+
+            advance(now);
+
+            long total = 0;
+
+            for (long count : buckets) {
+                total += count;
+            }
+
+            return (double) total / buckets.length;
+        }
+
+        private long advance(long now) {
+
+            long second = now / 1000;
+
+            if (lastSecond < 0 || second - lastSecond >= buckets.length) {
+
+                for (int offset = 0; offset < buckets.length; offset++) {
+                    buckets[offset] = 0;
+                }
+
+            } else {
+
+                for (long s = lastSecond + 1; s <= second; s++) {
+                    buckets[(int) (s % buckets.length)] = 0;
+                }
+            }
+
+            lastSecond = Math.max(lastSecond, second);
+
+            return second;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package net.sf.dz3.view.mqtt.v1;
+
+import com.homeclimatecontrol.jukebox.jmx.JmxAttribute;
+
+/**
+ * JMX attributes of the shared MQTT session, for the components using it through {@link MqttContext}.
+ *
+ * Components sharing a session report the same values.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+public interface MqttSessionMetrics {
+
+    /**
+     * @return Context to report the session metrics of.
+     */
+    MqttContext getMqttContext();
+
+    @JmxAttribute(description = "Messages received by the shared MQTT session")
+    default long getSessionMessages() {
+        return getMqttContext().getSessionMessages();
+    }
+
+    @JmxAttribute(description = "Messages per second received by the shared MQTT session, last minute average")
+    default double getSessionMessageRate() {
+        return getMqttContext().getSessionMessageRate();
+    }
+
+    @JmxAttribute(description = "Average time to dispatch a message to all the shared MQTT session subscribers, microseconds")
+    default double getSessionDispatchMicros() {
+        return getMqttContext().getSessionDispatchMicros();
+    }
+
+    @JmxAttribute(description = "Maximum time to dispatch a message to all the shared MQTT session subscribers, microseconds")
+    default double getSessionDispatchMicrosMax() {
+        return getMqttContext().getSessionDispatchMicrosMax();
+    }
+}
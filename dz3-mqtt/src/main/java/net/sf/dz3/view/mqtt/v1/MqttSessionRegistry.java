@@ -0,0 +1,106 @@
+package net.sf.dz3.view.mqtt.v1;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.paho.client.mqttv3.IMqttClient;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Keeps one {@link MqttSession} per broker and credentials combination.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+final class MqttSessionRegistry {
+
+    private static final Logger logger = LogManager.getLogger(MqttSessionRegistry.class);
+
+    @FunctionalInterface
+    interface ClientFactory {
+        IMqttClient create(String serverURI, String clientId) throws MqttException;
+    }
+
+    private static final Map<String, MqttSession> key2session = new HashMap<>();
+
+    private MqttSessionRegistry() {
+    }
+
+    /**
+     * Get a session for the given broker and credentials, create it if there's none yet.
+     *
+     * Every call must be matched with a {@link #release(MqttSession)} call.
+     *
+     * @param host Host to connect to.
+     * @param port Port to connect to.
+     * @param username MQTT broker username, {@code null} if none.
+     * @param password MQTT broker password, {@code null} if none.
+     *
+     * @return Shared session, not necessarily connected yet.
+     *
+     * @throws MqttException if the client can't be created.
+     */
+    static MqttSession acquire(String host, int port, String username, String password) throws MqttException {
+        return acquire(host, port, username, password, MqttClient::new);
+    }
+
+    static synchronized MqttSession acquire(String host, int port, String username, String password, ClientFactory factory) throws MqttException {
+
+        String key = username + ":" + password + "@" + host + ":" + port;
+        MqttSession session = key2session.get(key);
+
+        if (session == null) {
+
+            // VT: FIXME: Provide an ability to generate and keep a persistent UUID
+            String clientId = UUID.randomUUID().toString();
+            IMqttClient client;
+
+            /* only authenticate if both credentials are present */
+            if (username != null && password != null) {
+                client = factory.create("tcp://" + username + ":" + password + "@" + host + ":" + port, clientId);
+            } else {
+                if (username != null) {
+                    // Bad idea to have no password
+                    logger.warn("Missing MQTT password, connecting unauthenticated. This behavior will not be allowed in future releases.");
+                }
+                client = factory.create("tcp://" + host + ":" + port, clientId);
+            }
+
+            session = new MqttSession((username == null ? "" : username + "@") + host + ":" + port, client, username, password);
+            key2session.put(key, session);
+
+            logger.info("{}: new session", session.name);
+        }
+
+        session.users++;
+
+        return session;
+    }
+
+    /**
+     * Return the session. Close it if this was the last user.
+     *
+     * @param session Session obtained from {@link #acquire(String, int, String, String)}.
+     */
+    static synchronized void release(MqttSession session) {
+
+        if (--session.users > 0) {
+            return;
+        }
+
+        key2session.values().remove(session);
+        session.close();
+
+        logger.info("{}: closed, last user left", session.name);
+    }
+
+    /**
+     * @return Number of sessions currently open.
+     */
+    static synchronized int size() {
+        return key2session.size();
+    }
+}
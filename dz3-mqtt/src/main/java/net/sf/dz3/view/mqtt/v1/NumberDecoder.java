@@ -0,0 +1,133 @@
+package net.sf.dz3.view.mqtt.v1;
+
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Pattern;
+
+/**
+ * Decodes plain text numeric MQTT payloads (like {@code 23.45} ESPHome sends) straight from bytes.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+class NumberDecoder {
+
+    /**
+     * Powers of ten exactly representable as {@code double}.
+     */
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /**
+     * Maximum number of significant digits that still fit into a {@code double} mantissa exactly.
+     */
+    private static final int MAX_DIGITS = 15;
+
+    /**
+     * What {@link java.math.BigDecimal#BigDecimal(String)} accepts: optional sign, digits with an optional decimal point,
+     * optional exponent.
+     */
+    private static final Pattern PLAIN = Pattern.compile("[+-]?(\\d+\\.?\\d*|\\.\\d+)([eE][+-]?\\d+)?");
+
+    private NumberDecoder() {
+    }
+
+    /**
+     * Decode the payload.
+     *
+     * Plain decimals with up to 15 significant digits (this covers everything sensors report) are decoded without
+     * allocating anything, with the same result {@link Double#parseDouble(String)} would produce. Anything else
+     * is handed over to {@link Double#parseDouble(String)}, but only if it is a number {@link java.math.BigDecimal}
+     * would accept - surrounding whitespace, {@code NaN}, {@code Infinity}, hexadecimal and {@code d}/{@code f}
+     * suffixes are rejected.
+     *
+     * @param source Payload.
+     *
+     * @return Decoded value, always finite.
+     *
+     * @throws NumberFormatException if the payload is not a plain number, or is out of {@code double} range.
+     */
+    static double parseDouble(byte[] source) {
+
+        int length = source.length;
+        int offset = 0;
+        boolean negative = false;
+
+        if (length > 0 && (source[0] == '-' || source[0] == '+')) {
+            negative = source[0] == '-';
+            offset++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean dot = false;
+        boolean any = false;
+
+        for (; offset < length; offset++) {
+
+            byte b = source[offset];
+
+            if (b >= '0' && b <= '9') {
+
+                any = true;
+
+                if (mantissa == 0 && b == '0') {
+
+                    // Leading zeros are not significant
+                    if (dot) {
+                        scale++;
+                    }
+
+                    continue;
+                }
+
+                if (++digits > MAX_DIGITS) {
+                    return slow(source);
+                }
+
+                mantissa = mantissa * 10 + (b - '0');
+
+                if (dot) {
+                    scale++;
+                }
+
+            } else if (b == '.' && !dot) {
+                dot = true;
+            } else {
+                // Exponent, whitespace, NaN, garbage - not worth the trouble
+                return slow(source);
+            }
+        }
+
+        if (!any) {
+            return slow(source);
+        }
+
+        if (scale >= POWERS_OF_TEN.length) {
+            return slow(source);
+        }
+
+        // Both operands are exact, hence the quotient is correctly rounded
+        double result = mantissa / POWERS_OF_TEN[scale];
+
+        return negative ? -result : result;
+    }
+
+    private static double slow(byte[] source) {
+
+        String value = new String(source, StandardCharsets.US_ASCII);
+
+        if (!PLAIN.matcher(value).matches()) {
+            throw new NumberFormatException("not a plain number: '" + value + "'");
+        }
+
+        double result = Double.parseDouble(value);
+
+        if (!Double.isFinite(result)) {
+            throw new NumberFormatException("out of range: '" + value + "'");
+        }
+
+        return result;
+    }
+}
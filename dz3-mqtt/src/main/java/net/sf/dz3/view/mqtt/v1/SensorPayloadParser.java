@@ -0,0 +1,179 @@
+package net.sf.dz3.view.mqtt.v1;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParserFactory;
+import java.io.ByteArrayInputStream;
+import java.util.NoSuchElementException;
+
+/**
+ * Streaming parser for the flat JSON payload sensors are reporting with.
+ *
+ * The typical payload looks like this:
+ *
+ * <pre>
+ * {"entity_type":"sensor","name":"28C06879A20003CE","signature":"T28C06879A20003CE","signal":23.50,"device_id":"ESP8266-00621CC5"}
+ * </pre>
+ *
+ * Only the fields listed in {@link MqttContext.JsonTag} are extracted, straight into a {@link Payload},
+ * without building the object tree and without going through {@code BigDecimal} for the signal.
+ *
+ * This parser is deliberately strict - anything it doesn't fully understand (malformed JSON, nested objects or arrays,
+ * unexpected value types, missing mandatory fields) makes it give up and return {@code null}, and it is up to the caller
+ * to fall back to the full tree parser which knows how to complain about all of these properly.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+class SensorPayloadParser {
+
+    /**
+     * Parsed payload.
+     */
+    static class Payload {
+
+        public final String entityType;
+        public final String name;
+        public final double signal;
+
+        /**
+         * Timestamp, or {@code 0} if absent.
+         */
+        public final long timestamp;
+        public final String signature;
+        public final String deviceId;
+
+        Payload(String entityType, String name, double signal, long timestamp, String signature, String deviceId) {
+
+            this.entityType = entityType;
+            this.name = name;
+            this.signal = signal;
+            this.timestamp = timestamp;
+            this.signature = signature;
+            this.deviceId = deviceId;
+        }
+    }
+
+    /**
+     * Looking up the provider on every {@code Json.createParser()} call is expensive, hence the cached factory.
+     */
+    private final JsonParserFactory factory = Json.createParserFactory(null);
+
+    /**
+     * Parse the payload.
+     *
+     * @param source Payload bytes.
+     *
+     * @return Parsed payload, or {@code null} if the payload has to be handled by the full parser.
+     */
+    @java.lang.SuppressWarnings({"squid:S1168"})
+    Payload parse(byte[] source) {
+
+        try (JsonParser parser = factory.createParser(new ByteArrayInputStream(source))) {
+
+            if (!parser.hasNext() || parser.next() != JsonParser.Event.START_OBJECT) {
+                return null;
+            }
+
+            String entityType = null;
+            String name = null;
+            double signal = 0;
+            boolean signalPresent = false;
+            long timestamp = 0;
+            String signature = null;
+            String deviceId = null;
+
+            while (true) {
+
+                JsonParser.Event event = parser.next();
+
+                if (event == JsonParser.Event.END_OBJECT) {
+                    break;
+                }
+
+                if (event != JsonParser.Event.KEY_NAME) {
+                    return null;
+                }
+
+                String key = parser.getString();
+                JsonParser.Event value = parser.next();
+
+                switch (key) {
+
+                case "entity_type":
+
+                    if (value != JsonParser.Event.VALUE_STRING) {
+                        return null;
+                    }
+
+                    entityType = parser.getString();
+                    break;
+
+                case "name":
+
+                    if (value != JsonParser.Event.VALUE_STRING) {
+                        return null;
+                    }
+
+                    name = parser.getString();
+                    break;
+
+                case "signal":
+
+                    if (value != JsonParser.Event.VALUE_NUMBER) {
+                        return null;
+                    }
+
+                    signal = Double.parseDouble(parser.getString());
+                    signalPresent = true;
+                    break;
+
+                case "timestamp":
+
+                    if (value != JsonParser.Event.VALUE_NUMBER || !parser.isIntegralNumber()) {
+                        return null;
+                    }
+
+                    timestamp = parser.getLong();
+                    break;
+
+                case "signature":
+
+                    if (value != JsonParser.Event.VALUE_STRING) {
+                        return null;
+                    }
+
+                    signature = parser.getString();
+                    break;
+
+                case "device_id":
+
+                    if (value != JsonParser.Event.VALUE_STRING) {
+                        return null;
+                    }
+
+                    deviceId = parser.getString();
+                    break;
+
+                default:
+
+                    // Unknown scalars are fine, anything structured is an extension we don't know about
+                    if (value == JsonParser.Event.START_OBJECT || value == JsonParser.Event.START_ARRAY) {
+                        return null;
+                    }
+                }
+            }
+
+            if (parser.hasNext() || entityType == null || name == null || !signalPresent) {
+                return null;
+            }
+
+            return new Payload(entityType, name, signal, timestamp, signature, deviceId);
+
+        } catch (JsonException | IllegalStateException | NoSuchElementException | NumberFormatException ex) {
+
+            // JsonParsingException is a JsonException; the rest are thrown on truncated input
+            return null;
+        }
+    }
+}
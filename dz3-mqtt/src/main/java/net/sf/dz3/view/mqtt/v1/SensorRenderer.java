@@ -1,13 +1,8 @@
 package net.sf.dz3.view.mqtt.v1;
 
-import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 
-import javax.json.Json;
-import javax.json.JsonObject;
-import javax.json.JsonObjectBuilder;
-import javax.json.JsonWriter;
-
 import net.sf.dz3.device.sensor.AnalogSensor;
 import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSample;
 import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSink;
@@ -20,6 +15,15 @@ import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSink;
  */
 public class SensorRenderer extends QueueFeeder<UpstreamBlock> implements DataSink<Double>, JsonRenderer<DataSample<Double>> {
 
+    private static final JsonTemplate TEMPLATE = new JsonTemplate("entityType", "timestamp", "name", "signature", "signal", "error");
+
+    private static final int ENTITY_TYPE = 0;
+    private static final int TIMESTAMP = 1;
+    private static final int NAME = 2;
+    private static final int SIGNATURE = 3;
+    private static final int SIGNAL = 4;
+    private static final int ERROR = 5;
+
     private final AnalogSensor source;
 
     public SensorRenderer(AnalogSensor source, Map<String, Object> context) {
@@ -40,7 +44,7 @@ public class SensorRenderer extends QueueFeeder<UpstreamBlock> implements DataSi
 
     @Override
     public void consume(DataSample<Double> signal) {
-        emit(new UpstreamBlock(getTopic(), render(signal)));
+        emit(new UpstreamBlock(getTopic(), renderBytes(signal)));
     }
 
     /**
@@ -48,30 +52,30 @@ public class SensorRenderer extends QueueFeeder<UpstreamBlock> implements DataSi
      */
     @Override
     public String render(DataSample<Double> source) {
+        return new String(renderBytes(source), StandardCharsets.UTF_8);
+    }
 
-        JsonObjectBuilder b = Json.createObjectBuilder();
+    /**
+     * Render a simple JSON representation, UTF-8 encoded, ready to be sent.
+     */
+    byte[] renderBytes(DataSample<Double> source) {
+
+        JsonTemplate.Writer w = TEMPLATE.begin();
 
-        b.add("entityType", MqttConnector.EntityType.SENSOR.toString());
-        b.add("timestamp", source.timestamp);
-        b.add("name", source.sourceName);
-        b.add("signature", source.signature);
+        w.add(ENTITY_TYPE, MqttConnector.EntityType.SENSOR.toString());
+        w.add(TIMESTAMP, source.timestamp);
+        w.add(NAME, source.sourceName);
+        w.add(SIGNATURE, source.signature);
 
         if (!source.isError()) {
 
-            b.add("signal", source.sample);
+            w.add(SIGNAL, source.sample);
 
         } else {
 
-            b.add("error", source.error.getMessage());
+            w.add(ERROR, source.error.getMessage());
         }
 
-        JsonObject message = b.build();
-        StringWriter sw = new StringWriter();
-        JsonWriter jw = Json.createWriter(sw);
-
-        jw.writeObject(message);
-        jw.close();
-
-        return sw.toString();
+        return w.toByteArray();
     }
 }
@@ -1,13 +1,8 @@
 package net.sf.dz3.view.mqtt.v1;
 
-import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 
-import javax.json.Json;
-import javax.json.JsonObject;
-import javax.json.JsonObjectBuilder;
-import javax.json.JsonWriter;
-
 import net.sf.dz3.device.sensor.Switch;
 import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSample;
 import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSink;
@@ -20,6 +15,16 @@ import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSink;
  */
 public class SwitchRenderer extends QueueFeeder<UpstreamBlock> implements DataSink<Boolean>, JsonRenderer<DataSample<Boolean>> {
 
+    private static final JsonTemplate TEMPLATE = new JsonTemplate("entityType", "timestamp", "name", "signature", "state", "error", "id");
+
+    private static final int ENTITY_TYPE = 0;
+    private static final int TIMESTAMP = 1;
+    private static final int NAME = 2;
+    private static final int SIGNATURE = 3;
+    private static final int STATE = 4;
+    private static final int ERROR = 5;
+    private static final int ID = 6;
+
     private final Switch source;
 
     public SwitchRenderer(Switch source, Map<String, Object> context) {
@@ -40,7 +45,7 @@ public class SwitchRenderer extends QueueFeeder<UpstreamBlock> implements DataSi
 
     @Override
     public void consume(DataSample<Boolean> signal) {
-        emit(new UpstreamBlock(getTopic(), render(signal)));
+        emit(new UpstreamBlock(getTopic(), renderBytes(signal)));
     }
 
     /**
@@ -48,25 +53,32 @@ public class SwitchRenderer extends QueueFeeder<UpstreamBlock> implements DataSi
      */
     @Override
     public String render(DataSample<Boolean> source) {
+        return new String(renderBytes(source), StandardCharsets.UTF_8);
+    }
 
-        JsonObjectBuilder b = Json.createObjectBuilder();
+    /**
+     * Render a simple JSON representation, UTF-8 encoded, ready to be sent.
+     */
+    byte[] renderBytes(DataSample<Boolean> source) {
+
+        JsonTemplate.Writer w = TEMPLATE.begin();
         StringBuilder sb = new StringBuilder();
 
-        b.add("entityType", MqttConnector.EntityType.SWITCH.toString());
-        b.add("timestamp", source.timestamp);
-        b.add("name", source.sourceName);
-        b.add("signature", source.signature);
+        w.add(ENTITY_TYPE, MqttConnector.EntityType.SWITCH.toString());
+        w.add(TIMESTAMP, source.timestamp);
+        w.add(NAME, source.sourceName);
+        w.add(SIGNATURE, source.signature);
 
         sb.append(source.timestamp).append(":").append(source.sourceName).append(":").append(source.signature).append(":");
 
         if (!source.isError()) {
 
-            b.add("state", source.sample);
+            w.add(STATE, source.sample);
             sb.append(source.sample);
 
         } else {
 
-            b.add("error", source.error.getMessage());
+            w.add(ERROR, source.error.getMessage());
             sb.append(source.error.getMessage());
         }
 
@@ -74,15 +86,8 @@ public class SwitchRenderer extends QueueFeeder<UpstreamBlock> implements DataSi
         // If fault tolerance is required, the sender must look for acknowledgement
         // using "reply-to" key received elsewhere that matches this ID.
 
-        b.add("id", getMessageDigest(sb.toString()));
-
-        JsonObject message = b.build();
-        StringWriter sw = new StringWriter();
-        JsonWriter jw = Json.createWriter(sw);
-
-        jw.writeObject(message);
-        jw.close();
+        w.add(ID, getMessageDigest(sb.toString()));
 
-        return sw.toString();
+        return w.toByteArray();
     }
 }
@@ -1,13 +1,8 @@
 package net.sf.dz3.view.mqtt.v1;
 
-import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 
-import javax.json.Json;
-import javax.json.JsonObject;
-import javax.json.JsonObjectBuilder;
-import javax.json.JsonWriter;
-
 import org.apache.logging.log4j.LogManager;
 import org.joda.time.DateTime;
 
@@ -32,6 +27,31 @@ import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSink;
 
 public class ThermostatRenderer extends QueueFeeder<UpstreamBlock> implements DataSink<ThermostatSignal>, JsonRenderer<DataSample<ThermostatSignal>> {
 
+    private static final JsonTemplate TEMPLATE = new JsonTemplate(
+            "entityType", "timestamp", "name", "signature", "mode", "state",
+            "thermostatSignal", "currentTemperature", "setpointTemperature",
+            "enabled", "onHold", "voting", "periodName",
+            "deviation.setpoint", "deviation.enabled", "deviation.voting",
+            "error");
+
+    private static final int ENTITY_TYPE = 0;
+    private static final int TIMESTAMP = 1;
+    private static final int NAME = 2;
+    private static final int SIGNATURE = 3;
+    private static final int MODE = 4;
+    private static final int STATE = 5;
+    private static final int THERMOSTAT_SIGNAL = 6;
+    private static final int CURRENT_TEMPERATURE = 7;
+    private static final int SETPOINT_TEMPERATURE = 8;
+    private static final int ENABLED = 9;
+    private static final int ON_HOLD = 10;
+    private static final int VOTING = 11;
+    private static final int PERIOD_NAME = 12;
+    private static final int DEVIATION_SETPOINT = 13;
+    private static final int DEVIATION_ENABLED = 14;
+    private static final int DEVIATION_VOTING = 15;
+    private static final int ERROR = 16;
+
     private final ThermostatModel source;
     private final Scheduler scheduler;
     
@@ -59,7 +79,7 @@ public class ThermostatRenderer extends QueueFeeder<UpstreamBlock> implements Da
     @Override
     public void consume(DataSample<ThermostatSignal> signal) {
         
-        emit(new UpstreamBlock(getTopic(), render(signal)));
+        emit(new UpstreamBlock(getTopic(), renderBytes(signal)));
     }
 
     /**
@@ -84,6 +104,13 @@ public class ThermostatRenderer extends QueueFeeder<UpstreamBlock> implements Da
 
     @Override
     public String render(DataSample<ThermostatSignal> signal) {
+        return new String(renderBytes(signal), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Render a JSON representation, UTF-8 encoded, ready to be sent.
+     */
+    byte[] renderBytes(DataSample<ThermostatSignal> signal) {
         
         String name = source.getName();
         // VT: FIXME: Is it even possible to use anything other than PID controller?
@@ -123,40 +150,33 @@ public class ThermostatRenderer extends QueueFeeder<UpstreamBlock> implements Da
         
         Deviation deviation = scheduler == null ? new Deviation(0, false, false) : scheduler.getDeviation(source, setpointTemperature, enabled, voting, new DateTime(signal.timestamp));
             
-        JsonObjectBuilder b = Json.createObjectBuilder();
-
-        b.add("entityType", MqttConnector.EntityType.THERMOSTAT.toString());
-        b.add("timestamp", signal.timestamp);
-        b.add("name", name);
-        b.add("signature", signal.signature);
-        b.add("mode", mode.description);
-        b.add("state", state.toString());
-        b.add("thermostatSignal", thermostatSignal);
-        b.add("currentTemperature", currentTemperature);
-        b.add("setpointTemperature", setpointTemperature);
-        b.add("enabled", enabled);
-        b.add("onHold", onHold);
-        b.add("voting", voting);
+        JsonTemplate.Writer w = TEMPLATE.begin();
+
+        w.add(ENTITY_TYPE, MqttConnector.EntityType.THERMOSTAT.toString());
+        w.add(TIMESTAMP, signal.timestamp);
+        w.add(NAME, name);
+        w.add(SIGNATURE, signal.signature);
+        w.add(MODE, mode.description);
+        w.add(STATE, state.toString());
+        w.add(THERMOSTAT_SIGNAL, thermostatSignal);
+        w.add(CURRENT_TEMPERATURE, currentTemperature);
+        w.add(SETPOINT_TEMPERATURE, setpointTemperature);
+        w.add(ENABLED, enabled);
+        w.add(ON_HOLD, onHold);
+        w.add(VOTING, voting);
 
         if (periodName != null) {
-            b.add("periodName", periodName);
+            w.add(PERIOD_NAME, periodName);
         }
 
-        b.add("deviation.setpoint", deviation.setpoint);
-        b.add("deviation.enabled", deviation.enabled);
-        b.add("deviation.voting", deviation.voting);
+        w.add(DEVIATION_SETPOINT, deviation.setpoint);
+        w.add(DEVIATION_ENABLED, deviation.enabled);
+        w.add(DEVIATION_VOTING, deviation.voting);
 
         if (error != null) {
-            b.add("error", error);
+            w.add(ERROR, error);
         }
 
-        JsonObject message = b.build();
-        StringWriter sw = new StringWriter();
-        JsonWriter jw = Json.createWriter(sw);
-
-        jw.writeObject(message);
-        jw.close();
-
-        return sw.toString();
+        return w.toByteArray();
     }
 }
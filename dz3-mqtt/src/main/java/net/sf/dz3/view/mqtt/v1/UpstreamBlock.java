@@ -1,5 +1,7 @@
 package net.sf.dz3.view.mqtt.v1;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * Block of information to send to MQTT broker.
  *
@@ -13,9 +15,9 @@ public class UpstreamBlock {
     public final String topic;
 
     /**
-     * JSON payload representing the object state.
+     * JSON payload representing the object state, UTF-8 encoded.
      */
-    public final String payload;
+    public final byte[] payload;
 
     /**
      * Create an instance.
@@ -24,7 +26,17 @@ public class UpstreamBlock {
      * @param payload JSON payload representing the object state.
      */
     public UpstreamBlock(String topic, String payload) {
-        
+        this(topic, payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Create an instance.
+     *
+     * @param topic Topic relative to the root topic.
+     * @param payload JSON payload representing the object state, UTF-8 encoded.
+     */
+    public UpstreamBlock(String topic, byte[] payload) {
+
         this.topic = topic;
         this.payload = payload;
     }
@@ -35,7 +47,7 @@ public class UpstreamBlock {
         StringBuilder sb = new StringBuilder();
 
         sb.append("topic=").append(topic).append(", ");
-        sb.append(payload);
+        sb.append(new String(payload, StandardCharsets.UTF_8));
 
         return sb.toString();
     }
@@ -4,6 +4,7 @@ import net.sf.dz3.device.model.HvacMode;
 import net.sf.dz3.device.model.ZoneState;
 
 import java.io.Serializable;
+import java.util.Objects;
 
 /**
  * Zone snapshot.
@@ -50,6 +51,11 @@ public class ZoneSnapshot implements Comparable<ZoneSnapshot>, Serializable {
 
     public String error;
 
+    /**
+     * Cached {@link #hashCode()}, {@code 0} if not computed yet. Not serialized.
+     */
+    private transient int hash;
+
     /**
      * Useless, but mandatory constructor.
      */
@@ -103,30 +109,131 @@ public class ZoneSnapshot implements Comparable<ZoneSnapshot>, Serializable {
         this.error = error;
     }
 
+    /**
+     * Compare by timestamp, then by the {@link #toString() string representation}.
+     *
+     * The order is the same as of comparing {@code timestamp + "." + toString()} strings (that's how it was originally
+     * implemented), but fields are compared directly, and strings are only built when both the timestamp and
+     * the name are the same.
+     */
     @Override
     public int compareTo(ZoneSnapshot o) {
 
-//    	org.apache.log4j.Logger.getLogger(getClass()).error("ZoneSnapshot#toString", new IllegalStateException("Trace"));
+        int result = compareTimestamps(timestamp, o.timestamp);
+
+        if (result != 0) {
+            return result;
+        }
+
+        // toString() starts with name + ": ", compare that without building it
+        String us = String.valueOf(name);
+        String them = String.valueOf(o.name);
+        int length = Math.min(us.length(), them.length()) + NAME_SEPARATOR.length();
+
+        for (int offset = 0; offset < length; offset++) {
+
+            char c1 = nameCharAt(us, offset);
+            char c2 = nameCharAt(them, offset);
 
-    	String us = Long.toString(timestamp) + "." + this;
-    	String them = Long.toString(o.timestamp) + "." + o;
+            if (c1 != c2) {
+                return c1 - c2;
+            }
+        }
+
+        return toString().compareTo(o.toString());
+    }
 
-        return us.compareTo(them);
+    private static final String NAME_SEPARATOR = ": ";
+
+    private static char nameCharAt(String name, int offset) {
+        return offset < name.length() ? name.charAt(offset) : NAME_SEPARATOR.charAt(offset - name.length());
     }
 
+    /**
+     * Compare timestamps the way their decimal string representations compare.
+     */
+    private static int compareTimestamps(long t1, long t2) {
+
+        if (t1 == t2) {
+            return 0;
+        }
+
+        if (t1 >= 0 && t2 >= 0 && digits(t1) == digits(t2)) {
+            // Same length, string order is the same as numeric order
+            return Long.compare(t1, t2);
+        }
+
+        return Long.toString(t1).compareTo(Long.toString(t2));
+    }
+
+    private static int digits(long value) {
+
+        int result = 1;
+
+        while (value >= 10) {
+            value /= 10;
+            result++;
+        }
+
+        return result;
+    }
+
+    /**
+     * Snapshots are equal if everything except the {@link #timestamp} is equal.
+     */
     @Override
     public boolean equals(Object o) {
 
-        if (o == null) {
+        if (this == o) {
+            return true;
+        }
+
+        if (!(o instanceof ZoneSnapshot)) {
             return false;
         }
 
-        return toString().equals(o.toString());
+        ZoneSnapshot other = (ZoneSnapshot) o;
+
+        return hashCode() == other.hashCode()
+                && enabled == other.enabled
+                && onHold == other.onHold
+                && voting == other.voting
+                && deviationEnabled == other.deviationEnabled
+                && deviationVoting == other.deviationVoting
+                && mode == other.mode
+                && state == other.state
+                && Double.compare(signal, other.signal) == 0
+                && Double.compare(currentTemperature, other.currentTemperature) == 0
+                && Double.compare(setpointTemperature, other.setpointTemperature) == 0
+                && Double.compare(deviationSetpoint, other.deviationSetpoint) == 0
+                && Objects.equals(name, other.name)
+                && Objects.equals(periodName, other.periodName)
+                && Objects.equals(error, other.error);
     }
 
+    /**
+     * Computed once. Fields are public for the sake of serialization, but must not be modified once the instance
+     * has been put into a hashed collection.
+     */
     @Override
     public int hashCode() {
-        return toString().hashCode();
+
+        int result = hash;
+
+        if (result == 0) {
+
+            result = Objects.hash(
+                    name, mode, state,
+                    signal, currentTemperature, setpointTemperature,
+                    enabled, onHold, voting,
+                    periodName,
+                    deviationSetpoint, deviationEnabled, deviationVoting,
+                    error);
+
+            hash = result;
+        }
+
+        return result;
     }
 
     @Override
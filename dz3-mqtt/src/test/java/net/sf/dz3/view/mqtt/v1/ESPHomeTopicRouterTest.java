@@ -0,0 +1,198 @@
+package net.sf.dz3.view.mqtt.v1;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+class ESPHomeTopicRouterTest {
+
+    private final Logger logger = LogManager.getLogger(getClass());
+    private final Pattern p = Pattern.compile("(?<deviceId>.*)/sensor/(?<sensorName>.*)/state");
+
+    @Test
+    void sameAsRegex() throws IOException {
+
+        List<String> topics = new ArrayList<>();
+
+        for (String[] message : load()) {
+            topics.add(message[0]);
+        }
+
+        topics.add("/sensor//state");
+        topics.add("a/sensor/b/sensor/c/state");
+        topics.add("a/sensor/b/state/state");
+        topics.add("/sensor/state");
+        topics.add("/state");
+
+        for (String topic : topics) {
+
+            Matcher m = p.matcher(topic);
+            var binding = ESPHomeTopicRouter.parse(topic);
+
+            if (m.matches()) {
+                assertThat(binding).as(topic).isNotNull();
+                assertThat(binding.deviceId).as(topic).isEqualTo(m.group("deviceId"));
+                assertThat(binding.sensorName).as(topic).isEqualTo(m.group("sensorName"));
+            } else {
+                assertThat(binding).as(topic).isNull();
+            }
+        }
+    }
+
+    @Test
+    void cached() {
+
+        var router = new ESPHomeTopicRouter();
+        var topic = "/esphome/7AC96F/sensor/htu21df-bedroom-master-temperature/state";
+
+        var first = router.resolve(topic);
+
+        assertThat(first.signature).isEqualTo("/esphome/7AC96F/htu21df-bedroom-master-temperature");
+        assertThat(router.resolve(new String(topic))).isSameAs(first);
+
+        assertThat(router.resolve("/esphome/7AC96F/status")).isNull();
+        assertThat(router.resolve("/esphome/7AC96F/status")).isNull();
+        assertThat(router.size()).isEqualTo(2);
+    }
+
+    @Test
+    void decode() {
+
+        var rg = new Random(42);
+
+        for (String value : new String[] { "0", "-0", "23.5", "23.50", "-3.1", "+7", ".5", "1.", "1013.25", "0.000001", "123456789012345", "1234567890123456789", "1e3", "1E-3", "-2.5e+2", "-67" }) {
+            assertThat(NumberDecoder.parseDouble(value.getBytes(StandardCharsets.US_ASCII))).as(value).isEqualTo(Double.parseDouble(value));
+        }
+
+        for (int count = 0; count < 100_000; count++) {
+
+            var value = BigDecimal.valueOf(rg.nextInt(2_000_000) - 1_000_000, rg.nextInt(6)).toPlainString();
+
+            assertThat(NumberDecoder.parseDouble(value.getBytes(StandardCharsets.US_ASCII))).as(value).isEqualTo(Double.parseDouble(value));
+        }
+
+        assertThatExceptionOfType(NumberFormatException.class).isThrownBy(() -> NumberDecoder.parseDouble("nan".getBytes(StandardCharsets.US_ASCII)));
+        assertThatExceptionOfType(NumberFormatException.class).isThrownBy(() -> NumberDecoder.parseDouble(new byte[0]));
+        assertThatExceptionOfType(NumberFormatException.class).isThrownBy(() -> NumberDecoder.parseDouble("-".getBytes(StandardCharsets.US_ASCII)));
+
+        // Double.parseDouble() takes these, new BigDecimal() never did
+        for (String value : new String[] { "NaN", "Infinity", "-Infinity", " 23.5", "23.5 ", "23.5\n", "1d", "1f", "0x1p3", "1e400", "-1e400", ".", "1e", "1.2.3" }) {
+            assertThatExceptionOfType(NumberFormatException.class).as(value).isThrownBy(() -> NumberDecoder.parseDouble(value.getBytes(StandardCharsets.US_ASCII)));
+        }
+    }
+
+    /**
+     * Compare the regex and {@code BigDecimal} path with the router and the byte decoder, replaying the recorded traffic mix.
+     */
+    @Test
+    void throughput() throws IOException {
+
+        List<String[]> recorded = load();
+        int rounds = 20_000;
+
+        String[] topics = new String[recorded.size()];
+        byte[][] payloads = new byte[recorded.size()][];
+
+        for (int offset = 0; offset < topics.length; offset++) {
+            topics[offset] = recorded.get(offset)[0];
+            payloads[offset] = recorded.get(offset)[1].getBytes(StandardCharsets.UTF_8);
+        }
+
+        var router = new ESPHomeTopicRouter();
+
+        // Warm up both paths first
+        double sink = regex(topics, payloads, rounds) + router(router, topics, payloads, rounds);
+
+        long start = System.nanoTime();
+        double regex = regex(topics, payloads, rounds);
+        long regexNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        double routed = router(router, topics, payloads, rounds);
+        long routerNanos = System.nanoTime() - start;
+
+        long messages = (long) rounds * topics.length;
+
+        logger.info("{} messages: regex+BigDecimal {}ms ({} msg/s), router+bytes {}ms ({} msg/s), checksum {}",
+                messages,
+                regexNanos / 1_000_000, messages * 1_000_000_000L / regexNanos,
+                routerNanos / 1_000_000, messages * 1_000_000_000L / routerNanos,
+                sink);
+
+        assertThat(routed).isEqualTo(regex);
+    }
+
+    private double regex(String[] topics, byte[][] payloads, int rounds) {
+
+        double sum = 0;
+
+        for (int round = 0; round < rounds; round++) {
+            for (int offset = 0; offset < topics.length; offset++) {
+
+                // Fresh string, just like the MQTT client delivers it
+                Matcher m = p.matcher(new String(topics[offset]));
+
+                if (m.matches()) {
+                    m.group("deviceId");
+                    m.group("sensorName");
+                    sum += new BigDecimal(new String(payloads[offset])).doubleValue();
+                }
+            }
+        }
+
+        return sum;
+    }
+
+    private double router(ESPHomeTopicRouter router, String[] topics, byte[][] payloads, int rounds) {
+
+        double sum = 0;
+
+        for (int round = 0; round < rounds; round++) {
+            for (int offset = 0; offset < topics.length; offset++) {
+
+                var binding = router.resolve(new String(topics[offset]));
+
+                if (binding != null) {
+                    sum += NumberDecoder.parseDouble(payloads[offset]);
+                }
+            }
+        }
+
+        return sum;
+    }
+
+    private List<String[]> load() throws IOException {
+
+        List<String[]> result = new ArrayList<>();
+
+        try (var reader = new BufferedReader(new InputStreamReader(getClass().getClassLoader().getResourceAsStream("esphome-topics.txt"), StandardCharsets.UTF_8))) {
+
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                result.add(line.split("\t", 2));
+            }
+        }
+
+        return result;
+    }
+}
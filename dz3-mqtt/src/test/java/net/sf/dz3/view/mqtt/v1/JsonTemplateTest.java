@@ -0,0 +1,274 @@
+package net.sf.dz3.view.mqtt.v1;
+
+import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSample;
+import net.sf.dz3.device.model.ThermostatSignal;
+import net.sf.dz3.device.model.impl.ThermostatModel;
+import net.sf.dz3.device.sensor.AnalogSensor;
+import net.sf.dz3.device.sensor.Switch;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.Test;
+
+import javax.json.Json;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.mockito.Mockito.mock;
+
+class JsonTemplateTest {
+
+    private final Logger logger = LogManager.getLogger(getClass());
+
+    private static final String[] STRINGS = {
+            "", "sensor", "with \"quotes\"", "back\\slash", "slash/is/fine", "tab\there", "new\nline", "\b\f\r",
+            "\u0000\u0001\u001f", "\u007f", "caf\u00e9", "\u20ac 20", "\ud83c\udf21 thermometer", "lone \ud83c surrogate", "lone \udf21 too"
+    };
+
+    private static final double[] DOUBLES = {
+            0d, -0d, 1, -1, 20, 22.5, -3.25, 0.001, 0.0001, 1e-7, 123456.789, 9999999, 1e7, 1.5e7, 1e21, -1e-300,
+            Double.MIN_VALUE, Double.MAX_VALUE, 1d / 3
+    };
+
+    private final JsonTemplate template = new JsonTemplate("string", "long", "double", "boolean", "na\"me\u00e9");
+
+    @Test
+    void sameAsJavaxJson() {
+
+        var rg = new Random(42);
+
+        for (int count = 0; count < 100_000; count++) {
+
+            var b = Json.createObjectBuilder();
+            var w = template.begin();
+
+            // Any subset of fields, in order
+            int mask = rg.nextInt(32);
+
+            if ((mask & 1) != 0) {
+                var value = STRINGS[rg.nextInt(STRINGS.length)] + STRINGS[rg.nextInt(STRINGS.length)];
+                b.add("string", value);
+                w.add(0, value);
+            }
+
+            if ((mask & 2) != 0) {
+                var value = rg.nextBoolean() ? rg.nextLong() : rg.nextInt(100) - 50;
+                b.add("long", value);
+                w.add(1, value);
+            }
+
+            if ((mask & 4) != 0) {
+                var value = rg.nextBoolean() ? DOUBLES[rg.nextInt(DOUBLES.length)] : (rg.nextDouble() - 0.5) * Math.pow(10, rg.nextInt(30) - 15);
+                b.add("double", value);
+                w.add(2, value);
+            }
+
+            if ((mask & 8) != 0) {
+                var value = rg.nextBoolean();
+                b.add("boolean", value);
+                w.add(3, value);
+            }
+
+            if ((mask & 16) != 0) {
+                b.add("na\"me\u00e9", Long.MIN_VALUE);
+                w.add(4, Long.MIN_VALUE);
+            }
+
+            var expected = write(b);
+            var actual = w.toByteArray();
+
+            assertThat(new String(actual, StandardCharsets.UTF_8)).isEqualTo(new String(expected, StandardCharsets.UTF_8));
+            assertThat(actual).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    void rejected() {
+
+        assertThatExceptionOfType(NumberFormatException.class).isThrownBy(() -> template.begin().add(2, Double.NaN));
+        assertThatExceptionOfType(NumberFormatException.class).isThrownBy(() -> template.begin().add(2, Double.POSITIVE_INFINITY));
+        assertThatExceptionOfType(NullPointerException.class).isThrownBy(() -> template.begin().add(0, (String) null));
+    }
+
+    @Test
+    void reused() {
+
+        var big = "x".repeat(100_000);
+
+        assertThat(template.begin().add(0, big).toByteArray()).hasSize(big.length() + "{\"string\":\"\"}".length());
+        assertThat(template.begin().toByteArray()).isEqualTo("{}".getBytes(StandardCharsets.UTF_8));
+        assertThat(template.begin().add(3, true).toByteArray()).isEqualTo("{\"boolean\":true}".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void renderers() {
+
+        Map<String, Object> context = new HashMap<>();
+        context.put(QueueFeeder.QUEUE_KEY, new LinkedBlockingQueue<UpstreamBlock>());
+
+        var sensor = new SensorRenderer(mock(AnalogSensor.class), context);
+        var sample = new DataSample<>("sensor \"1\"", "signature", 23.5, null);
+        var error = new DataSample<Double>("sensor", "signature", null, new IllegalStateException("can't\nread"));
+
+        assertThat(sensor.render(sample)).isEqualTo(legacySensor(sample));
+        assertThat(sensor.render(error)).isEqualTo(legacySensor(error));
+
+        var relay = new SwitchRenderer(mock(Switch.class), context);
+        var on = new DataSample<>("switch", "signature", true, null);
+
+        assertThat(relay.render(on)).isEqualTo(legacySwitch(relay, on));
+
+        var model = new ThermostatModel("thermostat", mock(AnalogSensor.class), 20, 1, 0.000002, 0, 2);
+        var thermostat = new ThermostatRenderer(model, context, null);
+        var demand = new DataSample<>("source-d", "signature-d", 0.25, null);
+        var signal = new DataSample<>("source-ts", "signature-ts", new ThermostatSignal(true, true, true, true, demand), null);
+
+        assertThat(thermostat.render(signal)).isEqualTo(legacyThermostat(signal));
+    }
+
+    /**
+     * Compare the {@code javax.json} tree based rendering with the template, on sensor samples.
+     */
+    @Test
+    void throughput() {
+
+        var rg = new Random(42);
+        int count = 200_000;
+
+        @SuppressWarnings("unchecked")
+        DataSample<Double>[] samples = new DataSample[1000];
+
+        for (int offset = 0; offset < samples.length; offset++) {
+            samples[offset] = new DataSample<>("sensor-" + offset, "signature-" + offset, Math.round(rg.nextDouble() * 3000) / 100d, null);
+        }
+
+        Map<String, Object> context = new HashMap<>();
+        context.put(QueueFeeder.QUEUE_KEY, new LinkedBlockingQueue<UpstreamBlock>());
+
+        var renderer = new SensorRenderer(mock(AnalogSensor.class), context);
+
+        // Warm up both paths first
+        long sink = legacy(samples, count) + template(renderer, samples, count);
+
+        long start = System.nanoTime();
+        long legacy = legacy(samples, count);
+        long legacyNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        long current = template(renderer, samples, count);
+        long templateNanos = System.nanoTime() - start;
+
+        logger.info("{} messages: javax.json {}ms ({} msg/s), template {}ms ({} msg/s), checksum {}",
+                count,
+                legacyNanos / 1_000_000, count * 1_000_000_000L / legacyNanos,
+                templateNanos / 1_000_000, count * 1_000_000_000L / templateNanos,
+                sink);
+
+        assertThat(current).isEqualTo(legacy);
+    }
+
+    private long legacy(DataSample<Double>[] samples, int count) {
+
+        long bytes = 0;
+
+        for (int offset = 0; offset < count; offset++) {
+            bytes += legacySensor(samples[offset % samples.length]).getBytes(StandardCharsets.UTF_8).length;
+        }
+
+        return bytes;
+    }
+
+    private long template(SensorRenderer renderer, DataSample<Double>[] samples, int count) {
+
+        long bytes = 0;
+
+        for (int offset = 0; offset < count; offset++) {
+            bytes += renderer.renderBytes(samples[offset % samples.length]).length;
+        }
+
+        return bytes;
+    }
+
+    private static byte[] write(JsonObjectBuilder b) {
+
+        StringWriter sw = new StringWriter();
+        JsonWriter jw = Json.createWriter(sw);
+
+        jw.writeObject(b.build());
+        jw.close();
+
+        return sw.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The original {@link SensorRenderer#render(DataSample)}.
+     */
+    private static String legacySensor(DataSample<Double> source) {
+
+        JsonObjectBuilder b = Json.createObjectBuilder();
+
+        b.add("entityType", MqttConnector.EntityType.SENSOR.toString());
+        b.add("timestamp", source.timestamp);
+        b.add("name", source.sourceName);
+        b.add("signature", source.signature);
+
+        if (!source.isError()) {
+            b.add("signal", source.sample);
+        } else {
+            b.add("error", source.error.getMessage());
+        }
+
+        return new String(write(b), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The original {@link SwitchRenderer#render(DataSample)}.
+     */
+    private static String legacySwitch(SwitchRenderer renderer, DataSample<Boolean> source) {
+
+        JsonObjectBuilder b = Json.createObjectBuilder();
+
+        b.add("entityType", MqttConnector.EntityType.SWITCH.toString());
+        b.add("timestamp", source.timestamp);
+        b.add("name", source.sourceName);
+        b.add("signature", source.signature);
+        b.add("state", source.sample);
+        b.add("id", renderer.getMessageDigest(source.timestamp + ":" + source.sourceName + ":" + source.signature + ":" + source.sample));
+
+        return new String(write(b), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The original {@link ThermostatRenderer#render(DataSample)} for a thermostat
+     * without a scheduler, with no sensor reading, and a cooling controller.
+     */
+    private static String legacyThermostat(DataSample<ThermostatSignal> signal) {
+
+        JsonObjectBuilder b = Json.createObjectBuilder();
+
+        b.add("entityType", MqttConnector.EntityType.THERMOSTAT.toString());
+        b.add("timestamp", signal.timestamp);
+        b.add("name", "thermostat");
+        b.add("signature", signal.signature);
+        b.add("mode", "Cooling");
+        b.add("state", "CALLING");
+        b.add("thermostatSignal", signal.sample.demand.sample);
+        b.add("currentTemperature", 0d);
+        b.add("setpointTemperature", 20d);
+        b.add("enabled", true);
+        b.add("onHold", true);
+        b.add("voting", true);
+        b.add("deviation.setpoint", 0d);
+        b.add("deviation.enabled", false);
+        b.add("deviation.voting", false);
+
+        return new String(write(b), StandardCharsets.UTF_8);
+    }
+}
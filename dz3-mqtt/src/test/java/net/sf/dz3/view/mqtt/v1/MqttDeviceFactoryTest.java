@@ -19,7 +19,6 @@ import javax.json.JsonReader;
 import javax.json.JsonString;
 import javax.json.stream.JsonParsingException;
 import java.io.ByteArrayInputStream;
-import java.math.BigDecimal;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -194,7 +193,7 @@ public class MqttDeviceFactoryTest extends MqttDeviceFactoryTestBase {
         SensorListener sl = new SensorListener(receiver);
         s.addConsumer(sl);
 
-        mdf.processSensorInput("mqtt-sensor", new BigDecimal("42"), null, null, null);
+        mdf.processSensorInput("mqtt-sensor", 42, 0, null, null);
 
         // Should be enough for the propagation to kick in
         // VT: NOTE: squid:S2925 it is impractical to exert extra effort for this case
@@ -0,0 +1,205 @@
+package net.sf.dz3.view.mqtt.v1;
+
+import org.eclipse.paho.client.mqttv3.IMqttClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class MqttSessionTest {
+
+    private final MqttMessage message = new MqttMessage("42".getBytes());
+
+    @Test
+    void registry() throws MqttException {
+
+        var s1 = MqttSessionRegistry.acquire("localhost", 1883, null, null, (uri, id) -> mock(IMqttClient.class));
+        var s2 = MqttSessionRegistry.acquire("localhost", 1883, null, null, (uri, id) -> mock(IMqttClient.class));
+        var s3 = MqttSessionRegistry.acquire("localhost", 1883, "user", "password", (uri, id) -> mock(IMqttClient.class));
+
+        assertThat(s2).isSameAs(s1);
+        assertThat(s3).isNotSameAs(s1);
+        assertThat(MqttSessionRegistry.size()).isEqualTo(2);
+
+        MqttSessionRegistry.release(s1);
+        assertThat(MqttSessionRegistry.size()).isEqualTo(2);
+
+        MqttSessionRegistry.release(s2);
+        MqttSessionRegistry.release(s3);
+        assertThat(MqttSessionRegistry.size()).isZero();
+    }
+
+    @Test
+    void referenceCounted() throws MqttException {
+
+        var client = connectedClient();
+        var session = new MqttSession("test", client, null, null);
+        var a = mock(MqttCallback.class);
+        var b = mock(MqttCallback.class);
+
+        session.subscribe("dz/sensor/#", a);
+        session.subscribe("dz/sensor/#", b);
+
+        verify(client, times(1)).subscribe("dz/sensor/#", MqttSession.QOS);
+
+        session.unsubscribe("dz/sensor/#", a);
+        verify(client, never()).unsubscribe(anyString());
+
+        session.unsubscribe("dz/sensor/#", b);
+        verify(client, times(1)).unsubscribe("dz/sensor/#");
+
+        assertThat(session.getFilterCount()).isZero();
+    }
+
+    @Test
+    void dispatch() throws Exception {
+
+        var session = new MqttSession("test", connectedClient(), null, null);
+        var sensors = mock(MqttCallback.class);
+        var ha = mock(MqttCallback.class);
+
+        session.subscribe("dz/sensor/#", sensors);
+        session.subscribe("homeassistant/+/state", ha);
+
+        session.messageArrived("dz/sensor/kitchen", message);
+        session.messageArrived("homeassistant/thermostat/state", message);
+        session.messageArrived("homeassistant/thermostat/config", message);
+
+        verify(sensors, times(1)).messageArrived("dz/sensor/kitchen", message);
+        verify(sensors, times(1)).messageArrived(anyString(), any());
+        verify(ha, times(1)).messageArrived("homeassistant/thermostat/state", message);
+        verify(ha, times(1)).messageArrived(anyString(), any());
+
+        assertThat(session.getMessages()).isEqualTo(3);
+        assertThat(session.getDispatchMicros()).isPositive();
+        assertThat(session.getDispatchMicrosMax()).isGreaterThanOrEqualTo(session.getDispatchMicros());
+    }
+
+    @Test
+    void isolated() throws Exception {
+
+        var session = new MqttSession("test", connectedClient(), null, null);
+        var broken = mock(MqttCallback.class);
+        var healthy = mock(MqttCallback.class);
+
+        doThrow(new IllegalStateException("oops")).when(broken).messageArrived(anyString(), any());
+        doThrow(new IllegalStateException("Not Implemented")).when(broken).connectionLost(any());
+
+        session.subscribe("dz/#", broken);
+        session.subscribe("dz/#", healthy);
+
+        session.messageArrived("dz/sensor", message);
+        session.connectionLost(new Error("test"));
+
+        verify(healthy, times(1)).messageArrived("dz/sensor", message);
+        verify(healthy, times(1)).connectionLost(any());
+        assertThat(session.getDispatchErrors()).isEqualTo(1);
+    }
+
+    @Test
+    void resubscribe() throws MqttException {
+
+        var client = connectedClient();
+        var session = new MqttSession("test", client, null, null);
+
+        session.subscribe("dz/#", mock(MqttCallback.class));
+        verify(client, times(1)).subscribe("dz/#", MqttSession.QOS);
+
+        // Nothing lost yet
+        session.reconnect();
+        verify(client, times(1)).subscribe("dz/#", MqttSession.QOS);
+
+        // Nobody may be calling reconnect(), the session must restore the subscriptions on its own
+        session.connectComplete(true, "tcp://localhost:1883");
+        verify(client, timeout(1000).times(2)).subscribe("dz/#", MqttSession.QOS);
+
+        // ...and only once
+        session.reconnect();
+        verify(client, times(2)).subscribe("dz/#", MqttSession.QOS);
+
+        session.close();
+    }
+
+    @Test
+    void resubscribeFailed() throws MqttException {
+
+        var client = connectedClient();
+        var session = new MqttSession("test", client, null, null);
+
+        session.subscribe("dz/#", mock(MqttCallback.class));
+
+        doThrow(new MqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION)).doNothing().when(client).subscribe("dz/#", MqttSession.QOS);
+
+        session.connectComplete(true, "tcp://localhost:1883");
+        verify(client, timeout(1000).times(2)).subscribe("dz/#", MqttSession.QOS);
+
+        // Still pending, reconnect() will not wait for the retry
+        session.reconnect();
+        verify(client, times(3)).subscribe("dz/#", MqttSession.QOS);
+
+        session.close();
+    }
+
+    @Test
+    void connectOnce() throws MqttException {
+
+        var client = mock(IMqttClient.class);
+        var session = new MqttSession("test", client, null, null);
+
+        session.subscribe("dz/#", mock(MqttCallback.class));
+
+        // Not connected, nothing to subscribe to yet
+        verify(client, never()).subscribe(anyString(), anyInt());
+
+        session.connect();
+
+        verify(client, times(1)).connect(any(MqttConnectOptions.class));
+        verify(client, times(1)).subscribe("dz/#", MqttSession.QOS);
+    }
+
+    @Test
+    void rate() throws Exception {
+
+        var now = new AtomicLong(1_000_000);
+        var session = new MqttSession("test", connectedClient(), null, null, now::get);
+
+        session.subscribe("dz/#", mock(MqttCallback.class));
+
+        for (int second = 0; second < 60; second++) {
+            for (int count = 0; count < 10; count++) {
+                session.messageArrived("dz/sensor", message);
+            }
+            now.addAndGet(1000);
+        }
+
+        // The oldest second just fell out of the window
+        assertThat(session.getMessageRate()).isEqualTo(590 / 60d);
+
+        now.addAndGet(120_000);
+        assertThat(session.getMessageRate()).isZero();
+    }
+
+    private IMqttClient connectedClient() {
+
+        var client = mock(IMqttClient.class);
+
+        when(client.isConnected()).thenReturn(true);
+
+        return client;
+    }
+}
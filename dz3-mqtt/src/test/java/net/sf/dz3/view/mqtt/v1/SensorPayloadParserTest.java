@@ -0,0 +1,131 @@
+package net.sf.dz3.view.mqtt.v1;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.Test;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SensorPayloadParserTest {
+
+    private final Logger logger = LogManager.getLogger(getClass());
+    private final SensorPayloadParser parser = new SensorPayloadParser();
+
+    private static final String MQTT_MESSAGE_ACTUAL = "{\"entity_type\":\"sensor\",\"name\":\"28C06879A20003CE\",\"signature\":\"T28C06879A20003CE\",\"signal\":23.50,\"device_id\":\"ESP8266-00621CC5\"}";
+    private static final String MQTT_MESSAGE_TIMESTAMP = "{\"entity_type\":\"sensor\",\"name\":\"28C06879A20003CE\",\"signal\":-1.5e1,\"timestamp\":1584829660855,\"extra\":true}";
+
+    @Test
+    void actual() {
+
+        var payload = parser.parse(MQTT_MESSAGE_ACTUAL.getBytes(StandardCharsets.UTF_8));
+
+        assertThat(payload).isNotNull();
+        assertThat(payload.entityType).isEqualTo("sensor");
+        assertThat(payload.name).isEqualTo("28C06879A20003CE");
+        assertThat(payload.signal).isEqualTo(23.5);
+        assertThat(payload.timestamp).isZero();
+        assertThat(payload.signature).isEqualTo("T28C06879A20003CE");
+        assertThat(payload.deviceId).isEqualTo("ESP8266-00621CC5");
+    }
+
+    @Test
+    void timestamp() {
+
+        var payload = parser.parse(MQTT_MESSAGE_TIMESTAMP.getBytes(StandardCharsets.UTF_8));
+
+        assertThat(payload).isNotNull();
+        assertThat(payload.signal).isEqualTo(-15);
+        assertThat(payload.timestamp).isEqualTo(1584829660855L);
+        assertThat(payload.signature).isNull();
+        assertThat(payload.deviceId).isNull();
+    }
+
+    @Test
+    void fallback() {
+
+        // Not JSON
+        assertThat(parser.parse("28C06879A20003CE: 23.5C".getBytes(StandardCharsets.UTF_8))).isNull();
+
+        // Truncated
+        assertThat(parser.parse(MQTT_MESSAGE_ACTUAL.substring(0, 40).getBytes(StandardCharsets.UTF_8))).isNull();
+
+        // Not an object
+        assertThat(parser.parse("[1,2,3]".getBytes(StandardCharsets.UTF_8))).isNull();
+
+        // Missing mandatory field
+        assertThat(parser.parse("{\"entity_type\":\"sensor\",\"name\":\"x\"}".getBytes(StandardCharsets.UTF_8))).isNull();
+
+        // Wrong type
+        assertThat(parser.parse("{\"entity_type\":\"sensor\",\"name\":\"x\",\"signal\":\"23.5\"}".getBytes(StandardCharsets.UTF_8))).isNull();
+
+        // Extended
+        assertThat(parser.parse("{\"entity_type\":\"sensor\",\"name\":\"x\",\"signal\":23.5,\"event_data\":{\"a\":1}}".getBytes(StandardCharsets.UTF_8))).isNull();
+
+        // Trailing garbage
+        assertThat(parser.parse((MQTT_MESSAGE_ACTUAL + "{}").getBytes(StandardCharsets.UTF_8))).isNull();
+    }
+
+    /**
+     * Compare the throughput of the full tree parser with the streaming one.
+     */
+    @Test
+    void throughput() {
+
+        byte[] source = MQTT_MESSAGE_ACTUAL.getBytes(StandardCharsets.UTF_8);
+        int count = 100_000;
+
+        // Warm up both paths first
+        double sink = tree(source, count) + streaming(source, count);
+
+        long start = System.nanoTime();
+        sink += tree(source, count);
+        long treeNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        sink += streaming(source, count);
+        long streamingNanos = System.nanoTime() - start;
+
+        logger.info("{} messages: tree {}ms ({} msg/s), streaming {}ms ({} msg/s), checksum {}",
+                count,
+                treeNanos / 1_000_000, count * 1_000_000_000L / treeNanos,
+                streamingNanos / 1_000_000, count * 1_000_000_000L / streamingNanos,
+                sink);
+
+        assertThat(sink).isEqualTo(23.5 * count * 4);
+    }
+
+    private double tree(byte[] source, int count) {
+
+        double sum = 0;
+
+        for (int offset = 0; offset < count; offset++) {
+            try (JsonReader reader = Json.createReader(new ByteArrayInputStream(source))) {
+
+                JsonObject payload = reader.readObject();
+
+                payload.getJsonString(MqttContext.JsonTag.ENTITY_TYPE.name).getString();
+                payload.getJsonString(MqttContext.JsonTag.NAME.name).getString();
+                sum += payload.getJsonNumber(MqttContext.JsonTag.SIGNAL.name).bigDecimalValue().doubleValue();
+            }
+        }
+
+        return sum;
+    }
+
+    private double streaming(byte[] source, int count) {
+
+        double sum = 0;
+
+        for (int offset = 0; offset < count; offset++) {
+            sum += parser.parse(source).signal;
+        }
+
+        return sum;
+    }
+}
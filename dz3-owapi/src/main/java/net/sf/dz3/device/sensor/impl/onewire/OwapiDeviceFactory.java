@@ -22,6 +22,7 @@ import net.sf.dz3.device.sensor.SensorType;
 import net.sf.dz3.device.sensor.Switch;
 import net.sf.dz3.device.sensor.impl.ContainerMap;
 import net.sf.dz3.device.sensor.impl.StringChannelAddress;
+import net.sf.dz3.device.sensor.impl.SwitchStateCache;
 import net.sf.dz3.instrumentation.Marker;
 import org.apache.logging.log4j.ThreadContext;
 
@@ -360,6 +361,7 @@ public class OwapiDeviceFactory extends AbstractDeviceFactory<OneWireDeviceConta
 
             logger.info("Stopping monitor...");
             monitor.stop().waitFor();
+            switchCache.close();
             logger.info("Stopped");
 
         } finally {
@@ -1310,14 +1312,14 @@ public class OwapiDeviceFactory extends AbstractDeviceFactory<OneWireDeviceConta
 
     private static class OwapiSingleSwitchProxy extends SingleSwitchProxy<OneWireSwitchContainer> {
 
-        public OwapiSingleSwitchProxy(ContainerMap address2dcGlobal, StringChannelAddress address) {
-            super(address2dcGlobal, address);
+        public OwapiSingleSwitchProxy(ContainerMap address2dcGlobal, StringChannelAddress address, SwitchStateCache cache) {
+            super(address2dcGlobal, address, cache);
         }
 
         @Override
-        public synchronized boolean getState() throws IOException {
+        public boolean readHardware() throws IOException {
 
-            ThreadContext.push("getState");
+            ThreadContext.push("readHardware");
 
             try {
 
@@ -1335,9 +1337,9 @@ public class OwapiDeviceFactory extends AbstractDeviceFactory<OneWireDeviceConta
         }
 
         @Override
-        public synchronized void setState(boolean state) throws IOException {
+        public void writeHardware(boolean state) throws IOException {
 
-            ThreadContext.push("setState");
+            ThreadContext.push("writeHardware");
 
             try {
 
@@ -1367,6 +1369,6 @@ public class OwapiDeviceFactory extends AbstractDeviceFactory<OneWireDeviceConta
 
     @Override
     protected Switch createSingleSwitchProxy(ContainerMap address2dcGlobal, StringChannelAddress switchAddress) {
-      return new OwapiSingleSwitchProxy(address2dcGlobal, switchAddress);
+      return new OwapiSingleSwitchProxy(address2dcGlobal, switchAddress, switchCache);
     }
 }
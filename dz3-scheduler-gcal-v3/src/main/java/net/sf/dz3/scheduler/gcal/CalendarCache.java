@@ -0,0 +1,18 @@
+package net.sf.dz3.scheduler.gcal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.util.Key;
+
+/**
+ * Offline cache of the last good schedule, as it is written to disk.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+public class CalendarCache extends GenericJson {
+
+    @Key
+    public List<CalendarState> calendars = new ArrayList<>();
+}
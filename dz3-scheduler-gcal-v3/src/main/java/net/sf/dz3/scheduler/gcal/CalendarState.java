@@ -0,0 +1,61 @@
+package net.sf.dz3.scheduler.gcal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.util.Key;
+import com.google.api.services.calendar.model.Event;
+
+/**
+ * Last known state of a single zone calendar, as it is kept in memory and in the offline cache.
+ *
+ * Has to be public with public fields and a no-argument constructor, the JSON parser populates it via reflection.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+public class CalendarState extends GenericJson {
+
+    /**
+     * Calendar name, same as the zone name.
+     */
+    @Key
+    public String name;
+
+    /**
+     * Calendar ID.
+     */
+    @Key
+    public String id;
+
+    /**
+     * Sync token to use for the next incremental sync, {@code null} if a full sync is required.
+     */
+    @Key
+    public String syncToken;
+
+    /**
+     * The day (as in {@code yyyy-MM-dd}) the last full sync was performed for.
+     *
+     * The full sync only retrieves today's events, so on a day change the full sync has to be repeated.
+     */
+    @Key
+    public String day;
+
+    /**
+     * Today's events.
+     */
+    @Key
+    public List<Event> events = new ArrayList<>();
+
+    public CalendarState() {
+        // Needed for the JSON parser
+    }
+
+    public CalendarState(String name, String id, String day) {
+
+        this.name = name;
+        this.id = id;
+        this.day = day;
+    }
+}
@@ -4,22 +4,37 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.GeneralSecurityException;
 import java.text.DateFormat;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.logging.log4j.ThreadContext;
 
@@ -34,6 +49,7 @@ import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
 import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.http.HttpResponseException;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
@@ -46,208 +62,722 @@ import com.google.api.services.calendar.model.CalendarListEntry;
 import com.google.api.services.calendar.model.Event;
 import com.google.api.services.calendar.model.EventDateTime;
 import com.google.api.services.calendar.model.Events;
+import com.homeclimatecontrol.jukebox.jmx.JmxAttribute;
 
 /**
  * Schedule updater using Google Calendar V3 as a back end.
  * 
  * Look for V3 API docs starting at https://developers.google.com/google-apps/calendar/ - but as time goes, it'll slip, there's no
  * specific URL for V3 docs while it is the last version.
+ *
+ * The client is authorized once and reused. Zone calendars are fetched in parallel, using a bounded pool.
+ * The first fetch of the day retrieves today's events, and produces a sync token; subsequent fetches only retrieve
+ * changes since then (if the service didn't provide the sync token, or it expired, the full fetch is repeated).
+ *
+ * The last good state is kept in an on-disk cache, so that startup doesn't have to wait for the network,
+ * and a network outage doesn't leave zones without a schedule.
+ *
+ * {@link #close()} must be called when the instance is no longer needed, to release the threads.
  * 
- * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2018
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
  */
-public final class GCalScheduleUpdater extends GCalScheduleUpdaterBase {
+public final class GCalScheduleUpdater extends GCalScheduleUpdaterBase implements AutoCloseable {
 
     private static final String LITERAL_APP_NAME = "Home Climate Control-DZ-3.5";
     private static final String STORED_CREDENTIALS = ".dz/calendar";
+    private static final String CACHE_FILE = ".dz/calendar-cache.json";
     private static final String CLIENT_SECRETS = "/client_secrets.json"; 
 
     private static final String dateFormat = "yyyy-MM-dd'T'HH:mm:ss";
     private static final NumberFormat tzFormatter = new DecimalFormat("+#00;-#00");
 
+    /**
+     * HTTP connect and read timeout, milliseconds.
+     */
+    private static final int TIMEOUT_MILLIS = 30000;
+
+    private final JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+
+    /**
+     * Offline cache location.
+     */
+    private final File cacheFile;
+
+    /**
+     * How long to wait for the sync to complete before falling back to the last known state, milliseconds.
+     */
+    private final long syncWaitMillis;
+
+    /**
+     * Runs {@link #sync()}, so that {@link #update()} can give up waiting for it.
+     */
+    private final ExecutorService syncRunner = Executors.newSingleThreadExecutor(daemonFactory("sync"));
+
+    /**
+     * Runs per calendar fetches.
+     */
+    private final ExecutorService fetchPool;
+
+    /**
+     * Authorized client. Only accessed from {@link #syncRunner}.
+     */
+    private Calendar calendarClient;
+
+    /**
+     * Calendar name to ID mapping for calendars we care about. Only accessed from {@link #syncRunner}.
+     */
+    private final Map<String, String> name2id = new TreeMap<>();
+
+    /**
+     * The day {@link #name2id} was retrieved.
+     */
+    private String calendarListDay;
+
+    /**
+     * Last known calendar state. Values are replaced, never modified.
+     */
+    private final Map<String, CalendarState> name2state = new ConcurrentHashMap<>();
+
+    private boolean cacheLoaded = false;
+    private Future<?> pendingSync;
+
+    /**
+     * {@code true} if at least one sync attempt completed.
+     */
+    private volatile boolean synced = false;
+
+    private volatile long lastSyncMillis;
+    private volatile int lastDeltaSize;
+    private final AtomicLong fullFetches = new AtomicLong();
+    private final AtomicLong incrementalFetches = new AtomicLong();
+    private final AtomicLong syncFailures = new AtomicLong();
+
     /**
      * Create an instance.
      * 
      * @param ts2source Keys are thermostats to update the schedule for, values are calendar names to pull schedules from.
      */
     public GCalScheduleUpdater(Map<Thermostat, String> ts2source) {
+        this(ts2source, null, new File(System.getProperty("user.home"), CACHE_FILE), 4, 30000);
+    }
+
+    /**
+     * Create an instance with a given client.
+     *
+     * @param ts2source Keys are thermostats to update the schedule for, values are calendar names to pull schedules from.
+     * @param calendarClient Client to use. If {@code null}, the client will be created and authorized on first use.
+     * @param cacheFile Offline cache location.
+     * @param maxParallelFetches Maximum number of calendars to fetch at the same time.
+     * @param syncWaitMillis How long to wait for the sync to complete before falling back to the last known state.
+     */
+    GCalScheduleUpdater(Map<Thermostat, String> ts2source, Calendar calendarClient, File cacheFile, int maxParallelFetches, long syncWaitMillis) {
+
         super(ts2source);
+
+        this.calendarClient = calendarClient;
+        this.cacheFile = cacheFile;
+        this.syncWaitMillis = syncWaitMillis;
+        this.fetchPool = Executors.newFixedThreadPool(maxParallelFetches, daemonFactory("fetch"));
     }
 
     @Override
-    public Map<Thermostat, SortedMap<Period, ZoneStatus>> update() throws IOException {
+    public synchronized Map<Thermostat, SortedMap<Period, ZoneStatus>> update() throws IOException {
 
         ThreadContext.push("update");
-        Marker m = new Marker("update");
-        
-        Map<Thermostat, SortedMap<Period, ZoneStatus>> ts2schedule = new TreeMap<Thermostat, SortedMap<Period, ZoneStatus>>();
 
         try {
-            
+
+            loadCache();
+
+            if (pendingSync == null || pendingSync.isDone()) {
+                pendingSync = syncRunner.submit(() -> {
+                    sync();
+                    return null;
+                });
+            }
+
+            try {
+
+                if (name2state.isEmpty() || synced) {
+
+                    // If there's nothing to fall back to, the timeout will be reported as a failure,
+                    // and the scheduler will come back for the result of the same sync on the next run
+
+                    pendingSync.get(syncWaitMillis, TimeUnit.MILLISECONDS);
+
+                } else {
+
+                    logger.info("Starting with the cached schedule, sync is in progress");
+                }
+
+            } catch (TimeoutException ex) {
+
+                if (name2state.isEmpty()) {
+                    throw new IOException("Sync didn't complete in " + syncWaitMillis + "ms, and there's no last known schedule", ex);
+                }
+
+                logger.warn("Sync didn't complete in {}ms, using last known schedule", syncWaitMillis);
+
+            } catch (ExecutionException ex) {
+
+                if (name2state.isEmpty()) {
+                    throw new IOException("Sync failed, and there's no last known schedule", ex.getCause());
+                }
+
+                logger.error("Sync failed, using last known schedule", ex.getCause());
+
+            } catch (InterruptedException ex) {
+
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", ex);
+            }
+
+            return render();
+
+        } finally {
+            ThreadContext.pop();
+        }
+    }
+
+    /**
+     * Bring {@link #name2state} up to date with the calendar service, and save it into the offline cache.
+     *
+     * @throws IOException if the client can't be obtained, or all the calendars failed to sync.
+     */
+    private void sync() throws IOException, InterruptedException {
+
+        ThreadContext.push("sync");
+        Marker m = new Marker("sync");
+        long start = System.currentTimeMillis();
+
+        try {
+
+            Calendar client = getClient();
+
+            m.checkpoint("got client");
+
+            String today = LocalDate.now().toString();
+
+            if (name2id.isEmpty() || !today.equals(calendarListDay)) {
+
+                listCalendars(client);
+                calendarListDay = today;
+
+                m.checkpoint("retrieved calendar list");
+            }
+
+            List<Future<Integer>> fetches = new ArrayList<>();
+
+            for (Entry<String, String> entry : name2id.entrySet()) {
+                fetches.add(fetchPool.submit(() -> fetch(client, entry.getKey(), entry.getValue(), today)));
+            }
+
+            int delta = 0;
+            int failed = 0;
+
+            for (Future<Integer> fetch : fetches) {
+
+                try {
+
+                    delta += fetch.get();
+
+                } catch (ExecutionException ex) {
+
+                    // Already logged
+                    failed++;
+                }
+            }
+
+            m.checkpoint("fetched " + fetches.size() + " calendars");
+
+            if (failed > 0 && failed == fetches.size()) {
+                throw new IOException("All " + failed + " calendar fetches failed");
+            }
+
+            lastDeltaSize = delta;
+            logger.info("{} calendars synced, {} failed, {} events changed", fetches.size() - failed, failed, delta);
+
+            saveCache();
+
+        } catch (IOException | RuntimeException ex) {
+
+            syncFailures.incrementAndGet();
+
+            // The client may be broken, will retry
+            calendarClient = null;
+            name2id.clear();
+
+            throw ex;
+
+        } finally {
+
+            lastSyncMillis = System.currentTimeMillis() - start;
+            synced = true;
+
+            m.close();
+            ThreadContext.pop();
+            ThreadContext.clearStack();
+        }
+    }
+
+    /**
+     * Get the client, authorizing it if necessary.
+     */
+    private Calendar getClient() throws IOException {
+
+        if (calendarClient != null) {
+            return calendarClient;
+        }
+
+        ThreadContext.push("getClient");
+        Marker m = new Marker("getClient");
+
+        try {
+
             HttpTransport httpTransport = GoogleNetHttpTransport.newTrustedTransport();
-            JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
             FileDataStoreFactory dataStoreFactory = new FileDataStoreFactory(new File(System.getProperty("user.home"), STORED_CREDENTIALS));
 
             m.checkpoint("instantiated tools");
 
             Credential credential = authorize(httpTransport, jsonFactory, dataStoreFactory);
-            
+
             m.checkpoint("authorized");
 
             // VT: NOTE: There's no need for us to do this more often than we really need.
             // I'd assume that once a year would be just fine. Maybe a bit too often, but come on, let's be realistic,
             // users need some extra fun.
             credential.setExpiresInSeconds(60L * 60L * 24L * 365L);
-            
-            Calendar calendarClient = new Calendar.Builder(httpTransport, jsonFactory, credential).setApplicationName(LITERAL_APP_NAME).build();
-            
-            m.checkpoint("instantiated client");
 
-            CalendarList feed = calendarClient.calendarList().list().execute();
-            
-            List<CalendarListEntry> calendars = feed.getItems(); 
-                    
-            m.checkpoint("retrieved feed");
+            calendarClient = new Calendar.Builder(httpTransport, jsonFactory, request -> {
+
+                credential.initialize(request);
+                request.setConnectTimeout(TIMEOUT_MILLIS);
+                request.setReadTimeout(TIMEOUT_MILLIS);
+
+            }).setApplicationName(LITERAL_APP_NAME).build();
+
+            return calendarClient;
+
+        } catch (GeneralSecurityException ex) {
+
+            throw new IllegalStateException("Oops", ex);
+
+        } finally {
+
+            m.close();
+            ThreadContext.pop();
+        }
+    }
+
+    /**
+     * Populate {@link #name2id} with calendars we care about.
+     */
+    private void listCalendars(Calendar client) throws IOException {
+
+        ThreadContext.push("listCalendars");
+
+        try {
+
+            Set<String> targets = getTargetNames();
+            List<CalendarListEntry> calendars = new ArrayList<>();
+            String pageToken = null;
+
+            do {
+
+                CalendarList feed = client.calendarList().list().setPageToken(pageToken).execute();
+
+                if (feed.getItems() != null) {
+                    calendars.addAll(feed.getItems());
+                }
+
+                pageToken = feed.getNextPageToken();
+
+            } while (pageToken != null);
 
             logger.info(calendars.size() + " calendars found:");
-            
+
+            name2id.clear();
+
             for (Iterator<CalendarListEntry> i = calendars.iterator(); i.hasNext(); ) {
-                
+
                 CalendarListEntry c = i.next();
-                
-                logger.info("  calendar: " + c.getSummary());
-            }
-            
-            m.checkpoint("retrieved summary");
 
-            for (Iterator<CalendarListEntry> i = calendars.iterator(); i.hasNext(); ) {
-                
-                CalendarListEntry calendar = i.next();
-                
-                updateCalendar(ts2schedule, calendarClient, calendar);
-            }
+                logger.info("  calendar: " + c.getSummary());
 
-            ThreadContext.push("schedule");
-            
-            for (Iterator<Entry<Thermostat, SortedMap<Period, ZoneStatus>>> i = ts2schedule.entrySet().iterator(); i.hasNext(); ) {
-                
-                Entry<Thermostat, SortedMap<Period, ZoneStatus>> pair = i.next();
-                
-                logger.info(pair.getKey().getName() + ": " + pair.getValue().size() + " entries");
-                
-                for (Iterator<Entry<Period, ZoneStatus>> i2 = pair.getValue().entrySet().iterator(); i2.hasNext(); ) {
-                    
-                    logger.info("  " + i2.next());
+                if (targets.contains(c.getSummary())) {
+                    name2id.put(c.getSummary(), c.getId());
+                } else {
+                    logger.debug("No zone '" + c.getSummary() + "' configured, skipped");
                 }
             }
-            
-            ThreadContext.pop();
-            
-            return ts2schedule;
-            
-        } catch (GeneralSecurityException ex) {
 
-            throw new IllegalStateException("Oops", ex);
-            
+            // Calendars that are gone shouldn't contribute to the schedule anymore
+            name2state.keySet().retainAll(name2id.keySet());
+
         } finally {
-            
-            m.close();
             ThreadContext.pop();
         }
     }
 
-    private void updateCalendar(Map<Thermostat, SortedMap<Period, ZoneStatus>> ts2schedule, Calendar calendarClient, CalendarListEntry calendar) {
-        
-        ThreadContext.push("updateCalendar");
-        Marker m = new Marker("updateCalendar");
-        
+    /**
+     * Bring a single calendar up to date.
+     *
+     * @return Number of events received.
+     */
+    private int fetch(Calendar client, String name, String id, String today) throws IOException {
+
+        ThreadContext.push("fetch(" + name + ")");
+        Marker m = new Marker("fetch(" + name + ")");
+
         try {
 
-            String name = calendar.getSummary();
-            
-            Set<Thermostat> tSet = getByName(name);
+            CalendarState state = name2state.get(name);
 
-            if (tSet == null || tSet.isEmpty()) {
-                
-                logger.debug("No zone '" + name + "' configured, skipped");
-                return;
+            if (state != null && state.syncToken != null && today.equals(state.day) && id.equals(state.id)) {
+
+                try {
+
+                    return fetchIncremental(client, state);
+
+                } catch (HttpResponseException ex) {
+
+                    if (ex.getStatusCode() != 410) {
+                        throw ex;
+                    }
+
+                    logger.warn("Sync token expired, falling back to full fetch");
+                }
             }
 
-            logger.info("Zone name: " + name);
-            
-            String id = calendar.getId();
-            
-            logger.info("id: " + id);
-            
-            parseEvents(ts2schedule, tSet, calendarClient, id);
-            
-        } catch (IOException ex) {
+            return fetchFull(client, name, id, today);
+
+        } catch (IOException | RuntimeException ex) {
 
-            logger.error("Unable to retrieve schedule for '" + calendar.getSummary() + "'", ex);
+            logger.error("Unable to retrieve schedule for '" + name + "'", ex);
+            throw ex;
 
         } finally {
-            
+
             m.close();
             ThreadContext.pop();
         }
-
     }
 
-    private void parseEvents(Map<Thermostat, SortedMap<Period, ZoneStatus>> ts2schedule, Set<Thermostat> tSet, Calendar calendarClient, String id) throws IOException {
+    private int fetchFull(Calendar client, String name, String id, String today) throws IOException {
 
-        ThreadContext.push("parseEvents");
-        Marker m = new Marker("parseEvents");
+        logger.info("id: " + id);
 
-        try {
+        DateTime[] window = getToday();
+        CalendarState next = new CalendarState(name, id, today);
+        String pageToken = null;
+        Events feed;
 
-            com.google.api.services.calendar.Calendar.Events.List events = calendarClient.events().list(id);
-            
-            java.util.Calendar tempCalendar = new GregorianCalendar();
-            
-            tempCalendar.set(java.util.Calendar.HOUR_OF_DAY, 0);
-            tempCalendar.set(java.util.Calendar.MINUTE, 0);
-            tempCalendar.set(java.util.Calendar.SECOND, 0);
-            tempCalendar.set(java.util.Calendar.MILLISECOND, 0);
-            
-            Date start = tempCalendar.getTime();
+        do {
 
-            tempCalendar.set(java.util.Calendar.HOUR_OF_DAY, 23);
-            tempCalendar.set(java.util.Calendar.MINUTE, 59);
-            tempCalendar.set(java.util.Calendar.SECOND, 59);
-            tempCalendar.set(java.util.Calendar.MILLISECOND, 0);
-            
-            Date end = tempCalendar.getTime();
-            
-            // Now, let's produce the time zone offset and shove it down the throat of
-            // Google's invention that isn't capable of parsing normal TZ representation.
-            // This will not work with fractional offsets, but you know what?
-            // Go fix it yourself if you live in one of those time zones.
-            
-            int tzShift = tempCalendar.getTimeZone().getRawOffset() / (60000 * 60);
-            String tzTail = tzFormatter.format(tzShift) + ":00";
-            
-            DateFormat dateFormatter = new SimpleDateFormat(dateFormat);
-            DateTime dtStart = DateTime.parseRfc3339(dateFormatter.format(start) + tzTail);
-            DateTime dtEnd = DateTime.parseRfc3339(dateFormatter.format(end) + tzTail);
-            
-            events.setTimeMin(dtStart);
-            events.setTimeMax(dtEnd);
+            Calendar.Events.List events = client.events().list(id);
+
+            events.setTimeMin(window[0]);
+            events.setTimeMax(window[1]);
             events.setSingleEvents(true);
-            
+            events.setPageToken(pageToken);
+
             logger.info("query: " + events);
-            
-            Events feed = events.execute();
-            
-            // cal.query() has been known to get stuck, let's update the timestamp
-            touch();            
 
-            parse(ts2schedule, tSet, feed.getItems());
+            feed = events.execute();
 
-        } finally {
+            if (feed.getItems() != null) {
+                next.events.addAll(feed.getItems());
+            }
 
-            m.close();
-            ThreadContext.pop();
+            pageToken = feed.getNextPageToken();
+
+        } while (pageToken != null);
+
+        // cal.query() has been known to get stuck, let's update the timestamp
+        touch();
+
+        next.syncToken = feed.getNextSyncToken();
+        name2state.put(name, next);
+        fullFetches.incrementAndGet();
+
+        logger.info(next.events.size() + " events found");
+
+        return next.events.size();
+    }
+
+    private int fetchIncremental(Calendar client, CalendarState state) throws IOException {
+
+        DateTime[] window = getToday();
+        Map<String, Event> id2event = new LinkedHashMap<>();
+
+        for (Event event : state.events) {
+            id2event.put(event.getId(), event);
+        }
+
+        int delta = 0;
+        String pageToken = null;
+        Events feed;
+
+        do {
+
+            feed = client.events().list(state.id).setSyncToken(state.syncToken).setSingleEvents(true).setPageToken(pageToken).execute();
+
+            if (feed.getItems() != null) {
+
+                for (Event event : feed.getItems()) {
+
+                    delta++;
+
+                    if ("cancelled".equals(event.getStatus()) || !isToday(event, state.day, window)) {
+
+                        // Gone, or moved to another day
+                        id2event.remove(event.getId());
+                    } else {
+                        id2event.put(event.getId(), event);
+                    }
+                }
+            }
+
+            pageToken = feed.getNextPageToken();
+
+        } while (pageToken != null);
+
+        touch();
+
+        CalendarState next = new CalendarState(state.name, state.id, state.day);
+
+        next.events.addAll(id2event.values());
+        next.syncToken = feed.getNextSyncToken();
+        name2state.put(state.name, next);
+        incrementalFetches.incrementAndGet();
+
+        logger.info("{} changes, {} events total", delta, next.events.size());
+
+        return delta;
+    }
+
+    /**
+     * Render the schedule out of {@link #name2state}.
+     */
+    private Map<Thermostat, SortedMap<Period, ZoneStatus>> render() {
+
+        Map<Thermostat, SortedMap<Period, ZoneStatus>> ts2schedule = new TreeMap<Thermostat, SortedMap<Period, ZoneStatus>>();
+        String today = LocalDate.now().toString();
+        DateTime[] window = getToday();
+
+        for (CalendarState state : name2state.values()) {
+
+            Set<Thermostat> tSet = getByName(state.name);
+
+            if (tSet == null || tSet.isEmpty()) {
+                continue;
+            }
+
+            List<Event> events = new ArrayList<>();
+
+            for (Event event : state.events) {
+
+                // If the state is from another day, we're offline - yesterday's schedule is the best guess
+                if (!today.equals(state.day) || isToday(event, today, window)) {
+                    events.add(event);
+                }
+            }
+
+            if (!today.equals(state.day)) {
+                logger.warn("{}: using schedule from {}", state.name, state.day);
+            }
+
+            parse(ts2schedule, tSet, events);
+        }
+
+        ThreadContext.push("schedule");
+
+        for (Iterator<Entry<Thermostat, SortedMap<Period, ZoneStatus>>> i = ts2schedule.entrySet().iterator(); i.hasNext(); ) {
+
+            Entry<Thermostat, SortedMap<Period, ZoneStatus>> pair = i.next();
+
+            logger.info(pair.getKey().getName() + ": " + pair.getValue().size() + " entries");
+
+            for (Iterator<Entry<Period, ZoneStatus>> i2 = pair.getValue().entrySet().iterator(); i2.hasNext(); ) {
+
+                logger.info("  " + i2.next());
+            }
         }
 
+        ThreadContext.pop();
+
+        return ts2schedule;
+    }
+
+    /**
+     * Incremental fetch returns changes to events on any day, only today's must be kept.
+     *
+     * @param today Today, as in {@code yyyy-MM-dd}.
+     * @param window Today's start and end, as returned by {@link #getToday()}.
+     *
+     * @return {@code true} if the event overlaps with today.
+     */
+    private boolean isToday(Event event, String today, DateTime[] window) {
+
+        if (event.getStart() == null || event.getEnd() == null) {
+
+            // Can't tell when it is, it can't be used anyway
+            return false;
+        }
+
+        if (isDateOnly(event.getStart())) {
+
+            // All day events end at the start of the next day; dates compare correctly as strings
+            return event.getStart().getDate().toStringRfc3339().compareTo(today) <= 0
+                    && (event.getEnd().getDate() == null || event.getEnd().getDate().toStringRfc3339().compareTo(today) > 0);
+        }
+
+        return event.getStart().getDateTime().getValue() <= window[1].getValue()
+                && event.getEnd().getDateTime().getValue() > window[0].getValue();
+    }
+
+    /**
+     * @return Today's start and end, in a format the calendar service can digest.
+     */
+    private DateTime[] getToday() {
+
+        java.util.Calendar tempCalendar = new GregorianCalendar();
+
+        tempCalendar.set(java.util.Calendar.HOUR_OF_DAY, 0);
+        tempCalendar.set(java.util.Calendar.MINUTE, 0);
+        tempCalendar.set(java.util.Calendar.SECOND, 0);
+        tempCalendar.set(java.util.Calendar.MILLISECOND, 0);
+
+        Date start = tempCalendar.getTime();
+
+        tempCalendar.set(java.util.Calendar.HOUR_OF_DAY, 23);
+        tempCalendar.set(java.util.Calendar.MINUTE, 59);
+        tempCalendar.set(java.util.Calendar.SECOND, 59);
+        tempCalendar.set(java.util.Calendar.MILLISECOND, 0);
+
+        Date end = tempCalendar.getTime();
+
+        // Now, let's produce the time zone offset and shove it down the throat of
+        // Google's invention that isn't capable of parsing normal TZ representation.
+        // This will not work with fractional offsets, but you know what?
+        // Go fix it yourself if you live in one of those time zones.
+
+        int tzShift = tempCalendar.getTimeZone().getRawOffset() / (60000 * 60);
+        String tzTail = tzFormatter.format(tzShift) + ":00";
+
+        DateFormat dateFormatter = new SimpleDateFormat(dateFormat);
+
+        return new DateTime[] {
+                DateTime.parseRfc3339(dateFormatter.format(start) + tzTail),
+                DateTime.parseRfc3339(dateFormatter.format(end) + tzTail)
+        };
+    }
+
+    /**
+     * Load the offline cache, once.
+     */
+    private void loadCache() {
+
+        if (cacheLoaded) {
+            return;
+        }
+
+        cacheLoaded = true;
+
+        if (!cacheFile.exists()) {
+            logger.info("No offline cache at {}", cacheFile);
+            return;
+        }
+
+        try {
+
+            CalendarCache cache = jsonFactory.fromString(new String(Files.readAllBytes(cacheFile.toPath()), StandardCharsets.UTF_8), CalendarCache.class);
+
+            for (CalendarState state : cache.calendars) {
+                name2state.put(state.name, state);
+            }
+
+            logger.info("Loaded {} calendars from {}", cache.calendars.size(), cacheFile);
+
+        } catch (IOException | RuntimeException ex) {
+            logger.warn("Can't load offline cache from {}, ignored", cacheFile, ex);
+        }
+    }
+
+    /**
+     * Save {@link #name2state} into the offline cache.
+     *
+     * The cache is written into a temporary file first, and then moved in place, so it is never seen half written.
+     */
+    private void saveCache() {
+
+        try {
+
+            CalendarCache cache = new CalendarCache();
+
+            cache.setFactory(jsonFactory);
+            cache.calendars.addAll(name2state.values());
+
+            File parent = cacheFile.getAbsoluteFile().getParentFile();
+
+            if (!parent.exists() && !parent.mkdirs()) {
+                throw new IOException("Can't create " + parent);
+            }
+
+            File temp = new File(parent, cacheFile.getName() + ".tmp");
+
+            Files.write(temp.toPath(), cache.toPrettyString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        } catch (IOException ex) {
+            logger.warn("Can't save offline cache to {}", cacheFile, ex);
+        }
+    }
+
+    /**
+     * Stop the sync and fetch threads, interrupting the sync in progress, if any.
+     */
+    @Override
+    public void close() {
+
+        syncRunner.shutdownNow();
+        fetchPool.shutdownNow();
+    }
+
+    private static ThreadFactory daemonFactory(String name) {
+
+        return r -> {
+
+            Thread t = new Thread(r, "GCalScheduleUpdater " + name);
+            t.setDaemon(true);
+
+            return t;
+        };
+    }
+
+    @JmxAttribute(description = "Duration of the last calendar sync, milliseconds")
+    public long getLastSyncMillis() {
+        return lastSyncMillis;
+    }
+
+    @JmxAttribute(description = "Number of events received in the last calendar sync")
+    public int getLastDeltaSize() {
+        return lastDeltaSize;
+    }
+
+    @JmxAttribute(description = "Full calendar fetches performed")
+    public long getFullFetches() {
+        return fullFetches.get();
+    }
+
+    @JmxAttribute(description = "Incremental calendar fetches performed")
+    public long getIncrementalFetches() {
+        return incrementalFetches.get();
+    }
+
+    @JmxAttribute(description = "Failed calendar syncs")
+    public long getSyncFailures() {
+        return syncFailures.get();
     }
 
     private void parse(Map<Thermostat, SortedMap<Period, ZoneStatus>> ts2schedule, Set<Thermostat> tSet, List<Event> events) {
@@ -289,6 +819,11 @@ public final class GCalScheduleUpdater extends GCalScheduleUpdaterBase {
 
             parseEvent(period2status, event.getSummary(), start, end);
 
+        } catch (IllegalArgumentException ex) {
+
+            // One bad event shouldn't take down the whole schedule, especially since it may be cached
+            logger.error("Can't parse '" + event.getSummary() + "', skipped", ex);
+
         } finally {
             ThreadContext.pop();
         }
@@ -0,0 +1,349 @@
+package net.sf.dz3.scheduler.gcal;
+
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.calendar.Calendar;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import net.sf.dz3.device.model.Thermostat;
+import net.sf.dz3.device.model.ZoneStatus;
+import net.sf.dz3.scheduler.Period;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIOException;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Exercise {@link GCalScheduleUpdater} against a local fake calendar endpoint.
+ */
+class CalendarSyncTest {
+
+    private final Logger logger = LogManager.getLogger(getClass());
+
+    private FakeCalendar server;
+
+    @TempDir
+    File tempDir;
+
+    @AfterEach
+    void stop() {
+
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    void incremental() throws IOException {
+
+        server = new FakeCalendar(0);
+        server.add("zone0", "e1", "day: setpoint 20", 8, 10);
+        server.add("zone0", "e2", "evening: setpoint 22", 12, 14);
+
+        Thermostat ts = thermostat("zone0");
+
+        try (GCalScheduleUpdater updater = new GCalScheduleUpdater(Map.of(ts, "zone0"), server.client(), new File(tempDir, "cache.json"), 4, 5000)) {
+
+            SortedMap<Period, ZoneStatus> schedule = updater.update().get(ts);
+
+            assertThat(schedule).hasSize(2);
+            assertThat(updater.getFullFetches()).isEqualTo(1);
+
+            server.cancel("zone0", "e1");
+            server.add("zone0", "e3", "night: setpoint 18", 16, 18);
+
+            schedule = updater.update().get(ts);
+
+            assertThat(schedule.keySet()).extracting(p -> p.name).containsExactlyInAnyOrder("evening", "night");
+            assertThat(updater.getFullFetches()).isEqualTo(1);
+            assertThat(updater.getIncrementalFetches()).isEqualTo(1);
+            assertThat(updater.getLastDeltaSize()).isEqualTo(2);
+            assertThat(server.incrementalRequests.get()).isEqualTo(1);
+        }
+    }
+
+    /**
+     * Incremental sync returns changes on any day, only today's events must be kept.
+     */
+    @Test
+    void otherDays() throws IOException {
+
+        File cache = new File(tempDir, "cache.json");
+
+        server = new FakeCalendar(0);
+        server.add("zone0", "e1", "day: setpoint 20", 8, 10);
+        server.add("zone0", "e2", "evening: setpoint 22", 12, 14);
+
+        Thermostat ts = thermostat("zone0");
+
+        try (GCalScheduleUpdater updater = new GCalScheduleUpdater(Map.of(ts, "zone0"), server.client(), cache, 4, 5000)) {
+
+            assertThat(updater.update().get(ts)).hasSize(2);
+
+            // Tomorrow's event shows up, today's event is moved to the day after tomorrow
+            server.add("zone0", "e3", "tomorrow: setpoint 18", 1, 8, 10);
+            server.add("zone0", "e1", "moved: setpoint 20", 2, 8, 10);
+
+            assertThat(updater.update().get(ts).keySet()).extracting(p -> p.name).containsExactly("evening");
+            assertThat(updater.getIncrementalFetches()).isEqualTo(1);
+
+            // ...and they don't accumulate in the state
+            assertThat(new String(Files.readAllBytes(cache.toPath()), StandardCharsets.UTF_8))
+                    .contains("evening")
+                    .doesNotContain("tomorrow")
+                    .doesNotContain("moved");
+        }
+    }
+
+    @Test
+    void firstSyncTimeout() throws IOException {
+
+        server = new FakeCalendar(2000);
+        server.add("zone0", "e1", "day: setpoint 20", 8, 10);
+
+        Thermostat ts = thermostat("zone0");
+
+        try (GCalScheduleUpdater updater = new GCalScheduleUpdater(Map.of(ts, "zone0"), server.client(), new File(tempDir, "cache.json"), 4, 200)) {
+
+            long start = System.currentTimeMillis();
+
+            // Nothing to fall back to, but the caller must not be blocked until the sync completes
+            assertThatIOException().isThrownBy(updater::update).withCauseInstanceOf(TimeoutException.class);
+            assertThat(System.currentTimeMillis() - start).isLessThan(2000);
+        }
+    }
+
+    @Test
+    void offline() throws IOException {
+
+        File cache = new File(tempDir, "cache.json");
+
+        server = new FakeCalendar(0);
+        server.add("zone0", "e1", "day: setpoint 20", 8, 10);
+        server.add("zone0", "e2", "evening: setpoint 22", 12, 14);
+
+        Thermostat ts = thermostat("zone0");
+
+        try (GCalScheduleUpdater online = new GCalScheduleUpdater(Map.of(ts, "zone0"), server.client(), cache, 4, 5000)) {
+            online.update();
+        }
+
+        assertThat(cache).exists();
+
+        Calendar client = server.client();
+        server.stop();
+        server = null;
+
+        try (GCalScheduleUpdater offline = new GCalScheduleUpdater(Map.of(ts, "zone0"), client, cache, 4, 5000)) {
+
+            // First run must not wait for the network
+            long start = System.currentTimeMillis();
+
+            assertThat(offline.update().get(ts)).hasSize(2);
+
+            logger.info("cached schedule in {}ms", System.currentTimeMillis() - start);
+
+            // Second run waits for the sync, which fails, and falls back to the last known schedule
+            assertThat(offline.update().get(ts)).hasSize(2);
+            assertThat(offline.getSyncFailures()).isPositive();
+        }
+    }
+
+    @Test
+    void parallel() throws IOException {
+
+        int calendars = 16;
+        int delayMillis = 200;
+
+        server = new FakeCalendar(delayMillis);
+
+        Map<Thermostat, String> ts2source = new TreeMap<>();
+
+        for (int offset = 0; offset < calendars; offset++) {
+
+            String name = "zone" + offset;
+
+            server.add(name, "e1", "day: setpoint 20", 8, 10);
+            ts2source.put(thermostat(name), name);
+        }
+
+        try (GCalScheduleUpdater updater = new GCalScheduleUpdater(ts2source, server.client(), new File(tempDir, "cache.json"), 8, 5000)) {
+
+            Map<Thermostat, SortedMap<Period, ZoneStatus>> schedule = updater.update();
+
+            logger.info("{} calendars fetched in {}ms, {} events", calendars, updater.getLastSyncMillis(), updater.getLastDeltaSize());
+
+            assertThat(schedule).hasSize(calendars);
+            assertThat(updater.getLastSyncMillis()).isLessThan((long) calendars * delayMillis / 2);
+        }
+    }
+
+    private Thermostat thermostat(String name) {
+
+        Thermostat ts = mock(Thermostat.class);
+
+        when(ts.getName()).thenReturn(name);
+        when(ts.compareTo(any())).thenAnswer(invocation -> name.compareTo(((Thermostat) invocation.getArgument(0)).getName()));
+        when(ts.toString()).thenReturn(name);
+
+        return ts;
+    }
+
+    /**
+     * Serves just enough of the Calendar V3 API to keep {@link GCalScheduleUpdater} happy.
+     */
+    private static class FakeCalendar {
+
+        private static final DateTimeFormatter format = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ssXXX");
+
+        private final HttpServer httpServer;
+        private final int delayMillis;
+
+        /**
+         * Calendar ID to event ID to event JSON.
+         */
+        private final Map<String, Map<String, String>> events = new ConcurrentHashMap<>();
+
+        /**
+         * Calendar ID to changes since the last sync token was issued.
+         */
+        private final Map<String, List<String>> changes = new ConcurrentHashMap<>();
+
+        final AtomicInteger incrementalRequests = new AtomicInteger();
+
+        FakeCalendar(int delayMillis) throws IOException {
+
+            this.delayMillis = delayMillis;
+
+            httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+            httpServer.setExecutor(Executors.newFixedThreadPool(32));
+            httpServer.createContext("/calendar/v3/users/me/calendarList", this::calendarList);
+            httpServer.createContext("/calendar/v3/calendars/", this::events);
+            httpServer.start();
+        }
+
+        Calendar client() {
+
+            return new Calendar.Builder(new NetHttpTransport(), JacksonFactory.getDefaultInstance(), null)
+                    .setRootUrl("http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + httpServer.getAddress().getPort() + "/")
+                    .setApplicationName("test")
+                    .build();
+        }
+
+        void add(String calendar, String id, String summary, int startHour, int endHour) {
+            add(calendar, id, summary, 0, startHour, endHour);
+        }
+
+        void add(String calendar, String id, String summary, int dayOffset, int startHour, int endHour) {
+
+            String json = "{\"id\":\"" + id + "\",\"status\":\"confirmed\",\"summary\":\"" + summary + "\","
+                    + "\"start\":{\"dateTime\":\"" + time(dayOffset, startHour) + "\"},"
+                    + "\"end\":{\"dateTime\":\"" + time(dayOffset, endHour) + "\"}}";
+
+            events.computeIfAbsent(calendar, k -> new LinkedHashMap<>()).put(id, json);
+            changes.computeIfAbsent(calendar, k -> new ArrayList<>()).add(json);
+        }
+
+        void cancel(String calendar, String id) {
+
+            events.get(calendar).remove(id);
+            changes.get(calendar).add("{\"id\":\"" + id + "\",\"status\":\"cancelled\"}");
+        }
+
+        private String time(int dayOffset, int hour) {
+            return ZonedDateTime.of(LocalDate.now().plusDays(dayOffset), LocalTime.of(hour, 0), ZoneId.systemDefault()).format(format);
+        }
+
+        private void calendarList(HttpExchange exchange) throws IOException {
+
+            StringBuilder sb = new StringBuilder("{\"items\":[");
+            String separator = "";
+
+            for (String id : events.keySet()) {
+                sb.append(separator).append("{\"id\":\"").append(id).append("\",\"summary\":\"").append(id).append("\"}");
+                separator = ",";
+            }
+
+            respond(exchange, sb.append("]}").toString());
+        }
+
+        private void events(HttpExchange exchange) throws IOException {
+
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+
+            // /calendar/v3/calendars/{id}/events
+            String[] path = exchange.getRequestURI().getPath().split("/");
+            String calendar = path[4];
+            String query = exchange.getRequestURI().getQuery();
+
+            List<String> items;
+
+            synchronized (this) {
+
+                if (query != null && query.contains("syncToken=")) {
+
+                    incrementalRequests.incrementAndGet();
+                    items = new ArrayList<>(changes.get(calendar));
+
+                } else {
+
+                    items = new ArrayList<>(events.get(calendar).values());
+                }
+
+                changes.get(calendar).clear();
+            }
+
+            respond(exchange, "{\"items\":[" + String.join(",", items) + "],\"nextSyncToken\":\"token-" + System.nanoTime() + "\"}");
+        }
+
+        private void respond(HttpExchange exchange, String body) throws IOException {
+
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+
+            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=UTF-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+
+        void stop() {
+            httpServer.stop(0);
+        }
+    }
+}
@@ -5,6 +5,9 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.ThreadContext;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.joda.time.LocalTime;
 
 import java.util.ArrayDeque;
 import java.util.Map.Entry;
@@ -57,6 +60,89 @@ public class PeriodMatcher {
         }
     }
 
+    /**
+     * Find the next moment when the result of {@link #match(SortedMap, DateTime)} may change.
+     *
+     * Periods are inclusive at both ends with minute resolution, so a period starts matching at its start minute,
+     * and stops matching a minute after its end minute. Wall clock time is used, same as {@link #match(SortedMap, DateTime)}
+     * does, so DST transitions are accounted for.
+     *
+     * @param zoneSchedule Zone schedule.
+     * @param time Time to start looking from.
+     *
+     * @return The earliest moment strictly after {@code time} when a period starts or ends,
+     * or {@code null} if no period is active within the next week.
+     */
+    public DateTime nextTransition(SortedMap<Period, ZoneStatus> zoneSchedule, DateTime time) {
+
+        ThreadContext.push("nextTransition");
+
+        try {
+
+            DateTimeZone zone = time.getZone();
+            LocalDate today = time.toLocalDate();
+            DateTime result = null;
+
+            for (var day = 0; day <= 7; day++) {
+
+                LocalDate date = today.plusDays(day);
+                DateTime midnight = date.toDateTimeAtStartOfDay(zone);
+
+                for (Period p : zoneSchedule.keySet()) {
+
+                    if (!p.includesDay(midnight)) {
+                        continue;
+                    }
+
+                    result = earliest(result, toDateTime(date, p.start, zone), time);
+                    result = earliest(result, toDateTime(date, p.end + 60 * 1000L, zone), time);
+                }
+
+                // Nothing on the following days can possibly be earlier than this
+                if (result != null && !result.isAfter(date.plusDays(1).toDateTimeAtStartOfDay(zone))) {
+                    break;
+                }
+            }
+
+            logger.debug("next transition after {}: {}", time, result);
+
+            return result;
+
+        } finally {
+            ThreadContext.pop();
+        }
+    }
+
+    private DateTime earliest(DateTime current, DateTime candidate, DateTime after) {
+
+        if (!candidate.isAfter(after)) {
+            return current;
+        }
+
+        return current == null || candidate.isBefore(current) ? candidate : current;
+    }
+
+    /**
+     * Convert the offset against the midnight into the wall clock time.
+     *
+     * @param date Date the offset is against.
+     * @param offset Offset against midnight, in milliseconds. May be a full day, meaning the next midnight.
+     * @param zone Time zone to use.
+     *
+     * @return The moment the wall clock shows the given time, or the first moment after the DST gap
+     * if it never does.
+     */
+    private DateTime toDateTime(LocalDate date, long offset, DateTimeZone zone) {
+
+        var local = date.toLocalDateTime(LocalTime.MIDNIGHT).plusMillis((int) offset);
+
+        while (zone.isLocalDateTimeGap(local)) {
+            local = local.plusMinutes(1);
+        }
+
+        return local.toDateTime(zone);
+    }
+
     /**
      * Filter out only those periods that correspond to the given date's day of week.
      *
@@ -16,16 +16,32 @@ import org.joda.time.DateTime;
 
 import java.io.IOException;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.TreeSet;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
+ * Schedule driven thermostat controller.
+ *
+ * The schedule is checked for updates every {@link #getScheduleGranularity()} milliseconds, aligned to the
+ * granularity boundary (the minute boundary, by default). Period transitions, however, are not polled for - the next
+ * transition moment is computed for every zone, and the scheduler sleeps exactly until the earliest of them, then
+ * only re-evaluates the zones affected. Zones are also re-evaluated if their schedule changes, or if the wall clock
+ * is found to have been stepped (by NTP, for example).
+ *
+ * All the state is only ever modified on the single scheduler thread.
+ *
  * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2018
  */
 public class Scheduler implements Runnable, StoppableService, JmxAware {
@@ -33,7 +49,12 @@ public class Scheduler implements Runnable, StoppableService, JmxAware {
     private final Logger logger = LogManager.getLogger(getClass());
     private static final DecimalFormat df = new DecimalFormat("#0.0###;-#0.0###");
 
-    private final ScheduledExecutorService executorService = Executors.newScheduledThreadPool(1);
+    /**
+     * Wall clock deviation from the monotonic clock between schedule checks that is considered a clock step.
+     */
+    private static final long CLOCK_STEP_THRESHOLD_MILLIS = 5000;
+
+    private final ScheduledThreadPoolExecutor executorService = new ScheduledThreadPoolExecutor(1);
     private final ScheduleUpdater updater;
 
     /**
@@ -59,6 +80,31 @@ public class Scheduler implements Runnable, StoppableService, JmxAware {
      */
     private final Map<Thermostat, Period> currentPeriod = new TreeMap<>();
 
+    /**
+     * Next moment when the period for a thermostat may change.
+     */
+    private final Map<Thermostat, DateTime> nextTransition = new TreeMap<>();
+
+    /**
+     * Task that will fire at the earliest of {@link #nextTransition} values.
+     */
+    private ScheduledFuture<?> pendingTransition;
+
+    /**
+     * {@code true} if zones have been evaluated at least once.
+     */
+    private boolean initialized = false;
+
+    private long lastCheckMillis;
+    private long lastCheckNanos;
+
+    private volatile long transitionCount;
+    private volatile long lastLatenessMillis;
+    private volatile long maxLatenessMillis;
+    private volatile long totalLatenessMillis;
+    private volatile long clockSteps;
+    private volatile long earliestTransition;
+
     /**
      * Create an instance using no updater with empty schedule.
      */
@@ -96,6 +142,12 @@ public class Scheduler implements Runnable, StoppableService, JmxAware {
 
         this.updater = updater;
 
+        // Pending transition must not keep the executor alive after stop()
+        executorService.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+
+        // Pending transitions are cancelled and replaced every time the schedule is evaluated, don't let them pile up
+        executorService.setRemoveOnCancelPolicy(true);
+
         if (schedule == null) {
             logger.warn("schedule is null, ignored");
             return;
@@ -134,9 +186,25 @@ public class Scheduler implements Runnable, StoppableService, JmxAware {
      */
     public EventSemaphore start(long initialDelayMillis) {
 
-        logger.warn("VT: FIXME: Synchronize to the minute boundary");
+        // First check as soon as allowed, the rest aligned to the granularity boundary.
+        // The periodic task is only scheduled after the first check is done, so the two never overlap.
+
+        executorService.schedule(() -> {
+
+            run();
+
+            var granularity = getScheduleGranularity();
+            var alignedDelayMillis = alignedDelay(System.currentTimeMillis(), granularity);
+
+            try {
+
+                executorService.scheduleAtFixedRate(this, alignedDelayMillis, granularity, TimeUnit.MILLISECONDS);
+
+            } catch (RejectedExecutionException ex) {
+                logger.info("stopped before the first check completed");
+            }
 
-        executorService.scheduleAtFixedRate(this, initialDelayMillis, getScheduleGranularity(), TimeUnit.MILLISECONDS);
+        }, initialDelayMillis, TimeUnit.MILLISECONDS);
 
         // We're cheating, for simplicity
 
@@ -147,6 +215,16 @@ public class Scheduler implements Runnable, StoppableService, JmxAware {
         return started;
     }
 
+    /**
+     * @param nowMillis Current time.
+     * @param granularityMillis Schedule granularity.
+     *
+     * @return Delay until the next granularity boundary, never zero.
+     */
+    static long alignedDelay(long nowMillis, long granularityMillis) {
+        return granularityMillis - nowMillis % granularityMillis;
+    }
+
     @Override
     public EventSemaphore stop() {
 
@@ -207,9 +285,48 @@ public class Scheduler implements Runnable, StoppableService, JmxAware {
         this.scheduleGranularityMillis = scheduleGranularityMillis;
     }
 
+    @JmxAttribute(description = "Period transitions executed")
+    public long getTransitionCount() {
+        return transitionCount;
+    }
+
+    @JmxAttribute(description = "How late the last period transition was executed, milliseconds")
+    public long getLastLatenessMillis() {
+        return lastLatenessMillis;
+    }
+
+    @JmxAttribute(description = "How late the latest period transition was executed, milliseconds")
+    public long getMaxLatenessMillis() {
+        return maxLatenessMillis;
+    }
+
+    @JmxAttribute(description = "Average period transition lateness, milliseconds")
+    public double getAverageLatenessMillis() {
+
+        var count = transitionCount;
+
+        return count == 0 ? 0 : (double) totalLatenessMillis / count;
+    }
+
+    @JmxAttribute(description = "Wall clock steps detected")
+    public long getClockSteps() {
+        return clockSteps;
+    }
+
+    @JmxAttribute(description = "Next period transition")
+    public String getNextTransition() {
+
+        var next = earliestTransition;
+
+        return next == 0 ? "none" : new DateTime(next).toString();
+    }
+
     /**
      * This method is to be executed every {@link #getScheduleGranularity()} milliseconds.
      *
+     * Zones are only re-evaluated here if this is the first run, if their schedule changed, or if the wall clock
+     * was stepped. Regular period transitions are handled by {@link #fire()}.
+     *
      * VT: FIXME: It is a bad idea to have this method exposed, need to move the whole thing into an inner class after the test coverage is sufficient
      */
     @SuppressWarnings("squid:S1181")
@@ -220,10 +337,24 @@ public class Scheduler implements Runnable, StoppableService, JmxAware {
 
         try {
 
-            logger.info("Checking schedule");
+            logger.debug("Checking schedule");
+
+            var clockStepped = checkClock();
+            var changed = update(schedule);
 
-            update(schedule);
-            execute(schedule, new DateTime());
+            if (!initialized || clockStepped) {
+
+                changed.addAll(schedule.keySet());
+                initialized = true;
+            }
+
+            var now = new DateTime();
+
+            for (Thermostat ts : changed) {
+                evaluate(ts, now);
+            }
+
+            reschedule();
 
         } catch (Throwable t) {
 
@@ -233,7 +364,7 @@ public class Scheduler implements Runnable, StoppableService, JmxAware {
 
         } finally {
 
-            logger.info("done");
+            logger.debug("done");
 
             ThreadContext.pop();
 
@@ -244,18 +375,174 @@ public class Scheduler implements Runnable, StoppableService, JmxAware {
         }
     }
 
+    /**
+     * Execute the period transitions that are due, and schedule the next one.
+     */
+    @SuppressWarnings("squid:S1181")
+    private void fire() {
+
+        ThreadContext.push("fire");
+
+        try {
+
+            var nowMillis = System.currentTimeMillis();
+            var now = new DateTime(nowMillis);
+
+            for (Entry<Thermostat, DateTime> entry : new ArrayList<>(nextTransition.entrySet())) {
+
+                var due = entry.getValue().getMillis();
+
+                if (due > nowMillis) {
+                    continue;
+                }
+
+                var lateness = nowMillis - due;
+
+                transitionCount++;
+                lastLatenessMillis = lateness;
+                maxLatenessMillis = Math.max(maxLatenessMillis, lateness);
+                totalLatenessMillis += lateness;
+
+                logger.debug("{}: transition due at {}, {}ms late", entry.getKey().getName(), entry.getValue(), lateness);
+
+                evaluate(entry.getKey(), now);
+            }
+
+        } catch (Throwable t) {
+
+            // squid:S1181: No.
+            logger.error("Unexpected exception", t);
+
+        } finally {
+
+            reschedule();
+
+            ThreadContext.pop();
+            ThreadContext.clearStack();
+        }
+    }
+
+    /**
+     * Apply the schedule to the given zone, and figure out when to do it next.
+     *
+     * @param ts Thermostat to evaluate.
+     * @param now Time to match against.
+     */
+    private void evaluate(Thermostat ts, DateTime now) {
+
+        var zoneSchedule = schedule.get(ts);
+
+        if (zoneSchedule == null) {
+
+            // Dropped from the schedule, leave it alone
+            nextTransition.remove(ts);
+            return;
+        }
+
+        DateTime next;
+
+        if (executeSafely(ts, zoneSchedule, now)) {
+
+            next = new PeriodMatcher().nextTransition(zoneSchedule, now);
+
+        } else {
+
+            // Retry soon, the next transition may be far away
+            next = now.plus(getScheduleGranularity());
+        }
+
+        if (next == null) {
+            nextTransition.remove(ts);
+        } else {
+            nextTransition.put(ts, next);
+        }
+    }
+
+    /**
+     * Make sure {@link #fire()} runs at the earliest transition moment.
+     */
+    private void reschedule() {
+
+        if (pendingTransition != null) {
+            pendingTransition.cancel(false);
+            pendingTransition = null;
+        }
+
+        if (nextTransition.isEmpty() || executorService.isShutdown()) {
+            earliestTransition = 0;
+            return;
+        }
+
+        var earliest = Long.MAX_VALUE;
+
+        for (DateTime next : nextTransition.values()) {
+            earliest = Math.min(earliest, next.getMillis());
+        }
+
+        earliestTransition = earliest;
+
+        var delay = Math.max(0, earliest - System.currentTimeMillis());
+
+        logger.debug("next transition at {}, in {}ms", new DateTime(earliest), delay);
+
+        pendingTransition = executorService.schedule(this::fire, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Detect wall clock steps.
+     *
+     * Pending transition delay is measured by the monotonic clock, so if the wall clock is stepped, the transitions
+     * would fire at a wrong time. DST changes don't cause this, transitions are computed in the correct time zone
+     * to begin with.
+     *
+     * @return {@code true} if the wall clock deviated from the monotonic clock since the last check.
+     */
+    private boolean checkClock() {
+
+        var nowMillis = System.currentTimeMillis();
+        var nowNanos = System.nanoTime();
+
+        try {
+
+            if (lastCheckNanos == 0) {
+                return false;
+            }
+
+            var drift = (nowMillis - lastCheckMillis) - (nowNanos - lastCheckNanos) / 1_000_000;
+
+            if (Math.abs(drift) > CLOCK_STEP_THRESHOLD_MILLIS) {
+
+                clockSteps++;
+                logger.warn("Wall clock stepped by {}ms, re-evaluating all zones", drift);
+
+                return true;
+            }
+
+            return false;
+
+        } finally {
+
+            lastCheckMillis = nowMillis;
+            lastCheckNanos = nowNanos;
+        }
+    }
+
     /**
      * Update the schedule.
+     *
+     * @return Set of thermostats whose schedule has changed. Modifiable.
      */
-    private void update(final Map<Thermostat, SortedMap<Period, ZoneStatus>> target) {
+    private Set<Thermostat> update(final Map<Thermostat, SortedMap<Period, ZoneStatus>> target) {
 
         ThreadContext.push("update");
 
+        var changed = new TreeSet<Thermostat>();
+
         try {
 
             if (updater == null) {
                 logger.debug("No updater specified, doing nothing");
-                return;
+                return changed;
             }
 
             Map<Thermostat, SortedMap<Period, ZoneStatus>> newSchedule = updater.update();
@@ -271,12 +558,30 @@ public class Scheduler implements Runnable, StoppableService, JmxAware {
                 throw new IllegalStateException("Bad updater implementation returned null");
             }
 
+            for (Entry<Thermostat, SortedMap<Period, ZoneStatus>> entry : newSchedule.entrySet()) {
+
+                if (!isSame(target.get(entry.getKey()), entry.getValue())) {
+                    changed.add(entry.getKey());
+                }
+            }
+
+            for (Thermostat ts : target.keySet()) {
+
+                if (!newSchedule.containsKey(ts)) {
+                    changed.add(ts);
+                }
+            }
+
             // Completely discard the current schedule and replace it with the new one,
             // there's no need to use rocket science here
 
             target.clear();
             target.putAll(newSchedule);
 
+            if (!changed.isEmpty()) {
+                logger.info("Schedule changed for {} zone[s]", changed.size());
+            }
+
         } catch (IOException ex) {
 
             logger.error("Schedule update failed", ex);
@@ -284,6 +589,43 @@ public class Scheduler implements Runnable, StoppableService, JmxAware {
         } finally {
             ThreadContext.pop();
         }
+
+        return changed;
+    }
+
+    /**
+     * Compare zone schedules.
+     *
+     * {@link Period} doesn't define equality, and its natural ordering ignores the name and the days,
+     * so the comparison has to be done field by field.
+     *
+     * @return {@code true} if schedules are the same.
+     */
+    private boolean isSame(SortedMap<Period, ZoneStatus> current, SortedMap<Period, ZoneStatus> next) {
+
+        if (current == next) {
+            return true;
+        }
+
+        if (current == null || next == null || current.size() != next.size()) {
+            return false;
+        }
+
+        Iterator<Entry<Period, ZoneStatus>> i = current.entrySet().iterator();
+
+        for (Entry<Period, ZoneStatus> n : next.entrySet()) {
+
+            Entry<Period, ZoneStatus> c = i.next();
+            Period pc = c.getKey();
+            Period pn = n.getKey();
+
+            if (pc.start != pn.start || pc.end != pn.end || pc.days != pn.days
+                    || !pc.name.equals(pn.name) || !Objects.equals(c.getValue(), n.getValue())) {
+                return false;
+            }
+        }
+
+        return true;
     }
 
     /**
@@ -302,24 +644,33 @@ public class Scheduler implements Runnable, StoppableService, JmxAware {
         try {
 
             for (Entry<Thermostat, SortedMap<Period, ZoneStatus>> entry : target.entrySet()) {
+                executeSafely(entry.getKey(), entry.getValue(), when);
+            }
 
-                Thermostat ts = entry.getKey();
-                SortedMap<Period, ZoneStatus> zoneSchedule = entry.getValue();
+        } finally {
+            ThreadContext.pop();
+        }
+    }
 
-                try {
+    /**
+     * Execute the schedule for the given zone, without letting exceptions propagate.
+     *
+     * @return {@code true} if successful.
+     */
+    @SuppressWarnings("squid:S1181")
+    private boolean executeSafely(Thermostat ts, SortedMap<Period, ZoneStatus> zoneSchedule, DateTime when) {
 
-                    execute(ts, zoneSchedule, when);
+        try {
 
-                } catch (Throwable t) {
+            execute(ts, zoneSchedule, when);
+            return true;
 
-                    // Errors with individual thermostats shouldn't affect others
-                    // squid:S1181: No.
-                    logger.error("{}: failed to set schedule, will retry on next run", ts.getName(), t);
-                }
-            }
+        } catch (Throwable t) {
 
-        } finally {
-            ThreadContext.pop();
+            // Errors with individual thermostats shouldn't affect others
+            // squid:S1181: No.
+            logger.error("{}: failed to set schedule, will retry soon", ts.getName(), t);
+            return false;
         }
     }
 
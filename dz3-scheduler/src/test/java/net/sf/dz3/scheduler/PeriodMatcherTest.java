@@ -2,6 +2,7 @@ package net.sf.dz3.scheduler;
 
 import net.sf.dz3.device.model.ZoneStatus;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.junit.jupiter.api.Test;
 
 import java.util.NoSuchElementException;
@@ -101,6 +102,69 @@ class PeriodMatcherTest {
         assertThat(test(zoneSchedule, dt.withMinuteOfHour(42))).isEqualTo(p1);
     }
 
+    @Test
+    void testNextTransition() {
+
+        SortedMap<Period, ZoneStatus> zoneSchedule = new TreeMap<>();
+
+        zoneSchedule.put(new Period("period 1", "00:10", "00:30", "......."), null);
+        zoneSchedule.put(new Period("period 2", "00:20", "00:40", "......."), null);
+
+        DateTime dt = new DateTime(2010, 1, 19, 0, 0, 0, 0);
+
+        assertThat(next(zoneSchedule, dt)).isEqualTo(dt.withMinuteOfHour(10));
+        assertThat(next(zoneSchedule, dt.withMinuteOfHour(10))).isEqualTo(dt.withMinuteOfHour(20));
+        assertThat(next(zoneSchedule, dt.withMinuteOfHour(20).withSecondOfMinute(30))).isEqualTo(dt.withMinuteOfHour(31));
+        assertThat(next(zoneSchedule, dt.withMinuteOfHour(31))).isEqualTo(dt.withMinuteOfHour(41));
+
+        // Nothing left today, tomorrow it is
+        assertThat(next(zoneSchedule, dt.withMinuteOfHour(41))).isEqualTo(dt.plusDays(1).withMinuteOfHour(10));
+    }
+
+    @Test
+    void testNextTransitionDays() {
+
+        SortedMap<Period, ZoneStatus> zoneSchedule = new TreeMap<>();
+
+        // Wednesday only, all day
+        zoneSchedule.put(new Period("period", "00:00", "23:59", "  W    "), null);
+
+        // Tuesday
+        DateTime dt = new DateTime(2010, 1, 19, 12, 0, 0, 0);
+
+        assertThat(next(zoneSchedule, dt)).isEqualTo(new DateTime(2010, 1, 20, 0, 0, 0, 0));
+        assertThat(next(zoneSchedule, dt.plusDays(1))).isEqualTo(new DateTime(2010, 1, 21, 0, 0, 0, 0));
+        assertThat(next(zoneSchedule, dt.plusDays(2))).isEqualTo(new DateTime(2010, 1, 27, 0, 0, 0, 0));
+    }
+
+    @Test
+    void testNextTransitionDst() {
+
+        SortedMap<Period, ZoneStatus> zoneSchedule = new TreeMap<>();
+        DateTimeZone zone = DateTimeZone.forID("America/New_York");
+
+        zoneSchedule.put(new Period("period", "02:30", "04:00", "......."), null);
+
+        // 2:30 doesn't exist on this day, the wall clock goes from 1:59 to 3:00
+        DateTime dt = new DateTime(2021, 3, 14, 1, 0, 0, 0, zone);
+
+        assertThat(next(zoneSchedule, dt)).isEqualTo(new DateTime(2021, 3, 14, 3, 0, 0, 0, zone));
+    }
+
+    @Test
+    void testNextTransitionNone() {
+
+        SortedMap<Period, ZoneStatus> zoneSchedule = new TreeMap<>();
+
+        zoneSchedule.put(new Period("period", "00:10", "00:30", "       "), null);
+
+        assertThat(next(zoneSchedule, new DateTime())).isNull();
+    }
+
+    private DateTime next(SortedMap<Period, ZoneStatus> zoneSchedule, DateTime time) {
+        return new PeriodMatcher().nextTransition(zoneSchedule, time);
+    }
+
     private Period test(SortedMap<Period, ZoneStatus> zoneSchedule, DateTime time) {
         return new PeriodMatcher().match(zoneSchedule, time);
     }
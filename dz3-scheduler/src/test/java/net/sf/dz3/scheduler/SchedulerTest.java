@@ -24,6 +24,7 @@ import java.util.Random;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatCode;
@@ -154,6 +155,63 @@ class SchedulerTest {
         }).doesNotThrowAnyException();
     }
 
+    /**
+     * Make sure the periodic checks are aligned to the granularity boundary.
+     */
+    @Test
+    void testAlignedDelay() {
+
+        assertThat(Scheduler.alignedDelay(1623000000050L, 200)).isEqualTo(150);
+        assertThat(Scheduler.alignedDelay(1623000000199L, 200)).isEqualTo(1);
+        assertThat(Scheduler.alignedDelay(1623000000000L, 200)).isEqualTo(200);
+        assertThat(Scheduler.alignedDelay(1623000012345L, 60_000)).isEqualTo(47_655);
+
+        for (long now = 1623000000000L; now < 1623000000000L + 1000; now += 7) {
+            assertThat((now + Scheduler.alignedDelay(now, 200)) % 200).isZero();
+        }
+    }
+
+    /**
+     * Make sure the schedule keeps being checked after the first check, and an unchanged schedule is applied exactly once.
+     */
+    @Test
+    void testStartAligned() throws InterruptedException {
+
+        var granularity = 200L;
+        var ts = new NullThermostat("ts");
+        var zoneSchedule = new TreeMap<Period, ZoneStatus>();
+
+        zoneSchedule.put(new Period("all day", "0:00", "23:59", "......."), new ZoneStatusImpl(22, 0, true, true));
+
+        var schedule = new TreeMap<Thermostat, SortedMap<Period, ZoneStatus>>();
+
+        schedule.put(ts, zoneSchedule);
+
+        var checks = new Semaphore(0);
+
+        ScheduleUpdater u = () -> {
+
+            checks.release();
+            return schedule;
+        };
+
+        var s = new Scheduler(u);
+
+        s.setScheduleGranularity(granularity);
+        s.start(50);
+
+        try {
+
+            // The first check, and two periodic ones; the timeout is only there to not hang if they never come
+            assertThat(checks.tryAcquire(3, 10, TimeUnit.SECONDS)).as("checks made").isTrue();
+
+        } finally {
+            s.stop();
+        }
+
+        assertThat(ts.setCount).as("set() calls").isEqualTo(1);
+    }
+
     @Test
     void testStartStop() {
 
@@ -984,6 +1042,7 @@ class SchedulerTest {
         private Double setpoint;
         private Boolean enabled;
         private Boolean voting;
+        private int setCount;
 
         public NullThermostat(String name) {
 
@@ -1022,6 +1081,7 @@ class SchedulerTest {
             this.setpoint = status.getSetpoint();
             this.enabled = status.isOn();
             this.voting = status.isVoting();
+            this.setCount++;
         }
 
         @Override
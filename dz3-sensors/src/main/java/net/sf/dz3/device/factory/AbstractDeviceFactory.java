@@ -15,6 +15,7 @@ import net.sf.dz3.device.sensor.impl.AbstractAnalogSensor;
 import net.sf.dz3.device.sensor.impl.AbstractDeviceContainer;
 import net.sf.dz3.device.sensor.impl.ContainerMap;
 import net.sf.dz3.device.sensor.impl.StringChannelAddress;
+import net.sf.dz3.device.sensor.impl.SwitchStateCache;
 import org.apache.logging.log4j.ThreadContext;
 
 import java.io.IOException;
@@ -53,6 +54,14 @@ public abstract class AbstractDeviceFactory<T> extends ActiveService implements
 
     protected Map<String, SwitchChannelSplitter> address2proxy = new TreeMap<String, SwitchChannelSplitter>();
 
+    /**
+     * Switch state cache shared by all the switches this factory produces.
+     *
+     * Switch states are queried by many consumers, and most of those queries used to be redundant hardware reads
+     * of values that were just written.
+     */
+    protected final SwitchStateCache switchCache = new SwitchStateCache(getClass().getSimpleName() + "@" + Integer.toHexString(hashCode()), 10000, 60000);
+
     /**
      * Data map.
      */
@@ -79,6 +88,41 @@ public abstract class AbstractDeviceFactory<T> extends ActiveService implements
         return lock;
     }
 
+    @JmxAttribute(description = "Maximum age of the cached switch state to serve reads from, milliseconds")
+    public long getSwitchCacheMaxAgeMillis() {
+        return switchCache.getMaxAgeMillis();
+    }
+
+    /**
+     * Set the switch state staleness bound.
+     *
+     * @param switchCacheMaxAgeMillis Maximum age of the cached switch state to serve reads from, milliseconds.
+     * Zero makes every read go to hardware.
+     */
+    public void setSwitchCacheMaxAgeMillis(long switchCacheMaxAgeMillis) {
+        switchCache.setMaxAgeMillis(switchCacheMaxAgeMillis);
+    }
+
+    @JmxAttribute(description = "Switch state cache hit rate, percent")
+    public double getSwitchCacheHitRate() {
+        return switchCache.getHitRate();
+    }
+
+    @JmxAttribute(description = "Switch hardware reads, including background verification")
+    public long getSwitchHardwareReads() {
+        return switchCache.getHardwareReads();
+    }
+
+    @JmxAttribute(description = "Switch hardware writes")
+    public long getSwitchHardwareWrites() {
+        return switchCache.getHardwareWrites();
+    }
+
+    @JmxAttribute(description = "Background switch verifications that found the cached state wrong")
+    public long getSwitchCacheMismatches() {
+        return switchCache.getMismatches();
+    }
+
     /**
      * Get an instance of a temperature sensor.
      *
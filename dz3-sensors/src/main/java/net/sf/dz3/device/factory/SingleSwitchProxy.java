@@ -14,37 +14,95 @@ import net.sf.dz3.device.sensor.SensorType;
 import net.sf.dz3.device.sensor.Switch;
 import net.sf.dz3.device.sensor.impl.ContainerMap;
 import net.sf.dz3.device.sensor.impl.StringChannelAddress;
+import net.sf.dz3.device.sensor.impl.SwitchStateCache;
 import com.homeclimatecontrol.jukebox.datastream.logger.impl.DataBroadcaster;
 import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSink;
 import com.homeclimatecontrol.jukebox.jmx.JmxAttribute;
 
 /**
  * A proxy for a single channel switch device.
+ *
+ * All state reads and writes go through the {@link SwitchStateCache}, so subclasses only need to implement
+ * the actual hardware access in {@link #readHardware()} and {@link #writeHardware(boolean)}.
  *  
  * @param <SwitchContainerType> Implementation class of the hardware dependent switch container.
  * 
  * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko 2001-2019
  */
-public abstract class SingleSwitchProxy<SwitchContainerType> implements Switch {
+public abstract class SingleSwitchProxy<SwitchContainerType> implements Switch, SwitchStateCache.Hardware {
 
     protected final Logger logger = LogManager.getLogger(getClass());
     
     protected final ContainerMap address2dcGlobal;
     protected final StringChannelAddress address;
-    
-    public SingleSwitchProxy(ContainerMap address2dcGlobal, StringChannelAddress address) {
+
+    private final SwitchStateCache cache;
+
+    /**
+     * Container resolved by {@link #getContainer(String)} last time, to avoid scanning the device set on every call.
+     * Dropped when the hardware access fails.
+     *
+     * Not guarded by the proxy lock, the background cache verification calls {@link #readHardware()} while holding
+     * the cache entry lock. Worst case, the container gets resolved twice.
+     */
+    private volatile SwitchContainerType container;
+
+    public SingleSwitchProxy(ContainerMap address2dcGlobal, StringChannelAddress address, SwitchStateCache cache) {
         
         this.address2dcGlobal = address2dcGlobal;
         this.address = address;
+        this.cache = cache;
     }
 
     @JmxAttribute(description="Switch state")
     @Override
-    public abstract boolean getState() throws IOException;
+    public final boolean getState() throws IOException {
+
+        try {
+
+            return cache.read(getAddress(), this);
+
+        } catch (IOException ex) {
+
+            container = null;
+            throw ex;
+        }
+    }
 
     @Override
-    public abstract void setState(boolean state) throws IOException;
-    
+    public final void setState(boolean state) throws IOException {
+
+        try {
+
+            cache.write(getAddress(), this, state);
+
+        } catch (IOException ex) {
+
+            container = null;
+            throw ex;
+        }
+    }
+
+    /**
+     * Read the switch state from hardware, bypassing the cache.
+     *
+     * @return Switch state.
+     *
+     * @exception IOException if the device is not present or can't be read.
+     */
+    @Override
+    public abstract boolean readHardware() throws IOException;
+
+    /**
+     * Write the switch state to hardware, bypassing the cache.
+     *
+     * @param state State to write.
+     *
+     * @exception IOException if the device is not present or can't be written.
+     */
+    @Override
+    public abstract void writeHardware(boolean state) throws IOException;
+
     /**
      * Get the device container.
      * 
@@ -54,8 +112,20 @@ public abstract class SingleSwitchProxy<SwitchContainerType> implements Switch {
      * 
      * @exception IOException if the device container is not present.
      */
-    @SuppressWarnings("unchecked")
     protected final SwitchContainerType getContainer(String address) throws IOException {
+
+        SwitchContainerType result = container;
+
+        if (result == null) {
+            result = resolveContainer(address);
+            container = result;
+        }
+
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private SwitchContainerType resolveContainer(String address) throws IOException {
         
         ThreadContext.push("getContainer");
         
@@ -0,0 +1,552 @@
+package net.sf.dz3.device.sensor.impl;
+
+import com.homeclimatecontrol.jukebox.jmx.JmxAttribute;
+import com.homeclimatecontrol.jukebox.jmx.JmxAware;
+import com.homeclimatecontrol.jukebox.jmx.JmxDescriptor;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.ThreadContext;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A long lived shell process producing readings for one or more {@link ShellCoprocessSensor} instances.
+ *
+ * Unlike {@link ShellSensor}, which forks {@code /bin/sh -c <command>} on every poll, this class
+ * starts the command once and keeps talking to it for as long as there are sensors attached.
+ * Two modes are supported:
+ *
+ * <ul>
+ *     <li>{@link Mode#STREAM} - the process emits readings on its own schedule, one per line, either as
+ *     {@code <value>} (applies to all attached sensors) or {@code <key> <value>} (applies to the sensor with that key).
+ *     The latest reading per key is retained;</li>
+ *
+ *     <li>{@link Mode#REQUEST} - the sensor key followed by a newline is written to the process' stdin, and
+ *     exactly one line containing the value is expected back on stdout.</li>
+ * </ul>
+ *
+ * If the process dies (or, in {@link Mode#REQUEST} mode, fails to respond in time), it is restarted
+ * with an exponential backoff between {@link #MIN_BACKOFF_MILLIS} and {@link #MAX_BACKOFF_MILLIS}. The backoff
+ * is only reset after the process has stayed up for longer than {@link #MAX_BACKOFF_MILLIS}; producing output
+ * doesn't count, a script that prints a reading and then crashes is still crash looping.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+public class ShellCoprocess implements JmxAware {
+
+    private final Logger logger = LogManager.getLogger(getClass());
+
+    public enum Mode {
+        STREAM,
+        REQUEST
+    }
+
+    /**
+     * Key under which readings not bound to a specific key are stored.
+     */
+    static final String ANY = "";
+
+    static final long MIN_BACKOFF_MILLIS = 1000;
+    static final long MAX_BACKOFF_MILLIS = 60000;
+
+    /**
+     * Shell command to execute.
+     */
+    private final String command;
+
+    private final Mode mode;
+
+    /**
+     * How long to wait for a response in {@link Mode#REQUEST} mode before declaring the process hung.
+     */
+    private final long timeoutMillis;
+
+    /**
+     * Latest readings in {@link Mode#STREAM} mode, keyed by sensor key.
+     */
+    private final Map<String, Reading> readings = new ConcurrentHashMap<>();
+
+    /**
+     * Responses in {@link Mode#REQUEST} mode.
+     */
+    private final BlockingQueue<String> responses = new LinkedBlockingQueue<>();
+
+    /**
+     * Number of sensors using this process. The process is running as long as this is positive.
+     */
+    private int refCount = 0;
+
+    private Process process;
+    private Writer stdin;
+    private Thread readerThread;
+
+    private volatile long backoffMillis = MIN_BACKOFF_MILLIS;
+
+    private final AtomicLong restartCount = new AtomicLong();
+    private final AtomicLong readCount = new AtomicLong();
+    private final AtomicLong readErrorCount = new AtomicLong();
+    private final AtomicLong maxReadLatencyMillis = new AtomicLong();
+    private final AtomicLong totalReadLatencyMillis = new AtomicLong();
+    private volatile long lastReadLatencyMillis = 0;
+
+    /**
+     * Create an instance.
+     *
+     * @param command Shell command to execute. Must follow the protocol described in {@link Mode}.
+     * @param mode Operation mode.
+     * @param timeoutMillis How long to wait for a response in {@link Mode#REQUEST} mode, or how old the last reading
+     * can be in {@link Mode#STREAM} mode before it is considered stale.
+     */
+    public ShellCoprocess(String command, Mode mode, long timeoutMillis) {
+
+        if (command == null || "".equals(command)) {
+            throw new IllegalArgumentException("command can't be null or empty");
+        }
+
+        if (mode == null) {
+            throw new IllegalArgumentException("mode can't be null");
+        }
+
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException("timeout must be positive (" + timeoutMillis + " given)");
+        }
+
+        this.command = command;
+        this.mode = mode;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Register a user, start the process if this is the first one.
+     */
+    public synchronized void acquire() {
+
+        if (refCount++ > 0) {
+            return;
+        }
+
+        logger.info("starting '" + command + "' in " + mode + " mode");
+
+        // Start right away, so that the first read doesn't have to wait for the reader thread to get to it
+        try {
+            start();
+        } catch (IOException ex) {
+            logger.error("'" + command + "' failed to start, will retry", ex);
+        }
+
+        readerThread = new Thread(this::run, "coprocess@" + Integer.toHexString(hashCode()));
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    /**
+     * Unregister a user, stop the process if this was the last one.
+     */
+    public void release() {
+
+        Thread toJoin;
+
+        synchronized (this) {
+
+            if (refCount == 0) {
+                throw new IllegalStateException("release() without acquire()");
+            }
+
+            if (--refCount > 0) {
+                return;
+            }
+
+            logger.info("stopping '" + command + "'");
+
+            toJoin = readerThread;
+            readerThread = null;
+
+            toJoin.interrupt();
+            destroy();
+        }
+
+        try {
+            toJoin.join(timeoutMillis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Get the reading for the given key.
+     *
+     * @param key Sensor key. Ignored in {@link Mode#STREAM} mode if the process doesn't emit keys.
+     *
+     * @return The value.
+     *
+     * @throws IOException if the process is not running, has failed to produce a reading, or the reading is stale.
+     */
+    public double read(String key) throws IOException {
+
+        long start = System.currentTimeMillis();
+
+        try {
+
+            double value = mode == Mode.STREAM ? readStream(key) : readRequest(key);
+            updateLatency(System.currentTimeMillis() - start);
+
+            return value;
+
+        } catch (IOException ex) {
+
+            readErrorCount.incrementAndGet();
+            throw ex;
+        }
+    }
+
+    private double readStream(String key) throws IOException {
+
+        Reading reading = readings.get(key == null ? ANY : key);
+
+        if (reading == null) {
+            reading = readings.get(ANY);
+        }
+
+        if (reading == null) {
+            throw new IOException("no reading yet for '" + key + "'");
+        }
+
+        long age = System.currentTimeMillis() - reading.timestamp;
+
+        if (age > timeoutMillis) {
+            throw new IOException("stale reading for '" + key + "', " + age + "ms old");
+        }
+
+        return reading.value;
+    }
+
+    private double readRequest(String key) throws IOException {
+
+        // Only one conversation at a time, or responses will get mixed up
+
+        synchronized (responses) {
+
+            Writer out = awaitStdin();
+
+            // Whatever is still there belongs to requests that timed out
+            responses.clear();
+
+            try {
+
+                out.write(key == null ? ANY : key);
+                out.write('\n');
+                out.flush();
+
+            } catch (IOException ex) {
+                throw new IOException("failed to write request to '" + command + "'", ex);
+            }
+
+            try {
+
+                String line = responses.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+
+                if (line == null) {
+
+                    // The process is hung, let the reader thread restart it
+                    logger.warn("no response in " + timeoutMillis + "ms, restarting '" + command + "'");
+                    destroy();
+
+                    throw new IOException("timed out waiting for response from '" + command + "'");
+                }
+
+                return parse(line);
+
+            } catch (InterruptedException ex) {
+
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted", ex);
+            }
+        }
+    }
+
+    /**
+     * Wait until the process is running, it may be starting or restarting.
+     *
+     * @return Process stdin.
+     *
+     * @throws IOException if the process is not running after {@code timeoutMillis}.
+     */
+    private synchronized Writer awaitStdin() throws IOException {
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        try {
+
+            while (stdin == null) {
+
+                long left = deadline - System.currentTimeMillis();
+
+                if (refCount == 0 || left <= 0) {
+                    throw new IOException("process is not running: " + command);
+                }
+
+                wait(left);
+            }
+
+            return stdin;
+
+        } catch (InterruptedException ex) {
+
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted", ex);
+        }
+    }
+
+    private void updateLatency(long latency) {
+
+        readCount.incrementAndGet();
+        lastReadLatencyMillis = latency;
+        totalReadLatencyMillis.addAndGet(latency);
+        maxReadLatencyMillis.accumulateAndGet(latency, Math::max);
+    }
+
+    /**
+     * Keep the process running, restart it with a backoff when it dies.
+     */
+    private void run() {
+
+        ThreadContext.push("run");
+
+        try {
+
+            while (!Thread.currentThread().isInterrupted()) {
+
+                long started = System.currentTimeMillis();
+                Process p = null;
+
+                try {
+
+                    p = takeOrStart();
+
+                    if (p == null) {
+                        // Released, and possibly acquired again with a different reader thread
+                        break;
+                    }
+
+                    BufferedReader br = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8));
+
+                    while (true) {
+
+                        String line = br.readLine();
+
+                        if (line == null) {
+                            break;
+                        }
+
+                        consume(line);
+                    }
+
+                    logger.warn("'" + command + "' exited, rc=" + p.waitFor());
+
+                } catch (IOException ex) {
+                    logger.error("'" + command + "' failed", ex);
+                } finally {
+                    destroy(p);
+                }
+
+                if (Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+
+                // If the process has been running for a while, this is not a crash loop
+                if (System.currentTimeMillis() - started > MAX_BACKOFF_MILLIS) {
+                    backoffMillis = MIN_BACKOFF_MILLIS;
+                }
+
+                logger.info("restarting in " + backoffMillis + "ms");
+
+                Thread.sleep(backoffMillis);
+
+                backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+                restartCount.incrementAndGet();
+            }
+
+        } catch (InterruptedException ex) {
+
+            // Normal shutdown path
+            Thread.currentThread().interrupt();
+
+        } finally {
+
+            logger.info("stopped '" + command + "'");
+            ThreadContext.pop();
+            ThreadContext.clearStack();
+        }
+    }
+
+    /**
+     * Get the process started by {@link #acquire()}, or start a new one if it is gone.
+     *
+     * @return The process, or {@code null} if the calling thread is not the current reader thread anymore.
+     */
+    private synchronized Process takeOrStart() throws IOException {
+
+        if (Thread.currentThread() != readerThread) {
+            return null;
+        }
+
+        return process != null ? process : start();
+    }
+
+    private synchronized Process start() throws IOException {
+
+        logger.debug("Executing: '/bin/sh -c " + command + "'");
+
+        process = new ProcessBuilder("/bin/sh", "-c", command).start();
+        stdin = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+
+        // Readers may be waiting for the restart
+        notifyAll();
+
+        return process;
+    }
+
+    /**
+     * Kill the current process, if any. The reader thread will restart it.
+     */
+    private synchronized void destroy() {
+
+        if (process != null) {
+            destroy(process);
+        }
+    }
+
+    /**
+     * Kill the given process. Unless this is executed, file handles will leak.
+     *
+     * @param p Process to kill. If it is not the current process anymore, the current one is left alone.
+     */
+    private synchronized void destroy(Process p) {
+
+        if (p == null) {
+            return;
+        }
+
+        p.destroy();
+
+        if (p == process) {
+            process = null;
+            stdin = null;
+        }
+    }
+
+    private void consume(String line) {
+
+        logger.debug("Output: " + line);
+
+        String trimmed = line.trim();
+
+        if (trimmed.isEmpty()) {
+            return;
+        }
+
+        if (mode == Mode.REQUEST) {
+            responses.offer(trimmed);
+            return;
+        }
+
+        int space = trimmed.lastIndexOf(' ');
+        String key = space < 0 ? ANY : trimmed.substring(0, space).trim();
+        String value = space < 0 ? trimmed : trimmed.substring(space + 1);
+
+        try {
+
+            readings.put(key, new Reading(System.currentTimeMillis(), parse(value)));
+
+        } catch (IOException ex) {
+            logger.warn("Can't parse '" + line + "', ignored: " + ex.getMessage());
+        }
+    }
+
+    private double parse(String value) throws IOException {
+
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException ex) {
+            throw new IOException("Not a number: '" + value + "'", ex);
+        }
+    }
+
+    private static class Reading {
+
+        public final long timestamp;
+        public final double value;
+
+        Reading(long timestamp, double value) {
+            this.timestamp = timestamp;
+            this.value = value;
+        }
+    }
+
+    @JmxAttribute(description = "Shell command being executed")
+    public String getCommand() {
+        return command;
+    }
+
+    @JmxAttribute(description = "Operation mode")
+    public String getMode() {
+        return mode.toString();
+    }
+
+    @JmxAttribute(description = "Number of sensors sharing this process")
+    public synchronized int getRefCount() {
+        return refCount;
+    }
+
+    @JmxAttribute(description = "Number of times the process was restarted")
+    public long getRestartCount() {
+        return restartCount.get();
+    }
+
+    @JmxAttribute(description = "Number of successful reads")
+    public long getReadCount() {
+        return readCount.get();
+    }
+
+    @JmxAttribute(description = "Number of failed reads")
+    public long getReadErrorCount() {
+        return readErrorCount.get();
+    }
+
+    @JmxAttribute(description = "Last read latency, milliseconds")
+    public long getLastReadLatency() {
+        return lastReadLatencyMillis;
+    }
+
+    @JmxAttribute(description = "Maximum read latency, milliseconds")
+    public long getMaxReadLatency() {
+        return maxReadLatencyMillis.get();
+    }
+
+    @JmxAttribute(description = "Average read latency, milliseconds")
+    public double getAverageReadLatency() {
+        long count = readCount.get();
+        return count == 0 ? 0 : (double) totalReadLatencyMillis.get() / count;
+    }
+
+    @Override
+    public JmxDescriptor getJmxDescriptor() {
+
+        return new JmxDescriptor(
+                "dz",
+                getClass().getSimpleName(),
+                Integer.toHexString(hashCode()),
+                "Long lived shell process shared by shell sensors");
+    }
+}
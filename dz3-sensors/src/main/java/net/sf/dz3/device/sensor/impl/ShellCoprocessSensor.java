@@ -0,0 +1,109 @@
+package net.sf.dz3.device.sensor.impl;
+
+import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSample;
+import com.homeclimatecontrol.jukebox.jmx.JmxAttribute;
+import com.homeclimatecontrol.jukebox.jmx.JmxDescriptor;
+import org.apache.logging.log4j.ThreadContext;
+
+import java.io.IOException;
+
+/**
+ * Get a reading from a long lived shell process, possibly shared with other sensors.
+ *
+ * Use this instead of {@link ShellSensor} when forking a shell on every poll is too expensive.
+ *
+ * @see ShellCoprocess
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+public class ShellCoprocessSensor extends AbstractAnalogSensor {
+
+    private final ShellCoprocess coprocess;
+
+    /**
+     * Key to identify this sensor's readings in the coprocess output, or to request them with.
+     */
+    private final String key;
+
+    /**
+     * Create an instance with the address used as the key.
+     *
+     * @param address Sensor hardware address. See {@link ShellSensor#ShellSensor(String, int, String)} for recommendations.
+     * @param pollInterval How often the value needs to be delivered.
+     * @param coprocess Process to get readings from.
+     */
+    public ShellCoprocessSensor(String address, int pollInterval, ShellCoprocess coprocess) {
+        this(address, pollInterval, coprocess, address);
+    }
+
+    /**
+     * Create an instance.
+     *
+     * @param address Sensor hardware address. See {@link ShellSensor#ShellSensor(String, int, String)} for recommendations.
+     * @param pollInterval How often the value needs to be delivered.
+     * @param coprocess Process to get readings from.
+     * @param key Key to identify this sensor's readings with.
+     */
+    public ShellCoprocessSensor(String address, int pollInterval, ShellCoprocess coprocess, String key) {
+
+        super(address, pollInterval);
+
+        if (coprocess == null) {
+            throw new IllegalArgumentException("coprocess can't be null");
+        }
+
+        this.coprocess = coprocess;
+        this.key = key;
+    }
+
+    @Override
+    public DataSample<Double> getSensorSignal() throws IOException {
+
+        ThreadContext.push("getSensorSignal#" + Integer.toHexString(hashCode()));
+
+        long timestamp = System.currentTimeMillis();
+
+        try {
+
+            double sample = coprocess.read(key);
+            return new DataSample<Double>(timestamp, getAddress(), getAddress(), sample, null);
+
+        } catch (Throwable t) {
+
+            return new DataSample<Double>(timestamp, getAddress(), getAddress(), null, t);
+
+        } finally {
+            ThreadContext.pop();
+        }
+    }
+
+    @Override
+    protected void startup() throws Throwable {
+        coprocess.acquire();
+    }
+
+    @Override
+    protected void shutdown() throws Throwable {
+        coprocess.release();
+    }
+
+    @JmxAttribute(description="Shell command being executed")
+    public String getCommand() {
+        return coprocess.getCommand();
+    }
+
+    @JmxAttribute(description="Key identifying this sensor's readings")
+    public String getKey() {
+        return key;
+    }
+
+    @Override
+    public JmxDescriptor getJmxDescriptor() {
+
+      return new JmxDescriptor(
+              "dz",
+              getClass().getSimpleName(),
+              Integer.toHexString(hashCode()),
+              "Read from a shared long lived shell process");
+    }
+}
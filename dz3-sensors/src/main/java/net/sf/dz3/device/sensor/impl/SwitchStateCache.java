@@ -0,0 +1,339 @@
+package net.sf.dz3.device.sensor.impl;
+
+import com.homeclimatecontrol.jukebox.jmx.JmxAttribute;
+import com.homeclimatecontrol.jukebox.jmx.JmxAware;
+import com.homeclimatecontrol.jukebox.jmx.JmxDescriptor;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.ThreadContext;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-through switch state cache.
+ *
+ * Successful writes update the cached state, reads are served from the cache as long as the cached
+ * state is younger than {@link #getMaxAgeMillis() max age}, and go to hardware otherwise. All known switches are
+ * also read from hardware every {@link #getVerifyIntervalMillis() verify interval} in the background,
+ * so that a state changed behind our back (or a write that didn't stick) is detected and corrected.
+ *
+ * Setting max age to zero disables read elision, but the hardware access is still accounted for.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko 2001-2021
+ */
+public class SwitchStateCache implements JmxAware, AutoCloseable {
+
+    /**
+     * Hardware access for a single switch channel.
+     */
+    public interface Hardware {
+
+        boolean readHardware() throws IOException;
+        void writeHardware(boolean state) throws IOException;
+    }
+
+    /**
+     * Verification scheduler shared by all the caches, there's not much work for it.
+     */
+    private static final ScheduledExecutorService verifier = Executors.newSingleThreadScheduledExecutor(r -> {
+
+        Thread t = new Thread(r, "SwitchStateCache verifier");
+        t.setDaemon(true);
+
+        return t;
+    });
+
+    private final Logger logger = LogManager.getLogger(getClass());
+
+    private final String name;
+    private final Map<String, Entry> address2entry = new ConcurrentHashMap<>();
+
+    private volatile long maxAgeMillis;
+    private final long verifyIntervalMillis;
+    private ScheduledFuture<?> verification;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong hardwareReads = new AtomicLong();
+    private final AtomicLong hardwareWrites = new AtomicLong();
+    private final AtomicLong verifications = new AtomicLong();
+    private final AtomicLong mismatches = new AtomicLong();
+
+    /**
+     * Create an instance.
+     *
+     * @param name Cache name, to tell one cache from another in JMX.
+     * @param maxAgeMillis Maximum age of the cached state to serve reads from, milliseconds.
+     * @param verifyIntervalMillis Background hardware verification interval, milliseconds. Zero disables verification.
+     */
+    public SwitchStateCache(String name, long maxAgeMillis, long verifyIntervalMillis) {
+
+        if (maxAgeMillis < 0) {
+            throw new IllegalArgumentException("maxAgeMillis can't be negative (" + maxAgeMillis + " given)");
+        }
+
+        if (verifyIntervalMillis < 0) {
+            throw new IllegalArgumentException("verifyIntervalMillis can't be negative (" + verifyIntervalMillis + " given)");
+        }
+
+        this.name = name;
+        this.maxAgeMillis = maxAgeMillis;
+        this.verifyIntervalMillis = verifyIntervalMillis;
+    }
+
+    /**
+     * Get the switch state, from the cache if it is fresh enough, from hardware otherwise.
+     *
+     * @param address Switch address.
+     * @param hardware Hardware access for this switch.
+     *
+     * @return Switch state.
+     *
+     * @throws IOException if the cache was stale and the hardware read failed.
+     */
+    public boolean read(String address, Hardware hardware) throws IOException {
+
+        Entry entry = getEntry(address, hardware);
+
+        synchronized (entry) {
+
+            if (entry.valid && System.currentTimeMillis() - entry.timestamp <= maxAgeMillis) {
+
+                hits.incrementAndGet();
+                return entry.state;
+            }
+
+            misses.incrementAndGet();
+
+            return entry.read();
+        }
+    }
+
+    /**
+     * Write the switch state, and update the cache if the write succeeded.
+     *
+     * @param address Switch address.
+     * @param hardware Hardware access for this switch.
+     * @param state State to write.
+     *
+     * @throws IOException if the hardware write failed. The cached state is invalidated in this case.
+     */
+    public void write(String address, Hardware hardware, boolean state) throws IOException {
+
+        Entry entry = getEntry(address, hardware);
+
+        synchronized (entry) {
+
+            // Whatever happens next, what we knew before is no longer true
+            entry.valid = false;
+
+            hardwareWrites.incrementAndGet();
+            hardware.writeHardware(state);
+
+            entry.update(state);
+        }
+    }
+
+    /**
+     * Forget the cached state, next read will go to hardware.
+     *
+     * @param address Switch address.
+     */
+    public void invalidate(String address) {
+
+        Entry entry = address2entry.get(address);
+
+        if (entry != null) {
+
+            synchronized (entry) {
+                entry.valid = false;
+            }
+        }
+    }
+
+    private Entry getEntry(String address, Hardware hardware) {
+
+        Entry entry = address2entry.get(address);
+
+        if (entry != null) {
+            return entry;
+        }
+
+        synchronized (this) {
+
+            entry = address2entry.computeIfAbsent(address, k -> new Entry(k, hardware));
+
+            if (verification == null && verifyIntervalMillis > 0) {
+                verification = verifier.scheduleWithFixedDelay(this::verify, verifyIntervalMillis, verifyIntervalMillis, TimeUnit.MILLISECONDS);
+            }
+
+            return entry;
+        }
+    }
+
+    /**
+     * Read all known switches from hardware and correct the cached state if it doesn't match.
+     */
+    void verify() {
+
+        ThreadContext.push("verify");
+
+        try {
+
+            for (Entry entry : address2entry.values()) {
+
+                synchronized (entry) {
+
+                    boolean valid = entry.valid;
+                    boolean cached = entry.state;
+
+                    try {
+
+                        boolean actual = entry.read();
+
+                        verifications.incrementAndGet();
+
+                        if (valid && actual != cached) {
+
+                            mismatches.incrementAndGet();
+                            logger.warn("{}: cached state {}, actual {}, corrected", entry.address, cached, actual);
+                        }
+
+                    } catch (IOException ex) {
+
+                        // Already invalidated, next read will take the hit
+                        logger.warn("{}: verification failed", entry.address, ex);
+                    }
+                }
+            }
+
+        } catch (Throwable t) {
+
+            // Must not let it propagate, or the verification will stop silently
+            logger.error("Unexpected exception", t);
+
+        } finally {
+            ThreadContext.pop();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+
+        if (verification != null) {
+            verification.cancel(false);
+            verification = null;
+        }
+    }
+
+    @JmxAttribute(description = "Maximum age of the cached state to serve reads from, milliseconds")
+    public long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    public void setMaxAgeMillis(long maxAgeMillis) {
+
+        if (maxAgeMillis < 0) {
+            throw new IllegalArgumentException("maxAgeMillis can't be negative (" + maxAgeMillis + " given)");
+        }
+
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    @JmxAttribute(description = "Background hardware verification interval, milliseconds")
+    public long getVerifyIntervalMillis() {
+        return verifyIntervalMillis;
+    }
+
+    @JmxAttribute(description = "Reads served from the cache")
+    public long getHits() {
+        return hits.get();
+    }
+
+    @JmxAttribute(description = "Reads that had to go to hardware")
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @JmxAttribute(description = "Cache hit rate, percent")
+    public double getHitRate() {
+
+        long h = hits.get();
+        long total = h + misses.get();
+
+        return total == 0 ? 0 : (h * 100d) / total;
+    }
+
+    @JmxAttribute(description = "Hardware reads, including background verification")
+    public long getHardwareReads() {
+        return hardwareReads.get();
+    }
+
+    @JmxAttribute(description = "Hardware writes")
+    public long getHardwareWrites() {
+        return hardwareWrites.get();
+    }
+
+    @JmxAttribute(description = "Background verifications performed")
+    public long getVerifications() {
+        return verifications.get();
+    }
+
+    @JmxAttribute(description = "Background verifications that found the cached state wrong")
+    public long getMismatches() {
+        return mismatches.get();
+    }
+
+    @Override
+    public JmxDescriptor getJmxDescriptor() {
+
+        return new JmxDescriptor(
+                "dz",
+                getClass().getSimpleName(),
+                name,
+                "Switch state cache");
+    }
+
+    private class Entry {
+
+        final String address;
+        final Hardware hardware;
+
+        boolean valid = false;
+        boolean state;
+        long timestamp;
+
+        Entry(String address, Hardware hardware) {
+
+            this.address = address;
+            this.hardware = hardware;
+        }
+
+        /**
+         * Read the state from hardware. Must be called with the entry lock held.
+         */
+        boolean read() throws IOException {
+
+            valid = false;
+
+            hardwareReads.incrementAndGet();
+            update(hardware.readHardware());
+
+            return state;
+        }
+
+        void update(boolean state) {
+
+            this.state = state;
+            this.timestamp = System.currentTimeMillis();
+            this.valid = true;
+        }
+    }
+}
@@ -0,0 +1,555 @@
+package net.sf.dz3.device.sensor.impl.tcp.client;
+
+import com.homeclimatecontrol.jukebox.datastream.logger.impl.DataBroadcaster;
+import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSample;
+import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSink;
+import com.homeclimatecontrol.jukebox.jmx.JmxAttribute;
+import com.homeclimatecontrol.jukebox.jmx.JmxAware;
+import com.homeclimatecontrol.jukebox.jmx.JmxDescriptor;
+import com.homeclimatecontrol.jukebox.service.ActiveService;
+import net.sf.dz3.device.sensor.TemperatureSensor;
+import net.sf.dz3.util.digest.MessageDigestCache;
+import org.apache.logging.log4j.ThreadContext;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TCP temperature sensor factory multiplexing any number of remote sensor servers on a single thread.
+ *
+ * Speaks the same line protocol as {@link TcpSensorFactory}, but instead of a blocking socket and a reader
+ * thread per remote server, all connections are served by one NIO selector loop. Connections that fail
+ * are reestablished with an exponential backoff between {@link #MIN_BACKOFF_MILLIS} and {@link #MAX_BACKOFF_MILLIS},
+ * indefinitely.
+ *
+ * Only plaintext connections are supported; use {@link TcpSensorFactory} for secure ones.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+public class NioTcpSensorFactory extends ActiveService implements JmxAware {
+
+    static final long MIN_BACKOFF_MILLIS = 1000;
+    static final long MAX_BACKOFF_MILLIS = 60000;
+
+    /**
+     * How long to wait in {@code select()} if there's nothing else to do, to notice that we've been stopped.
+     */
+    private static final long SELECT_TIMEOUT_MILLIS = 1000;
+
+    /**
+     * Line length limit. Anything longer is not a sensor reading.
+     */
+    private static final int MAX_LINE = 1024;
+
+    private volatile Selector selector;
+
+    /**
+     * Connection map. The key is {@code host:port}.
+     */
+    private final Map<String, Connection> connections = new ConcurrentHashMap<>();
+
+    /**
+     * Sensor map.
+     *
+     * Like in {@link TcpSensorFactory}, sensors are not associated with a particular host, so they can be moved around.
+     */
+    private final Map<String, NioTcpSensor> address2sensor = new ConcurrentHashMap<>();
+
+    private final AtomicLong connects = new AtomicLong();
+    private final AtomicLong disconnects = new AtomicLong();
+    private final AtomicLong linesReceived = new AtomicLong();
+    private final AtomicLong samplesDelivered = new AtomicLong();
+
+    /**
+     * Get a sensor instance using connection to remote port 5000.
+     *
+     * @param address Sensor hardware address.
+     * @param remoteHost Host to connect to.
+     *
+     * @return A sensor instance.
+     */
+    public TemperatureSensor getInstance(String address, String remoteHost) {
+
+        return getInstance(address, remoteHost, 5000);
+    }
+
+    /**
+     * Get a sensor instance.
+     *
+     * @param address Sensor hardware address.
+     * @param remoteHost Host to connect to.
+     * @param remotePort Port on the remote host to connect to.
+     *
+     * @return A sensor instance. It will produce error samples until the server reports a value for it.
+     */
+    public synchronized TemperatureSensor getInstance(String address, String remoteHost, int remotePort) {
+
+        NioTcpSensor sensor = address2sensor.computeIfAbsent(address, NioTcpSensor::new);
+
+        String key = remoteHost + ":" + remotePort;
+        Connection connection = connections.get(key);
+
+        if (connection == null) {
+
+            connection = new Connection(remoteHost, remotePort);
+            connections.put(key, connection);
+
+            // The selector loop will pick it up and connect right away
+
+            Selector s = selector;
+
+            if (s != null) {
+                s.wakeup();
+            }
+        }
+
+        connection.subscribed.add(address);
+
+        return sensor;
+    }
+
+    @Override
+    protected void startup() throws Throwable {
+
+        selector = Selector.open();
+    }
+
+    @Override
+    protected void execute() throws Throwable {
+
+        ThreadContext.push("execute");
+
+        try {
+
+            while (isEnabled()) {
+
+                long now = System.currentTimeMillis();
+                long timeout = SELECT_TIMEOUT_MILLIS;
+
+                for (Connection connection : connections.values()) {
+
+                    if (connection.channel != null) {
+                        continue;
+                    }
+
+                    if (connection.nextAttemptAt <= now) {
+                        connect(connection);
+                    } else {
+                        timeout = Math.min(timeout, connection.nextAttemptAt - now);
+                    }
+                }
+
+                selector.select(Math.max(timeout, 1));
+
+                for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext(); ) {
+
+                    SelectionKey key = i.next();
+                    i.remove();
+
+                    Connection connection = (Connection) key.attachment();
+
+                    try {
+
+                        if (key.isConnectable()) {
+                            finishConnect(connection, key);
+                        } else if (key.isReadable()) {
+                            read(connection);
+                        }
+
+                    } catch (IOException ex) {
+
+                        logger.warn(connection + ": " + ex.getMessage());
+                        disconnect(connection, "Connection Lost");
+                    }
+                }
+            }
+
+        } finally {
+            ThreadContext.pop();
+        }
+    }
+
+    @Override
+    protected void shutdown() throws Throwable {
+
+        ThreadContext.push("shutdown");
+
+        try {
+
+            for (Connection connection : connections.values()) {
+                close(connection);
+            }
+
+            selector.close();
+
+        } finally {
+            ThreadContext.pop();
+        }
+    }
+
+    private void connect(Connection connection) {
+
+        try {
+
+            SocketChannel channel = SocketChannel.open();
+
+            channel.configureBlocking(false);
+            connection.channel = channel;
+
+            if (channel.connect(new InetSocketAddress(connection.host, connection.port))) {
+                finishConnect(connection, channel.register(selector, SelectionKey.OP_READ, connection));
+            } else {
+                channel.register(selector, SelectionKey.OP_CONNECT, connection);
+            }
+
+        } catch (IOException ex) {
+
+            logger.warn(connection + ": can't connect: " + ex.getMessage());
+            disconnect(connection, "Can't Connect");
+        }
+    }
+
+    private void finishConnect(Connection connection, SelectionKey key) throws IOException {
+
+        if (connection.channel.isConnectionPending()) {
+            connection.channel.finishConnect();
+        }
+
+        key.interestOps(SelectionKey.OP_READ);
+
+        logger.info(connection + ": connected");
+
+        connects.incrementAndGet();
+        connection.backoffMillis = MIN_BACKOFF_MILLIS;
+        connection.line.setLength(0);
+
+        // Same as TcpSensorFactory does - in case we're talking to a secure socket implementation,
+        // give them a kick so they kick us out and we'll get a visible indication of a failure
+
+        ByteBuffer kick = ByteBuffer.wrap("\n\n\n\n\n\n".getBytes());
+
+        while (kick.hasRemaining()) {
+            connection.channel.write(kick);
+        }
+    }
+
+    private void read(Connection connection) throws IOException {
+
+        ByteBuffer buffer = connection.buffer;
+
+        buffer.clear();
+
+        int count = connection.channel.read(buffer);
+
+        if (count < 0) {
+            throw new IOException("connection closed by peer");
+        }
+
+        buffer.flip();
+
+        long timestamp = System.currentTimeMillis();
+        StringBuilder line = connection.line;
+
+        while (buffer.hasRemaining()) {
+
+            char c = (char) (buffer.get() & 0xFF);
+
+            if (c == '\n') {
+
+                if (line.length() > 0 && line.charAt(line.length() - 1) == '\r') {
+                    line.setLength(line.length() - 1);
+                }
+
+                if (line.length() > 0) {
+                    linesReceived.incrementAndGet();
+                    processLine(connection, timestamp, line.toString());
+                }
+
+                line.setLength(0);
+                continue;
+            }
+
+            if (line.length() >= MAX_LINE) {
+                throw new IOException("line too long, not a sensor server?");
+            }
+
+            line.append(c);
+        }
+    }
+
+    /**
+     * Parse the line the same way {@link TcpSensorFactory} does.
+     */
+    private void processLine(Connection connection, long timestamp, String line) {
+
+        StringTokenizer st = new StringTokenizer(line, " ");
+
+        if (!st.hasMoreTokens()) {
+            return;
+        }
+
+        String header = st.nextToken();
+
+        try {
+
+            if ("E".equals(header)) {
+
+                processError(connection, timestamp, line.substring(2));
+
+            } else if ("+".equals(header)) {
+
+                logger.info(connection + ": sensor arrived: " + st.nextToken());
+
+            } else if ("-".equals(header)) {
+
+                String address = st.nextToken();
+
+                logger.warn(connection + ": sensor departed: " + address);
+                deliver(connection, address, timestamp, null, new IOException("Sensor Departed"));
+
+            } else if ("D".equals(header)) {
+
+                processData(connection, timestamp, line.substring(2));
+
+            } else {
+
+                processData(connection, timestamp, line);
+            }
+
+        } catch (RuntimeException ex) {
+
+            // Garbage in, garbage out, but don't let it kill the loop
+            logger.warn(connection + ": can't parse '" + line + "': " + ex.getMessage());
+        }
+    }
+
+    private void processData(Connection connection, long timestamp, String line) {
+
+        int space = line.indexOf(' ');
+
+        if (space < 0) {
+            return;
+        }
+
+        String address = line.substring(0, space);
+
+        if (!connection.subscribed.contains(address)) {
+            return;
+        }
+
+        deliver(connection, address, timestamp, Double.parseDouble(line.substring(space + 1).trim()), null);
+    }
+
+    private void processError(Connection connection, long timestamp, String line) {
+
+        logger.warn(connection + ": error reported: " + line);
+
+        int space = line.indexOf(' ');
+        String address = space < 0 ? line : line.substring(0, space);
+
+        if (connection.subscribed.contains(address)) {
+
+            deliver(connection, address, timestamp, null, new IOException(space < 0 ? line : line.substring(space + 1)));
+            return;
+        }
+
+        // Not associated with a sensor address (such as 1-Wire short circuit)
+        for (String subscribed : connection.subscribed) {
+            deliver(connection, subscribed, timestamp, null, new IOException(line));
+        }
+    }
+
+    private void deliver(Connection connection, String address, long timestamp, Double value, Throwable t) {
+
+        NioTcpSensor sensor = address2sensor.get(address);
+
+        if (sensor != null && connection.subscribed.contains(address)) {
+
+            sensor.consume(new DataSample<>(timestamp, address, sensor.signature, value, t));
+            samplesDelivered.incrementAndGet();
+        }
+    }
+
+    /**
+     * Close the connection, notify the sensors, and schedule a reconnect.
+     */
+    private void disconnect(Connection connection, String reason) {
+
+        close(connection);
+        disconnects.incrementAndGet();
+
+        long timestamp = System.currentTimeMillis();
+
+        for (String address : connection.subscribed) {
+            deliver(connection, address, timestamp, null, new IOException(reason));
+        }
+
+        connection.nextAttemptAt = timestamp + connection.backoffMillis;
+        connection.backoffMillis = Math.min(connection.backoffMillis * 2, MAX_BACKOFF_MILLIS);
+
+        logger.info(connection + ": reconnecting in " + (connection.nextAttemptAt - timestamp) + "ms");
+    }
+
+    private void close(Connection connection) {
+
+        if (connection.channel == null) {
+            return;
+        }
+
+        try {
+            connection.channel.close();
+        } catch (IOException ex) {
+            logger.info(connection + ": can't close(), ignored", ex);
+        }
+
+        connection.channel = null;
+    }
+
+    @JmxAttribute(description = "Remote servers")
+    public int getServerCount() {
+        return connections.size();
+    }
+
+    @JmxAttribute(description = "Remote servers currently connected")
+    public int getConnectedCount() {
+
+        int count = 0;
+
+        for (Connection connection : connections.values()) {
+
+            SocketChannel channel = connection.channel;
+
+            if (channel != null && channel.isConnected()) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    @JmxAttribute(description = "Successful connects since startup")
+    public long getConnects() {
+        return connects.get();
+    }
+
+    @JmxAttribute(description = "Disconnects and failed connection attempts since startup")
+    public long getDisconnects() {
+        return disconnects.get();
+    }
+
+    @JmxAttribute(description = "Lines received since startup")
+    public long getLinesReceived() {
+        return linesReceived.get();
+    }
+
+    @JmxAttribute(description = "Samples delivered to sensors since startup")
+    public long getSamplesDelivered() {
+        return samplesDelivered.get();
+    }
+
+    @Override
+    public JmxDescriptor getJmxDescriptor() {
+
+        return new JmxDescriptor(
+                "dz",
+                getClass().getSimpleName(),
+                Integer.toHexString(hashCode()),
+                "Multiplexed TCP sensor client");
+    }
+
+    /**
+     * Connection state. Only touched from the selector thread, except for {@link #subscribed}.
+     */
+    private static class Connection {
+
+        final String host;
+        final int port;
+
+        final Set<String> subscribed = ConcurrentHashMap.newKeySet();
+
+        final ByteBuffer buffer = ByteBuffer.allocate(4096);
+        final StringBuilder line = new StringBuilder();
+
+        volatile SocketChannel channel;
+        long nextAttemptAt;
+        long backoffMillis = MIN_BACKOFF_MILLIS;
+
+        Connection(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    /**
+     * Passive sensor, fed by the selector thread.
+     */
+    private static class NioTcpSensor implements TemperatureSensor, DataSink<Double> {
+
+        private final DataBroadcaster<Double> dataBroadcaster = new DataBroadcaster<>();
+
+        private final String address;
+        private final String signature;
+
+        private volatile DataSample<Double> lastKnownSignal;
+
+        NioTcpSensor(String address) {
+
+            this.address = address;
+            this.signature = MessageDigestCache.getMD5(address).substring(0, 19);
+
+            lastKnownSignal = new DataSample<>(System.currentTimeMillis(), address, signature, null, new IllegalStateException("Not Available"));
+        }
+
+        @Override
+        public String getAddress() {
+            return address;
+        }
+
+        @Override
+        public DataSample<Double> getSignal() {
+            return lastKnownSignal;
+        }
+
+        @Override
+        public void consume(DataSample<Double> sample) {
+
+            lastKnownSignal = sample;
+            dataBroadcaster.broadcast(sample);
+        }
+
+        @Override
+        public void addConsumer(DataSink<Double> consumer) {
+            dataBroadcaster.addConsumer(consumer);
+        }
+
+        @Override
+        public void removeConsumer(DataSink<Double> consumer) {
+            dataBroadcaster.removeConsumer(consumer);
+        }
+
+        @Override
+        public JmxDescriptor getJmxDescriptor() {
+
+            return new JmxDescriptor(
+                    "dz",
+                    getClass().getSimpleName(),
+                    address,
+                    "TCP temperature sensor");
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package net.sf.dz3.device.sensor.impl;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+/**
+ * Shell coprocess tests.
+ *
+ * Like {@link ShellSensorTest}, these are Unix specific.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+@EnabledOnOs(OS.LINUX)
+class ShellCoprocessTest {
+
+    @Test
+    void stream() throws IOException, InterruptedException {
+
+        ShellCoprocess cp = new ShellCoprocess(
+                "while true; do echo 'a 1.5'; echo 'b 2.5'; sleep 0.1; done",
+                ShellCoprocess.Mode.STREAM,
+                5000);
+
+        cp.acquire();
+
+        try {
+
+            Thread.sleep(500);
+
+            assertThat(cp.read("a")).isEqualTo(1.5);
+            assertThat(cp.read("b")).isEqualTo(2.5);
+            assertThat(cp.getReadCount()).isEqualTo(2);
+
+            assertThatExceptionOfType(IOException.class).isThrownBy(() -> cp.read("c"));
+
+        } finally {
+            cp.release();
+        }
+    }
+
+    @Test
+    void request() throws IOException {
+
+        ShellCoprocess cp = new ShellCoprocess(
+                "while read key; do echo \"${#key}.5\"; done",
+                ShellCoprocess.Mode.REQUEST,
+                5000);
+
+        cp.acquire();
+
+        try {
+
+            assertThat(cp.read("abc")).isEqualTo(3.5);
+            assertThat(cp.read("abcde")).isEqualTo(5.5);
+
+        } finally {
+            cp.release();
+        }
+    }
+
+    @Test
+    void shared() {
+
+        ShellCoprocess cp = new ShellCoprocess("while read key; do echo 1; done", ShellCoprocess.Mode.REQUEST, 5000);
+
+        ShellCoprocessSensor s1 = new ShellCoprocessSensor("s1", 1000, cp);
+        ShellCoprocessSensor s2 = new ShellCoprocessSensor("s2", 1000, cp);
+
+        cp.acquire();
+        cp.acquire();
+
+        try {
+
+            assertThat(cp.getRefCount()).isEqualTo(2);
+
+            assertThat(s1.getSensorSignal().sample).isEqualTo(1.0);
+            assertThat(s2.getSensorSignal().sample).isEqualTo(1.0);
+
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        } finally {
+            cp.release();
+            cp.release();
+        }
+
+        assertThat(cp.getRefCount()).isZero();
+    }
+
+    @Test
+    void restart() throws InterruptedException {
+
+        ShellCoprocess cp = new ShellCoprocess("echo 1; exit 1", ShellCoprocess.Mode.STREAM, 5000);
+
+        cp.acquire();
+
+        try {
+
+            Thread.sleep(ShellCoprocess.MIN_BACKOFF_MILLIS + 500);
+            assertThat(cp.getRestartCount()).isPositive();
+
+        } finally {
+            cp.release();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package net.sf.dz3.device.sensor.impl;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIOException;
+
+class SwitchStateCacheTest {
+
+    @Test
+    void elision() throws IOException {
+
+        FakeSwitch hardware = new FakeSwitch();
+
+        try (SwitchStateCache cache = new SwitchStateCache("elision", 60000, 0)) {
+
+            cache.write("switch", hardware, true);
+
+            for (int count = 0; count < 100; count++) {
+                assertThat(cache.read("switch", hardware)).isTrue();
+            }
+
+            assertThat(hardware.reads).isZero();
+            assertThat(cache.getHits()).isEqualTo(100);
+            assertThat(cache.getHitRate()).isEqualTo(100d);
+            assertThat(cache.getHardwareWrites()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    void stale() throws IOException {
+
+        FakeSwitch hardware = new FakeSwitch();
+
+        try (SwitchStateCache cache = new SwitchStateCache("stale", 0, 0)) {
+
+            cache.write("switch", hardware, true);
+            hardware.state = false;
+
+            assertThat(cache.read("switch", hardware)).isFalse();
+            assertThat(cache.getMisses()).isEqualTo(1);
+            assertThat(cache.getHardwareReads()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    void failedWrite() throws IOException {
+
+        FakeSwitch hardware = new FakeSwitch();
+
+        try (SwitchStateCache cache = new SwitchStateCache("failedWrite", 60000, 0)) {
+
+            cache.write("switch", hardware, true);
+
+            hardware.fail = true;
+            assertThatIOException().isThrownBy(() -> cache.write("switch", hardware, false));
+
+            // The state is unknown now, must go to hardware
+            hardware.fail = false;
+            assertThat(cache.read("switch", hardware)).isTrue();
+            assertThat(hardware.reads).isEqualTo(1);
+        }
+    }
+
+    @Test
+    void verify() throws IOException {
+
+        FakeSwitch hardware = new FakeSwitch();
+
+        try (SwitchStateCache cache = new SwitchStateCache("verify", 60000, 0)) {
+
+            cache.write("switch", hardware, true);
+
+            // Somebody changed it behind our back
+            hardware.state = false;
+
+            cache.verify();
+
+            assertThat(cache.getMismatches()).isEqualTo(1);
+            assertThat(cache.read("switch", hardware)).isFalse();
+            assertThat(hardware.reads).isEqualTo(1);
+        }
+    }
+
+    private static class FakeSwitch implements SwitchStateCache.Hardware {
+
+        boolean state;
+        boolean fail;
+        int reads;
+
+        @Override
+        public boolean readHardware() throws IOException {
+
+            if (fail) {
+                throw new IOException("fail");
+            }
+
+            reads++;
+            return state;
+        }
+
+        @Override
+        public void writeHardware(boolean state) throws IOException {
+
+            if (fail) {
+                throw new IOException("fail");
+            }
+
+            this.state = state;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package net.sf.dz3.device.sensor.impl.tcp.client;
+
+import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSample;
+import net.sf.dz3.device.sensor.TemperatureSensor;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class NioTcpSensorFactoryTest {
+
+    private static final String LOOPBACK = InetAddress.getLoopbackAddress().getHostAddress();
+
+    private final Logger logger = LogManager.getLogger(getClass());
+
+    /**
+     * Connect to 200 in-process sensor hubs and make sure all sensors get their samples.
+     */
+    @Test
+    void load() throws Throwable {
+
+        int hubCount = 200;
+        int samplesPerHub = 100;
+
+        NioTcpSensorFactory factory = new NioTcpSensorFactory();
+        List<Hub> hubs = new ArrayList<>();
+        List<TemperatureSensor> sensors = new ArrayList<>();
+
+        CountDownLatch done = new CountDownLatch(hubCount);
+        AtomicLong received = new AtomicLong();
+
+        try {
+
+            for (int offset = 0; offset < hubCount; offset++) {
+
+                Hub hub = new Hub("sensor" + offset, samplesPerHub);
+                hubs.add(hub);
+
+                TemperatureSensor sensor = factory.getInstance(hub.address, LOOPBACK, hub.getPort());
+
+                sensor.addConsumer(signal -> {
+
+                    if (signal.isError()) {
+                        return;
+                    }
+
+                    received.incrementAndGet();
+
+                    if (signal.sample == samplesPerHub - 1) {
+                        done.countDown();
+                    }
+                });
+
+                sensors.add(sensor);
+            }
+
+            long start = System.currentTimeMillis();
+
+            assertThat(factory.start().waitFor()).isTrue();
+
+            for (Hub hub : hubs) {
+                hub.start();
+            }
+
+            assertThat(done.await(30, TimeUnit.SECONDS)).isTrue();
+
+            long elapsed = System.currentTimeMillis() - start;
+
+            logger.info("{} hubs, {} samples in {}ms, {} samples/s",
+                    hubCount, received.get(), elapsed, received.get() * 1000 / Math.max(elapsed, 1));
+
+            assertThat(factory.getConnectedCount()).isEqualTo(hubCount);
+            assertThat(received.get()).isEqualTo((long) hubCount * samplesPerHub);
+
+            for (TemperatureSensor sensor : sensors) {
+
+                DataSample<Double> signal = sensor.getSignal();
+
+                assertThat(signal.isError()).isFalse();
+                assertThat(signal.sample).isEqualTo(samplesPerHub - 1.0);
+            }
+
+        } finally {
+
+            factory.stop().waitFor();
+
+            for (Hub hub : hubs) {
+                hub.close();
+            }
+        }
+    }
+
+    /**
+     * Make sure the connection is reestablished after the server goes away and comes back.
+     */
+    @Test
+    void reconnect() throws Throwable {
+
+        NioTcpSensorFactory factory = new NioTcpSensorFactory();
+        Hub hub = new Hub("sensor", 1);
+        int port = hub.getPort();
+
+        try {
+
+            TemperatureSensor sensor = factory.getInstance(hub.address, LOOPBACK, port);
+
+            factory.start().waitFor();
+            hub.start();
+
+            waitFor(() -> !sensor.getSignal().isError());
+
+            hub.close();
+            waitFor(() -> sensor.getSignal().isError());
+
+            hub = new Hub("sensor", 1, port);
+            hub.start();
+
+            waitFor(() -> !sensor.getSignal().isError());
+
+            assertThat(factory.getConnects()).isEqualTo(2);
+
+        } finally {
+            factory.stop().waitFor();
+            hub.close();
+        }
+    }
+
+    private void waitFor(BooleanSupplier condition) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + 10000;
+
+        while (!condition.getAsBoolean()) {
+
+            assertThat(System.currentTimeMillis()).isLessThan(deadline);
+            Thread.sleep(50);
+        }
+    }
+
+    /**
+     * Accepts one connection, sends a number of samples for one sensor, and keeps the connection open.
+     */
+    private static class Hub extends Thread {
+
+        final String address;
+        private final int count;
+        private final ServerSocket serverSocket;
+        private volatile Socket socket;
+
+        Hub(String address, int count) throws IOException {
+            this(address, count, 0);
+        }
+
+        Hub(String address, int count, int port) throws IOException {
+
+            this.address = address;
+            this.count = count;
+
+            serverSocket = new ServerSocket();
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+
+            setDaemon(true);
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+
+            try {
+
+                socket = serverSocket.accept();
+
+                PrintWriter pw = new PrintWriter(socket.getOutputStream());
+
+                pw.println("+ " + address);
+
+                for (int offset = 0; offset < count; offset++) {
+                    pw.println("D " + address + " " + offset + ".0");
+                }
+
+                pw.flush();
+
+            } catch (IOException ex) {
+                // Closed, most likely
+            }
+        }
+
+        void close() throws IOException {
+
+            serverSocket.close();
+
+            if (socket != null) {
+                socket.close();
+            }
+        }
+    }
+}
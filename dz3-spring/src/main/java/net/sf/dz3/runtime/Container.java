@@ -1,14 +1,19 @@
 package net.sf.dz3.runtime;
 
 import net.sf.dz3.instrumentation.Marker;
+import net.sf.dz3.util.snapshot.SnapshotManager;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.ThreadContext;
 import org.springframework.beans.factory.BeanDefinitionStoreException;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
 import org.springframework.context.support.AbstractApplicationContext;
 import org.springframework.context.support.ClassPathXmlApplicationContext;
 import org.springframework.context.support.FileSystemXmlApplicationContext;
 
+import java.util.List;
+import java.util.Set;
+
 /**
  * Entry point into DZ Core.
  *
@@ -33,6 +38,18 @@ public class Container {
      */
     public static final String CF_PI = "raspberry-pi.xml";
 
+    /**
+     * System property to select the startup mode with.
+     *
+     * {@code parallel} enables {@link ParallelStartup}, anything else (default) creates all beans eagerly on the main thread.
+     */
+    public static final String STARTUP_MODE = "dz.startup";
+
+    /**
+     * System property to override {@link ParallelStartup#DEFERRED_DEFAULT} with, comma separated class names.
+     */
+    public static final String STARTUP_DEFERRED = "dz.startup.deferred";
+
     /**
      * Run the application.
      * @param args Configuration location.
@@ -139,10 +156,7 @@ public class Container {
                 source = "file:" + source;
             }
 
-            AbstractApplicationContext applicationContext = new FileSystemXmlApplicationContext(source);
-
-            applicationContext.registerShutdownHook();
-            return true;
+            return start(new FileSystemXmlApplicationContext(new String[] { source }, false, null));
 
         } catch (BeanDefinitionStoreException ex) {
 
@@ -154,10 +168,7 @@ public class Container {
     private boolean loadFromClasspath(String source) {
         try {
 
-            AbstractApplicationContext applicationContext = new ClassPathXmlApplicationContext(source);
-
-            applicationContext.registerShutdownHook();
-            return true;
+            return start(new ClassPathXmlApplicationContext(new String[] { source }, false, null));
 
         } catch (BeanDefinitionStoreException ex) {
 
@@ -165,4 +176,69 @@ public class Container {
             return false;
         }
     }
+
+    /**
+     * Refresh the context, in the {@link #STARTUP_MODE selected mode}, and report the startup timeline.
+     *
+     * @param applicationContext Context to start.
+     * @return {@code true}.
+     */
+    private boolean start(AbstractApplicationContext applicationContext) {
+
+        var timeline = new StartupTimeline();
+        var parallel = "parallel".equals(System.getProperty(STARTUP_MODE)) ? createParallelStartup() : null;
+
+        applicationContext.setApplicationStartup(timeline);
+
+        if (parallel != null) {
+            applicationContext.addBeanFactoryPostProcessor(parallel);
+        }
+
+        applicationContext.refresh();
+        applicationContext.registerShutdownHook();
+
+        ConfigurableListableBeanFactory beanFactory = applicationContext.getBeanFactory();
+
+        if (parallel == null) {
+
+            startSnapshots(beanFactory);
+            timeline.report(beanFactory);
+
+        } else {
+
+            parallel.initializeDeferred(beanFactory).thenRun(() -> {
+
+                startSnapshots(beanFactory);
+                timeline.report(beanFactory);
+            });
+        }
+
+        return true;
+    }
+
+    /**
+     * Restore the state from the snapshots. This must happen after all the beans are created,
+     * otherwise the restored signals will not reach the consumers that subscribe later.
+     *
+     * @param beanFactory Bean factory to find the {@link SnapshotManager} instances in.
+     */
+    private void startSnapshots(ConfigurableListableBeanFactory beanFactory) {
+
+        for (var entry : beanFactory.getBeansOfType(SnapshotManager.class).entrySet()) {
+
+            logger.info("{}: restoring the snapshot", entry.getKey());
+            entry.getValue().start();
+        }
+    }
+
+    private ParallelStartup createParallelStartup() {
+
+        String deferred = System.getProperty(STARTUP_DEFERRED);
+
+        if (deferred == null) {
+            return new ParallelStartup();
+        }
+
+        return new ParallelStartup(Set.copyOf(List.of(deferred.split("\\s*,\\s*"))), Runtime.getRuntime().availableProcessors());
+    }
 }
@@ -0,0 +1,278 @@
+package net.sf.dz3.runtime;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.ThreadContext;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Shortens the time it takes for the control loop to come up.
+ *
+ * Two things happen here:
+ *
+ * <ul>
+ * <li>All bean classes are loaded and initialized in parallel before Spring starts creating the beans. On a Raspberry Pi,
+ * class loading and static initialization is a large part of the startup time, and Spring itself creates singletons
+ * one at a time (singleton creation is serialized by the bean factory);</li>
+ * <li>Beans of {@link #getDeferredTypes() deferred types} (user interface, remote connectors) are not created
+ * until the rest of the context is up, and then created on a separate thread, while the control loop is already running.
+ * If a bean the control loop needs depends on a deferred bean, Spring will still create it right away.</li>
+ * </ul>
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+public class ParallelStartup implements BeanFactoryPostProcessor {
+
+    /**
+     * Bean types not needed for the control loop, by default.
+     *
+     * Types not present on the classpath are ignored.
+     */
+    public static final Set<String> DEFERRED_DEFAULT = Set.of(
+            "net.sf.dz3.view.Connector",
+            "net.sf.dz3.view.webui.v1.WebUI");
+
+    private final Logger logger = LogManager.getLogger(getClass());
+
+    private final Set<String> deferredTypes;
+    private final int threads;
+
+    /**
+     * Names of beans marked for deferred initialization, in the order of their definition.
+     */
+    private final List<String> deferred = new ArrayList<>();
+
+    /**
+     * Create an instance with {@link #DEFERRED_DEFAULT default deferred types}, using all available processors.
+     */
+    public ParallelStartup() {
+        this(DEFERRED_DEFAULT, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create an instance.
+     *
+     * @param deferredTypes Fully qualified names of classes or interfaces whose beans are to be created after the rest of the context.
+     * @param threads Number of threads to load the bean classes with.
+     */
+    public ParallelStartup(Set<String> deferredTypes, int threads) {
+
+        if (deferredTypes == null) {
+            throw new IllegalArgumentException("deferredTypes can't be null");
+        }
+
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive (" + threads + " given)");
+        }
+
+        this.deferredTypes = Collections.unmodifiableSet(new LinkedHashSet<>(deferredTypes));
+        this.threads = threads;
+    }
+
+    public Set<String> getDeferredTypes() {
+        return deferredTypes;
+    }
+
+    /**
+     * @return Names of beans marked for deferred initialization.
+     */
+    public synchronized List<String> getDeferred() {
+        return List.copyOf(deferred);
+    }
+
+    @Override
+    public void postProcessBeanFactory(ConfigurableListableBeanFactory beanFactory) throws BeansException {
+
+        ThreadContext.push("postProcessBeanFactory");
+
+        try {
+
+            long start = System.currentTimeMillis();
+
+            Map<String, Class<?>> name2class = preload(beanFactory);
+            List<Class<?>> deferredClasses = new ArrayList<>();
+
+            for (String type : deferredTypes) {
+
+                Class<?> c = name2class.computeIfAbsent(type, k -> load(k, beanFactory.getBeanClassLoader()));
+
+                if (c != null) {
+                    deferredClasses.add(c);
+                }
+            }
+
+            synchronized (this) {
+
+                for (String name : beanFactory.getBeanDefinitionNames()) {
+
+                    BeanDefinition bd = beanFactory.getBeanDefinition(name);
+                    Class<?> beanClass = bd.getBeanClassName() == null ? null : name2class.get(bd.getBeanClassName());
+
+                    if (beanClass == null || !bd.isSingleton() || bd.isAbstract() || bd.isLazyInit() || bd.getFactoryMethodName() != null) {
+                        continue;
+                    }
+
+                    for (Class<?> c : deferredClasses) {
+
+                        if (c.isAssignableFrom(beanClass)) {
+
+                            bd.setLazyInit(true);
+                            deferred.add(name);
+                            break;
+                        }
+                    }
+                }
+            }
+
+            logger.info("Loaded {} classes in {}ms using {} threads, deferred: {}",
+                    name2class.size(), System.currentTimeMillis() - start, threads, deferred);
+
+        } finally {
+            ThreadContext.pop();
+        }
+    }
+
+    /**
+     * Load and initialize all the bean classes in parallel.
+     *
+     * @return Map from the class name to the class, for classes that could be loaded.
+     */
+    private Map<String, Class<?>> preload(ConfigurableListableBeanFactory beanFactory) {
+
+        ClassLoader classLoader = beanFactory.getBeanClassLoader();
+        Set<String> classNames = new LinkedHashSet<>();
+
+        for (String name : beanFactory.getBeanDefinitionNames()) {
+
+            String className = beanFactory.getBeanDefinition(name).getBeanClassName();
+
+            if (className != null) {
+                classNames.add(className);
+            }
+        }
+
+        List<Callable<Class<?>>> tasks = new ArrayList<>(classNames.size());
+
+        for (String className : classNames) {
+            tasks.add(() -> load(className, classLoader));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+
+            Thread t = new Thread(r, "startup-preload");
+            t.setDaemon(true);
+
+            return t;
+        });
+
+        Map<String, Class<?>> result = new LinkedHashMap<>();
+
+        try {
+
+            for (Future<Class<?>> future : executor.invokeAll(tasks)) {
+
+                Class<?> c = future.get();
+
+                if (c != null) {
+                    result.put(c.getName(), c);
+                }
+            }
+
+        } catch (InterruptedException ex) {
+
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading bean classes", ex);
+
+        } catch (ExecutionException ex) {
+
+            // load() doesn't throw, so this must be something really bad
+            throw new IllegalStateException("Failed to load bean classes", ex.getCause());
+
+        } finally {
+            executor.shutdown();
+        }
+
+        return result;
+    }
+
+    private Class<?> load(String className, ClassLoader classLoader) {
+
+        try {
+
+            return Class.forName(className, true, classLoader);
+
+        } catch (ClassNotFoundException | LinkageError ex) {
+
+            // Spring will complain about it in a more meaningful way later, if it is actually needed
+            logger.debug("Can't load {}: {}", className, ex.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Create the deferred beans, on a separate thread.
+     *
+     * Failure to create a deferred bean is logged, but doesn't prevent the rest from being created.
+     *
+     * @param beanFactory Bean factory to create the deferred beans with.
+     *
+     * @return Future that completes when all deferred beans are created.
+     */
+    public CompletableFuture<Void> initializeDeferred(ConfigurableListableBeanFactory beanFactory) {
+
+        List<String> targets = getDeferred();
+        CompletableFuture<Void> result = new CompletableFuture<>();
+
+        Thread worker = new Thread(() -> {
+
+            ThreadContext.push("initializeDeferred");
+
+            try {
+
+                for (String name : targets) {
+
+                    long start = System.currentTimeMillis();
+
+                    try {
+
+                        beanFactory.getBean(name);
+                        logger.info("{}: created in {}ms", name, System.currentTimeMillis() - start);
+
+                    } catch (Throwable t) {
+
+                        // Must not stop the rest
+                        logger.error("{}: failed to create", name, t);
+                    }
+                }
+
+                result.complete(null);
+
+            } finally {
+                ThreadContext.pop();
+            }
+
+        }, "startup-deferred");
+
+        worker.setDaemon(true);
+        worker.start();
+
+        return result;
+    }
+}
@@ -0,0 +1,319 @@
+package net.sf.dz3.runtime;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.core.metrics.ApplicationStartup;
+import org.springframework.core.metrics.StartupStep;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Records the Spring container startup steps, and reports the per bean startup timeline and the critical path.
+ *
+ * Spring reports each bean instantiation as a {@value #BEAN_INSTANTIATE} step, nested into the step of the bean
+ * that caused it to be created. The time spent in the bean itself is the step duration minus the nested steps.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+public class StartupTimeline implements ApplicationStartup {
+
+    static final String BEAN_INSTANTIATE = "spring.beans.instantiate";
+    static final String BEAN_NAME = "beanName";
+
+    private final Logger logger = LogManager.getLogger(getClass());
+
+    private final long origin = System.nanoTime();
+    private final AtomicLong idGenerator = new AtomicLong();
+
+    /**
+     * Steps currently in progress on this thread, innermost first.
+     */
+    private final ThreadLocal<Deque<Step>> current = ThreadLocal.withInitial(ArrayDeque::new);
+
+    private final List<Step> completed = Collections.synchronizedList(new ArrayList<>());
+
+    @Override
+    public StartupStep start(String name) {
+
+        Deque<Step> stack = current.get();
+        Step parent = stack.peek();
+        Step step = new Step(idGenerator.incrementAndGet(), parent == null ? null : parent.id, name);
+
+        stack.push(step);
+
+        return step;
+    }
+
+    /**
+     * Log the startup timeline and the critical path.
+     *
+     * @param beanFactory Bean factory to resolve the bean dependencies against.
+     *
+     * @return The timeline, as logged.
+     */
+    public List<String> report(ConfigurableListableBeanFactory beanFactory) {
+
+        List<Step> steps;
+
+        synchronized (completed) {
+            steps = new ArrayList<>(completed);
+        }
+
+        steps.sort(Comparator.comparingLong(s -> s.startNanos));
+
+        Map<String, Step> bean2step = new HashMap<>();
+        Map<Long, Long> id2nested = new HashMap<>();
+        Map<Long, Step> id2step = new HashMap<>();
+
+        for (Step step : steps) {
+
+            id2step.put(step.id, step);
+
+            if (BEAN_INSTANTIATE.equals(step.name) && step.beanName != null) {
+                bean2step.putIfAbsent(step.beanName, step);
+            }
+        }
+
+        for (Step step : steps) {
+
+            Step parent = step.parentId == null ? null : id2step.get(step.parentId);
+
+            if (parent != null) {
+                id2nested.merge(parent.id, step.getDurationNanos(), Long::sum);
+            }
+        }
+
+        List<String> lines = new ArrayList<>();
+
+        for (Step step : steps) {
+
+            if (step.beanName == null || bean2step.get(step.beanName) != step) {
+                continue;
+            }
+
+            lines.add(String.format("%6dms +%5dms (self %5dms) [%s] %s <- %s",
+                    toMillis(step.startNanos - origin),
+                    toMillis(step.getDurationNanos()),
+                    toMillis(getSelfNanos(step, id2nested)),
+                    step.thread,
+                    step.beanName,
+                    getDependencies(beanFactory, step.beanName)));
+        }
+
+        logger.info("Startup timeline, {} beans: start +total (self) [thread] bean <- dependencies", lines.size());
+        lines.forEach(logger::info);
+
+        List<String> path = getCriticalPath(beanFactory, bean2step, id2nested);
+        long pathNanos = 0;
+
+        for (String bean : path) {
+            pathNanos += getSelfNanos(bean2step.get(bean), id2nested);
+        }
+
+        logger.info("Critical path: {}ms: {}", toMillis(pathNanos), path);
+
+        return lines;
+    }
+
+    /**
+     * Find the dependency chain that takes the longest to create.
+     *
+     * This is the lower bound of the startup time no matter how many beans are created in parallel.
+     */
+    private List<String> getCriticalPath(ConfigurableListableBeanFactory beanFactory, Map<String, Step> bean2step, Map<Long, Long> id2nested) {
+
+        Map<String, Long> cost = new HashMap<>();
+        Map<String, String> next = new HashMap<>();
+
+        String head = null;
+        long headCost = -1;
+
+        for (String bean : bean2step.keySet()) {
+
+            long beanCost = getPathNanos(bean, beanFactory, bean2step, id2nested, cost, next, new HashSet<>());
+
+            if (beanCost > headCost) {
+                head = bean;
+                headCost = beanCost;
+            }
+        }
+
+        List<String> result = new LinkedList<>();
+
+        for (String bean = head; bean != null; bean = next.get(bean)) {
+            result.add(bean);
+        }
+
+        return result;
+    }
+
+    private long getPathNanos(
+            String bean, ConfigurableListableBeanFactory beanFactory,
+            Map<String, Step> bean2step, Map<Long, Long> id2nested,
+            Map<String, Long> cost, Map<String, String> next, Set<String> visiting) {
+
+        Long known = cost.get(bean);
+
+        if (known != null) {
+            return known;
+        }
+
+        if (!visiting.add(bean)) {
+            // Circular reference, already counted
+            return 0;
+        }
+
+        long longest = 0;
+
+        for (String dependency : getDependencies(beanFactory, bean)) {
+
+            if (!bean2step.containsKey(dependency)) {
+                continue;
+            }
+
+            long dependencyCost = getPathNanos(dependency, beanFactory, bean2step, id2nested, cost, next, visiting);
+
+            if (dependencyCost > longest) {
+                longest = dependencyCost;
+                next.put(bean, dependency);
+            }
+        }
+
+        long result = getSelfNanos(bean2step.get(bean), id2nested) + longest;
+
+        cost.put(bean, result);
+
+        return result;
+    }
+
+    private List<String> getDependencies(ConfigurableListableBeanFactory beanFactory, String bean) {
+
+        if (beanFactory == null || !beanFactory.containsBeanDefinition(bean)) {
+            return List.of();
+        }
+
+        return List.of(beanFactory.getDependenciesForBean(bean));
+    }
+
+    private long getSelfNanos(Step step, Map<Long, Long> id2nested) {
+        return Math.max(0, step.getDurationNanos() - id2nested.getOrDefault(step.id, 0L));
+    }
+
+    private static long toMillis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    private class Step implements StartupStep {
+
+        final long id;
+        final Long parentId;
+        final String name;
+        final String thread = Thread.currentThread().getName();
+        final long startNanos = System.nanoTime();
+        final List<Tag> tags = new ArrayList<>();
+
+        String beanName;
+        long endNanos;
+
+        Step(long id, Long parentId, String name) {
+            this.id = id;
+            this.parentId = parentId;
+            this.name = name;
+        }
+
+        long getDurationNanos() {
+            return endNanos - startNanos;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public long getId() {
+            return id;
+        }
+
+        @Override
+        public Long getParentId() {
+            return parentId;
+        }
+
+        @Override
+        public StartupStep tag(String key, String value) {
+
+            if (BEAN_NAME.equals(key)) {
+                beanName = value;
+            }
+
+            tags.add(new SimpleTag(key, value));
+
+            return this;
+        }
+
+        @Override
+        public StartupStep tag(String key, Supplier<String> value) {
+            return tag(key, value.get());
+        }
+
+        @Override
+        public Tags getTags() {
+            return () -> Collections.unmodifiableList(tags).iterator();
+        }
+
+        @Override
+        public void end() {
+
+            endNanos = System.nanoTime();
+
+            Iterator<Step> stack = current.get().iterator();
+
+            // Steps are supposed to end in reverse order, but let's not trust that blindly
+            while (stack.hasNext()) {
+                if (stack.next() == this) {
+                    stack.remove();
+                    break;
+                }
+            }
+
+            completed.add(this);
+        }
+    }
+
+    private static class SimpleTag implements StartupStep.Tag {
+
+        private final String key;
+        private final String value;
+
+        SimpleTag(String key, String value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public String getValue() {
+            return value;
+        }
+    }
+}
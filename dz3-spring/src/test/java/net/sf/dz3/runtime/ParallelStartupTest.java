@@ -0,0 +1,63 @@
+package net.sf.dz3.runtime;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ParallelStartupTest {
+
+    @Test
+    void deferred() throws InterruptedException, ExecutionException, TimeoutException {
+
+        var timeline = new StartupTimeline();
+        var parallel = new ParallelStartup(Set.of(NativeSensorDescriptor.class.getName(), "net.sf.dz3.NoSuchClass"), 2);
+
+        try (var context = new ClassPathXmlApplicationContext(new String[] { "startup.conf.xml" }, false, null)) {
+
+            context.setApplicationStartup(timeline);
+            context.addBeanFactoryPostProcessor(parallel);
+            context.refresh();
+
+            ConfigurableListableBeanFactory beanFactory = context.getBeanFactory();
+
+            assertThat(parallel.getDeferred()).containsExactly("native_sensor_descriptor", "standalone_descriptor");
+
+            // Needed by a bean that is not deferred, so it is created right away anyway
+            assertThat(beanFactory.containsSingleton("native_sensor_descriptor")).isTrue();
+            assertThat(beanFactory.containsSingleton("standalone_descriptor")).isFalse();
+
+            parallel.initializeDeferred(beanFactory).get(10, TimeUnit.SECONDS);
+
+            assertThat(beanFactory.containsSingleton("standalone_descriptor")).isTrue();
+
+            List<String> lines = timeline.report(beanFactory);
+
+            assertThat(lines).anyMatch(line -> line.contains("native_sensor <- ")
+                    && line.contains("nativeSensorFactory")
+                    && line.contains("native_sensor_descriptor"));
+            assertThat(lines).anyMatch(line -> line.contains("[startup-deferred] standalone_descriptor"));
+        }
+    }
+
+    @Test
+    void sequential() {
+
+        var timeline = new StartupTimeline();
+
+        try (var context = new ClassPathXmlApplicationContext(new String[] { "startup.conf.xml" }, false, null)) {
+
+            context.setApplicationStartup(timeline);
+            context.refresh();
+
+            assertThat(timeline.report(context.getBeanFactory())).hasSize(4);
+        }
+    }
+}
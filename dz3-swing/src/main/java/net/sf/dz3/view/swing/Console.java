@@ -416,6 +416,14 @@ public class Console extends Connector<JComponent> {
 
     }
 
+    /**
+     * Swing components are not thread safe, create them one at a time.
+     */
+    @Override
+    protected int getActivationConcurrency() {
+        return 1;
+    }
+
     @Override
     protected Map<String, Object> createContext() {
 
@@ -0,0 +1,17 @@
+package net.sf.dz3.tsdb;
+
+/**
+ * Aggregation functions available for {@link TimeSeriesStore#aggregate(String, long, long, long, Aggregate)}.
+ *
+ * Error samples are excluded from all aggregates.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+public enum Aggregate {
+
+    MIN,
+    MAX,
+    AVERAGE,
+    COUNT,
+    LAST
+}
@@ -0,0 +1,62 @@
+package net.sf.dz3.tsdb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * MSB first bit stream over a byte buffer region.
+ *
+ * Uses absolute reads only, so the same buffer can be read by several readers at once.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+class BitReader {
+
+    private final ByteBuffer buffer;
+    private final int offset;
+    private final long limit;
+    private long position = 0;
+
+    /**
+     * @param buffer Buffer to read from.
+     * @param offset Offset of the first byte of the stream.
+     * @param length Stream length, bytes.
+     */
+    BitReader(ByteBuffer buffer, int offset, int length) {
+
+        this.buffer = buffer;
+        this.offset = offset;
+        this.limit = length * 8L;
+    }
+
+    boolean readBit() {
+        return readBits(1) != 0;
+    }
+
+    /**
+     * @param count Number of bits to read, 1 to 64.
+     * @return Bits read, in the lowest {@code count} bits of the result.
+     */
+    long readBits(int count) {
+
+        if (position + count > limit) {
+            throw new IllegalStateException("read past the end: position=" + position + ", count=" + count + ", limit=" + limit);
+        }
+
+        long result = 0;
+
+        while (count > 0) {
+
+            int b = buffer.get(offset + (int) (position >>> 3)) & 0xFF;
+            int available = 8 - (int) (position & 7);
+            int n = Math.min(available, count);
+            int bits = (b >>> (available - n)) & ((1 << n) - 1);
+
+            result = (result << n) | bits;
+
+            position += n;
+            count -= n;
+        }
+
+        return result;
+    }
+}
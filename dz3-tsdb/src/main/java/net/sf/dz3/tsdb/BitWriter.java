@@ -0,0 +1,53 @@
+package net.sf.dz3.tsdb;
+
+import java.util.Arrays;
+
+/**
+ * Growable MSB first bit stream.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+class BitWriter {
+
+    private byte[] buffer;
+    private int bitLength = 0;
+
+    BitWriter(int initialCapacity) {
+        buffer = new byte[Math.max(initialCapacity, 8)];
+    }
+
+    /**
+     * Write the lowest {@code count} bits of {@code value}, most significant first.
+     *
+     * @param value Value to write.
+     * @param count Number of bits to write, 1 to 64.
+     */
+    void writeBits(long value, int count) {
+
+        while (count > 0) {
+
+            int offset = bitLength >>> 3;
+
+            if (offset >= buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+
+            int free = 8 - (bitLength & 7);
+            int n = Math.min(free, count);
+            int bits = (int) ((value >>> (count - n)) & ((1 << n) - 1));
+
+            buffer[offset] |= (byte) (bits << (free - n));
+
+            bitLength += n;
+            count -= n;
+        }
+    }
+
+    int getBitLength() {
+        return bitLength;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buffer, (bitLength + 7) >>> 3);
+    }
+}
@@ -0,0 +1,63 @@
+package net.sf.dz3.tsdb;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Sealed, immutable piece of a single time series, {@link GorillaEncoder Gorilla} encoded.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+class Chunk {
+
+    final String series;
+    final long start;
+    final long end;
+    final int count;
+
+    /**
+     * Encoded data, between position 0 and the limit. Only absolute reads are allowed.
+     */
+    final ByteBuffer data;
+
+    Chunk(String series, long start, long end, int count, ByteBuffer data) {
+
+        this.series = series;
+        this.start = start;
+        this.end = end;
+        this.count = count;
+        this.data = data;
+    }
+
+    boolean overlaps(long from, long to) {
+        return start <= to && end >= from;
+    }
+
+    /**
+     * Decode the samples between {@code from} and {@code to}, inclusive.
+     *
+     * @param target List to add decoded samples to.
+     */
+    void decode(long from, long to, List<TimeValue> target) {
+
+        GorillaDecoder decoder = new GorillaDecoder(data, 0, data.limit(), count);
+
+        while (decoder.next()) {
+
+            long timestamp = decoder.getTimestamp();
+
+            if (timestamp > to) {
+                return;
+            }
+
+            if (timestamp >= from) {
+                target.add(new TimeValue(timestamp, decoder.getValue()));
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "(" + series + ", " + start + ".." + end + ", " + count + " samples, " + data.limit() + " bytes)";
+    }
+}
@@ -0,0 +1,107 @@
+package net.sf.dz3.tsdb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decoder for the {@link GorillaEncoder} format.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+class GorillaDecoder {
+
+    private final BitReader in;
+    private final int count;
+
+    private int read = 0;
+    private long timestamp;
+    private long delta = 0;
+    private long value;
+    private int leading;
+    private int trailing;
+
+    /**
+     * @param buffer Buffer to read from.
+     * @param offset Offset of the encoded data.
+     * @param length Length of the encoded data, bytes.
+     * @param count Number of samples encoded.
+     */
+    GorillaDecoder(ByteBuffer buffer, int offset, int length, int count) {
+
+        this.in = new BitReader(buffer, offset, length);
+        this.count = count;
+    }
+
+    /**
+     * Advance to the next sample.
+     *
+     * @return {@code false} if there are no more samples.
+     */
+    boolean next() {
+
+        if (read == count) {
+            return false;
+        }
+
+        if (read == 0) {
+
+            timestamp = in.readBits(64);
+            value = in.readBits(64);
+
+        } else {
+
+            delta += readDeltaOfDelta();
+            timestamp += delta;
+
+            readValue();
+        }
+
+        read++;
+
+        return true;
+    }
+
+    private long readDeltaOfDelta() {
+
+        int prefix = 0;
+
+        while (prefix < 5 && in.readBit()) {
+            prefix++;
+        }
+
+        if (prefix == 0) {
+            return 0;
+        }
+
+        if (prefix == 5) {
+            return in.readBits(64);
+        }
+
+        int bits = GorillaEncoder.DOD_BITS[prefix - 1];
+
+        return in.readBits(bits) - ((1L << (bits - 1)) - 1);
+    }
+
+    private void readValue() {
+
+        if (!in.readBit()) {
+            return;
+        }
+
+        if (in.readBit()) {
+
+            leading = (int) in.readBits(5);
+            int significant = (int) in.readBits(6) + 1;
+            trailing = 64 - leading - significant;
+        }
+
+        value ^= in.readBits(64 - leading - trailing) << trailing;
+    }
+
+    long getTimestamp() {
+        return timestamp;
+    }
+
+    double getValue() {
+        return Double.longBitsToDouble(value);
+    }
+}
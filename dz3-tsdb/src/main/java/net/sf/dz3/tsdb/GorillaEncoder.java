@@ -0,0 +1,150 @@
+package net.sf.dz3.tsdb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Gorilla style time series chunk encoder.
+ *
+ * The first sample is stored verbatim, timestamps after that are stored as delta-of-delta with variable length
+ * prefix codes (regular sampling intervals cost one bit), values as XOR against the previous value
+ * with leading and trailing zero elision (an unchanged value costs one bit).
+ *
+ * @see <a href="https://www.vldb.org/pvldb/vol8/p1816-teller.pdf">Gorilla: A Fast, Scalable, In-Memory Time Series Database</a>
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+class GorillaEncoder {
+
+    /**
+     * Delta-of-delta value widths for prefixes {@code 10}, {@code 110}, {@code 1110}, {@code 11110}.
+     * Prefix {@code 11111} is followed by the full 64 bit value.
+     *
+     * The two narrowest buckets are the same as in the paper, wider ones accommodate millisecond jitter.
+     */
+    static final int[] DOD_BITS = { 7, 9, 12, 20 };
+
+    private final BitWriter out = new BitWriter(64);
+
+    private int count = 0;
+    private long firstTimestamp;
+    private long lastTimestamp;
+    private long lastDelta = 0;
+    private long lastValue;
+    private int leading = -1;
+    private int trailing;
+
+    /**
+     * Append a sample.
+     *
+     * @param timestamp Sample timestamp. Must not be less than the previous timestamp.
+     * @param value Sample value.
+     */
+    void append(long timestamp, double value) {
+
+        long bits = Double.doubleToLongBits(value);
+
+        if (count == 0) {
+
+            out.writeBits(timestamp, 64);
+            out.writeBits(bits, 64);
+
+            firstTimestamp = timestamp;
+
+        } else {
+
+            if (timestamp < lastTimestamp) {
+                throw new IllegalArgumentException("Can't go back in time: " + timestamp + " < " + lastTimestamp);
+            }
+
+            long delta = timestamp - lastTimestamp;
+
+            writeDeltaOfDelta(delta - lastDelta);
+            writeValue(bits);
+
+            lastDelta = delta;
+        }
+
+        lastTimestamp = timestamp;
+        lastValue = bits;
+        count++;
+    }
+
+    private void writeDeltaOfDelta(long dod) {
+
+        if (dod == 0) {
+            out.writeBits(0, 1);
+            return;
+        }
+
+        for (int offset = 0; offset < DOD_BITS.length; offset++) {
+
+            long bias = (1L << (DOD_BITS[offset] - 1)) - 1;
+
+            if (dod >= -bias && dod <= bias + 1) {
+
+                // offset + 1 ones followed by a zero
+                out.writeBits(((1L << (offset + 1)) - 1) << 1, offset + 2);
+                out.writeBits(dod + bias, DOD_BITS[offset]);
+                return;
+            }
+        }
+
+        out.writeBits(0b11111, 5);
+        out.writeBits(dod, 64);
+    }
+
+    private void writeValue(long bits) {
+
+        long xor = bits ^ lastValue;
+
+        if (xor == 0) {
+            out.writeBits(0, 1);
+            return;
+        }
+
+        int lz = Math.min(Long.numberOfLeadingZeros(xor), 31);
+        int tz = Long.numberOfTrailingZeros(xor);
+
+        if (leading >= 0 && lz >= leading && tz >= trailing) {
+
+            // Fits into the previous window
+            out.writeBits(0b10, 2);
+            out.writeBits(xor >>> trailing, 64 - leading - trailing);
+            return;
+        }
+
+        int significant = 64 - lz - tz;
+
+        out.writeBits(0b11, 2);
+        out.writeBits(lz, 5);
+        out.writeBits(significant - 1L, 6);
+        out.writeBits(xor >>> tz, significant);
+
+        leading = lz;
+        trailing = tz;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    long getFirstTimestamp() {
+        return firstTimestamp;
+    }
+
+    long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    /**
+     * @return Chunk containing a copy of the data encoded so far.
+     */
+    Chunk toChunk(String series) {
+
+        if (count == 0) {
+            throw new IllegalStateException("empty");
+        }
+
+        return new Chunk(series, firstTimestamp, lastTimestamp, count, ByteBuffer.wrap(out.toByteArray()));
+    }
+}
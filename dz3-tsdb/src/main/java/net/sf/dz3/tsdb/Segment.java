@@ -0,0 +1,299 @@
+package net.sf.dz3.tsdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Memory mapped, append only file holding sealed chunks.
+ *
+ * Layout: {@code int magic, short version, short flags}, followed by records
+ * {@code int length, short nameLength, byte[] name, long start, long end, int count, byte[] data}.
+ * The length is written last, so a record interrupted by a crash reads as the end of the segment.
+ *
+ * Not thread safe, {@link TimeSeriesStore} takes care of that.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+class Segment {
+
+    static final String SUFFIX = ".dzts";
+
+    private static final int MAGIC = 0x445a5453; // "DZTS"
+    private static final short VERSION = 1;
+    private static final short FLAG_DOWNSAMPLED = 1;
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * Record overhead in addition to the name and the data.
+     */
+    private static final int RECORD_OVERHEAD = 4 + 2 + 8 + 8 + 4;
+
+    private static final Logger logger = LogManager.getLogger(Segment.class);
+
+    final File file;
+    final boolean downsampled;
+
+    private final MappedByteBuffer buffer;
+    private int position;
+
+    private final Map<String, List<Chunk>> series2chunks = new LinkedHashMap<>();
+    private long start = Long.MAX_VALUE;
+    private long end = Long.MIN_VALUE;
+    private int chunkCount = 0;
+
+    private Segment(File file, MappedByteBuffer buffer, boolean downsampled) {
+
+        this.file = file;
+        this.buffer = buffer;
+        this.downsampled = downsampled;
+    }
+
+    /**
+     * Create a new segment file.
+     *
+     * @param file File to create. Must not exist.
+     * @param capacity Segment size, bytes.
+     * @param downsampled Whether the segment contains downsampled data.
+     */
+    static Segment create(File file, int capacity, boolean downsampled) throws IOException {
+
+        if (file.exists()) {
+            throw new IOException(file + ": already exists");
+        }
+
+        Segment segment = new Segment(file, map(file, capacity), downsampled);
+
+        segment.buffer.putInt(0, MAGIC);
+        segment.buffer.putShort(4, VERSION);
+        segment.buffer.putShort(6, downsampled ? FLAG_DOWNSAMPLED : 0);
+        segment.position = HEADER_SIZE;
+
+        return segment;
+    }
+
+    /**
+     * Open an existing segment file and index its contents.
+     */
+    static Segment open(File file) throws IOException {
+
+        MappedByteBuffer buffer = map(file, (int) file.length());
+
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException(file + ": not a segment file");
+        }
+
+        if (buffer.getShort(4) != VERSION) {
+            throw new IOException(file + ": unsupported version " + buffer.getShort(4));
+        }
+
+        Segment segment = new Segment(file, buffer, (buffer.getShort(6) & FLAG_DOWNSAMPLED) != 0);
+
+        segment.scan();
+
+        return segment;
+    }
+
+    /**
+     * Discard the records past the given size, undoing the appends made since the segment was that big.
+     *
+     * @param file Segment file. Must not be open.
+     * @param size Size to truncate to, as returned by {@link #getSize()}.
+     */
+    static void truncate(File file, int size) throws IOException {
+
+        MappedByteBuffer buffer = map(file, (int) file.length());
+
+        if (size < HEADER_SIZE || size > buffer.capacity()) {
+            throw new IOException(file + ": can't truncate to " + size + " bytes");
+        }
+
+        // The whole tail must be zeroed, or stale records will show up again after the next append
+        for (int offset = size; offset < buffer.capacity(); offset++) {
+            buffer.put(offset, (byte) 0);
+        }
+
+        buffer.force();
+    }
+
+    private static MappedByteBuffer map(File file, int capacity) throws IOException {
+
+        // The mapping stays valid after the channel is closed
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                FileChannel channel = raf.getChannel()) {
+
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+    }
+
+    private void scan() {
+
+        position = HEADER_SIZE;
+
+        while (position + 4 <= buffer.capacity()) {
+
+            int length = buffer.getInt(position);
+
+            if (length == 0) {
+                break;
+            }
+
+            if (length < RECORD_OVERHEAD - 4 || position + 4L + length > buffer.capacity()) {
+                logger.warn("{}: bad record length {} at {}, ignoring the rest", file, length, position);
+                break;
+            }
+
+            int offset = position + 4;
+            int nameLength = buffer.getShort(offset);
+
+            if (nameLength < 0 || nameLength > length - (RECORD_OVERHEAD - 4)) {
+                logger.warn("{}: bad name length {} at {}, ignoring the rest", file, nameLength, position);
+                break;
+            }
+
+            byte[] name = new byte[nameLength];
+
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset + 2);
+            view.get(name);
+
+            offset += 2 + nameLength;
+
+            long chunkStart = buffer.getLong(offset);
+            long chunkEnd = buffer.getLong(offset + 8);
+            int count = buffer.getInt(offset + 16);
+
+            offset += 20;
+
+            index(new Chunk(new String(name, StandardCharsets.UTF_8), chunkStart, chunkEnd, count, slice(offset, position + 4 + length - offset)));
+
+            position += 4 + length;
+        }
+    }
+
+    /**
+     * Append a chunk.
+     *
+     * @return {@code false} if there's not enough space left.
+     */
+    boolean append(Chunk chunk) {
+
+        byte[] name = chunk.series.getBytes(StandardCharsets.UTF_8);
+        int dataLength = chunk.data.limit();
+        int length = RECORD_OVERHEAD - 4 + name.length + dataLength;
+
+        if (position + 4L + length > buffer.capacity()) {
+            return false;
+        }
+
+        int offset = position + 4;
+
+        buffer.putShort(offset, (short) name.length);
+
+        ByteBuffer view = buffer.duplicate();
+
+        view.position(offset + 2);
+        view.put(name);
+
+        offset += 2 + name.length;
+
+        buffer.putLong(offset, chunk.start);
+        buffer.putLong(offset + 8, chunk.end);
+        buffer.putInt(offset + 16, chunk.count);
+
+        offset += 20;
+
+        view.position(offset);
+        view.put(chunk.data.duplicate().position(0));
+
+        // Commit
+        buffer.putInt(position, length);
+
+        // Now refer to the mapped copy, the original can be collected
+        index(new Chunk(chunk.series, chunk.start, chunk.end, chunk.count, slice(offset, dataLength)));
+
+        position += 4 + length;
+
+        return true;
+    }
+
+    private ByteBuffer slice(int offset, int length) {
+
+        ByteBuffer view = buffer.asReadOnlyBuffer();
+
+        view.position(offset);
+        view.limit(offset + length);
+
+        return view.slice();
+    }
+
+    private void index(Chunk chunk) {
+
+        series2chunks.computeIfAbsent(chunk.series, k -> new ArrayList<>()).add(chunk);
+
+        start = Math.min(start, chunk.start);
+        end = Math.max(end, chunk.end);
+        chunkCount++;
+    }
+
+    /**
+     * Write the changes to the storage.
+     */
+    void force() {
+        buffer.force();
+    }
+
+    List<Chunk> getChunks(String series) {
+        return Collections.unmodifiableList(series2chunks.getOrDefault(series, Collections.emptyList()));
+    }
+
+    Map<String, List<Chunk>> getChunks() {
+        return Collections.unmodifiableMap(series2chunks);
+    }
+
+    boolean isEmpty() {
+        return chunkCount == 0;
+    }
+
+    /**
+     * @return Earliest timestamp in this segment, {@link Long#MAX_VALUE} if empty.
+     */
+    long getStart() {
+        return start;
+    }
+
+    /**
+     * @return Latest timestamp in this segment, {@link Long#MIN_VALUE} if empty.
+     */
+    long getEnd() {
+        return end;
+    }
+
+    int getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * @return Bytes used, including the header.
+     */
+    int getSize() {
+        return position;
+    }
+
+    @Override
+    public String toString() {
+        return file.getName() + (downsampled ? " (downsampled)" : "") + ": " + chunkCount + " chunks, " + position + " bytes";
+    }
+}
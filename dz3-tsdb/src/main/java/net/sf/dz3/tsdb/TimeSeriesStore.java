@@ -0,0 +1,902 @@
+package net.sf.dz3.tsdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.ThreadContext;
+
+import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSample;
+import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSink;
+import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSource;
+import com.homeclimatecontrol.jukebox.jmx.JmxAttribute;
+import com.homeclimatecontrol.jukebox.jmx.JmxAware;
+import com.homeclimatecontrol.jukebox.jmx.JmxDescriptor;
+
+/**
+ * Embedded time series store, keeps the sample history locally without needing an external database.
+ *
+ * Samples are collected per {@link DataSample#sourceName source} into in-memory {@link GorillaEncoder Gorilla}
+ * encoded chunks, which are sealed and appended to memory mapped segment files in {@code directory}
+ * once they span {@link #getChunkSpanMillis() chunk span}. Error samples are stored as {@link Double#NaN}.
+ *
+ * Segments older than {@link #getDownsampleAfterMillis() downsample age} are replaced with segments containing
+ * per-bucket averages, segments older than {@link #getRetentionMillis() retention} are deleted.
+ * Downsampled data is appended to the last downsampled segment until it is full, or spans a tenth of the
+ * downsampled retention, whichever comes first.
+ *
+ * A raw segment is only deleted after its downsampled data has been written out, with a journal file recording
+ * where that data starts. If the process dies before the raw segment is gone, the downsampled data is discarded
+ * on the next start, and the raw segment is downsampled again.
+ *
+ * Samples in chunks that have not been sealed yet will be lost if the process dies without calling {@link #close()}.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+public class TimeSeriesStore implements DataSink<Double>, JmxAware, AutoCloseable {
+
+    public static final long DEFAULT_RETENTION_MILLIS = TimeUnit.DAYS.toMillis(90);
+    public static final long DEFAULT_DOWNSAMPLE_AFTER_MILLIS = TimeUnit.DAYS.toMillis(7);
+    public static final long DEFAULT_DOWNSAMPLE_BUCKET_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    static final int DEFAULT_SEGMENT_CAPACITY = 4 * 1024 * 1024;
+    static final long DEFAULT_CHUNK_SPAN_MILLIS = TimeUnit.MINUTES.toMillis(15);
+    static final long DEFAULT_MAINTENANCE_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * Maximum number of samples in a chunk. Worst case encoding is under 20 bytes per sample,
+     * so a full chunk always fits into a segment.
+     */
+    static final int MAX_CHUNK_SAMPLES = 4096;
+
+    /**
+     * Suffix of the journal file present while a raw segment is being downsampled. The file name is the raw segment
+     * file name with this suffix appended, the content is the name and the size of the downsampled segment
+     * before the downsampling started.
+     */
+    static final String JOURNAL_SUFFIX = ".downsampling";
+
+    private static final String DOWNSAMPLED_SUFFIX = "-ds" + Segment.SUFFIX;
+
+    private final Logger logger = LogManager.getLogger(getClass());
+
+    private final Set<DataSource<Double>> producers;
+    private final File directory;
+    private final long retentionMillis;
+    private final long downsampleAfterMillis;
+    private final long downsampleBucketMillis;
+    private final int segmentCapacity;
+    private final long chunkSpanMillis;
+
+    /**
+     * Raw segments are rolled over after this long, so that they can be downsampled.
+     */
+    private final long segmentSpanMillis;
+
+    /**
+     * Downsampled segments are rolled over after this long, so that they can be expired without
+     * keeping the data for much longer than the retention.
+     */
+    private final long downsampledSpanMillis;
+
+    /**
+     * All segments, oldest first.
+     */
+    private final List<Segment> segments = new ArrayList<>();
+
+    /**
+     * Segment sealed chunks are appended to.
+     */
+    private Segment current;
+
+    /**
+     * Segment downsampled chunks are appended to.
+     */
+    private Segment downsampleTarget;
+
+    /**
+     * Set if a downsampled raw segment couldn't be deleted. Its journal is still there, so any more downsampled
+     * data would be discarded along with it on the next start.
+     */
+    private boolean downsampleSuspended = false;
+
+    private final Map<String, GorillaEncoder> series2open = new HashMap<>();
+
+    private final ScheduledExecutorService maintenance;
+
+    private final AtomicLong samples = new AtomicLong();
+    private final AtomicLong outOfOrder = new AtomicLong();
+    private final AtomicLong chunksSealed = new AtomicLong();
+    private final AtomicLong sampleBytesSealed = new AtomicLong();
+    private final AtomicLong samplesSealed = new AtomicLong();
+    private final AtomicLong segmentsDownsampled = new AtomicLong();
+    private final AtomicLong segmentsExpired = new AtomicLong();
+    private volatile long lastQueryMicros;
+
+    /**
+     * Create an instance with default retention and downsampling.
+     *
+     * @param producers Data sources to store samples from.
+     * @param directory Directory to keep the segment files in. Will be created if it doesn't exist.
+     *
+     * @throws IOException if the directory can't be created, or existing segments can't be read.
+     */
+    public TimeSeriesStore(Set<DataSource<Double>> producers, File directory) throws IOException {
+        this(producers, directory, DEFAULT_RETENTION_MILLIS, DEFAULT_DOWNSAMPLE_AFTER_MILLIS, DEFAULT_DOWNSAMPLE_BUCKET_MILLIS);
+    }
+
+    /**
+     * Create an instance.
+     *
+     * @param producers Data sources to store samples from.
+     * @param directory Directory to keep the segment files in. Will be created if it doesn't exist.
+     * @param retentionMillis How long to keep the data, milliseconds.
+     * @param downsampleAfterMillis How long to keep the data at full resolution, milliseconds.
+     * @param downsampleBucketMillis Downsampled data resolution, milliseconds.
+     *
+     * @throws IOException if the directory can't be created, or existing segments can't be read.
+     */
+    public TimeSeriesStore(Set<DataSource<Double>> producers, File directory,
+            long retentionMillis, long downsampleAfterMillis, long downsampleBucketMillis) throws IOException {
+
+        this(producers, directory, retentionMillis, downsampleAfterMillis, downsampleBucketMillis,
+                DEFAULT_SEGMENT_CAPACITY, DEFAULT_CHUNK_SPAN_MILLIS, DEFAULT_MAINTENANCE_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Create an instance.
+     *
+     * @param maintenanceIntervalMillis How often to seal stale chunks, expire and downsample old segments.
+     * Zero disables the background maintenance, {@link #maintain(long)} must then be called explicitly.
+     */
+    TimeSeriesStore(Set<DataSource<Double>> producers, File directory,
+            long retentionMillis, long downsampleAfterMillis, long downsampleBucketMillis,
+            int segmentCapacity, long chunkSpanMillis, long maintenanceIntervalMillis) throws IOException {
+
+        if (directory == null) {
+            throw new IllegalArgumentException("directory can't be null");
+        }
+
+        if (downsampleAfterMillis <= 0 || retentionMillis < downsampleAfterMillis) {
+            throw new IllegalArgumentException("must have 0 < downsampleAfterMillis <= retentionMillis ("
+                    + downsampleAfterMillis + ", " + retentionMillis + " given)");
+        }
+
+        if (downsampleBucketMillis <= 0) {
+            throw new IllegalArgumentException("downsampleBucketMillis must be positive (" + downsampleBucketMillis + " given)");
+        }
+
+        if (segmentCapacity < MAX_CHUNK_SAMPLES * 20 + 1024) {
+            throw new IllegalArgumentException("segmentCapacity is too small (" + segmentCapacity + " given)");
+        }
+
+        this.producers = producers == null ? Set.of() : new LinkedHashSet<>(producers);
+        this.directory = directory;
+        this.retentionMillis = retentionMillis;
+        this.downsampleAfterMillis = downsampleAfterMillis;
+        this.downsampleBucketMillis = downsampleBucketMillis;
+        this.segmentCapacity = segmentCapacity;
+        this.chunkSpanMillis = chunkSpanMillis;
+        this.segmentSpanMillis = Math.min(TimeUnit.DAYS.toMillis(1), downsampleAfterMillis);
+        this.downsampledSpanMillis = Math.max(segmentSpanMillis, (retentionMillis - downsampleAfterMillis) / 10);
+
+        load();
+
+        if (maintenanceIntervalMillis > 0) {
+
+            maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+
+                Thread t = new Thread(r, "TimeSeriesStore maintenance: " + directory.getName());
+                t.setDaemon(true);
+
+                return t;
+            });
+
+            maintenance.scheduleWithFixedDelay(
+                    () -> maintain(System.currentTimeMillis()),
+                    maintenanceIntervalMillis, maintenanceIntervalMillis, TimeUnit.MILLISECONDS);
+
+        } else {
+            maintenance = null;
+        }
+
+        for (DataSource<Double> producer : this.producers) {
+            producer.addConsumer(this);
+        }
+    }
+
+    private void load() throws IOException {
+
+        ThreadContext.push("load");
+
+        try {
+
+            if (!directory.exists() && !directory.mkdirs()) {
+                throw new IOException(directory + ": can't create");
+            }
+
+            if (!directory.isDirectory()) {
+                throw new IOException(directory + ": not a directory");
+            }
+
+            recover();
+
+            for (File file : list(Segment.SUFFIX)) {
+
+                try {
+
+                    Segment segment = Segment.open(file);
+
+                    segments.add(segment);
+                    logger.info("{}", segment);
+
+                } catch (IOException ex) {
+                    logger.error("{}: can't open, skipped", file, ex);
+                }
+            }
+
+            // Continue appending to the last segments, no need to waste space on new ones
+            if (!segments.isEmpty()) {
+
+                Segment last = segments.get(segments.size() - 1);
+
+                if (!last.downsampled) {
+                    current = last;
+                }
+            }
+
+            for (Segment segment : segments) {
+                if (segment.downsampled) {
+                    downsampleTarget = segment;
+                }
+            }
+
+        } finally {
+            ThreadContext.pop();
+        }
+    }
+
+    /**
+     * Undo the downsampling interrupted by a crash, if any.
+     *
+     * The raw segment is deleted after the downsampled data is written, and the journal after that. If the raw
+     * segment is still there, the downsampled data may be incomplete, so it is discarded.
+     */
+    private void recover() throws IOException {
+
+        for (File journal : list(JOURNAL_SUFFIX)) {
+
+            String name = journal.getName();
+            File raw = new File(directory, name.substring(0, name.length() - JOURNAL_SUFFIX.length()));
+
+            if (raw.exists()) {
+                rollback(journal);
+            }
+
+            Files.delete(journal.toPath());
+        }
+    }
+
+    private void rollback(File journal) throws IOException {
+
+        String[] content = new String(Files.readAllBytes(journal.toPath()), StandardCharsets.UTF_8).trim().split(" ");
+        File target = new File(directory, content[0]);
+        int size;
+
+        try {
+
+            size = content.length == 2 ? Integer.parseInt(content[1]) : -1;
+
+        } catch (NumberFormatException ex) {
+            size = -1;
+        }
+
+        if (size < 0 || !target.exists()) {
+
+            // Died while writing the journal, nothing has been downsampled yet
+            logger.warn("{}: incomplete journal, ignored", journal);
+            return;
+        }
+
+        logger.warn("{}: downsampling interrupted, truncating {} to {} bytes", journal, target.getName(), size);
+
+        Segment.truncate(target, size);
+
+        // Any downsampled segments created since belong to the interrupted downsampling as well
+        for (File file : list(DOWNSAMPLED_SUFFIX)) {
+
+            if (file.getName().compareTo(target.getName()) > 0) {
+
+                Files.delete(file.toPath());
+                logger.warn("{}: deleted", file);
+            }
+        }
+    }
+
+    /**
+     * @return Files in the {@code directory} with names ending with the given suffix, sorted by name.
+     */
+    private File[] list(String suffix) throws IOException {
+
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(suffix));
+
+        if (files == null) {
+            throw new IOException(directory + ": can't list");
+        }
+
+        Arrays.sort(files);
+
+        return files;
+    }
+
+    @Override
+    public void consume(DataSample<Double> signal) {
+
+        if (signal == null) {
+            throw new IllegalArgumentException("signal can't be null");
+        }
+
+        try {
+
+            append(signal.sourceName, signal.timestamp, signal.isError() ? Double.NaN : signal.sample);
+
+        } catch (IOException ex) {
+            logger.error("Failed to store {}", signal, ex);
+        }
+    }
+
+    /**
+     * Store a sample.
+     *
+     * Samples older than the latest sample for the same series are dropped.
+     *
+     * @param series Series name.
+     * @param timestamp Sample timestamp.
+     * @param value Sample value, {@link Double#NaN} for errors.
+     *
+     * @throws IOException if a chunk had to be sealed, and it couldn't be written.
+     */
+    public synchronized void append(String series, long timestamp, double value) throws IOException {
+
+        GorillaEncoder encoder = series2open.get(series);
+
+        if (encoder != null) {
+
+            if (timestamp < encoder.getLastTimestamp()) {
+
+                outOfOrder.incrementAndGet();
+                logger.debug("{}: out of order sample dropped, {} < {}", series, timestamp, encoder.getLastTimestamp());
+                return;
+            }
+
+            if (timestamp - encoder.getFirstTimestamp() >= chunkSpanMillis || encoder.getCount() >= MAX_CHUNK_SAMPLES) {
+
+                seal(series, encoder);
+                encoder = null;
+            }
+        }
+
+        if (encoder == null) {
+
+            encoder = new GorillaEncoder();
+            series2open.put(series, encoder);
+        }
+
+        encoder.append(timestamp, value);
+        samples.incrementAndGet();
+    }
+
+    private void seal(String series, GorillaEncoder encoder) throws IOException {
+
+        series2open.remove(series);
+
+        Chunk chunk = encoder.toChunk(series);
+
+        if (current != null && !current.isEmpty() && chunk.end - current.getStart() >= segmentSpanMillis) {
+
+            // Too old to keep appending to, or it'll never get downsampled
+            current = null;
+        }
+
+        if (current == null || !current.append(chunk)) {
+
+            current = createSegment(false);
+
+            if (!current.append(chunk)) {
+                throw new IOException("chunk doesn't fit into an empty segment: " + chunk);
+            }
+        }
+
+        current.force();
+
+        chunksSealed.incrementAndGet();
+        samplesSealed.addAndGet(chunk.count);
+        sampleBytesSealed.addAndGet(chunk.data.limit());
+    }
+
+    private Segment createSegment(boolean downsampled) throws IOException {
+
+        long now = System.currentTimeMillis();
+        File file;
+
+        // File names must sort in creation order
+        do {
+            file = new File(directory, String.format("%013d", now++) + (downsampled ? "-ds" : "") + Segment.SUFFIX);
+        } while (file.exists());
+
+        Segment segment = Segment.create(file, segmentCapacity, downsampled);
+
+        segments.add(segment);
+        logger.info("created {}", file);
+
+        return segment;
+    }
+
+    /**
+     * @return Names of all series known to the store.
+     */
+    public synchronized Set<String> getSeries() {
+
+        Set<String> result = new TreeSet<>(series2open.keySet());
+
+        for (Segment segment : segments) {
+            result.addAll(segment.getChunks().keySet());
+        }
+
+        return result;
+    }
+
+    /**
+     * Get the samples for the given series.
+     *
+     * @param series Series name.
+     * @param from Start of the range, inclusive.
+     * @param to End of the range, inclusive.
+     *
+     * @return Samples ordered by timestamp, {@link Double#NaN} values denoting errors.
+     * Downsampled ranges will return bucket averages.
+     */
+    public List<TimeValue> query(String series, long from, long to) {
+
+        long start = System.nanoTime();
+
+        List<Chunk> chunks = new ArrayList<>();
+
+        synchronized (this) {
+
+            for (Segment segment : segments) {
+
+                if (segment.isEmpty() || segment.getStart() > to || segment.getEnd() < from) {
+                    continue;
+                }
+
+                for (Chunk chunk : segment.getChunks(series)) {
+
+                    if (chunk.overlaps(from, to)) {
+                        chunks.add(chunk);
+                    }
+                }
+            }
+
+            GorillaEncoder open = series2open.get(series);
+
+            if (open != null && open.getLastTimestamp() >= from && open.getFirstTimestamp() <= to) {
+                chunks.add(open.toChunk(series));
+            }
+        }
+
+        // Sealed chunks are immutable, no need to hold the lock while decoding
+
+        chunks.sort(Comparator.comparingLong(c -> c.start));
+
+        List<TimeValue> result = new ArrayList<>();
+
+        for (Chunk chunk : chunks) {
+            chunk.decode(from, to, result);
+        }
+
+        // Chunks from different segments may overlap after downsampling
+        result.sort(Comparator.comparingLong(v -> v.timestamp));
+
+        lastQueryMicros = (System.nanoTime() - start) / 1000;
+
+        return result;
+    }
+
+    /**
+     * Get the aggregated samples for the given series.
+     *
+     * @param series Series name.
+     * @param from Start of the range, inclusive.
+     * @param to End of the range, inclusive.
+     * @param bucketMillis Bucket width, milliseconds. Buckets are aligned to {@code from}.
+     * @param aggregate Aggregate to compute.
+     *
+     * @return One value per bucket, timestamped with the bucket start. Buckets without valid samples are omitted.
+     */
+    public List<TimeValue> aggregate(String series, long from, long to, long bucketMillis, Aggregate aggregate) {
+
+        if (bucketMillis <= 0) {
+            throw new IllegalArgumentException("bucketMillis must be positive (" + bucketMillis + " given)");
+        }
+
+        List<TimeValue> result = new ArrayList<>();
+        Bucket bucket = null;
+
+        for (TimeValue v : query(series, from, to)) {
+
+            if (Double.isNaN(v.value)) {
+                continue;
+            }
+
+            long bucketStart = from + (v.timestamp - from) / bucketMillis * bucketMillis;
+
+            if (bucket != null && bucket.start != bucketStart) {
+                result.add(new TimeValue(bucket.start, bucket.get(aggregate)));
+                bucket = null;
+            }
+
+            if (bucket == null) {
+                bucket = new Bucket(bucketStart);
+            }
+
+            bucket.add(v.value);
+        }
+
+        if (bucket != null) {
+            result.add(new TimeValue(bucket.start, bucket.get(aggregate)));
+        }
+
+        return result;
+    }
+
+    /**
+     * Seal chunks that have been open for too long, expire old segments, and downsample aging ones.
+     *
+     * @param now Current time.
+     */
+    synchronized void maintain(long now) {
+
+        ThreadContext.push("maintain");
+
+        try {
+
+            for (Map.Entry<String, GorillaEncoder> entry : new ArrayList<>(series2open.entrySet())) {
+
+                if (now - entry.getValue().getFirstTimestamp() >= chunkSpanMillis) {
+                    seal(entry.getKey(), entry.getValue());
+                }
+            }
+
+            // Don't let the current segment hold the downsampling back
+            if (current != null && !current.isEmpty() && now - current.getStart() >= segmentSpanMillis) {
+                current = null;
+            }
+
+            expire(now);
+            downsample(now);
+
+        } catch (Throwable t) {
+
+            // Must not let it propagate, or the maintenance will stop silently
+            logger.error("Unexpected exception", t);
+
+        } finally {
+            ThreadContext.pop();
+        }
+    }
+
+    private void expire(long now) {
+
+        for (Iterator<Segment> i = segments.iterator(); i.hasNext(); ) {
+
+            Segment segment = i.next();
+
+            if (segment == current || segment.isEmpty() || now - segment.getEnd() < retentionMillis) {
+                continue;
+            }
+
+            if (segment == downsampleTarget) {
+                downsampleTarget = null;
+            }
+
+            i.remove();
+            delete(segment);
+            segmentsExpired.incrementAndGet();
+        }
+    }
+
+    private void downsample(long now) throws IOException {
+
+        if (downsampleSuspended) {
+            return;
+        }
+
+        for (Segment segment : new ArrayList<>(segments)) {
+
+            if (segment == current || segment.downsampled || segment.isEmpty() || now - segment.getEnd() < downsampleAfterMillis) {
+                continue;
+            }
+
+            long start = System.currentTimeMillis();
+
+            if (downsampleTarget == null) {
+                downsampleTarget = createSegment(true);
+            }
+
+            // The journal must not refer to a segment that isn't there
+            downsampleTarget.force();
+
+            File journal = new File(directory, segment.file.getName() + JOURNAL_SUFFIX);
+
+            Files.write(journal.toPath(),
+                    (downsampleTarget.file.getName() + " " + downsampleTarget.getSize()).getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, StandardOpenOption.SYNC);
+
+            for (Map.Entry<String, List<Chunk>> entry : segment.getChunks().entrySet()) {
+                downsampleTarget = downsample(entry.getKey(), entry.getValue(), downsampleTarget);
+            }
+
+            downsampleTarget.force();
+            segments.remove(segment);
+
+            // The mapping stays valid until collected, queries in progress are not affected
+            if (!segment.file.delete()) {
+
+                downsampleSuspended = true;
+                logger.error("{}: failed to delete, downsampling suspended until restart", segment.file);
+
+                return;
+            }
+
+            Files.delete(journal.toPath());
+            segmentsDownsampled.incrementAndGet();
+
+            logger.info("downsampled {} in {}ms", segment.file.getName(), System.currentTimeMillis() - start);
+        }
+    }
+
+    private Segment downsample(String series, List<Chunk> chunks, Segment target) throws IOException {
+
+        TreeMap<Long, Bucket> buckets = new TreeMap<>();
+        List<TimeValue> values = new ArrayList<>();
+
+        for (Chunk chunk : chunks) {
+
+            values.clear();
+            chunk.decode(Long.MIN_VALUE, Long.MAX_VALUE, values);
+
+            for (TimeValue v : values) {
+
+                if (Double.isNaN(v.value)) {
+                    continue;
+                }
+
+                long bucketStart = Math.floorDiv(v.timestamp, downsampleBucketMillis) * downsampleBucketMillis;
+
+                buckets.computeIfAbsent(bucketStart, Bucket::new).add(v.value);
+            }
+        }
+
+        GorillaEncoder encoder = null;
+
+        for (Bucket bucket : buckets.values()) {
+
+            if (encoder == null) {
+                encoder = new GorillaEncoder();
+            }
+
+            encoder.append(bucket.start, bucket.get(Aggregate.AVERAGE));
+
+            if (encoder.getCount() == MAX_CHUNK_SAMPLES) {
+
+                target = write(encoder.toChunk(series), target);
+                encoder = null;
+            }
+        }
+
+        if (encoder != null) {
+            target = write(encoder.toChunk(series), target);
+        }
+
+        return target;
+    }
+
+    private Segment write(Chunk chunk, Segment target) throws IOException {
+
+        if (target == null
+                || (!target.isEmpty() && chunk.end - target.getStart() >= downsampledSpanMillis)
+                || !target.append(chunk)) {
+
+            if (target != null) {
+                target.force();
+            }
+
+            target = createSegment(true);
+            target.append(chunk);
+        }
+
+        return target;
+    }
+
+    private void delete(Segment segment) {
+
+        // The mapping stays valid until collected, queries in progress are not affected
+        if (!segment.file.delete()) {
+            logger.warn("{}: failed to delete", segment.file);
+        }
+
+        logger.info("deleted {}", segment);
+    }
+
+    /**
+     * Stop listening, seal all open chunks and stop the maintenance.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+
+        for (DataSource<Double> producer : producers) {
+            producer.removeConsumer(this);
+        }
+
+        if (maintenance != null) {
+            maintenance.shutdownNow();
+        }
+
+        for (Map.Entry<String, GorillaEncoder> entry : new ArrayList<>(series2open.entrySet())) {
+            seal(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @JmxAttribute(description = "Directory the segments are stored in")
+    public String getDirectory() {
+        return directory.getAbsolutePath();
+    }
+
+    @JmxAttribute(description = "Data retention, milliseconds")
+    public long getRetentionMillis() {
+        return retentionMillis;
+    }
+
+    @JmxAttribute(description = "Full resolution data retention, milliseconds")
+    public long getDownsampleAfterMillis() {
+        return downsampleAfterMillis;
+    }
+
+    @JmxAttribute(description = "Downsampled data resolution, milliseconds")
+    public long getDownsampleBucketMillis() {
+        return downsampleBucketMillis;
+    }
+
+    @JmxAttribute(description = "Maximum time span of an in-memory chunk, milliseconds")
+    public long getChunkSpanMillis() {
+        return chunkSpanMillis;
+    }
+
+    @JmxAttribute(description = "Samples received")
+    public long getSamples() {
+        return samples.get();
+    }
+
+    @JmxAttribute(description = "Out of order samples dropped")
+    public long getOutOfOrder() {
+        return outOfOrder.get();
+    }
+
+    @JmxAttribute(description = "Chunks written to segments")
+    public long getChunksSealed() {
+        return chunksSealed.get();
+    }
+
+    @JmxAttribute(description = "Average storage cost of a sample, bytes")
+    public double getBytesPerSample() {
+
+        long count = samplesSealed.get();
+
+        return count == 0 ? 0 : (double) sampleBytesSealed.get() / count;
+    }
+
+    @JmxAttribute(description = "Segments on disk")
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    @JmxAttribute(description = "Bytes used by segments on disk")
+    public synchronized long getStorageBytes() {
+
+        long result = 0;
+
+        for (Segment segment : segments) {
+            result += segment.getSize();
+        }
+
+        return result;
+    }
+
+    @JmxAttribute(description = "Segments downsampled")
+    public long getSegmentsDownsampled() {
+        return segmentsDownsampled.get();
+    }
+
+    @JmxAttribute(description = "Segments expired")
+    public long getSegmentsExpired() {
+        return segmentsExpired.get();
+    }
+
+    @JmxAttribute(description = "Last query latency, microseconds")
+    public long getLastQueryMicros() {
+        return lastQueryMicros;
+    }
+
+    @Override
+    public JmxDescriptor getJmxDescriptor() {
+
+        return new JmxDescriptor(
+                "dz",
+                getClass().getSimpleName(),
+                directory.getName(),
+                "Embedded time series store");
+    }
+
+    private static class Bucket {
+
+        final long start;
+
+        int count = 0;
+        double sum = 0;
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        double last;
+
+        Bucket(long start) {
+            this.start = start;
+        }
+
+        void add(double value) {
+
+            count++;
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            last = value;
+        }
+
+        double get(Aggregate aggregate) {
+
+            switch (aggregate) {
+
+            case MIN:
+                return min;
+            case MAX:
+                return max;
+            case AVERAGE:
+                return sum / count;
+            case COUNT:
+                return count;
+            case LAST:
+                return last;
+            default:
+                throw new IllegalArgumentException("Unsupported aggregate " + aggregate);
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package net.sf.dz3.tsdb;
+
+/**
+ * A single point of a time series.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+public final class TimeValue {
+
+    public final long timestamp;
+
+    /**
+     * The value, {@link Double#NaN} for error samples.
+     */
+    public final double value;
+
+    public TimeValue(long timestamp, double value) {
+
+        this.timestamp = timestamp;
+        this.value = value;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+
+        if (this == o) {
+            return true;
+        }
+
+        if (!(o instanceof TimeValue)) {
+            return false;
+        }
+
+        TimeValue other = (TimeValue) o;
+
+        return timestamp == other.timestamp && Double.compare(value, other.value) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(timestamp) * 31 + Double.hashCode(value);
+    }
+
+    @Override
+    public String toString() {
+        return "(" + timestamp + ", " + value + ")";
+    }
+}
@@ -0,0 +1,122 @@
+package net.sf.dz3.tsdb;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+class GorillaCodecTest {
+
+    private final Logger logger = LogManager.getLogger(getClass());
+
+    @Test
+    void roundTrip() {
+
+        Random rg = new Random(42);
+        List<TimeValue> source = new ArrayList<>();
+
+        long timestamp = System.currentTimeMillis();
+        double value = 22.5;
+
+        for (int count = 0; count < 4096; count++) {
+
+            // Mostly regular intervals with some jitter, and occasional long gaps
+            timestamp += rg.nextInt(100) == 0 ? rg.nextInt(Integer.MAX_VALUE) : 1000 + rg.nextInt(5) - 2;
+
+            // Sensor style values, with an occasional error
+            value += (rg.nextInt(3) - 1) * 0.0625;
+
+            source.add(new TimeValue(timestamp, rg.nextInt(200) == 0 ? Double.NaN : value));
+        }
+
+        assertThat(decode(encode(source))).containsExactlyElementsOf(source);
+    }
+
+    @Test
+    void extremes() {
+
+        List<TimeValue> source = List.of(
+                new TimeValue(Long.MIN_VALUE / 2, Double.MAX_VALUE),
+                new TimeValue(0, -Double.MAX_VALUE),
+                new TimeValue(0, Double.MIN_VALUE),
+                new TimeValue(1, Double.NEGATIVE_INFINITY),
+                new TimeValue(Long.MAX_VALUE / 2, Double.NaN),
+                new TimeValue(Long.MAX_VALUE / 2, 0d),
+                new TimeValue(Long.MAX_VALUE / 2, -0d));
+
+        assertThat(decode(encode(source))).containsExactlyElementsOf(source);
+    }
+
+    @Test
+    void single() {
+
+        List<TimeValue> source = List.of(new TimeValue(1000, 1d));
+
+        assertThat(decode(encode(source))).containsExactlyElementsOf(source);
+    }
+
+    @Test
+    void backInTime() {
+
+        GorillaEncoder encoder = new GorillaEncoder();
+
+        encoder.append(1000, 1);
+
+        assertThatIllegalArgumentException()
+                .isThrownBy(() -> encoder.append(999, 1))
+                .withMessage("Can't go back in time: 999 < 1000");
+    }
+
+    /**
+     * Make sure the compression is in the ballpark for typical sensor data.
+     */
+    @Test
+    void ratio() {
+
+        List<TimeValue> source = new ArrayList<>();
+        Random rg = new Random(0);
+        long timestamp = 0;
+        double value = 20;
+
+        for (int count = 0; count < 4096; count++) {
+
+            timestamp += 5000 + rg.nextInt(20);
+            value += (rg.nextInt(3) - 1) * 0.0625;
+
+            source.add(new TimeValue(timestamp, value));
+        }
+
+        Chunk chunk = encode(source);
+        double bytesPerSample = (double) chunk.data.limit() / source.size();
+
+        logger.info("{} samples, {} bytes, {} bytes/sample", source.size(), chunk.data.limit(), bytesPerSample);
+
+        assertThat(bytesPerSample).isLessThan(4);
+    }
+
+    private Chunk encode(List<TimeValue> source) {
+
+        GorillaEncoder encoder = new GorillaEncoder();
+
+        for (TimeValue v : source) {
+            encoder.append(v.timestamp, v.value);
+        }
+
+        return encoder.toChunk("test");
+    }
+
+    private List<TimeValue> decode(Chunk chunk) {
+
+        List<TimeValue> result = new ArrayList<>();
+
+        chunk.decode(Long.MIN_VALUE, Long.MAX_VALUE, result);
+
+        return result;
+    }
+}
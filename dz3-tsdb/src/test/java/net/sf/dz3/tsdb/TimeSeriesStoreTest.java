@@ -0,0 +1,285 @@
+package net.sf.dz3.tsdb;
+
+import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSample;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TimeSeriesStoreTest {
+
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    private final Logger logger = LogManager.getLogger(getClass());
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    void queryAndAggregate() throws IOException {
+
+        try (TimeSeriesStore store = create(tempDir)) {
+
+            for (int offset = 0; offset < 120; offset++) {
+                store.consume(new DataSample<>(offset * 60000L, "zone", "signature", (double) offset, null));
+            }
+
+            store.consume(new DataSample<>(120 * 60000L, "zone", "signature", null, new Error("oops")));
+
+            assertThat(store.getSeries()).containsExactly("zone");
+
+            List<TimeValue> values = store.query("zone", 30 * 60000L, 59 * 60000L);
+
+            assertThat(values).hasSize(30);
+            assertThat(values.get(0)).isEqualTo(new TimeValue(30 * 60000L, 30));
+
+            assertThat(store.query("zone", 120 * 60000L, Long.MAX_VALUE)).extracting(v -> v.value).containsExactly(Double.NaN);
+
+            List<TimeValue> hourly = store.aggregate("zone", 0, Long.MAX_VALUE, HOUR, Aggregate.AVERAGE);
+
+            assertThat(hourly).containsExactly(new TimeValue(0, 29.5), new TimeValue(HOUR, 89.5));
+            assertThat(store.aggregate("zone", 0, Long.MAX_VALUE, HOUR, Aggregate.MAX)).extracting(v -> v.value).containsExactly(59d, 119d);
+            assertThat(store.aggregate("zone", 0, Long.MAX_VALUE, HOUR, Aggregate.COUNT)).extracting(v -> v.value).containsExactly(60d, 60d);
+
+            // 15 minute chunks
+            assertThat(store.getChunksSealed()).isEqualTo(8);
+        }
+    }
+
+    @Test
+    void reopen() throws IOException {
+
+        try (TimeSeriesStore store = create(tempDir)) {
+
+            for (int offset = 0; offset < 100; offset++) {
+                store.append("zone", offset * 1000L, offset);
+            }
+        }
+
+        try (TimeSeriesStore store = create(tempDir)) {
+
+            assertThat(store.query("zone", 0, Long.MAX_VALUE)).hasSize(100);
+
+            store.append("zone", 100000, 100);
+
+            assertThat(store.query("zone", 0, Long.MAX_VALUE)).hasSize(101);
+
+            // Appended to the existing segment
+            assertThat(store.getSegmentCount()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    void outOfOrder() throws IOException {
+
+        try (TimeSeriesStore store = create(tempDir)) {
+
+            store.append("zone", 1000, 1);
+            store.append("zone", 999, 2);
+
+            assertThat(store.query("zone", 0, Long.MAX_VALUE)).containsExactly(new TimeValue(1000, 1));
+            assertThat(store.getOutOfOrder()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    void downsampleAndExpire() throws IOException {
+
+        long retention = 10 * DAY;
+        long downsampleAfter = 2 * DAY;
+        long bucket = HOUR;
+
+        try (TimeSeriesStore store = new TimeSeriesStore(null, tempDir, retention, downsampleAfter, bucket, 1024 * 1024, 15 * 60000L, 0)) {
+
+            // Three days of one minute samples
+            for (long timestamp = 0; timestamp < 3 * DAY; timestamp += 60000) {
+                store.append("zone", timestamp, 1 + (timestamp / HOUR) % 2);
+            }
+
+            store.maintain(3 * DAY);
+
+            // The first day is downsampled
+            assertThat(store.getSegmentsDownsampled()).isEqualTo(1);
+            assertThat(store.query("zone", 0, DAY - 1)).hasSize(24).allMatch(v -> v.timestamp % HOUR == 0);
+            assertThat(store.query("zone", 0, DAY - 1).get(1)).isEqualTo(new TimeValue(HOUR, 2));
+
+            // The rest is not
+            assertThat(store.query("zone", DAY, 2 * DAY - 1)).hasSize(24 * 60);
+
+            store.maintain(3 * DAY + retention);
+
+            assertThat(store.getSegmentsExpired()).isPositive();
+            assertThat(store.query("zone", 0, 2 * DAY - 1)).isEmpty();
+        }
+    }
+
+    @Test
+    void downsampleAppend() throws IOException {
+
+        try (TimeSeriesStore store = createDownsampling(tempDir)) {
+
+            fill(store, 3 * DAY);
+
+            store.maintain(3 * DAY);
+            store.maintain(4 * DAY);
+
+            assertThat(store.getSegmentsDownsampled()).isEqualTo(2);
+            assertThat(list("-ds" + Segment.SUFFIX)).hasSize(1);
+        }
+
+        try (TimeSeriesStore store = createDownsampling(tempDir)) {
+
+            store.maintain(5 * DAY);
+
+            // Still appending to the same downsampled segment after reopening
+            assertThat(store.getSegmentsDownsampled()).isEqualTo(1);
+            assertThat(store.getSegmentCount()).isEqualTo(1);
+            assertThat(store.query("zone", 0, Long.MAX_VALUE)).hasSize(72);
+        }
+    }
+
+    @Test
+    void interruptedDownsampling() throws IOException {
+
+        File raw;
+        byte[] rawContent;
+        File target;
+        int targetSize;
+
+        try (TimeSeriesStore store = createDownsampling(tempDir)) {
+
+            fill(store, 3 * DAY);
+            store.maintain(3 * DAY);
+
+            // Remember the state before the second day is downsampled
+            raw = Arrays.stream(list(Segment.SUFFIX)).filter(f -> !f.getName().contains("-ds")).findFirst().orElseThrow();
+            rawContent = Files.readAllBytes(raw.toPath());
+            target = list("-ds" + Segment.SUFFIX)[0];
+            targetSize = Segment.open(target).getSize();
+
+            store.maintain(4 * DAY);
+        }
+
+        // Died after deleting the raw segment, but before deleting the journal: nothing to undo
+
+        File journal = new File(tempDir, raw.getName() + TimeSeriesStore.JOURNAL_SUFFIX);
+
+        Files.write(journal.toPath(), (target.getName() + " " + targetSize).getBytes(StandardCharsets.UTF_8));
+
+        try (TimeSeriesStore store = createDownsampling(tempDir)) {
+
+            assertThat(journal).doesNotExist();
+            assertThat(store.query("zone", DAY, 2 * DAY - 1)).hasSize(24);
+        }
+
+        // Died before deleting the raw segment: the downsampled data must be discarded, not duplicated
+
+        Files.write(raw.toPath(), rawContent);
+        Files.write(journal.toPath(), (target.getName() + " " + targetSize).getBytes(StandardCharsets.UTF_8));
+
+        try (TimeSeriesStore store = createDownsampling(tempDir)) {
+
+            assertThat(journal).doesNotExist();
+            assertThat(store.query("zone", 0, DAY - 1)).hasSize(24);
+            assertThat(store.query("zone", DAY, 2 * DAY - 1)).hasSize(24 * 60);
+
+            store.maintain(4 * DAY);
+
+            assertThat(store.query("zone", DAY, 2 * DAY - 1)).hasSize(24);
+            assertThat(list("-ds" + Segment.SUFFIX)).hasSize(1);
+        }
+    }
+
+    /**
+     * Measure ingestion rate and query latency.
+     *
+     * Set {@code dz.tsdb.benchmark.dir} system property to run this against the storage of interest (SD card).
+     */
+    @Test
+    void benchmark() throws IOException {
+
+        String override = System.getProperty("dz.tsdb.benchmark.dir");
+        File dir = override == null ? tempDir : new File(override, "tsdb-benchmark-" + System.currentTimeMillis());
+
+        int seriesCount = 20;
+        int samplesPerSeries = 50000;
+        Random rg = new Random(0);
+
+        try (TimeSeriesStore store = create(dir)) {
+
+            long start = System.nanoTime();
+
+            for (int offset = 0; offset < samplesPerSeries; offset++) {
+                for (int series = 0; series < seriesCount; series++) {
+                    store.append("sensor" + series, offset * 10000L + series, 20 + rg.nextInt(64) * 0.0625);
+                }
+            }
+
+            long ingestNanos = System.nanoTime() - start;
+            long total = (long) seriesCount * samplesPerSeries;
+
+            logger.info("ingested {} samples in {}ms, {} samples/s, {} bytes/sample, {} segments, {} bytes on disk",
+                    total, ingestNanos / 1_000_000, total * 1_000_000_000L / ingestNanos,
+                    String.format("%.2f", store.getBytesPerSample()), store.getSegmentCount(), store.getStorageBytes());
+
+            long span = samplesPerSeries * 10000L;
+
+            for (long range : new long[] { HOUR, DAY, span }) {
+
+                start = System.nanoTime();
+
+                int size = store.query("sensor0", span - range, span).size();
+                long queryMicros = (System.nanoTime() - start) / 1000;
+
+                start = System.nanoTime();
+
+                int buckets = store.aggregate("sensor0", span - range, span, range / 100, Aggregate.AVERAGE).size();
+                long aggregateMicros = (System.nanoTime() - start) / 1000;
+
+                logger.info("range {}h: query {} samples in {}us, aggregate into {} buckets in {}us",
+                        range / HOUR, size, queryMicros, buckets, aggregateMicros);
+
+                assertThat(size).isPositive();
+            }
+        }
+    }
+
+    private TimeSeriesStore create(File dir) throws IOException {
+        return new TimeSeriesStore(null, dir, 30 * DAY, 7 * DAY, 5 * 60000L, 1024 * 1024, 15 * 60000L, 0);
+    }
+
+    private TimeSeriesStore createDownsampling(File dir) throws IOException {
+        return new TimeSeriesStore(null, dir, 90 * DAY, 2 * DAY, HOUR, 1024 * 1024, 15 * 60000L, 0);
+    }
+
+    /**
+     * Store one minute samples from 0 to {@code end}.
+     */
+    private void fill(TimeSeriesStore store, long end) throws IOException {
+
+        for (long timestamp = 0; timestamp < end; timestamp += 60000) {
+            store.append("zone", timestamp, 1 + (timestamp / HOUR) % 2);
+        }
+    }
+
+    private File[] list(String suffix) {
+
+        File[] files = tempDir.listFiles((dir, name) -> name.endsWith(suffix));
+
+        Arrays.sort(files);
+
+        return files;
+    }
+}
@@ -0,0 +1,445 @@
+package net.sf.dz3.view.webui.v1;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.ToDoubleFunction;
+
+import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSample;
+import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSink;
+
+/**
+ * In-memory history of a single entity's samples, with bounded memory.
+ *
+ * Samples are kept in a ring of primitive arrays that grows as needed up to {@code capacity} samples,
+ * at 12 bytes per sample (the value is kept as {@code float}, which is plenty for charting). Once the ring is full,
+ * the oldest samples are overwritten; samples older than {@code maxAgeMillis} relative to the latest one
+ * are dropped regardless.
+ *
+ * Error samples are stored as {@link Float#NaN} and are left out of query results, a chart will show them as a gap.
+ * Samples older than the latest one are dropped.
+ *
+ * @param <E> Type of the samples the entity publishes.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+final class HistoryBuffer<E> implements DataSink<E> {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final int capacity;
+    private final long maxAgeMillis;
+    private final ToDoubleFunction<E> valueOf;
+
+    private long[] timestamps;
+    private float[] values;
+
+    /**
+     * Physical offset of the oldest sample.
+     */
+    private int head = 0;
+
+    /**
+     * Number of samples in the ring.
+     */
+    private int size = 0;
+
+    private long outOfOrder = 0;
+
+    /**
+     * Immutable copy of the query result.
+     */
+    static final class Points {
+
+        static final Points EMPTY = new Points(new long[0], new float[0]);
+
+        final long[] timestamps;
+        final float[] values;
+
+        Points(long[] timestamps, float[] values) {
+            this.timestamps = timestamps;
+            this.values = values;
+        }
+
+        int size() {
+            return timestamps.length;
+        }
+
+        /**
+         * Render a part of the points as a JSON array fragment, {@code [[timestamp,value],...]}.
+         * Concatenated fragments covering the whole range form a complete array.
+         *
+         * @param fromIndex Index of the first point, inclusive.
+         * @param toIndex Index of the last point, exclusive.
+         *
+         * @return JSON fragment, with the opening bracket if {@code fromIndex} is 0,
+         * and the closing one if {@code toIndex} is {@link #size()}.
+         */
+        byte[] toJson(int fromIndex, int toIndex) {
+
+            var sb = new StringBuilder((toIndex - fromIndex) * 24 + 2);
+
+            if (fromIndex == 0) {
+                sb.append('[');
+            }
+
+            for (int index = fromIndex; index < toIndex; index++) {
+
+                if (index > 0) {
+                    sb.append(',');
+                }
+
+                sb.append('[').append(timestamps[index]).append(',').append(values[index]).append(']');
+            }
+
+            if (toIndex == size()) {
+                sb.append(']');
+            }
+
+            return sb.toString().getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * Create an instance.
+     *
+     * @param capacity Maximum number of samples to keep.
+     * @param maxAgeMillis Maximum sample age to keep, relative to the latest sample.
+     * @param valueOf Function to extract the numeric value from the sample payload.
+     */
+    HistoryBuffer(int capacity, long maxAgeMillis, ToDoubleFunction<E> valueOf) {
+
+        if (capacity < 3) {
+            throw new IllegalArgumentException("capacity must be at least 3 (" + capacity + " given)");
+        }
+
+        if (maxAgeMillis <= 0) {
+            throw new IllegalArgumentException("maxAgeMillis must be positive (" + maxAgeMillis + " given)");
+        }
+
+        this.capacity = capacity;
+        this.maxAgeMillis = maxAgeMillis;
+        this.valueOf = valueOf;
+
+        int initial = Math.min(capacity, INITIAL_CAPACITY);
+
+        timestamps = new long[initial];
+        values = new float[initial];
+    }
+
+    @Override
+    public void consume(DataSample<E> signal) {
+
+        if (signal == null) {
+            throw new IllegalArgumentException("signal can't be null");
+        }
+
+        append(signal.timestamp, signal.isError() ? Double.NaN : valueOf.applyAsDouble(signal.sample));
+    }
+
+    /**
+     * Store a sample.
+     *
+     * @param timestamp Sample timestamp.
+     * @param value Sample value, {@link Double#NaN} for errors.
+     */
+    synchronized void append(long timestamp, double value) {
+
+        if (size > 0) {
+
+            if (timestamp < timestampAt(size - 1)) {
+                outOfOrder++;
+                return;
+            }
+
+            // Expire by age
+            while (size > 0 && timestamp - timestamps[head] > maxAgeMillis) {
+                head = (head + 1) % timestamps.length;
+                size--;
+            }
+        }
+
+        if (size == timestamps.length) {
+
+            if (size < capacity) {
+                grow();
+            } else {
+
+                // Overwrite the oldest
+                head = (head + 1) % timestamps.length;
+                size--;
+            }
+        }
+
+        int offset = (head + size) % timestamps.length;
+
+        timestamps[offset] = timestamp;
+        values[offset] = (float) value;
+        size++;
+    }
+
+    private void grow() {
+
+        int length = Math.min(capacity, timestamps.length * 2);
+        var newTimestamps = new long[length];
+        var newValues = new float[length];
+
+        // Unwrap while we're at it
+        int tail = timestamps.length - head;
+
+        System.arraycopy(timestamps, head, newTimestamps, 0, Math.min(tail, size));
+        System.arraycopy(values, head, newValues, 0, Math.min(tail, size));
+
+        if (tail < size) {
+            System.arraycopy(timestamps, 0, newTimestamps, tail, size - tail);
+            System.arraycopy(values, 0, newValues, tail, size - tail);
+        }
+
+        timestamps = newTimestamps;
+        values = newValues;
+        head = 0;
+    }
+
+    private long timestampAt(int index) {
+        return timestamps[(head + index) % timestamps.length];
+    }
+
+    private float valueAt(int index) {
+        return values[(head + index) % values.length];
+    }
+
+    /**
+     * Get the samples within the given range, downsampled with
+     * <a href="https://skemman.is/handle/1946/15343">Largest Triangle Three Buckets</a> if there are too many.
+     *
+     * @param from Start of the range, inclusive.
+     * @param to End of the range, inclusive.
+     * @param maxPoints Maximum number of points to return, 0 for no limit.
+     *
+     * @return Samples ordered by timestamp, errors excluded.
+     */
+    synchronized Points query(long from, long to, int maxPoints) {
+
+        int start = lowerBound(from);
+        int end = Math.max(start, lowerBound(to == Long.MAX_VALUE ? to : to + 1));
+
+        if (maxPoints <= 0 || end - start <= maxPoints) {
+            return copy(start, end);
+        }
+
+        // The first and the last points are always there, so there must be room for at least one more
+        return maxPoints < 3 ? copyEnds(start, end, maxPoints) : lttb(start, end, maxPoints);
+    }
+
+    /**
+     * @return Index of the first sample with the timestamp not less than {@code timestamp}.
+     */
+    private int lowerBound(long timestamp) {
+
+        int low = 0;
+        int high = size;
+
+        while (low < high) {
+
+            int middle = (low + high) >>> 1;
+
+            if (timestampAt(middle) < timestamp) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    private Points copy(int start, int end) {
+
+        var t = new long[end - start];
+        var v = new float[end - start];
+        int count = 0;
+
+        for (int index = start; index < end; index++) {
+
+            float value = valueAt(index);
+
+            if (!Float.isNaN(value)) {
+                t[count] = timestampAt(index);
+                v[count] = value;
+                count++;
+            }
+        }
+
+        return trim(t, v, count);
+    }
+
+    private Points copyEnds(int start, int end, int maxPoints) {
+
+        var t = new long[maxPoints];
+        var v = new float[maxPoints];
+        int count = 0;
+
+        int first = nextValid(start, end);
+        int last = previousValid(end - 1, start);
+
+        if (first >= 0) {
+            t[count] = timestampAt(first);
+            v[count] = valueAt(first);
+            count++;
+        }
+
+        if (last > first && count < maxPoints) {
+            t[count] = timestampAt(last);
+            v[count] = valueAt(last);
+            count++;
+        }
+
+        return trim(t, v, count);
+    }
+
+    /**
+     * Largest Triangle Three Buckets: the first and last points are kept, the rest of the range is split into
+     * {@code maxPoints - 2} buckets of equal sample count, and from each bucket the point forming the largest
+     * triangle with the point selected from the previous bucket and the average of the next bucket is selected.
+     */
+    private Points lttb(int start, int end, int maxPoints) {
+
+        var t = new long[maxPoints];
+        var v = new float[maxPoints];
+        int count = 0;
+
+        int first = nextValid(start, end);
+        int last = previousValid(end - 1, start);
+
+        if (first < 0) {
+            return trim(t, v, 0);
+        }
+
+        t[count] = timestampAt(first);
+        v[count] = valueAt(first);
+        count++;
+
+        if (last <= first) {
+            return trim(t, v, count);
+        }
+
+        int buckets = maxPoints - 2;
+        double every = (double) (last - first - 1) / buckets;
+
+        // Previously selected point; timestamps are relative to the first point to keep the precision
+        long base = timestampAt(first);
+        double ax = 0;
+        double ay = valueAt(first);
+
+        for (int bucket = 0; bucket < buckets; bucket++) {
+
+            int bucketStart = first + 1 + (int) (bucket * every);
+            int bucketEnd = first + 1 + (int) ((bucket + 1) * every);
+
+            // Average of the next bucket, the last point for the last bucket
+            int nextStart = bucketEnd;
+            int nextEnd = bucket == buckets - 1 ? last + 1 : Math.min(first + 1 + (int) ((bucket + 2) * every), last + 1);
+
+            double sumX = 0;
+            double sumY = 0;
+            int valid = 0;
+
+            for (int index = nextStart; index < nextEnd; index++) {
+
+                float value = valueAt(index);
+
+                if (!Float.isNaN(value)) {
+                    sumX += timestampAt(index) - base;
+                    sumY += value;
+                    valid++;
+                }
+            }
+
+            // Nothing but errors ahead, aim flat
+            double bx = valid == 0 ? (double) (timestampAt(nextEnd - 1) - base) : sumX / valid;
+            double by = valid == 0 ? ay : sumY / valid;
+
+            double maxArea = -1;
+            int selected = -1;
+
+            for (int index = bucketStart; index < bucketEnd; index++) {
+
+                float value = valueAt(index);
+
+                if (Float.isNaN(value)) {
+                    continue;
+                }
+
+                double x = timestampAt(index) - base;
+
+                // Twice the area, no need to divide
+                double area = Math.abs((ax - bx) * (value - ay) - (ax - x) * (by - ay));
+
+                if (area > maxArea) {
+                    maxArea = area;
+                    selected = index;
+                }
+            }
+
+            if (selected >= 0) {
+
+                t[count] = timestampAt(selected);
+                v[count] = valueAt(selected);
+                count++;
+
+                ax = (double) (t[count - 1] - base);
+                ay = v[count - 1];
+            }
+        }
+
+        t[count] = timestampAt(last);
+        v[count] = valueAt(last);
+        count++;
+
+        return trim(t, v, count);
+    }
+
+    private int nextValid(int from, int end) {
+
+        for (int index = from; index < end; index++) {
+            if (!Float.isNaN(valueAt(index))) {
+                return index;
+            }
+        }
+
+        return -1;
+    }
+
+    private int previousValid(int from, int start) {
+
+        for (int index = from; index >= start; index--) {
+            if (!Float.isNaN(valueAt(index))) {
+                return index;
+            }
+        }
+
+        return -1;
+    }
+
+    private static Points trim(long[] t, float[] v, int count) {
+
+        if (count == t.length) {
+            return new Points(t, v);
+        }
+
+        return new Points(Arrays.copyOf(t, count), Arrays.copyOf(v, count));
+    }
+
+    /**
+     * @return Number of samples stored.
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return Number of out of order samples dropped.
+     */
+    synchronized long getOutOfOrder() {
+        return outOfOrder;
+    }
+}
@@ -24,10 +24,13 @@ public class RoutingConfiguration {
                 GET("/").and(ACCEPT_JSON), webUI::getDashboard).andRoute(
                 GET("/sensors").and(ACCEPT_JSON), webUI::getSensors).andRoute(
                 GET("/sensor/{sensor}").and(ACCEPT_JSON), webUI::getSensor).andRoute(
+                GET("/sensor/{sensor}/history").and(ACCEPT_JSON), webUI::getSensorHistory).andRoute(
                 GET("/units").and(ACCEPT_JSON), webUI::getUnits).andRoute(
                 GET("/unit/{unit}").and(ACCEPT_JSON), webUI::getUnit).andRoute(
+                GET("/unit/{unit}/history").and(ACCEPT_JSON), webUI::getUnitHistory).andRoute(
                 GET("/zones").and(ACCEPT_JSON), webUI::getZones).andRoute(
                 GET("/zone/{zone}").and(ACCEPT_JSON), webUI::getZone).andRoute(
+                GET("/zone/{zone}/history").and(ACCEPT_JSON), webUI::getZoneHistory).andRoute(
 
                 // Mutators
 
@@ -0,0 +1,278 @@
+package net.sf.dz3.view.webui.v1;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSample;
+import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSink;
+import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSource;
+
+/**
+ * Serialized JSON representations of a set of entities of the same kind, ready to be sent as is.
+ *
+ * Each entity is subscribed to, and its representation is serialized again only after it publishes a new sample,
+ * on the first request that needs it. Between samples, requests are served from the same byte arrays, and the
+ * response for the whole set is kept until any of its entities changes.
+ *
+ * Responses are JSON arrays, same as Spring's {@code Jackson2JsonEncoder} produces for a {@code Flux}, and carry
+ * an entity tag derived from entity versions, so that a conditional request can be answered without touching
+ * the entities at all.
+ *
+ * @param <T> Entity type.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+final class SnapshotCache<T extends DataSource<?>> {
+
+    private static final byte[] EMPTY = { '[', ']' };
+
+    private final ObjectMapper objectMapper;
+    private final Function<T, Object> snapshotOf;
+
+    /**
+     * All entries, in the order they were given to the constructor.
+     */
+    private final Entry[] entries;
+
+    /**
+     * Entity name to entries mapping. Names are not guaranteed to be unique, hence arrays.
+     */
+    private final Map<String, Entry[]> name2entries;
+
+    /**
+     * Makes entity tags issued by this instance different from those issued before a restart,
+     * when entity versions start over.
+     */
+    private final long epoch = ThreadLocalRandom.current().nextLong();
+
+    private final AtomicLong rebuilds = new AtomicLong();
+
+    /**
+     * The last assembled response for the whole set.
+     */
+    private volatile Response all;
+
+    /**
+     * A ready to send response.
+     */
+    static final class Response {
+
+        /**
+         * Entity tag, quoted.
+         */
+        final String etag;
+
+        /**
+         * JSON array. Must not be modified.
+         */
+        final byte[] body;
+
+        private final long hash;
+
+        private Response(long hash, byte[] body) {
+
+            this.hash = hash;
+            this.etag = "\"" + Long.toHexString(hash) + "\"";
+            this.body = body;
+        }
+    }
+
+    /**
+     * Serialized entity representation, and the entity version it was made for.
+     */
+    private static final class Rendered {
+
+        final long version;
+        final byte[] json;
+
+        Rendered(long version, byte[] json) {
+            this.version = version;
+            this.json = json;
+        }
+    }
+
+    private final class Entry implements DataSink<Object> {
+
+        final T entity;
+        final String name;
+
+        final AtomicLong version = new AtomicLong();
+        volatile Rendered rendered;
+
+        Entry(T entity, String name) {
+            this.entity = entity;
+            this.name = name;
+        }
+
+        @Override
+        public void consume(DataSample<Object> sample) {
+            version.incrementAndGet();
+        }
+
+        Rendered render() {
+
+            // Read the version before taking the snapshot - if a sample arrives in between,
+            // the next request will see the version change and serialize again
+
+            long current = version.get();
+            Rendered r = rendered;
+
+            if (r != null && r.version == current) {
+                return r;
+            }
+
+            try {
+
+                r = new Rendered(current, objectMapper.writeValueAsBytes(snapshotOf.apply(entity)));
+
+            } catch (JsonProcessingException ex) {
+                throw new IllegalStateException("can't serialize " + name, ex);
+            }
+
+            rendered = r;
+            rebuilds.incrementAndGet();
+
+            return r;
+        }
+    }
+
+    /**
+     * Create an instance and subscribe to all the entities.
+     *
+     * @param objectMapper Mapper to serialize snapshots with.
+     * @param entities Entities to keep representations of, in the order they will appear in responses.
+     * @param nameOf Function to get the name an individual entity is requested by.
+     * @param snapshotOf Function to get the object to serialize for an entity.
+     */
+    @SuppressWarnings("unchecked")
+    SnapshotCache(ObjectMapper objectMapper, Collection<? extends T> entities, Function<T, String> nameOf, Function<T, Object> snapshotOf) {
+
+        this.objectMapper = objectMapper;
+        this.snapshotOf = snapshotOf;
+
+        List<Entry> list = new ArrayList<>(entities.size());
+        Map<String, List<Entry>> byName = new LinkedHashMap<>();
+
+        for (T entity : entities) {
+
+            var entry = new Entry(entity, nameOf.apply(entity));
+
+            list.add(entry);
+            byName.computeIfAbsent(entry.name, k -> new ArrayList<>()).add(entry);
+
+            ((DataSource<Object>) entity).addConsumer(entry);
+        }
+
+        entries = list.toArray(new SnapshotCache.Entry[0]);
+        name2entries = new LinkedHashMap<>();
+
+        byName.forEach((name, found) -> name2entries.put(name, found.toArray(new SnapshotCache.Entry[0])));
+    }
+
+    /**
+     * Get the representation of all entities.
+     *
+     * @return Response with a JSON array of all entity representations.
+     */
+    Response get() {
+
+        var parts = new Rendered[entries.length];
+        long hash = epoch;
+
+        for (int offset = 0; offset < entries.length; offset++) {
+
+            parts[offset] = entries[offset].render();
+            hash = hash * 31 + parts[offset].version;
+        }
+
+        Response r = all;
+
+        if (r == null || r.hash != hash) {
+            r = new Response(hash, assemble(parts));
+            all = r;
+        }
+
+        return r;
+    }
+
+    /**
+     * Get the representation of entities with the given name.
+     *
+     * @param name Name to look up.
+     *
+     * @return Response with a JSON array of representations of entities with this name, usually one,
+     * or empty if there are none.
+     */
+    Response get(String name) {
+
+        Entry[] found = name2entries.get(name);
+
+        if (found == null) {
+            return new Response(epoch, EMPTY);
+        }
+
+        var parts = new Rendered[found.length];
+
+        // Make the tag depend on the name, so different entities at the same version don't share it
+        long hash = epoch ^ name.hashCode();
+
+        for (int offset = 0; offset < found.length; offset++) {
+
+            parts[offset] = found[offset].render();
+            hash = hash * 31 + parts[offset].version;
+        }
+
+        return new Response(hash, assemble(parts));
+    }
+
+    private static byte[] assemble(Rendered[] parts) {
+
+        if (parts.length == 0) {
+            return EMPTY;
+        }
+
+        int size = parts.length + 1;
+
+        for (Rendered part : parts) {
+            size += part.json.length;
+        }
+
+        var body = new byte[size];
+        int offset = 0;
+
+        for (Rendered part : parts) {
+
+            body[offset] = offset == 0 ? (byte) '[' : (byte) ',';
+            offset++;
+
+            System.arraycopy(part.json, 0, body, offset, part.json.length);
+            offset += part.json.length;
+        }
+
+        body[offset] = ']';
+
+        return body;
+    }
+
+    /**
+     * @return Number of entities.
+     */
+    int size() {
+        return entries.length;
+    }
+
+    /**
+     * @return Number of times entity representations were serialized.
+     */
+    long getRebuilds() {
+        return rebuilds.get();
+    }
+}
@@ -1,14 +1,14 @@
 package net.sf.dz3.view.webui.v1;
 
+import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSource;
 import net.sf.dz3.device.actuator.HvacController;
 import net.sf.dz3.device.model.Thermostat;
-import net.sf.dz3.device.model.ThermostatStatus;
-import net.sf.dz3.device.model.UnitSignal;
 import net.sf.dz3.device.model.impl.ThermostatModel;
 import net.sf.dz3.device.sensor.AnalogSensor;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.http.MediaType;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
 import org.springframework.http.server.reactive.ReactorHttpHandlerAdapter;
 import org.springframework.web.reactive.function.server.RouterFunctions;
 import org.springframework.web.reactive.function.server.ServerRequest;
@@ -18,14 +18,30 @@ import reactor.core.publisher.Mono;
 import reactor.netty.DisposableServer;
 import reactor.netty.http.server.HttpServer;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
 
 import static org.springframework.web.reactive.function.server.ServerResponse.ok;
 
 /**
  * Web UI for Home Climate Control.
  *
+ * Entity representations are served from {@link SnapshotCache snapshot caches}: they are serialized once per sample
+ * the entity publishes, not once per request, and conditional requests ({@code If-None-Match}) are honored.
+ *
+ * Each entity's recent history is kept in memory in a {@link HistoryBuffer} and is available at
+ * {@code /<entity>/<name>/history?from=&to=&points=}: sensor signal, zone demand, unit demand.
+ * {@code from} and {@code to} are inclusive timestamps (everything retained if omitted), and if {@code points} is given,
+ * the result is downsampled to that many points. The response is a JSON array of {@code [timestamp,value]} pairs,
+ * streamed in chunks.
+ *
  * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
  */
 public class WebUI {
@@ -35,16 +51,97 @@ public class WebUI {
     private final int port; // NOSONAR We'll get to it
     private final Set<Object> initSet = new HashSet<>(); // NOSONAR We'll get to it
 
+    private final SnapshotCache<AnalogSensor> sensors;
+    private final SnapshotCache<Thermostat> zones;
+    private final SnapshotCache<HvacController> units;
+
+    /**
+     * Default history depth per entity, enough for a day of samples coming every second.
+     */
+    public static final int DEFAULT_HISTORY_CAPACITY = 86_400;
+
+    /**
+     * Default history age limit.
+     */
+    public static final long DEFAULT_HISTORY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * How many points to send in one chunk of a history response.
+     */
+    private static final int HISTORY_CHUNK_POINTS = 1024;
+
+    private final int historyCapacity;
+    private final long historyMillis;
+
+    private final Map<String, HistoryBuffer<?>> sensorHistory = new HashMap<>();
+    private final Map<String, HistoryBuffer<?>> zoneHistory = new HashMap<>();
+    private final Map<String, HistoryBuffer<?>> unitHistory = new HashMap<>();
+
     public WebUI(Set<Object> initSet) {
         this(3939, initSet);
     }
 
     public WebUI(int port, Set<Object> initSet) {
+        this(port, initSet, DEFAULT_HISTORY_CAPACITY, DEFAULT_HISTORY_MILLIS);
+    }
+
+    /**
+     * Create an instance.
+     *
+     * @param port Port to listen on.
+     * @param initSet Entities to expose.
+     * @param historyCapacity Maximum number of samples to keep per entity. Memory cost is 12 bytes per sample.
+     * @param historyMillis Maximum age of samples to keep.
+     */
+    public WebUI(int port, Set<Object> initSet, int historyCapacity, long historyMillis) {
 
         this.port = port;
         this.initSet.addAll(initSet);
+        this.historyCapacity = historyCapacity;
+        this.historyMillis = historyMillis;
 
         logger.info("init set: {}", initSet);
+
+        // Same mapper configuration as the one WebFlux encodes with by default, so the output doesn't change
+
+        var objectMapper = Jackson2ObjectMapperBuilder.json().build();
+
+        // VT: NOTE: Zones use *Status, not *Signal.
+
+        sensors = new SnapshotCache<>(objectMapper, select(AnalogSensor.class), AnalogSensor::getAddress, AnalogSensorSnapshot::new);
+        zones = new SnapshotCache<>(objectMapper, select(Thermostat.class), Thermostat::getName, z -> ((ThermostatModel) z).getStatus());
+        units = new SnapshotCache<>(objectMapper, select(HvacController.class), HvacController::getName, HvacController::getExtendedSignal);
+
+        record(select(AnalogSensor.class), AnalogSensor::getAddress, Double::doubleValue, sensorHistory);
+        record(select(Thermostat.class), Thermostat::getName, s -> s.demand.isError() ? Double.NaN : s.demand.sample, zoneHistory);
+        record(select(HvacController.class), HvacController::getName, s -> s.demand, unitHistory);
+    }
+
+    private <T extends DataSource<E>, E> void record(List<T> entities, Function<T, String> nameOf, ToDoubleFunction<E> valueOf, Map<String, HistoryBuffer<?>> target) {
+
+        for (T entity : entities) {
+
+            var history = new HistoryBuffer<E>(historyCapacity, historyMillis, valueOf);
+
+            if (target.putIfAbsent(nameOf.apply(entity), history) == null) {
+                entity.addConsumer(history);
+            } else {
+                logger.warn("duplicate name, history not recorded: {}", entity);
+            }
+        }
+    }
+
+    private <T> List<T> select(Class<T> type) {
+
+        List<T> result = new ArrayList<>();
+
+        for (Object o : initSet) {
+            if (type.isInstance(o)) {
+                result.add(type.cast(o));
+            }
+        }
+
+        return result;
     }
 
     public void activate() {
@@ -80,14 +177,7 @@ public class WebUI {
      * @return Set of zone representations.
      */
     public Mono<ServerResponse> getZones(ServerRequest rq) {
-
-        // VT: NOTE: This uses *Status, not *Signal.
-
-        var zones = Flux.fromIterable(initSet)
-                .filter(Thermostat.class::isInstance)
-                .map(z -> ((ThermostatModel) z).getStatus());
-
-        return ok().contentType(MediaType.APPLICATION_JSON).body(zones, ThermostatStatus.class);
+        return respond(rq, zones.get());
     }
 
     /**
@@ -102,15 +192,8 @@ public class WebUI {
         String zone = rq.pathVariable("zone");
         logger.info("/zone/{}", zone);
 
-        // VT: NOTE: This uses *Status, not *Signal.
-
-        var zones = Flux.fromIterable(initSet)
-                .filter(Thermostat.class::isInstance)
-                .filter(s -> ((Thermostat) s).getName().equals(zone))
-                .map(z -> ((ThermostatModel) z).getStatus());
-
         // Returning empty JSON is simpler on both receiving and sending side than a 404
-        return ok().contentType(MediaType.APPLICATION_JSON).body(zones, ThermostatStatus.class);
+        return respond(rq, zones.get(zone));
     }
 
     /**
@@ -132,12 +215,7 @@ public class WebUI {
      * @return Set of sensor representations.
      */
     public Mono<ServerResponse> getSensors(ServerRequest rq) {
-
-        var sensors = Flux.fromIterable(initSet)
-                .filter(AnalogSensor.class::isInstance)
-                .map(s -> new AnalogSensorSnapshot((AnalogSensor) s));
-
-        return ok().contentType(MediaType.APPLICATION_JSON).body(sensors, AnalogSensor.class);
+        return respond(rq, sensors.get());
     }
 
     /**
@@ -152,13 +230,8 @@ public class WebUI {
         String address = rq.pathVariable("sensor");
         logger.info("/sensor/{}", address);
 
-        var sensor = Flux.fromIterable(initSet)
-                .filter(AnalogSensor.class::isInstance)
-                .filter(s -> ((AnalogSensor) s).getAddress().equals(address))
-                .map(s -> new AnalogSensorSnapshot((AnalogSensor) s));
-
         // Returning empty JSON is simpler on both receiving and sending side than a 404
-        return ok().contentType(MediaType.APPLICATION_JSON).body(sensor, AnalogSensor.class);
+        return respond(rq, sensors.get(address));
     }
 
     /**
@@ -169,12 +242,7 @@ public class WebUI {
      * @return Set of unit representations.
      */
     public Mono<ServerResponse> getUnits(ServerRequest rq) {
-
-        var units = Flux.fromIterable(initSet)
-                .filter(HvacController.class::isInstance)
-                .map(c -> ((HvacController) c).getExtendedSignal());
-
-        return ok().contentType(MediaType.APPLICATION_JSON).body(units, UnitSignal .class);
+        return respond(rq, units.get());
     }
 
     /**
@@ -189,13 +257,8 @@ public class WebUI {
         String name = rq.pathVariable("unit");
         logger.info("/unit/{}", name);
 
-        var unit = Flux.fromIterable(initSet)
-                .filter(HvacController.class::isInstance)
-                .filter(s -> ((HvacController) s).getName().equals(name))
-                .map(c -> ((HvacController) c).getExtendedSignal());
-
         // Returning empty JSON is simpler on both receiving and sending side than a 404
-        return ok().contentType(MediaType.APPLICATION_JSON).body(unit, UnitSignal .class);
+        return respond(rq, units.get(name));
     }
 
     /**
@@ -208,4 +271,106 @@ public class WebUI {
     public Mono<ServerResponse> setUnit(ServerRequest rq) {
         return ServerResponse.unprocessableEntity().bodyValue("Stay tuned, coming soon");
     }
+
+    /**
+     * Response handler for individual sensor history request.
+     *
+     * @param rq Request object.
+     *
+     * @return Sensor signal history.
+     */
+    public Mono<ServerResponse> getSensorHistory(ServerRequest rq) {
+
+        String address = rq.pathVariable("sensor");
+        logger.info("/sensor/{}/history", address);
+
+        return history(rq, sensorHistory.get(address));
+    }
+
+    /**
+     * Response handler for individual zone history request.
+     *
+     * @param rq Request object.
+     *
+     * @return Zone demand history.
+     */
+    public Mono<ServerResponse> getZoneHistory(ServerRequest rq) {
+
+        String zone = rq.pathVariable("zone");
+        logger.info("/zone/{}/history", zone);
+
+        return history(rq, zoneHistory.get(zone));
+    }
+
+    /**
+     * Response handler for individual unit history request.
+     *
+     * @param rq Request object.
+     *
+     * @return Unit demand history.
+     */
+    public Mono<ServerResponse> getUnitHistory(ServerRequest rq) {
+
+        String name = rq.pathVariable("unit");
+        logger.info("/unit/{}/history", name);
+
+        return history(rq, unitHistory.get(name));
+    }
+
+    /**
+     * Query the history and stream the result.
+     *
+     * @param rq Request object, with optional {@code from}, {@code to}, and {@code points} query parameters.
+     * @param history History to query, {@code null} if there's no such entity.
+     *
+     * @return Points as a chunked JSON array of {@code [timestamp,value]} pairs.
+     */
+    private Mono<ServerResponse> history(ServerRequest rq, HistoryBuffer<?> history) {
+
+        long from;
+        long to;
+        int points;
+
+        try {
+
+            from = rq.queryParam("from").map(Long::parseLong).orElse(Long.MIN_VALUE);
+            to = rq.queryParam("to").map(Long::parseLong).orElse(Long.MAX_VALUE);
+            points = rq.queryParam("points").map(Integer::parseInt).orElse(0);
+
+        } catch (NumberFormatException ex) {
+            return ServerResponse.badRequest().bodyValue("malformed parameter: " + ex.getMessage());
+        }
+
+        if (from > to || points < 0) {
+            return ServerResponse.badRequest().bodyValue("must have from <= to, points >= 0");
+        }
+
+        // Returning empty JSON is simpler on both receiving and sending side than a 404
+        var result = history == null ? HistoryBuffer.Points.EMPTY : history.query(from, to, points);
+        int chunks = Math.max(1, (result.size() + HISTORY_CHUNK_POINTS - 1) / HISTORY_CHUNK_POINTS);
+
+        var body = Flux.range(0, chunks)
+                .map(chunk -> result.toJson(
+                        chunk * HISTORY_CHUNK_POINTS,
+                        Math.min(result.size(), (chunk + 1) * HISTORY_CHUNK_POINTS)));
+
+        return ok().contentType(MediaType.APPLICATION_JSON).body(body, byte[].class);
+    }
+
+    /**
+     * Send the cached response, or {@code 304 Not Modified} if the client already has it.
+     *
+     * @param rq Request object.
+     * @param response Cached response.
+     *
+     * @return Response with the body, or with no body if the request's {@code If-None-Match} matches.
+     */
+    private Mono<ServerResponse> respond(ServerRequest rq, SnapshotCache.Response response) {
+
+        return rq.checkNotModified(response.etag)
+                .switchIfEmpty(Mono.defer(() -> ok()
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .eTag(response.etag)
+                        .bodyValue(response.body)));
+    }
 }
@@ -0,0 +1,332 @@
+package net.sf.dz3.view.webui.v1;
+
+import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSample;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static net.sf.dz3.view.webui.v1.SnapshotCacheTest.get;
+import static net.sf.dz3.view.webui.v1.SnapshotCacheTest.percentile;
+import static net.sf.dz3.view.webui.v1.SnapshotCacheTest.serve;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HistoryBufferTest {
+
+    private final Logger logger = LogManager.getLogger(getClass());
+
+    @Test
+    void retention() {
+
+        var history = new HistoryBuffer<Double>(5000, 10_000, Double::doubleValue);
+
+        for (long timestamp = 0; timestamp < 20_000; timestamp++) {
+            history.append(timestamp, timestamp);
+        }
+
+        // Capacity is hit before the age limit
+        assertThat(history.size()).isEqualTo(5000);
+        assertThat(history.query(0, 14_999, 0).size()).isZero();
+        assertThat(history.query(0, 15_000, 0).size()).isEqualTo(1);
+
+        var points = history.query(16_000, 16_002, 0);
+
+        assertThat(new String(points.toJson(0, points.size()), StandardCharsets.US_ASCII))
+                .isEqualTo("[[16000,16000.0],[16001,16001.0],[16002,16002.0]]");
+
+        // Out of order is dropped, errors are stored but not returned
+        history.append(19_000, 1);
+        history.consume(new DataSample<>(19_999, "source", "signature", null, new IllegalStateException("oops")));
+
+        assertThat(history.getOutOfOrder()).isEqualTo(1);
+        assertThat(history.size()).isEqualTo(5000);
+        assertThat(history.query(19_998, Long.MAX_VALUE, 0).size()).isEqualTo(2);
+
+        // Age limit
+        history.append(40_000, 1);
+
+        assertThat(history.size()).isEqualTo(1);
+    }
+
+    @Test
+    void fragments() {
+
+        var history = new HistoryBuffer<Double>(100, 1000, Double::doubleValue);
+
+        assertThat(new String(history.query(0, 100, 0).toJson(0, 0), StandardCharsets.US_ASCII)).isEqualTo("[]");
+
+        for (long timestamp = 0; timestamp < 5; timestamp++) {
+            history.append(timestamp, timestamp / 4d);
+        }
+
+        var points = history.query(0, 100, 0);
+
+        assertThat(new String(points.toJson(0, 2), StandardCharsets.US_ASCII)
+                + new String(points.toJson(2, 5), StandardCharsets.US_ASCII))
+                .isEqualTo("[[0,0.0],[1,0.25],[2,0.5],[3,0.75],[4,1.0]]");
+    }
+
+    /**
+     * Make sure the downsampling selects the same points the reference LTTB implementation does.
+     */
+    @Test
+    void lttb() {
+
+        var rg = new Random(42);
+
+        for (int round = 0; round < 200; round++) {
+
+            int count = 100 + rg.nextInt(5000);
+            int maxPoints = 3 + rg.nextInt(300);
+            var history = new HistoryBuffer<Double>(8000, Long.MAX_VALUE, Double::doubleValue);
+            var timestamps = new long[count];
+            var values = new float[count];
+            long timestamp = 1623000000000L;
+
+            for (int offset = 0; offset < count; offset++) {
+
+                timestamp += 1 + rg.nextInt(2000);
+                timestamps[offset] = timestamp;
+                values[offset] = (float) (20 + rg.nextGaussian());
+
+                history.append(timestamp, values[offset]);
+            }
+
+            var points = history.query(Long.MIN_VALUE, Long.MAX_VALUE, maxPoints);
+
+            if (count <= maxPoints) {
+                assertThat(points.size()).isEqualTo(count);
+                continue;
+            }
+
+            var expected = reference(timestamps, values, maxPoints);
+
+            assertThat(points.size()).isEqualTo(expected.size());
+
+            for (int offset = 0; offset < expected.size(); offset++) {
+                assertThat(points.timestamps[offset]).isEqualTo(timestamps[expected.get(offset)]);
+                assertThat(points.values[offset]).isEqualTo(values[expected.get(offset)]);
+            }
+        }
+    }
+
+    @Test
+    void endpoint() throws Exception {
+
+        var sensor = new SnapshotCacheTest.TestSensor("sensor-0");
+        var server = serve(Set.of(sensor));
+
+        try {
+
+            for (int offset = 0; offset < 100; offset++) {
+                sensor.publish(new DataSample<>(1623000000000L + offset * 1000L, "sensor-0", "sensor-0", 20 + offset / 100d, null));
+            }
+
+            var client = HttpClient.newHttpClient();
+            var base = "http://127.0.0.1:" + server.port();
+
+            var rsp = client.send(get(URI.create(base + "/sensor/sensor-0/history?from=1623000010000&to=1623000012000"), null), HttpResponse.BodyHandlers.ofString());
+
+            assertThat(rsp.statusCode()).isEqualTo(200);
+            assertThat(rsp.body()).isEqualTo("[[1623000010000,20.1],[1623000011000,20.11],[1623000012000,20.12]]");
+
+            rsp = client.send(get(URI.create(base + "/sensor/sensor-0/history?points=10"), null), HttpResponse.BodyHandlers.ofString());
+
+            assertThat(rsp.body()).startsWith("[[1623000000000,20.0],").endsWith(",[1623000099000,20.99]]");
+            assertThat(rsp.body().split("\\],\\[")).hasSize(10);
+
+            rsp = client.send(get(URI.create(base + "/sensor/nonexistent/history"), null), HttpResponse.BodyHandlers.ofString());
+
+            assertThat(rsp.statusCode()).isEqualTo(200);
+            assertThat(rsp.body()).isEqualTo("[]");
+
+            rsp = client.send(get(URI.create(base + "/sensor/sensor-0/history?points=many"), null), HttpResponse.BodyHandlers.ofString());
+
+            assertThat(rsp.statusCode()).isEqualTo(400);
+
+        } finally {
+            server.disposeNow();
+        }
+    }
+
+    /**
+     * Query latency for 24 hours of 1 second data across 100 entities, in process and over HTTP.
+     */
+    @Test
+    void benchmark() throws Exception {
+
+        int entities = 100;
+        int samples = 86_400;
+        long start = 1623000000000L;
+        long end = start + (samples - 1) * 1000L;
+        var rg = new Random(42);
+
+        List<HistoryBuffer<Double>> histories = new ArrayList<>();
+
+        long fillStart = System.nanoTime();
+
+        for (int entity = 0; entity < entities; entity++) {
+
+            var history = new HistoryBuffer<Double>(samples, TimeUnit.DAYS.toMillis(1), Double::doubleValue);
+            double value = 20;
+
+            for (int offset = 0; offset < samples; offset++) {
+
+                value += rg.nextGaussian() / 100;
+                history.append(start + offset * 1000L, value);
+            }
+
+            histories.add(history);
+        }
+
+        long fillMillis = (System.nanoTime() - fillStart) / 1_000_000;
+
+        assertThat(histories.get(0).size()).isEqualTo(samples);
+
+        int rounds = 500;
+        long sink = 0;
+
+        // Warm up
+        for (int round = 0; round < rounds; round++) {
+            sink += render(histories.get(round % entities).query(start, end, 1000));
+        }
+
+        var day = new long[rounds];
+        var hour = new long[rounds];
+        var raw = new long[rounds];
+
+        for (int round = 0; round < rounds; round++) {
+
+            var history = histories.get(rg.nextInt(entities));
+            long from = start + rg.nextInt(samples - 3600) * 1000L;
+
+            long queryStart = System.nanoTime();
+            sink += render(history.query(start, end, 1000));
+            day[round] = System.nanoTime() - queryStart;
+
+            queryStart = System.nanoTime();
+            sink += render(history.query(from, from + TimeUnit.HOURS.toMillis(1), 500));
+            hour[round] = System.nanoTime() - queryStart;
+
+            queryStart = System.nanoTime();
+            sink += render(history.query(from, from + TimeUnit.HOURS.toMillis(1), 0));
+            raw[round] = System.nanoTime() - queryStart;
+        }
+
+        logger.info("{} entities x {} samples loaded in {}ms, {}MB retained", entities, samples, fillMillis, entities * samples * 12L / 1024 / 1024);
+        logger.info("query + render, p50/p99 microseconds: 24h to 1000 points {}/{}, 1h to 500 points {}/{}, 1h raw {}/{}, checksum {}",
+                percentile(day, 50), percentile(day, 99),
+                percentile(hour, 50), percentile(hour, 99),
+                percentile(raw, 50), percentile(raw, 99),
+                sink);
+
+        // Now over HTTP, with the sensors feeding the histories
+
+        List<SnapshotCacheTest.TestSensor> sensors = new ArrayList<>();
+
+        for (int entity = 0; entity < 10; entity++) {
+            sensors.add(new SnapshotCacheTest.TestSensor("sensor-" + entity));
+        }
+
+        var server = serve(Set.copyOf(sensors));
+
+        try {
+
+            for (int offset = 0; offset < samples; offset++) {
+                for (var sensor : sensors) {
+                    sensor.publish(new DataSample<>(start + offset * 1000L, sensor.getAddress(), sensor.getAddress(), 20 + offset % 100 / 10d, null));
+                }
+            }
+
+            var client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+            var http = new long[rounds];
+
+            for (int round = 0; round < rounds * 2; round++) {
+
+                var uri = URI.create("http://127.0.0.1:" + server.port() + "/sensor/sensor-" + rg.nextInt(sensors.size()) + "/history?points=1000");
+
+                long queryStart = System.nanoTime();
+                var rsp = client.send(get(uri, null), HttpResponse.BodyHandlers.ofByteArray());
+
+                assertThat(rsp.statusCode()).isEqualTo(200);
+                sink += rsp.body().length;
+
+                // First half is the warmup
+                if (round >= rounds) {
+                    http[round - rounds] = System.nanoTime() - queryStart;
+                }
+            }
+
+            logger.info("HTTP 24h to 1000 points, p50/p99 microseconds: {}/{}, checksum {}",
+                    percentile(http, 50), percentile(http, 99), sink);
+
+        } finally {
+            server.disposeNow();
+        }
+    }
+
+    private static long render(HistoryBuffer.Points points) {
+        return points.toJson(0, points.size()).length;
+    }
+
+    /**
+     * Straightforward LTTB, as in the original paper.
+     */
+    private static List<Integer> reference(long[] timestamps, float[] values, int maxPoints) {
+
+        int length = timestamps.length;
+        double every = (double) (length - 2) / (maxPoints - 2);
+        int a = 0;
+
+        List<Integer> result = new ArrayList<>();
+        result.add(0);
+
+        for (int bucket = 0; bucket < maxPoints - 2; bucket++) {
+
+            int avgStart = (int) Math.floor((bucket + 1) * every) + 1;
+            int avgEnd = Math.min((int) Math.floor((bucket + 2) * every) + 1, length);
+
+            double avgX = 0;
+            double avgY = 0;
+
+            for (int offset = avgStart; offset < avgEnd; offset++) {
+                avgX += timestamps[offset] - timestamps[0];
+                avgY += values[offset];
+            }
+
+            avgX /= avgEnd - avgStart;
+            avgY /= avgEnd - avgStart;
+
+            double ax = timestamps[a] - timestamps[0];
+            double ay = values[a];
+            double maxArea = -1;
+            int selected = -1;
+
+            for (int offset = (int) Math.floor(bucket * every) + 1; offset < (int) Math.floor((bucket + 1) * every) + 1; offset++) {
+
+                double area = Math.abs((ax - avgX) * (values[offset] - ay) - (ax - (timestamps[offset] - timestamps[0])) * (avgY - ay));
+
+                if (area > maxArea) {
+                    maxArea = area;
+                    selected = offset;
+                }
+            }
+
+            result.add(selected);
+            a = selected;
+        }
+
+        result.add(length - 1);
+
+        return result;
+    }
+}
@@ -0,0 +1,335 @@
+package net.sf.dz3.view.webui.v1;
+
+import com.homeclimatecontrol.jukebox.datastream.logger.impl.DataBroadcaster;
+import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSample;
+import com.homeclimatecontrol.jukebox.datastream.signal.model.DataSink;
+import com.homeclimatecontrol.jukebox.jmx.JmxDescriptor;
+import net.sf.dz3.device.model.ThermostatStatus;
+import net.sf.dz3.device.model.impl.ThermostatModel;
+import net.sf.dz3.device.sensor.AnalogSensor;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.json.Jackson2JsonEncoder;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.http.server.reactive.ReactorHttpHandlerAdapter;
+import org.springframework.web.reactive.function.server.RouterFunctions;
+import reactor.core.publisher.Flux;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SnapshotCacheTest {
+
+    private final Logger logger = LogManager.getLogger(getClass());
+
+    /**
+     * Make sure the cached output is byte for byte what WebFlux used to produce from a {@code Flux} of snapshots.
+     */
+    @Test
+    void sameAsEncoder() {
+
+        var objectMapper = Jackson2ObjectMapperBuilder.json().build();
+        var sensors = List.of(new TestSensor("sensor-0"), new TestSensor("sensor-\u00b0"), new TestSensor("sensor-2"));
+
+        sensors.get(0).publish(20.5);
+        sensors.get(1).publish(new DataSample<>(System.currentTimeMillis(), "sensor-\u00b0", "signature", null, new IllegalStateException("stale")));
+
+        var zone = new ThermostatModel("kitchen", sensors.get(0), 20, 1, 0.000002, 0, 1.1);
+        sensors.get(0).publish(21.5);
+
+        var sensorCache = new SnapshotCache<AnalogSensor>(objectMapper, sensors, AnalogSensor::getAddress, AnalogSensorSnapshot::new);
+        var zoneCache = new SnapshotCache<ThermostatModel>(objectMapper, List.of(zone), ThermostatModel::getName, ThermostatModel::getStatus);
+
+        assertThat(sensorCache.get().body).isEqualTo(encode(AnalogSensor.class, new AnalogSensorSnapshot(sensors.get(0)), new AnalogSensorSnapshot(sensors.get(1)), new AnalogSensorSnapshot(sensors.get(2))));
+        assertThat(sensorCache.get("sensor-\u00b0").body).isEqualTo(encode(AnalogSensor.class, new AnalogSensorSnapshot(sensors.get(1))));
+        assertThat(sensorCache.get("nonexistent").body).isEqualTo(encode(AnalogSensor.class));
+
+        assertThat(zoneCache.get().body).isEqualTo(encode(ThermostatStatus.class, zone.getStatus()));
+        assertThat(zoneCache.get("kitchen").body).isEqualTo(encode(ThermostatStatus.class, zone.getStatus()));
+    }
+
+    @Test
+    void rebuiltOnSample() {
+
+        var sensors = List.of(new TestSensor("sensor-0"), new TestSensor("sensor-1"));
+        var cache = new SnapshotCache<AnalogSensor>(Jackson2ObjectMapperBuilder.json().build(), sensors, AnalogSensor::getAddress, AnalogSensorSnapshot::new);
+
+        var first = cache.get();
+
+        assertThat(cache.get()).isSameAs(first);
+        assertThat(cache.getRebuilds()).isEqualTo(2);
+
+        sensors.get(1).publish(25);
+
+        var second = cache.get();
+
+        assertThat(second.etag).isNotEqualTo(first.etag);
+        assertThat(new String(second.body, StandardCharsets.UTF_8)).contains("\"sample\":25.0");
+
+        // Only the entity that published was serialized again
+        assertThat(cache.getRebuilds()).isEqualTo(3);
+
+        // Single entity tags change only when that entity does
+        var single = cache.get("sensor-0");
+
+        sensors.get(1).publish(26);
+
+        assertThat(cache.get("sensor-0").etag).isEqualTo(single.etag);
+        assertThat(cache.get("sensor-1").etag).isNotEqualTo(single.etag);
+    }
+
+    @Test
+    void conditional() throws Exception {
+
+        var sensor = new TestSensor("sensor-0");
+        var server = serve(Set.of(sensor));
+
+        try {
+
+            var client = HttpClient.newHttpClient();
+            var uri = URI.create("http://127.0.0.1:" + server.port() + "/sensors");
+
+            var rsp = client.send(get(uri, null), HttpResponse.BodyHandlers.ofString());
+            var etag = rsp.headers().firstValue("ETag").orElseThrow();
+
+            assertThat(rsp.statusCode()).isEqualTo(200);
+            assertThat(rsp.headers().firstValue("Content-Type")).contains(MediaType.APPLICATION_JSON_VALUE);
+            assertThat(rsp.body()).startsWith("[{\"address\":\"sensor-0\"");
+
+            rsp = client.send(get(uri, etag), HttpResponse.BodyHandlers.ofString());
+
+            assertThat(rsp.statusCode()).isEqualTo(304);
+            assertThat(rsp.headers().firstValue("ETag")).contains(etag);
+            assertThat(rsp.body()).isEmpty();
+
+            rsp = client.send(get(uri, "W/" + etag + ", \"something-else\""), HttpResponse.BodyHandlers.ofString());
+
+            assertThat(rsp.statusCode()).isEqualTo(304);
+
+            sensor.publish(19);
+            rsp = client.send(get(uri, etag), HttpResponse.BodyHandlers.ofString());
+
+            assertThat(rsp.statusCode()).isEqualTo(200);
+            assertThat(rsp.headers().firstValue("ETag")).isNotEqualTo(etag);
+
+        } finally {
+            server.disposeNow();
+        }
+    }
+
+    /**
+     * Hit {@code /sensors} at 5,000 requests per second, half of them conditional, while sensors keep publishing samples.
+     *
+     * Latency is measured from the time the request was scheduled to be sent, not from when it actually was,
+     * so stalls in the server are not hidden by the client falling behind.
+     */
+    @Test
+    void load() throws Exception {
+
+        int rate = 5_000;
+        int total = rate * 4;
+
+        List<TestSensor> sensors = new ArrayList<>();
+
+        for (int count = 0; count < 50; count++) {
+            sensors.add(new TestSensor("sensor-" + count));
+        }
+
+        var server = serve(new LinkedHashSet<>(sensors));
+
+        // One sample every 10ms, round robin - the whole set keeps changing, and conditional requests keep missing now and then
+        var publisher = new Thread(() -> {
+
+            for (int count = 0; !Thread.currentThread().isInterrupted(); count++) {
+
+                sensors.get(count % sensors.size()).publish(20 + count % 10 / 10d);
+
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+            }
+        });
+
+        try {
+
+            publisher.start();
+
+            var client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+            var uri = URI.create("http://127.0.0.1:" + server.port() + "/sensors");
+            var etag = new AtomicReference<String>();
+
+            // Warm up
+            for (int count = 0; count < 2_000; count++) {
+                etag.set(client.send(get(uri, null), HttpResponse.BodyHandlers.ofByteArray()).headers().firstValue("ETag").orElseThrow());
+            }
+
+            var latency = new long[total];
+            var ok = new AtomicInteger();
+            var notModified = new AtomicInteger();
+            List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+            var done = new CountDownLatch(total);
+
+            long start = System.nanoTime();
+            long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+
+            for (int count = 0; count < total; count++) {
+
+                int offset = count;
+                long scheduled = start + count * interval;
+
+                while (System.nanoTime() < scheduled) {
+                    LockSupport.parkNanos(scheduled - System.nanoTime());
+                }
+
+                client.sendAsync(get(uri, count % 2 == 0 ? null : etag.get()), HttpResponse.BodyHandlers.ofByteArray())
+                        .whenComplete((rsp, ex) -> {
+
+                            latency[offset] = System.nanoTime() - scheduled;
+
+                            if (ex != null) {
+                                failures.add(ex);
+                            } else if (rsp.statusCode() == 304) {
+                                notModified.incrementAndGet();
+                            } else if (rsp.statusCode() == 200) {
+                                ok.incrementAndGet();
+                                rsp.headers().firstValue("ETag").ifPresent(etag::set);
+                            } else {
+                                failures.add(new IllegalStateException("HTTP " + rsp.statusCode()));
+                            }
+
+                            done.countDown();
+                        });
+            }
+
+            assertThat(done.await(30, TimeUnit.SECONDS)).isTrue();
+
+            long elapsed = System.nanoTime() - start;
+
+            logger.info("{} requests at {}/s target, {}/s actual: 200 {}, 304 {}, failed {}, latency p50/p99/max {}/{}/{} microseconds",
+                    total, rate, total * 1_000_000_000L / elapsed,
+                    ok.get(), notModified.get(), failures.size(),
+                    percentile(latency, 50), percentile(latency, 99), percentile(latency, 100));
+
+            assertThat(failures).isEmpty();
+            assertThat(notModified.get()).isPositive();
+
+        } finally {
+            publisher.interrupt();
+            publisher.join();
+            server.disposeNow();
+        }
+    }
+
+    static HttpRequest get(URI uri, String etag) {
+
+        var b = HttpRequest.newBuilder(uri).header("Accept", MediaType.APPLICATION_JSON_VALUE);
+
+        if (etag != null) {
+            b.header("If-None-Match", etag);
+        }
+
+        return b.build();
+    }
+
+    static DisposableServer serve(Set<Object> initSet) {
+
+        var webUI = new WebUI(0, initSet);
+        var adapter = new ReactorHttpHandlerAdapter(RouterFunctions.toHttpHandler(new RoutingConfiguration().monoRouterFunction(webUI)));
+
+        return HttpServer.create().host("127.0.0.1").port(0).handle(adapter).bindNow(Duration.ofSeconds(10));
+    }
+
+    /**
+     * Encode the objects the way {@code ServerResponse.BodyBuilder.body(Flux, Class)} used to.
+     */
+    private static byte[] encode(Class<?> elementClass, Object... elements) {
+
+        var buffer = DataBufferUtils.join(new Jackson2JsonEncoder().encode(
+                Flux.fromArray(elements),
+                DefaultDataBufferFactory.sharedInstance,
+                ResolvableType.forClass(elementClass),
+                MediaType.APPLICATION_JSON,
+                Collections.emptyMap())).block();
+
+        var bytes = new byte[buffer.readableByteCount()];
+        buffer.read(bytes);
+
+        return bytes;
+    }
+
+    static long percentile(long[] nanos, int percentile) {
+
+        long[] sorted = nanos.clone();
+
+        Arrays.sort(sorted);
+
+        return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)] / 1000;
+    }
+
+    static class TestSensor implements AnalogSensor {
+
+        private final String address;
+        private final DataBroadcaster<Double> dataBroadcaster = new DataBroadcaster<>();
+        private volatile DataSample<Double> signal;
+
+        TestSensor(String address) {
+            this.address = address;
+        }
+
+        void publish(double value) {
+            publish(new DataSample<>(System.currentTimeMillis(), address, address, value, null));
+        }
+
+        void publish(DataSample<Double> sample) {
+            signal = sample;
+            dataBroadcaster.broadcast(sample);
+        }
+
+        @Override
+        public String getAddress() {
+            return address;
+        }
+
+        @Override
+        public DataSample<Double> getSignal() {
+            return signal;
+        }
+
+        @Override
+        public void addConsumer(DataSink<Double> consumer) {
+            dataBroadcaster.addConsumer(consumer);
+        }
+
+        @Override
+        public void removeConsumer(DataSink<Double> consumer) {
+            dataBroadcaster.removeConsumer(consumer);
+        }
+
+        @Override
+        public JmxDescriptor getJmxDescriptor() {
+            return new JmxDescriptor("dz", "test sensor", address, "test sensor");
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package net.sf.dz3.device.sensor.impl.xbee;
+
+/**
+ * Reusable, allocation free XBee IO sample parser.
+ *
+ * Unlike {@link IoSample}, which copies the sample into a new object graph with boxed values,
+ * this class decodes the sample in place from the received packet into primitive fields,
+ * and is intended to be {@link #wrap(int[], int) rewrapped} for every incoming packet.
+ *
+ * This class is not thread safe. The intended use is one instance per packet listener thread.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko 2010-2021
+ */
+public class IoSampleView {
+
+    /**
+     * Number of analog channels, see {@link IoSample#analogChannel}.
+     */
+    public static final int ANALOG_CHANNELS = IoSample.analogBit.length;
+
+    /**
+     * @see IoSample#digitalMask
+     */
+    private int digitalMask;
+
+    /**
+     * @see IoSample#analogMask
+     */
+    private int analogMask;
+
+    /**
+     * Digital input bits, only valid if {@link #digitalMask} is not zero.
+     */
+    private int digital;
+
+    /**
+     * Analog values in mV, indexed as {@link IoSample#analogChannel}.
+     */
+    private final double[] analog = new double[ANALOG_CHANNELS];
+
+    /**
+     * Bit set of analog channels present and within ADC range.
+     */
+    private int analogValid;
+
+    /**
+     * Bit set of analog channels present, but out of ADC range.
+     */
+    private int analogOutOfRange;
+
+    /**
+     * Parse the sample.
+     *
+     * @param buffer Buffer containing the sample.
+     * @param offset Offset of the 0x01 leading "sample sets" byte in the buffer.
+     *
+     * @return {@code this}, for chaining.
+     */
+    public IoSampleView wrap(int[] buffer, int offset) {
+
+        if (buffer[offset] != 0x01) {
+            throw new IllegalArgumentException("Sample sets is not 0x01 (but "
+                    + Integer.toHexString(buffer[offset]) + "), stream synchronization lost?");
+        }
+
+        digitalMask = buffer[offset + 1] << 8 | buffer[offset + 2];
+        analogMask = buffer[offset + 3];
+        analogValid = 0;
+        analogOutOfRange = 0;
+
+        int position = offset + 4;
+
+        if (digitalMask != 0x0000) {
+
+            digital = buffer[position++] << 8 | buffer[position++];
+        }
+
+        for (int channel = 0; channel < ANALOG_CHANNELS; channel++) {
+
+            int bit = IoSample.analogBit[channel];
+
+            if ((analogMask & bit) == 0) {
+                continue;
+            }
+
+            int raw = buffer[position++] << 8 | buffer[position++];
+
+            if ((raw & ~0x3FF) == 0) {
+
+                analog[channel] = raw / XBeeConstants.ADC_RESOLUTION;
+                analogValid |= 1 << channel;
+
+            } else {
+
+                analogOutOfRange |= 1 << channel;
+            }
+        }
+
+        return this;
+    }
+
+    /**
+     * Resolve the channel name into the index to be used with {@link #hasAnalog(int)} and {@link #getAnalog(int)}.
+     *
+     * @param channel Channel name, as in {@link IoSample#analogChannel}.
+     *
+     * @return Channel index, or {@code -1} if there's no such analog channel.
+     */
+    public static int getAnalogIndex(String channel) {
+
+        for (int offset = 0; offset < ANALOG_CHANNELS; offset++) {
+
+            if (IoSample.analogChannel[offset].equals(channel)) {
+                return offset;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @param index Channel index, see {@link #getAnalogIndex(String)}.
+     *
+     * @return {@code true} if the channel is present in this sample and is within the ADC range.
+     */
+    public boolean hasAnalog(int index) {
+        return index >= 0 && (analogValid & (1 << index)) != 0;
+    }
+
+    /**
+     * @param index Channel index, see {@link #getAnalogIndex(String)}.
+     *
+     * @return Channel value in mV. Only meaningful if {@link #hasAnalog(int)} returns {@code true}.
+     */
+    public double getAnalog(int index) {
+        return analog[index];
+    }
+
+    /**
+     * @return Bit set of analog channels that were present, but reported values out of ADC range.
+     */
+    public int getAnalogOutOfRange() {
+        return analogOutOfRange;
+    }
+
+    public int getDigitalMask() {
+        return digitalMask;
+    }
+
+    public int getAnalogMask() {
+        return analogMask;
+    }
+
+    /**
+     * @return Digital input bits. Only meaningful if {@link #getDigitalMask()} is not zero.
+     */
+    public int getDigital() {
+        return digital;
+    }
+
+    @Override
+    public String toString() {
+
+        StringBuilder sb = new StringBuilder();
+
+        for (int offset = 0; offset < ANALOG_CHANNELS; offset++) {
+
+            if (offset > 0) {
+                sb.append(",");
+            }
+
+            sb.append(IoSample.analogChannel[offset]).append("=");
+
+            if (hasAnalog(offset)) {
+                sb.append(analog[offset]);
+            } else {
+                sb.append("null");
+            }
+        }
+
+        return sb.toString();
+    }
+}
@@ -115,6 +115,24 @@ public class Parser {
         return sb.toString();
     }
 
+    /**
+     * Convert the 64 bit XBee address into a number suitable for use as a lookup key.
+     *
+     * @param address Address bytes, as returned by {@link XBeeAddress64#getAddress()}.
+     *
+     * @return The address as {@code long}.
+     */
+    public static long toLong(int[] address) {
+
+        long result = 0;
+
+        for (int offset = 0; offset < address.length; offset++) {
+            result = result << 8 | (address[offset] & 0xFF);
+        }
+
+        return result;
+    }
+
     /**
      * Format the free form 64 bit XBee address as "XXXX.XXXX".
      *
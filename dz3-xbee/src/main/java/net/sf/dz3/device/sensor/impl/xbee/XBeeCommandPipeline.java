@@ -0,0 +1,365 @@
+package net.sf.dz3.device.sensor.impl.xbee;
+
+import com.rapplogic.xbee.api.XBeeAddress64;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.ThreadContext;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous remote AT command pipeline.
+ *
+ * Instead of sending one request and blocking until the response (or the timeout) arrives,
+ * requests are sent with distinct frame IDs and correlated with their responses as they come in,
+ * so any number of commands (up to the {@link #MAX_FRAME_ID} - {@link #MIN_FRAME_ID} + 1 frame IDs the pipeline owns)
+ * can be in flight at the same time.
+ *
+ * DIO writes to the same node arriving within {@link #batchWindowMillis} are coalesced into a single
+ * sequence of {@code Dx} commands sent without applying changes, followed by one {@code AC}.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko 2001-2021
+ */
+public class XBeeCommandPipeline implements AutoCloseable {
+
+    private final Logger logger = LogManager.getLogger(getClass());
+
+    /**
+     * Something that can put a remote AT command on the air.
+     *
+     * Abstracted away from {@link com.rapplogic.xbee.api.XBee} so the pipeline can be exercised without the hardware.
+     */
+    @FunctionalInterface
+    public interface Sender {
+
+        /**
+         * Send a remote AT command asynchronously.
+         *
+         * @param frameId Frame ID to mark the request with. The response is expected to carry the same frame ID.
+         * @param node Node to send the command to.
+         * @param command AT command.
+         * @param value Command argument, {@code null} for queries.
+         * @param applyChanges Whether the remote node must apply the change immediately.
+         *
+         * @throws IOException if the request couldn't be sent.
+         */
+        void send(int frameId, XBeeAddress64 node, String command, int[] value, boolean applyChanges) throws IOException;
+    }
+
+    /**
+     * XBee frame IDs are 1 to 255, 0 means "no response required".
+     *
+     * Frame IDs below this one are left to synchronous requests sent through xbee-api
+     * (which uses {@code 1} by default), so their responses can't be mistaken for the pipeline's.
+     */
+    public static final int MIN_FRAME_ID = 16;
+
+    public static final int MAX_FRAME_ID = 255;
+
+    private final Sender sender;
+    private final long timeoutMillis;
+    private final long batchWindowMillis;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "xbee-pipeline");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Requests in flight, keyed by frame ID.
+     */
+    private final Map<Integer, CompletableFuture<int[]>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * DIO writes waiting to be sent, keyed by {@link Parser#render4x4(XBeeAddress64) rendered} node address.
+     */
+    private final Map<String, Batch> batches = new LinkedHashMap<>();
+
+    private int nextFrameId = MIN_FRAME_ID;
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong batchedWrites = new AtomicLong();
+
+    /**
+     * Create an instance.
+     *
+     * @param sender Transport to send requests with.
+     * @param timeoutMillis How long to wait for each response.
+     * @param batchWindowMillis How long to wait for more writes to the same node before sending them.
+     * Zero disables batching.
+     */
+    public XBeeCommandPipeline(Sender sender, long timeoutMillis, long batchWindowMillis) {
+
+        if (sender == null) {
+            throw new IllegalArgumentException("sender can't be null");
+        }
+
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException("timeout must be positive (" + timeoutMillis + " given)");
+        }
+
+        if (batchWindowMillis < 0) {
+            throw new IllegalArgumentException("batch window can't be negative (" + batchWindowMillis + " given)");
+        }
+
+        this.sender = sender;
+        this.timeoutMillis = timeoutMillis;
+        this.batchWindowMillis = batchWindowMillis;
+    }
+
+    /**
+     * Send a remote AT command.
+     *
+     * @param node Node to send the command to.
+     * @param command AT command.
+     * @param value Command argument, {@code null} for queries.
+     *
+     * @return Future that will be completed with the response value, or exceptionally if the command fails or times out.
+     */
+    public CompletableFuture<int[]> submit(XBeeAddress64 node, String command, int[] value) {
+        return submit(node, command, value, true);
+    }
+
+    private CompletableFuture<int[]> submit(XBeeAddress64 node, String command, int[] value, boolean applyChanges) {
+
+        CompletableFuture<int[]> result = new CompletableFuture<>();
+        int frameId;
+
+        try {
+            frameId = allocate(result);
+        } catch (IOException ex) {
+            failed.incrementAndGet();
+            result.completeExceptionally(ex);
+            return result;
+        }
+
+        ScheduledFuture<?> timeout = scheduler.schedule(() -> {
+            if (result.completeExceptionally(new TimeoutException(command + " to " + Parser.render4x4(node) + " timed out after " + timeoutMillis + "ms"))) {
+                timedOut.incrementAndGet();
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+
+        result.whenComplete((v, t) -> {
+            inFlight.remove(frameId, result);
+            timeout.cancel(false);
+        });
+
+        try {
+
+            sender.send(frameId, node, command, value, applyChanges);
+            sent.incrementAndGet();
+
+        } catch (IOException ex) {
+
+            failed.incrementAndGet();
+            result.completeExceptionally(ex);
+        }
+
+        return result;
+    }
+
+    /**
+     * Find a free frame ID and register the future with it.
+     *
+     * @throws IOException if all frame IDs are in use.
+     */
+    private synchronized int allocate(CompletableFuture<int[]> future) throws IOException {
+
+        int range = MAX_FRAME_ID - MIN_FRAME_ID + 1;
+
+        for (int attempt = 0; attempt < range; attempt++) {
+
+            int frameId = nextFrameId;
+
+            nextFrameId = nextFrameId == MAX_FRAME_ID ? MIN_FRAME_ID : nextFrameId + 1;
+
+            if (inFlight.putIfAbsent(frameId, future) == null) {
+                return frameId;
+            }
+        }
+
+        throw new IOException("All " + range + " frame IDs are in flight, radio overloaded?");
+    }
+
+    /**
+     * Set the state of a digital output, possibly together with other outputs on the same node.
+     *
+     * @param node Node to send the command to.
+     * @param channel Channel ({@code D0} to {@code D7}).
+     * @param state State to set.
+     *
+     * @return Future that will be completed when the change is applied on the node.
+     */
+    public CompletableFuture<Void> write(XBeeAddress64 node, String channel, boolean state) {
+
+        int deviceState = state ? 5 : 4;
+
+        if (batchWindowMillis == 0) {
+            return submit(node, channel, new int[] {deviceState}).thenApply(v -> null);
+        }
+
+        synchronized (batches) {
+
+            String key = Parser.render4x4(node);
+            Batch batch = batches.get(key);
+
+            if (batch == null) {
+
+                batch = new Batch();
+                batches.put(key, batch);
+
+                scheduler.schedule(() -> flush(node, key), batchWindowMillis, TimeUnit.MILLISECONDS);
+            }
+
+            // Last write wins, all writers get notified when the batch is applied
+            batch.writes.put(channel, deviceState);
+            batchedWrites.incrementAndGet();
+
+            return batch.done;
+        }
+    }
+
+    /**
+     * Send all writes accumulated for the node, followed by {@code AC}.
+     */
+    private void flush(XBeeAddress64 node, String key) {
+
+        ThreadContext.push("flush");
+
+        try {
+
+            Batch batch;
+
+            synchronized (batches) {
+                batch = batches.remove(key);
+            }
+
+            if (batch == null) {
+                return;
+            }
+
+            batchCount.incrementAndGet();
+
+            logger.debug("{}: {} writes", key, batch.writes.size());
+
+            CompletableFuture<?>[] writes = new CompletableFuture<?>[batch.writes.size()];
+            int offset = 0;
+
+            for (Entry<String, Integer> kv : batch.writes.entrySet()) {
+                writes[offset++] = submit(node, kv.getKey(), new int[] {kv.getValue()}, false);
+            }
+
+            // XBee processes commands in order, no need to wait for the writes to complete to send AC
+
+            CompletableFuture<int[]> apply = submit(node, "AC", null, true);
+
+            CompletableFuture.allOf(writes).thenCombine(apply, (a, b) -> (Void) null).whenComplete((v, t) -> {
+
+                if (t != null) {
+                    batch.done.completeExceptionally(t);
+                } else {
+                    batch.done.complete(null);
+                }
+            });
+
+        } finally {
+            ThreadContext.pop();
+        }
+    }
+
+    /**
+     * Complete the request with the given frame ID.
+     *
+     * @param frameId Frame ID of the response.
+     * @param ok Whether the command succeeded.
+     * @param value Response value.
+     * @param status Human readable status for the failure message.
+     */
+    public void complete(int frameId, boolean ok, int[] value, String status) {
+
+        if (frameId < MIN_FRAME_ID) {
+
+            // Response to a synchronous request, xbee-api will deliver it
+            return;
+        }
+
+        CompletableFuture<int[]> future = inFlight.get(frameId);
+
+        if (future == null) {
+
+            // Most likely, timed out already
+            logger.warn("Response for unknown frame ID {} (status {}), late?", frameId, status);
+            return;
+        }
+
+        if (ok) {
+            completed.incrementAndGet();
+            future.complete(value);
+        } else {
+            failed.incrementAndGet();
+            future.completeExceptionally(new IOException("Command failed, status: " + status));
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+
+        IOException ex = new IOException("Pipeline closed");
+        inFlight.values().forEach(f -> f.completeExceptionally(ex));
+    }
+
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getTimedOut() {
+        return timedOut.get();
+    }
+
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    public long getBatchedWrites() {
+        return batchedWrites.get();
+    }
+
+    private static class Batch {
+
+        /**
+         * Pending writes, the key is the channel, the value is the device state.
+         */
+        final Map<String, Integer> writes = new LinkedHashMap<>();
+
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+    }
+}
@@ -9,6 +9,11 @@ public interface XBeeConstants {
     int TIMEOUT_IS_MILLIS = 5000;
     int TIMEOUT_NT_MILLIS = 5000;
 
+    /**
+     * How long to wait for more DIO writes to the same node before sending them together.
+     */
+    int BATCH_WINDOW_MILLIS = 20;
+
     /**
      * XBee ZB hardware ADC resolution.
      *
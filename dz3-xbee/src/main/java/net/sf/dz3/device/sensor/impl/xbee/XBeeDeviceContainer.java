@@ -26,6 +26,16 @@ public final class XBeeDeviceContainer extends AbstractDeviceContainer implement
     private final XBeeDeviceFactory factory;
     private final XBeeAddress64 xbeeAddress;
 
+    /**
+     * {@link Parser#render4x4(XBeeAddress64) Rendered} {@link #xbeeAddress}, to avoid doing it over and over.
+     */
+    private final String address;
+
+    /**
+     * Timestamp of the last IO sample received from this device, 0 if none yet.
+     */
+    private volatile long lastSeen = 0;
+
     private final Map<String, XBeeSensor> sensorMap = new HashMap<String, XBeeSensor>();
     private final Map<String, XBeeSwitch> switchMap = new HashMap<String, XBeeSwitch>();
 
@@ -39,12 +49,29 @@ public final class XBeeDeviceContainer extends AbstractDeviceContainer implement
 
         this.factory = factory;
         this.xbeeAddress = xbeeAddress;
+        this.address = Parser.render4x4(xbeeAddress);
     }
 
     @Override
     public String getAddress() {
 
-        return Parser.render4x4(xbeeAddress);
+        return address;
+    }
+
+    /**
+     * @return Canonical 64 bit address of this device.
+     */
+    public XBeeAddress64 getXBeeAddress() {
+
+        return xbeeAddress;
+    }
+
+    /**
+     * @return Timestamp of the last IO sample received from this device, 0 if none yet.
+     */
+    public long getLastSeen() {
+
+        return lastSeen;
     }
 
     @Override
@@ -124,7 +151,12 @@ public final class XBeeDeviceContainer extends AbstractDeviceContainer implement
         return factory.sendSynchronous(request, timeout);
     }
 
-    public void broadcastIoSample(IoSample sample) {
+    public XBeeCommandPipeline getPipeline() {
+
+        return factory.getPipeline();
+    }
+
+    public void broadcastIoSample(IoSampleView sample) {
 
         ThreadContext.push("broadcastIoSample");
 
@@ -132,18 +164,17 @@ public final class XBeeDeviceContainer extends AbstractDeviceContainer implement
 
         try {
 
-            for (Iterator<Entry<String, XBeeSensor>> i = sensorMap.entrySet().iterator(); i.hasNext(); ) {
+            lastSeen = now;
 
-                Entry<String, XBeeSensor> entry = i.next();
-                String compositeAddress = entry.getKey();
-                String channel = compositeAddress.substring(18);
-                Double value = sample.getChannel(channel);
+            for (XBeeSensor sensor : sensorMap.values()) {
+
+                int channel = sensor.getAnalogIndex();
 
-                logger.debug("channel: {}={}", channel, value);
+                if (sample.hasAnalog(channel)) {
 
-                if (value != null) {
+                    double value = sample.getAnalog(channel);
 
-                    XBeeSensor sensor = entry.getValue();
+                    logger.debug("channel: {}={}", sensor.getAddress(), value);
 
                     sensor.broadcast(now, value, null);
                 }
@@ -7,14 +7,14 @@ import com.rapplogic.xbee.api.AtCommand;
 import com.rapplogic.xbee.api.AtCommandResponse;
 import com.rapplogic.xbee.api.PacketListener;
 import com.rapplogic.xbee.api.RemoteAtRequest;
+import com.rapplogic.xbee.api.RemoteAtResponse;
 import com.rapplogic.xbee.api.XBee;
+import com.rapplogic.xbee.api.XBeeAddress16;
 import com.rapplogic.xbee.api.XBeeAddress64;
 import com.rapplogic.xbee.api.XBeeException;
 import com.rapplogic.xbee.api.XBeeResponse;
-import com.rapplogic.xbee.api.XBeeTimeoutException;
 import com.rapplogic.xbee.api.zigbee.ZBNodeDiscover;
 import com.rapplogic.xbee.api.zigbee.ZNetRxIoSampleResponse;
-import com.rapplogic.xbee.util.ByteUtils;
 import net.sf.dz3.device.factory.AbstractDeviceFactory;
 import net.sf.dz3.device.factory.SingleSwitchProxy;
 import net.sf.dz3.device.sensor.AnalogSensor;
@@ -23,17 +23,17 @@ import net.sf.dz3.device.sensor.SensorType;
 import net.sf.dz3.device.sensor.Switch;
 import net.sf.dz3.device.sensor.impl.ContainerMap;
 import net.sf.dz3.device.sensor.impl.StringChannelAddress;
-import net.sf.dz3.instrumentation.Marker;
+import net.sf.dz3.device.sensor.impl.SwitchStateCache;
 import org.apache.logging.log4j.ThreadContext;
 
 import java.io.IOException;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 import java.util.StringTokenizer;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Factory for sensors and actuators implemented with XBee modules.
@@ -49,9 +49,40 @@ public class XBeeDeviceFactory extends AbstractDeviceFactory<XBeeDeviceContainer
     private final int baud;
 
     /**
-     * Contains timestamps for sensor readings.
+     * Asynchronous remote AT command pipeline.
+     *
+     * All remote AT commands must go through it, otherwise frame IDs may collide.
+     */
+    private final XBeeCommandPipeline pipeline = new XBeeCommandPipeline(
+            this::sendAsynchronous, XBeeConstants.TIMEOUT_AT_MILLIS, XBeeConstants.BATCH_WINDOW_MILLIS);
+
+    /**
+     * Canonical device containers, keyed by the {@link Parser#toLong(int[]) numeric} 64 bit address.
+     *
+     * This is the fast path for incoming IO samples; the containers keep their own
+     * {@link XBeeDeviceContainer#getLastSeen() last seen} timestamps.
+     */
+    private final Map<Long, XBeeDeviceContainer> address2container = new ConcurrentHashMap<>();
+
+    /**
+     * Reusable IO sample parser. Only ever touched from the packet listener thread.
      */
-    private final Map<String, Long> lastSeen = new TreeMap<>();
+    private final IoSampleView sampleView = new IoSampleView();
+
+    /**
+     * Nodes responding to discovery cycles.
+     */
+    private final XBeeDiscoveryTracker discovery = new XBeeDiscoveryTracker();
+
+    /**
+     * Latencies of the last completed discovery cycle.
+     */
+    private volatile long firstResponseLatencyMillis = 0;
+    private volatile long lastResponseLatencyMillis = 0;
+
+    private final AtomicLong nodesJoined = new AtomicLong();
+    private final AtomicLong nodesDeparted = new AtomicLong();
+    private final AtomicLong discoveryCycles = new AtomicLong();
 
     /**
      * How open to perform {@link #browse(XBee)}.
@@ -130,6 +161,15 @@ public class XBeeDeviceFactory extends AbstractDeviceFactory<XBeeDeviceContainer
         }
     }
 
+    /**
+     * Open the port and send the first {@code ND}.
+     *
+     * This method doesn't wait for the discovery to complete. Devices become available as their
+     * {@code ND} responses, or their first IO samples, arrive, so sensors and switches may
+     * report errors for a few seconds after startup. Discovery latency, arrivals and departures
+     * are only known when the cycle is closed at the next {@link #browse(XBee)},
+     * {@link #rescanDelayMillis} (30 seconds or more) later.
+     */
     @Override
     protected void startup() throws Throwable {
 
@@ -194,6 +234,8 @@ public class XBeeDeviceFactory extends AbstractDeviceFactory<XBeeDeviceContainer
     @Override
     protected void shutdown() throws Throwable {
 
+        switchCache.close();
+        pipeline.close();
         coordinator.close();
     }
 
@@ -249,49 +291,57 @@ public class XBeeDeviceFactory extends AbstractDeviceFactory<XBeeDeviceContainer
     /**
      * Initiate XBee network browse.
      *
+     * This method doesn't wait for the discovery to complete. Nodes are registered
+     * as their {@code ND} responses arrive (see {@link #createPrototype(ZBNodeDiscover)}),
+     * and the results of the previous cycle (latency, arrivals and departures) are logged and
+     * reflected in JMX attributes at the beginning of the next one.
+     *
      * @param target XBee device instance.
      *
-     * @throws XBeeException
+     * @throws XBeeException if the {@code ND} command couldn't be sent.
      */
     private void browse(XBee target) throws XBeeException {
 
         ThreadContext.push("browse");
-        Marker m = new Marker("browse");
 
         try {
 
-            // get the Node discovery timeout
-            AtCommandResponse nodeTimeout = (AtCommandResponse) target.sendSynchronous(new AtCommand("NT"), XBeeConstants.TIMEOUT_NT_MILLIS);
-
-            // default is 6 seconds
-            long nodeDiscoveryTimeout = (ByteUtils.convertMultiByteToInt(nodeTimeout.getValue())) * 100L;
+            XBeeDiscoveryTracker.Summary summary = discovery.start(System.currentTimeMillis());
 
-            logger.debug("Node discovery timeout is {} milliseconds", nodeDiscoveryTimeout);
+            if (summary != null) {
+                report(summary);
+            }
 
+            discoveryCycles.incrementAndGet();
 
             logger.debug("Sending node discover command");
             target.sendAsynchronous(new AtCommand("ND"));
 
-            Thread.sleep(nodeDiscoveryTimeout);
-
-            // The response will be obtained asynchronously by the Listener
+            // The responses will be obtained asynchronously by the Listener
 
-            listFound();
-
-        } catch (XBeeTimeoutException ex) {
+        } finally {
+            ThreadContext.pop();
+        }
+    }
 
-            logger.error("Load too high or timeout too short?", ex);
+    /**
+     * Report the discovery cycle that just ended.
+     */
+    private void report(XBeeDiscoveryTracker.Summary summary) {
 
-        } catch (InterruptedException ex) {
+        for (String address : summary.departed) {
+            logger.info("departed: {}", address);
+        }
 
-            logger.error("Huh? Interrupted?", ex);
-            Thread.currentThread().interrupt();
+        nodesDeparted.addAndGet(summary.departed.size());
+        firstResponseLatencyMillis = summary.firstResponseLatencyMillis;
+        lastResponseLatencyMillis = summary.lastResponseLatencyMillis;
 
-        } finally {
+        logger.info("discovery: {} nodes responded, first in {}ms, last in {}ms, {} arrived, {} departed",
+                summary.responded.size(), summary.firstResponseLatencyMillis, summary.lastResponseLatencyMillis,
+                summary.arrived.size(), summary.departed.size());
 
-            m.close();
-            ThreadContext.pop();
-        }
+        listFound();
     }
 
     private void listFound() {
@@ -310,34 +360,57 @@ public class XBeeDeviceFactory extends AbstractDeviceFactory<XBeeDeviceContainer
             }
 
             logger.info("{} devices found: {}", address2dcGlobal.size(), sb);
-
-            for (Iterator<String> i = address2dcGlobal.iterator(); i.hasNext(); ) {
-                logger.info("found: {}", i.next());
-            }
         }
     }
 
     /**
-     * Create a generic prototype for the device found.
+     * Register the node that responded to {@code ND}.
+     *
+     * @param nd Node Discover command response.
+     */
+    private void createPrototype(ZBNodeDiscover nd) {
+
+        logger.debug("Raw response: {}", nd);
+
+        discovery.respond(Parser.render4x4(nd.getNodeAddress64()), System.currentTimeMillis());
+
+        createPrototype(nd.getNodeAddress64());
+    }
+
+    /**
+     * Create a generic prototype for the device found, unless it is already known.
      *
      * All XBee devices are equal and can be used for any purpose (depending on
      * how they are programmed), so there is not a specialized container (like
      * there is in 1-Wire factory).
      *
-     * @param nd Node Discover command response to create the prototype for.
+     * @param xbeeAddress Address of the device to create the prototype for.
+     *
+     * @return The prototype, existing or created.
      */
-    private void createPrototype(ZBNodeDiscover nd) {
+    private XBeeDeviceContainer createPrototype(XBeeAddress64 xbeeAddress) {
 
-        ThreadContext.push("createProxy");
+        ThreadContext.push("createPrototype");
 
         try {
 
-            logger.debug("Raw response: {}", nd);
-
-            XBeeDeviceContainer proxy = new XBeeDeviceContainer(this, nd.getNodeAddress64());
+            String address = Parser.render4x4(xbeeAddress);
 
             synchronized (address2dcGlobal) {
+
+                if (address2dcGlobal.containsKey(address)) {
+                    return resolve(address);
+                }
+
+                XBeeDeviceContainer proxy = new XBeeDeviceContainer(this, xbeeAddress);
+
                 address2dcGlobal.add(proxy);
+                address2container.put(Parser.toLong(xbeeAddress.getAddress()), proxy);
+                nodesJoined.incrementAndGet();
+
+                logger.info("joined: {}", address);
+
+                return proxy;
             }
 
         } finally {
@@ -359,27 +432,24 @@ public class XBeeDeviceFactory extends AbstractDeviceFactory<XBeeDeviceContainer
 
             long now = System.currentTimeMillis();
 
-            for (Iterator<Entry<String, Long>> i = lastSeen.entrySet().iterator(); i.hasNext(); ) {
+            for (XBeeDeviceContainer prototype : address2container.values()) {
 
-                Entry<String, Long> entry = i.next();
-                String address = entry.getKey();
-                long age = now - entry.getValue();
+                long lastSeen = prototype.getLastSeen();
 
-                if (age > staleAgeMillis) {
-
-                    logger.warn("Stale sensor: {}", address);
+                if (lastSeen == 0) {
+                    // Discovered, but never sent a sample
+                    continue;
+                }
 
-                    XBeeDeviceContainer prototype = resolve(address);
+                if (now - lastSeen > staleAgeMillis) {
 
-                    if (prototype == null) {
+                    String address = prototype.getAddress();
 
-                        logger.error("No prototype found for {}???", address);
-                        continue;
-                    }
+                    logger.warn("Stale sensor: {}", address);
 
                     prototype.broadcastFailure(new IOException(address
                             + " hasn't been seen for over " + staleAgeMillis + "ms (since"
-                            + new Date(lastSeen.get(address))));
+                            + new Date(lastSeen)));
                 }
             }
 
@@ -414,7 +484,7 @@ public class XBeeDeviceFactory extends AbstractDeviceFactory<XBeeDeviceContainer
                 //
                 // This will correct itself at next browse().
 
-                logger.warn("No devices for {} (first sample arrived before network browse?)", deviceAddress);
+                logger.debug("No devices for {} (first sample arrived before network browse?)", deviceAddress);
                 return null;
             }
 
@@ -438,44 +508,144 @@ public class XBeeDeviceFactory extends AbstractDeviceFactory<XBeeDeviceContainer
         try {
 
             XBeeAddress64 xbeeAddress = packet.getRemoteAddress64();
-            String deviceAddress = Parser.render4x4(xbeeAddress);
+            XBeeDeviceContainer prototype = address2container.get(Parser.toLong(xbeeAddress.getAddress()));
 
-            XBeeDeviceContainer prototype = resolve(deviceAddress);
+            if (prototype == null) {
 
-            // Let's proceed even if the prototype is null,
-            // to record lastSeen and log the sample
+                // The node woke up and sent a sample before the discovery found it,
+                // no need to wait for the next discovery cycle to start using it
+                prototype = createPrototype(xbeeAddress);
+            }
 
             logger.debug("prototype: {}", prototype);
 
-            int buffer[] = packet.getRawPacketBytes();
-            int[] sampleBytes = new int[buffer.length - 14];
-
-            for (int offset = 0; offset < buffer.length - 15; offset++) {
-
-                int value = buffer[offset + 15];
-                sampleBytes[offset] = value;
-            }
-
-            IoSample sample = new IoSample(sampleBytes, xbeeAddress, logger);
+            // Sample data starts right after the receive options byte, no need to copy it
+            IoSampleView sample = sampleView.wrap(packet.getRawPacketBytes(), 15);
 
             logger.debug("sample: {}", sample);
 
-            if (prototype != null) {
-                prototype.broadcastIoSample(sample);
+            if (sample.getAnalogOutOfRange() != 0) {
+                logger.error("ADC sample out of range for {}, channel mask 0x{}",
+                        prototype.getAddress(), Integer.toHexString(sample.getAnalogOutOfRange()));
             }
 
-            lastSeen.put(deviceAddress, System.currentTimeMillis());
+            prototype.broadcastIoSample(sample);
 
         } finally {
             ThreadContext.pop();
         }
     }
 
+    /**
+     * Send a remote AT command and wait for the response.
+     *
+     * @param request Request to send. Its frame ID must be below {@link XBeeCommandPipeline#MIN_FRAME_ID},
+     * the rest belong to the {@link #getPipeline() pipeline}.
+     * @param timeout How long to wait for the response, milliseconds.
+     *
+     * @return The response.
+     *
+     * @throws XBeeException if things go sour.
+     */
     public XBeeResponse sendSynchronous(RemoteAtRequest request, int timeout) throws XBeeException {
 
+        if (request.getFrameId() >= XBeeCommandPipeline.MIN_FRAME_ID) {
+            throw new IllegalArgumentException("Frame ID " + request.getFrameId()
+                    + " belongs to the pipeline, use 1.." + (XBeeCommandPipeline.MIN_FRAME_ID - 1));
+        }
+
         return coordinator.sendSynchronous(request, timeout);
     }
 
+    /**
+     * @return Asynchronous remote AT command pipeline.
+     */
+    public XBeeCommandPipeline getPipeline() {
+
+        return pipeline;
+    }
+
+    private void sendAsynchronous(int frameId, XBeeAddress64 node, String command, int[] value, boolean applyChanges) throws IOException {
+
+        RemoteAtRequest request = value == null
+                ? new RemoteAtRequest(frameId, node, XBeeAddress16.ZNET_BROADCAST, applyChanges, command)
+                : new RemoteAtRequest(frameId, node, XBeeAddress16.ZNET_BROADCAST, applyChanges, command, value);
+
+        try {
+
+            coordinator.sendAsynchronous(request);
+
+        } catch (XBeeException ex) {
+            throw new IOException("Failed to send " + command + " to " + Parser.render4x4(node), ex);
+        }
+    }
+
+    @JmxAttribute(description = "Time from ND to the first response in the last completed discovery cycle, milliseconds")
+    public long getFirstResponseLatency() {
+
+        return firstResponseLatencyMillis;
+    }
+
+    @JmxAttribute(description = "Time from ND to the last response in the last completed discovery cycle, milliseconds")
+    public long getLastResponseLatency() {
+
+        return lastResponseLatencyMillis;
+    }
+
+    @JmxAttribute(description = "Discovery cycles performed")
+    public long getDiscoveryCycles() {
+
+        return discoveryCycles.get();
+    }
+
+    @JmxAttribute(description = "Nodes that appeared since startup")
+    public long getNodesJoined() {
+
+        return nodesJoined.get();
+    }
+
+    @JmxAttribute(description = "Nodes that failed to respond to discovery after having responded to the previous one")
+    public long getNodesDeparted() {
+
+        return nodesDeparted.get();
+    }
+
+    @JmxAttribute(description = "Remote AT commands in flight")
+    public int getCommandsInFlight() {
+
+        return pipeline.getInFlight();
+    }
+
+    @JmxAttribute(description = "Remote AT commands sent")
+    public long getCommandsSent() {
+
+        return pipeline.getSent();
+    }
+
+    @JmxAttribute(description = "Remote AT commands failed")
+    public long getCommandsFailed() {
+
+        return pipeline.getFailed();
+    }
+
+    @JmxAttribute(description = "Remote AT commands timed out")
+    public long getCommandsTimedOut() {
+
+        return pipeline.getTimedOut();
+    }
+
+    @JmxAttribute(description = "DIO write batches sent")
+    public long getWriteBatches() {
+
+        return pipeline.getBatchCount();
+    }
+
+    @JmxAttribute(description = "DIO writes coalesced into batches")
+    public long getBatchedWrites() {
+
+        return pipeline.getBatchedWrites();
+    }
+
     @Override
     protected AnalogSensor createSensorProxy(String address, SensorType type) {
 
@@ -552,15 +722,15 @@ public class XBeeDeviceFactory extends AbstractDeviceFactory<XBeeDeviceContainer
 
     private static class XBeeSingleSwitchProxy extends SingleSwitchProxy<XBeeSwitch> {
 
-        public XBeeSingleSwitchProxy(ContainerMap address2dcGlobal, StringChannelAddress address) {
+        public XBeeSingleSwitchProxy(ContainerMap address2dcGlobal, StringChannelAddress address, SwitchStateCache cache) {
 
-            super(address2dcGlobal, address);
+            super(address2dcGlobal, address, cache);
         }
 
         @Override
-        public synchronized boolean getState() throws IOException {
+        public boolean readHardware() throws IOException {
 
-            ThreadContext.push("getState");
+            ThreadContext.push("readHardware");
 
             try {
 
@@ -578,9 +748,9 @@ public class XBeeDeviceFactory extends AbstractDeviceFactory<XBeeDeviceContainer
         }
 
         @Override
-        public synchronized void setState(boolean state) throws IOException {
+        public void writeHardware(boolean state) throws IOException {
 
-            ThreadContext.push("setState");
+            ThreadContext.push("writeHardware");
 
             try {
 
@@ -611,7 +781,7 @@ public class XBeeDeviceFactory extends AbstractDeviceFactory<XBeeDeviceContainer
     @Override
     protected Switch createSingleSwitchProxy(ContainerMap address2dcGlobal, StringChannelAddress switchAddress) {
 
-      return new XBeeSingleSwitchProxy(address2dcGlobal, switchAddress);
+      return new XBeeSingleSwitchProxy(address2dcGlobal, switchAddress, switchCache);
     }
 
     private class Listener implements PacketListener {
@@ -640,7 +810,7 @@ public class XBeeDeviceFactory extends AbstractDeviceFactory<XBeeDeviceContainer
 
                     } else if ("NT".equals(command)) {
 
-                        // No big deal, browse() initiated it and handled it
+                        // No big deal, someone must have asked
 
                     } else {
 
@@ -649,6 +819,17 @@ public class XBeeDeviceFactory extends AbstractDeviceFactory<XBeeDeviceContainer
 
                     break;
 
+                case REMOTE_AT_RESPONSE:
+
+                    RemoteAtResponse remoteAtResponse = (RemoteAtResponse) packet;
+
+                    pipeline.complete(
+                            remoteAtResponse.getFrameId(),
+                            remoteAtResponse.isOk(),
+                            remoteAtResponse.getValue(),
+                            String.valueOf(remoteAtResponse.getStatus()));
+                    break;
+
                 case ZNET_IO_SAMPLE_RESPONSE:
 
                     broadcastIoSample((ZNetRxIoSampleResponse) packet);
@@ -0,0 +1,128 @@
+package net.sf.dz3.device.sensor.impl.xbee;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Keeps track of nodes responding to consecutive {@code ND} (node discovery) cycles.
+ *
+ * A cycle is open from one {@link #start(long)} to the next. Nodes are recorded as their responses
+ * {@link #respond(String, long) arrive}, and the cycle is only summarized when the next one starts -
+ * there is no telling when the last response of a cycle has arrived.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@homeclimatecontrol.com">Vadim Tkachenko</a> 2001-2021
+ */
+public class XBeeDiscoveryTracker {
+
+    /**
+     * Results of a completed discovery cycle.
+     */
+    public static class Summary {
+
+        /**
+         * Nodes that responded to this cycle.
+         */
+        public final Set<String> responded;
+
+        /**
+         * Nodes that responded to this cycle, but not to the previous one.
+         */
+        public final Set<String> arrived;
+
+        /**
+         * Nodes that responded to the previous cycle, but not to this one.
+         */
+        public final Set<String> departed;
+
+        /**
+         * Time from {@code ND} to the first response, milliseconds, 0 if there were no responses.
+         */
+        public final long firstResponseLatencyMillis;
+
+        /**
+         * Time from {@code ND} to the last response, milliseconds, 0 if there were no responses.
+         */
+        public final long lastResponseLatencyMillis;
+
+        Summary(Set<String> responded, Set<String> arrived, Set<String> departed, long firstResponseLatencyMillis, long lastResponseLatencyMillis) {
+
+            this.responded = Collections.unmodifiableSet(responded);
+            this.arrived = Collections.unmodifiableSet(arrived);
+            this.departed = Collections.unmodifiableSet(departed);
+            this.firstResponseLatencyMillis = firstResponseLatencyMillis;
+            this.lastResponseLatencyMillis = lastResponseLatencyMillis;
+        }
+    }
+
+    private Set<String> previous = new LinkedHashSet<>();
+    private Set<String> current = new LinkedHashSet<>();
+
+    /**
+     * Whether there is a cycle open.
+     */
+    private boolean started = false;
+
+    /**
+     * Time when the current cycle started.
+     */
+    private long startedAt = 0;
+
+    private long firstResponseLatencyMillis = 0;
+    private long lastResponseLatencyMillis = 0;
+
+    /**
+     * Close the current cycle, if any, and start a new one.
+     *
+     * @param now Time the {@code ND} command is sent.
+     *
+     * @return Summary of the cycle that just ended, or {@code null} if this is the first one.
+     */
+    public synchronized Summary start(long now) {
+
+        Summary summary = null;
+
+        if (started) {
+
+            Set<String> arrived = new LinkedHashSet<>(current);
+            Set<String> departed = new LinkedHashSet<>(previous);
+
+            arrived.removeAll(previous);
+            departed.removeAll(current);
+
+            summary = new Summary(current, arrived, departed, firstResponseLatencyMillis, lastResponseLatencyMillis);
+
+            previous = current;
+            current = new LinkedHashSet<>();
+        }
+
+        started = true;
+        startedAt = now;
+        firstResponseLatencyMillis = 0;
+        lastResponseLatencyMillis = 0;
+
+        return summary;
+    }
+
+    /**
+     * Record a node response.
+     *
+     * @param address Address of the node that responded.
+     * @param now Time the response arrived.
+     *
+     * @return Time since the current cycle started, milliseconds.
+     */
+    public synchronized long respond(String address, long now) {
+
+        long latency = started ? now - startedAt : 0;
+
+        if (current.isEmpty()) {
+            firstResponseLatencyMillis = latency;
+        }
+
+        lastResponseLatencyMillis = latency;
+        current.add(address);
+
+        return latency;
+    }
+}
@@ -1,11 +1,10 @@
 package net.sf.dz3.device.sensor.impl.xbee;
 
-import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.ThreadContext;
 
-import com.rapplogic.xbee.api.AtCommandResponse;
-import com.rapplogic.xbee.api.RemoteAtRequest;
 import com.rapplogic.xbee.api.XBeeAddress64;
 
 import net.sf.dz3.device.sensor.AnalogSensor;
@@ -39,6 +38,11 @@ public class XBeeSensor extends AbstractDeviceContainer implements AnalogSensor
     private final String signature;
     private final SensorType type;
 
+    /**
+     * {@link IoSampleView#getAnalogIndex(String) Analog channel index}, {@code -1} if the channel is not analog.
+     */
+    private final int analogIndex;
+
     /**
      * Create an instance.
      *
@@ -52,6 +56,7 @@ public class XBeeSensor extends AbstractDeviceContainer implements AnalogSensor
         this.address = new StringChannelAddress(address);
         this.type = type;
 
+        this.analogIndex = IoSampleView.getAnalogIndex(this.address.channel);
         this.sourceName = type + this.address.toString();
         this.signature = MessageDigestCache.getMD5(type + getAddress()).substring(0, 19);
     }
@@ -70,20 +75,17 @@ public class XBeeSensor extends AbstractDeviceContainer implements AnalogSensor
 
         try {
 
-            XBeeAddress64 xbeeAddress = Parser.parse(address.hardwareAddress);
+            XBeeAddress64 xbeeAddress = container.getXBeeAddress();
             String channel = address.channel;
 
-            RemoteAtRequest request = new RemoteAtRequest(xbeeAddress, "IS");
-            AtCommandResponse rsp = (AtCommandResponse) container.sendSynchronous(request, XBeeConstants.TIMEOUT_IS_MILLIS);
-
-            logger.debug("{} response: {}", channel, rsp);
-
-            if (rsp.isError()) {
+            // VT: NOTE: Must go through the pipeline, or frame IDs will collide with asynchronous requests
+            int[] value = container.getPipeline()
+                    .submit(xbeeAddress, "IS", null)
+                    .get(XBeeConstants.TIMEOUT_IS_MILLIS, TimeUnit.MILLISECONDS);
 
-                throw new IOException(channel + " + query failed, status: " + rsp.getStatus());
-            }
+            logger.debug("{} response: {}", channel, Arrays.toString(value));
 
-            IoSample sample = new IoSample(rsp.getValue(), xbeeAddress, logger);
+            IoSample sample = new IoSample(value, xbeeAddress, logger);
 
             logger.debug("sample: {}", sample);
 
@@ -100,6 +102,14 @@ public class XBeeSensor extends AbstractDeviceContainer implements AnalogSensor
         }
     }
 
+    /**
+     * @return Index of the analog channel this sensor reads, see {@link IoSampleView#getAnalogIndex(String)}.
+     */
+    int getAnalogIndex() {
+
+        return analogIndex;
+    }
+
     @Override
     public void addConsumer(DataSink<Double> consumer) {
 
@@ -1,13 +1,17 @@
 package net.sf.dz3.device.sensor.impl.xbee;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.ThreadContext;
 
-import com.rapplogic.xbee.api.AtCommandResponse;
-import com.rapplogic.xbee.api.RemoteAtRequest;
 import com.rapplogic.xbee.api.XBeeAddress64;
 
 import net.sf.dz3.device.sensor.Switch;
@@ -56,24 +60,45 @@ public class XBeeSwitch implements Switch {
 
         try {
 
-            XBeeAddress64 xbeeAddress = Parser.parse(address.hardwareAddress);
-            String channel = address.channel;
+            return getStateAsync().get(XBeeConstants.TIMEOUT_AT_MILLIS, TimeUnit.MILLISECONDS);
 
-            RemoteAtRequest request = new RemoteAtRequest(xbeeAddress, channel);
-            AtCommandResponse rsp = (AtCommandResponse) container.sendSynchronous(request, XBeeConstants.TIMEOUT_AT_MILLIS);
+        } catch (InterruptedException ex) {
 
-            logger.info("{} response: {}", channel, rsp);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted reading " + address, ex);
 
-            if (rsp.isError()) {
+        } catch (ExecutionException | TimeoutException ex) {
 
-                throw new IOException(channel + " + query failed, status: " + rsp.getStatus());
-            }
+            throw new IOException("Unable to read " + address, ex instanceof ExecutionException ? ex.getCause() : ex);
 
-            int[] buffer = rsp.getValue();
+        } catch (RuntimeException ex) {
 
-            if (buffer.length != 1) {
+            // Pipeline closed, parser failure, whatever - same as before, the caller only expects IOException
+            throw new IOException("Unable to read " + address, ex);
+
+        } finally {
+
+            m.close();
+            ThreadContext.pop();
+        }
+    }
 
-                throw new IOException("Unexpected buffer size " + buffer.length);
+    /**
+     * Read the switch state without blocking.
+     *
+     * @return Future that will be completed with the switch state.
+     */
+    public CompletableFuture<Boolean> getStateAsync() {
+
+        XBeeAddress64 xbeeAddress = container.getXBeeAddress();
+        String channel = address.channel;
+
+        return container.getPipeline().submit(xbeeAddress, channel, null).thenApply(buffer -> {
+
+            logger.debug("{} response: {}", channel, Arrays.toString(buffer));
+
+            if (buffer.length != 1) {
+                throw new CompletionException(new IOException("Unexpected buffer size " + buffer.length));
             }
 
             switch (buffer[0]) {
@@ -87,18 +112,9 @@ public class XBeeSwitch implements Switch {
 
             default:
 
-                throw new IOException(channel + " is not configured as switch, state is " + buffer[0]);
+                throw new CompletionException(new IOException(channel + " is not configured as switch, state is " + buffer[0]));
             }
-
-        } catch (Throwable t) {
-
-            throw new IOException("Unable to read " + address, t);
-
-        } finally {
-
-            m.close();
-            ThreadContext.pop();
-        }
+        });
     }
 
     @Override
@@ -109,24 +125,23 @@ public class XBeeSwitch implements Switch {
 
         try {
 
-            XBeeAddress64 xbeeAddress = Parser.parse(address.hardwareAddress);
-            String channel = address.channel;
+            // The write may sit in the batch for up to the batch window before the pipeline timeout even starts
+            setStateAsync(state).get(
+                    (long) XBeeConstants.TIMEOUT_AT_MILLIS + XBeeConstants.BATCH_WINDOW_MILLIS,
+                    TimeUnit.MILLISECONDS);
 
-            int deviceState = state ? 5 : 4;
-            RemoteAtRequest request = new RemoteAtRequest(xbeeAddress, channel, new int[] {deviceState});
-            AtCommandResponse rsp = (AtCommandResponse) container.sendSynchronous(request, XBeeConstants.TIMEOUT_AT_MILLIS);
+        } catch (InterruptedException ex) {
 
-            logger.info("{} response: {}", channel, rsp);
-            dataBroadcaster.broadcast(new DataSample<Boolean>(System.currentTimeMillis(), getAddress(), getAddress(), state, null));
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted writing " + address, ex);
 
-            if (rsp.isError()) {
+        } catch (ExecutionException | TimeoutException ex) {
 
-                throw new IOException(channel + " + query failed, status: " + rsp.getStatus());
-            }
+            throw new IOException("Unable to write " + address, ex instanceof ExecutionException ? ex.getCause() : ex);
 
-        } catch (Throwable t) {
+        } catch (RuntimeException ex) {
 
-            throw new IOException("Unable to write " + address, t);
+            throw new IOException("Unable to write " + address, ex);
 
         } finally {
 
@@ -135,6 +150,24 @@ public class XBeeSwitch implements Switch {
         }
     }
 
+    /**
+     * Set the switch state without blocking.
+     *
+     * Writes to other switches on the same XBee issued at about the same time will be sent together.
+     *
+     * @param state State to set.
+     *
+     * @return Future that will be completed when the state is applied, and broadcast to the consumers.
+     */
+    public CompletableFuture<Void> setStateAsync(boolean state) {
+
+        XBeeAddress64 xbeeAddress = container.getXBeeAddress();
+
+        // Only broadcast once the node has responded, consumers must not see a state that never made it to the hardware
+        return container.getPipeline().write(xbeeAddress, address.channel, state).thenRun(
+                () -> dataBroadcaster.broadcast(new DataSample<Boolean>(System.currentTimeMillis(), getAddress(), getAddress(), state, null)));
+    }
+
     @Override
     public String getAddress() {
 
@@ -0,0 +1,232 @@
+package net.sf.dz3.xbee;
+
+import com.rapplogic.xbee.api.XBeeAddress64;
+import net.sf.dz3.device.sensor.impl.xbee.Parser;
+import net.sf.dz3.device.sensor.impl.xbee.XBeeCommandPipeline;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+/**
+ * Exercise {@link XBeeCommandPipeline} against a fake radio.
+ */
+class CommandPipelineTest {
+
+    private final Logger logger = LogManager.getLogger(getClass());
+
+    private static final XBeeAddress64 NODE = Parser.parse("0013A200.405D8027");
+
+    private final FakeRadio radio = new FakeRadio(2, 5);
+    private XBeeCommandPipeline pipeline;
+
+    @AfterEach
+    void close() {
+        pipeline.close();
+        radio.close();
+    }
+
+    @Test
+    void correlate() throws InterruptedException, ExecutionException, TimeoutException {
+
+        pipeline = new XBeeCommandPipeline(radio, 1000, 0);
+        radio.pipeline = pipeline;
+
+        List<CompletableFuture<int[]>> reads = new ArrayList<>();
+
+        for (int channel = 0; channel < 8; channel++) {
+            radio.state.put("D" + channel, channel % 2 == 0 ? 4 : 5);
+        }
+
+        for (int channel = 0; channel < 8; channel++) {
+            reads.add(pipeline.submit(NODE, "D" + channel, null));
+        }
+
+        // Responses arrive out of order, but must land where they belong
+        for (int channel = 0; channel < 8; channel++) {
+            assertThat(reads.get(channel).get(1, TimeUnit.SECONDS)).containsExactly(channel % 2 == 0 ? 4 : 5);
+        }
+
+        assertThat(pipeline.getInFlight()).isZero();
+    }
+
+    @Test
+    void batch() throws InterruptedException, ExecutionException, TimeoutException {
+
+        pipeline = new XBeeCommandPipeline(radio, 1000, 20);
+        radio.pipeline = pipeline;
+
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+
+        for (int channel = 0; channel < 8; channel++) {
+            writes.add(pipeline.write(NODE, "D" + channel, true));
+        }
+
+        CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).get(1, TimeUnit.SECONDS);
+
+        assertThat(pipeline.getBatchCount()).isEqualTo(1);
+        assertThat(radio.applied.get()).isEqualTo(1);
+
+        for (int channel = 0; channel < 8; channel++) {
+            assertThat(radio.state.get("D" + channel)).isEqualTo(5);
+        }
+    }
+
+    @Test
+    void timeout() {
+
+        pipeline = new XBeeCommandPipeline((frameId, node, command, value, applyChanges) -> {}, 50, 0);
+
+        CompletableFuture<int[]> read = pipeline.submit(NODE, "D0", null);
+
+        assertThatExceptionOfType(ExecutionException.class)
+                .isThrownBy(() -> read.get(1, TimeUnit.SECONDS))
+                .withCauseInstanceOf(TimeoutException.class);
+
+        assertThat(pipeline.getTimedOut()).isEqualTo(1);
+        assertThat(pipeline.getInFlight()).isZero();
+    }
+
+    @Test
+    void frameIdRange() {
+
+        List<Integer> frameIds = Collections.synchronizedList(new ArrayList<>());
+
+        pipeline = new XBeeCommandPipeline((frameId, node, command, value, applyChanges) -> frameIds.add(frameId), 1000, 0);
+
+        // Wrap around at least once, completing as we go
+        for (int offset = 0; offset < XBeeCommandPipeline.MAX_FRAME_ID * 2; offset++) {
+
+            pipeline.submit(NODE, "D0", null);
+            pipeline.complete(frameIds.get(offset), true, new int[] {4}, "OK");
+        }
+
+        // Synchronous requests own the low range, their responses must not be taken
+        CompletableFuture<int[]> read = pipeline.submit(NODE, "D0", null);
+        pipeline.complete(XBeeCommandPipeline.MIN_FRAME_ID - 1, true, new int[] {4}, "OK");
+
+        assertThat(frameIds).allMatch(id -> id >= XBeeCommandPipeline.MIN_FRAME_ID && id <= XBeeCommandPipeline.MAX_FRAME_ID);
+        assertThat(frameIds).contains(XBeeCommandPipeline.MIN_FRAME_ID, XBeeCommandPipeline.MAX_FRAME_ID);
+        assertThat(read).isNotDone();
+    }
+
+    @Test
+    void throughput() throws InterruptedException, ExecutionException, TimeoutException {
+
+        pipeline = new XBeeCommandPipeline(radio, 5000, 0);
+        radio.pipeline = pipeline;
+
+        int count = 5000;
+        List<Long> latency = Collections.synchronizedList(new ArrayList<>(count));
+        List<CompletableFuture<int[]>> reads = new ArrayList<>(count);
+
+        long start = System.nanoTime();
+
+        for (int offset = 0; offset < count; offset++) {
+
+            // Keep below the frame ID limit
+            while (pipeline.getInFlight() > 200) {
+                Thread.sleep(1);
+            }
+
+            long sent = System.nanoTime();
+            reads.add(pipeline.submit(NODE, "D" + (offset % 8), null).whenComplete((v, t) -> latency.add(System.nanoTime() - sent)));
+        }
+
+        CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+
+        long elapsed = System.nanoTime() - start;
+
+        List<Long> sorted = new ArrayList<>(latency);
+        Collections.sort(sorted);
+
+        logger.info("{} commands in {}ms, {} commands/s", count, elapsed / 1_000_000, count * 1_000_000_000L / elapsed);
+        logger.info("latency: p50={}us p90={}us p99={}us max={}us",
+                percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99), sorted.get(sorted.size() - 1) / 1000);
+
+        assertThat(pipeline.getCompleted()).isEqualTo(count);
+        assertThat(pipeline.getTimedOut()).isZero();
+    }
+
+    private long percentile(List<Long> sorted, int percentile) {
+        return sorted.get(sorted.size() * percentile / 100) / 1000;
+    }
+
+    /**
+     * Responds to remote AT commands after a random delay, like a radio would.
+     */
+    private static class FakeRadio implements XBeeCommandPipeline.Sender, AutoCloseable {
+
+        private final Random rg = new Random();
+        private final ScheduledExecutorService air = Executors.newScheduledThreadPool(4);
+        private final int minDelayMillis;
+        private final int maxDelayMillis;
+
+        final Map<String, Integer> state = new ConcurrentHashMap<>();
+        final Map<String, Integer> staged = new ConcurrentHashMap<>();
+        final AtomicInteger applied = new AtomicInteger();
+
+        XBeeCommandPipeline pipeline;
+
+        FakeRadio(int minDelayMillis, int maxDelayMillis) {
+            this.minDelayMillis = minDelayMillis;
+            this.maxDelayMillis = maxDelayMillis;
+        }
+
+        @Override
+        public void send(int frameId, XBeeAddress64 node, String command, int[] value, boolean applyChanges) {
+
+            // The radio processes commands in order, only responses are delayed
+            int[] response = process(command, value, applyChanges);
+
+            air.schedule(
+                    () -> pipeline.complete(frameId, true, response, "OK"),
+                    minDelayMillis + rg.nextInt(maxDelayMillis - minDelayMillis + 1),
+                    TimeUnit.MILLISECONDS);
+        }
+
+        private synchronized int[] process(String command, int[] value, boolean applyChanges) {
+
+            if ("AC".equals(command)) {
+                state.putAll(staged);
+                staged.clear();
+                applied.incrementAndGet();
+                return new int[0];
+            }
+
+            if (value == null) {
+                return new int[] {state.getOrDefault(command, 0)};
+            }
+
+            if (applyChanges) {
+                state.put(command, value[0]);
+            } else {
+                staged.put(command, value[0]);
+            }
+
+            return new int[0];
+        }
+
+        @Override
+        public void close() {
+            air.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package net.sf.dz3.xbee;
+
+import net.sf.dz3.device.sensor.impl.xbee.XBeeDiscoveryTracker;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DiscoveryTrackerTest {
+
+    private static final String A = "0013A200.405D8027";
+    private static final String B = "0013A200.403A1C33";
+    private static final String C = "0013A200.40643A5B";
+
+    @Test
+    void arrivalAndDeparture() {
+
+        var tracker = new XBeeDiscoveryTracker();
+
+        // Nothing to summarize yet
+        assertThat(tracker.start(1000)).isNull();
+
+        assertThat(tracker.respond(A, 1200)).isEqualTo(200);
+        tracker.respond(B, 3500);
+
+        var first = tracker.start(61000);
+
+        assertThat(first.responded).containsExactly(A, B);
+        assertThat(first.arrived).containsExactly(A, B);
+        assertThat(first.departed).isEmpty();
+        assertThat(first.firstResponseLatencyMillis).isEqualTo(200);
+        assertThat(first.lastResponseLatencyMillis).isEqualTo(2500);
+
+        // B is gone, C shows up
+        tracker.respond(C, 61100);
+        tracker.respond(A, 61300);
+
+        var second = tracker.start(121000);
+
+        assertThat(second.responded).containsExactlyInAnyOrder(A, C);
+        assertThat(second.arrived).containsExactly(C);
+        assertThat(second.departed).containsExactly(B);
+        assertThat(second.firstResponseLatencyMillis).isEqualTo(100);
+        assertThat(second.lastResponseLatencyMillis).isEqualTo(300);
+
+        // Silence, everyone departs; B coming back later is an arrival again
+        var third = tracker.start(181000);
+
+        assertThat(third.responded).isEmpty();
+        assertThat(third.departed).containsExactlyInAnyOrder(A, C);
+        assertThat(third.firstResponseLatencyMillis).isZero();
+
+        tracker.respond(B, 181050);
+
+        assertThat(tracker.start(241000).arrived).containsExactly(B);
+    }
+
+    @Test
+    void duplicateResponse() {
+
+        var tracker = new XBeeDiscoveryTracker();
+
+        tracker.start(0);
+        tracker.respond(A, 10);
+        tracker.respond(A, 20);
+
+        var summary = tracker.start(60000);
+
+        assertThat(summary.responded).containsExactly(A);
+        assertThat(summary.firstResponseLatencyMillis).isEqualTo(10);
+        assertThat(summary.lastResponseLatencyMillis).isEqualTo(20);
+    }
+}
@@ -0,0 +1,121 @@
+package net.sf.dz3.xbee;
+
+import com.rapplogic.xbee.api.XBeeAddress64;
+import net.sf.dz3.device.sensor.impl.xbee.IoSample;
+import net.sf.dz3.device.sensor.impl.xbee.IoSampleView;
+import net.sf.dz3.device.sensor.impl.xbee.Parser;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class IoSampleBenchmarkTest {
+
+    private final Logger logger = LogManager.getLogger(getClass());
+
+    private static final XBeeAddress64 ADDRESS = Parser.parse("0013A200.405D8027");
+
+    /**
+     * Sample with AD0 to AD3 enabled, no digital channels, preceded by 15 bytes of packet header.
+     */
+    private static final int[] PACKET = new int[] {
+            0x7E, 0x00, 0x1A, 0x92, 0x00, 0x13, 0xA2, 0x00, 0x40, 0x5D, 0x80, 0x27, 0x12, 0x34, 0x01,
+            0x01, 0x00, 0x00, 0x0F,
+            0x01, 0x23, 0x02, 0x34, 0x03, 0x45, 0x00, 0x56
+    };
+
+    @Test
+    void equivalence() {
+
+        IoSample sample = new IoSample(copy(PACKET), ADDRESS, logger);
+        IoSampleView view = new IoSampleView().wrap(PACKET, 15);
+
+        for (String channel : new String[] {"A0", "A1", "A2", "A3", "%V"}) {
+
+            Double expected = sample.getChannel(channel);
+            int index = IoSampleView.getAnalogIndex(channel);
+
+            assertThat(view.hasAnalog(index)).isEqualTo(expected != null);
+
+            if (expected != null) {
+                assertThat(view.getAnalog(index)).isEqualTo(expected);
+            }
+        }
+
+        assertThat(IoSampleView.getAnalogIndex("D0")).isEqualTo(-1);
+        assertThat(view.hasAnalog(-1)).isFalse();
+    }
+
+    @Test
+    void digital() {
+
+        int[] buffer = new int[] {0x01, 0x00, 0x03, 0x01, 0x00, 0x02, 0x01, 0x23};
+        IoSampleView view = new IoSampleView().wrap(buffer, 0);
+
+        assertThat(view.getDigitalMask()).isEqualTo(0x03);
+        assertThat(view.getDigital()).isEqualTo(0x02);
+        assertThat(view.hasAnalog(0)).isTrue();
+        assertThat(view.getAnalog(0)).isEqualTo(0x123 / (1024d / 1200d));
+    }
+
+    @Test
+    void address() {
+
+        assertThat(Parser.toLong(ADDRESS.getAddress())).isEqualTo(0x0013A200405D8027L);
+        assertThat(Parser.toLong(Parser.parse("F013A200405D8027").getAddress())).isEqualTo(0xF013A200405D8027L);
+    }
+
+    /**
+     * Smoke check of the relative cost, small enough for the unit suite. Raise the count for meaningful numbers.
+     */
+    @Test
+    void benchmark() {
+
+        int count = 20_000;
+        IoSampleView view = new IoSampleView();
+        double sink = 0;
+
+        // Warm up both paths first
+        for (int pass = 0; pass < 2; pass++) {
+
+            long start = System.nanoTime();
+
+            for (int iteration = 0; iteration < count; iteration++) {
+
+                IoSample sample = new IoSample(copy(PACKET), ADDRESS, logger);
+                sink += sample.getChannel("A0");
+            }
+
+            long copying = System.nanoTime() - start;
+
+            start = System.nanoTime();
+
+            for (int iteration = 0; iteration < count; iteration++) {
+
+                view.wrap(PACKET, 15);
+                sink += view.getAnalog(0);
+            }
+
+            long flyweight = System.nanoTime() - start;
+
+            logger.info("pass {}: IoSample {}ns/op, IoSampleView {}ns/op", pass, copying / count, flyweight / count);
+        }
+
+        assertThat(sink).isPositive();
+    }
+
+    /**
+     * Copy the sample the way {@code XBeeDeviceFactory} used to.
+     */
+    private static int[] copy(int[] buffer) {
+
+        int[] sampleBytes = new int[buffer.length - 14];
+
+        for (int offset = 0; offset < buffer.length - 15; offset++) {
+            sampleBytes[offset] = buffer[offset + 15];
+        }
+
+        return sampleBytes;
+    }
+}